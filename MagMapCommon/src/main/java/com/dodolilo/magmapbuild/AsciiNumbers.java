@@ -0,0 +1,292 @@
+package com.dodolilo.magmapbuild;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 直接在ASCII字节上解析与格式化数字，不需要经过String；常见的短数字不分配对象.
+ */
+final class AsciiNumbers {
+    /**
+     * 精确的10的幂，double能精确表示到1e22.
+     */
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+    private AsciiNumbers() {
+    }
+
+    /**
+     * 解析十进制整数，超过18位时交给Long.parseLong.
+     *
+     * @throws NumberFormatException 不是整数时
+     */
+    static long parseLong(byte[] bytes, int from, int to) {
+        if (from >= to) {
+            throw new NumberFormatException("empty number");
+        }
+        int i = from;
+        final boolean negative = bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        if (i >= to || to - i > 18) {
+            return Long.parseLong(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            final int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("not a number: " + new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 解析Float.toString()输出的十进制数（可带指数）.
+     * 有效数字不超过18位、10的幂不超过22时用一次double除法或乘法得到，与Float.parseFloat最多差最后一位；
+     * 其它情况（NaN、Infinity、过长的数字）交给Float.parseFloat.
+     *
+     * @throws NumberFormatException 不是数时
+     */
+    static float parseFloat(byte[] bytes, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            anyDigit = true;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+        }
+        if (i < to && bytes[i] == '.') {
+            for (i++; i < to && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                anyDigit = true;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (bytes[i] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+            }
+        }
+        if (anyDigit && i < to && (bytes[i] == 'E' || bytes[i] == 'e')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponentDigit = false;
+            for (; i < to && bytes[i] >= '0' && bytes[i] <= '9' && e < 10000; i++) {
+                e = e * 10 + (bytes[i] - '0');
+                anyExponentDigit = true;
+            }
+            if (!anyExponentDigit) {
+                anyDigit = false;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (!anyDigit || i != to || exponent < -22 || exponent > 22) {
+            return Float.parseFloat(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        double value = mantissa;
+        value = exponent < 0 ? value / POW10[-exponent] : value * POW10[exponent];
+        return (float) (negative ? -value : value);
+    }
+
+    /**
+     * 将value的十进制写入dst[pos, ...).
+     *
+     * @return 写入后的位置
+     */
+    static int formatLong(long value, byte[] dst, int pos) {
+        if (value == Long.MIN_VALUE) {
+            final byte[] min = {'-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8'};
+            System.arraycopy(min, 0, dst, pos, min.length);
+            return pos + min.length;
+        }
+        if (value < 0) {
+            dst[pos++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    /**
+     * 将value以能精确还原的最短十进制写入dst[pos, ...)，布局与Float.toString相同：
+     * 1e-3 &lt;= |value| &lt; 1e7时为定点表示，否则为"d.dddE±n"，小数点后至少一位.
+     * <p>
+     * 布局中至少有两位数字，因此从2位有效数字开始逐位尝试（同样长度下取最接近value的），用double计算候选值，候选值严格落在value的舍入区间内（留出double计算误差的余量）时采用.
+     * float的舍入区间边界在double中可精确表示，9位有效数字总能通过检查，因此结果一定能还原为value；
+     * 只有候选值距区间边界不到double误差时才会多输出一位.
+     *
+     * @return 写入后的位置
+     */
+    static int formatFloat(float value, byte[] dst, int pos) {
+        if (Float.isNaN(value)) {
+            System.arraycopy(NAN, 0, dst, pos, NAN.length);
+            return pos + NAN.length;
+        }
+        final int bits = Float.floatToRawIntBits(value);
+        if (bits < 0) {
+            dst[pos++] = '-';
+        }
+        if (Float.isInfinite(value)) {
+            System.arraycopy(INFINITY, 0, dst, pos, INFINITY.length);
+            return pos + INFINITY.length;
+        }
+        final float abs = Math.abs(value);
+        if (abs == 0.0f) {
+            dst[pos++] = '0';
+            dst[pos++] = '.';
+            dst[pos++] = '0';
+            return pos;
+        }
+
+        //舍入区间(lower, upper)：与相邻float的中点，在double中精确；最大的float上方以半个ulp为界
+        final double v = abs;
+        final double upper = abs == Float.MAX_VALUE ? v + Math.ulp(abs) / 2.0 : (v + (double) Math.nextUp(abs)) / 2;
+        final double lower = (v + (double) Math.nextDown(abs)) / 2;
+        final double margin = Math.ulp(v) * 8;
+
+        int exponent = (int) Math.floor(Math.log10(v));
+        long digits = 0L;
+        int precision = 2;
+        for (; precision <= 9; precision++) {
+            //digits * 10^(exponent - precision + 1) 是precision位有效数字的候选值
+            final int scale = precision - 1 - exponent;
+            long candidate = (long) Math.rint(scalePow10(v, scale));
+            int e = exponent;
+            if (candidate >= (long) POW10[precision]) {
+                //log10的误差或进位使位数多了一位
+                e++;
+                candidate = (long) Math.rint(scalePow10(v, precision - 1 - e));
+            } else if (candidate < (long) POW10[precision - 1]) {
+                e--;
+                candidate = (long) Math.rint(scalePow10(v, precision - 1 - e));
+            }
+            final double approx = scalePow10(candidate, e - precision + 1);
+            if (approx > lower + margin && approx < upper - margin) {
+                digits = candidate;
+                exponent = e;
+                break;
+            }
+        }
+        if (precision > 9) {
+            //不会发生：9位有效数字总在舍入区间内；保险起见退回9位
+            precision = 9;
+            digits = (long) Math.rint(scalePow10(v, 8 - exponent));
+            if (digits >= (long) POW10[9]) {
+                digits /= 10;
+                exponent++;
+            }
+        }
+        //去掉末尾的0，只保留有效数字
+        while (precision > 1 && digits % 10 == 0) {
+            digits /= 10;
+            precision--;
+        }
+        return writeDigits(digits, precision, exponent, dst, pos);
+    }
+
+    /**
+     * @return v * 10^scale，|scale|不超过22时只有一次舍入
+     */
+    private static double scalePow10(double v, int scale) {
+        while (scale > 22) {
+            v *= POW10[22];
+            scale -= 22;
+        }
+        while (scale < -22) {
+            v /= POW10[22];
+            scale += 22;
+        }
+        return scale >= 0 ? v * POW10[scale] : v / POW10[-scale];
+    }
+
+    /**
+     * 按Float.toString的布局写出 digits * 10^(exponent - precision + 1).
+     */
+    private static int writeDigits(long digits, int precision, int exponent, byte[] dst, int pos) {
+        if (exponent >= -3 && exponent < 7) {
+            if (exponent < 0) {
+                dst[pos++] = '0';
+                dst[pos++] = '.';
+                for (int i = -1; i > exponent; i--) {
+                    dst[pos++] = '0';
+                }
+                return putDigits(digits, precision, dst, pos);
+            }
+            //整数部分exponent + 1位，不足时补0
+            final int intDigits = exponent + 1;
+            if (precision <= intDigits) {
+                pos = putDigits(digits, precision, dst, pos);
+                for (int i = precision; i < intDigits; i++) {
+                    dst[pos++] = '0';
+                }
+                dst[pos++] = '.';
+                dst[pos++] = '0';
+                return pos;
+            }
+            final int end = putDigits(digits, precision, dst, pos + 1);
+            //把整数部分前移一位，腾出小数点的位置
+            System.arraycopy(dst, pos + 1, dst, pos, intDigits);
+            dst[pos + intDigits] = '.';
+            return end;
+        }
+        //科学计数法：d.ddd E exponent
+        final int end = putDigits(digits, precision, dst, pos + 1);
+        dst[pos] = dst[pos + 1];
+        dst[pos + 1] = '.';
+        pos = end;
+        if (precision == 1) {
+            dst[pos++] = '0';
+        }
+        dst[pos++] = 'E';
+        return formatLong(exponent, dst, pos);
+    }
+
+    /**
+     * 将precision位的digits写入dst[pos, pos + precision).
+     */
+    private static int putDigits(long digits, int precision, byte[] dst, int pos) {
+        for (int i = pos + precision - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + digits % 10);
+            digits /= 10;
+        }
+        return pos + precision;
+    }
+}
@@ -0,0 +1,211 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 在JVM上批量构建磁图：并行处理一个目录下的所有会话.
+ * 每个会话由"前缀_sensors.csv"（或"前缀_sensors.mmsb"）与同前缀的"前缀_points.csv"打点文件组成；
+ * 样本位置由打点轨迹按时间线性插值得到，打点范围之外的样本被忽略.
+ * 用fork/join把会话列表二分，每个叶子任务构建一张部分网格图，再用{@link GridMagMap#merge(GridMagMap)}两两合并.
+ * 特征提取与会话文件的约定也被手机端的覆盖度统计与增量磁图使用；命令行入口在服务器模块的BatchMapTool中.
+ */
+class BatchMapBuilder {
+    static final String SENSORS_SUFFIX = "_sensors";
+    static final String POINTS_SUFFIX = "_points.csv";
+
+    /**
+     * 网格在打点范围外留出的边距（m）.
+     */
+    private static final float GRID_MARGIN = 1.0f;
+
+    /**
+     * 每个格子的特征通道：磁场总强度.
+     */
+    static final int FEATURE_CHANNELS = 1;
+
+    private final float cellSize;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param cellSize    格子边长（m）
+     * @param parallelism 并行线程数
+     */
+    BatchMapBuilder(float cellSize, int parallelism) throws InvalidParameterException {
+        if (cellSize <= 0 || parallelism <= 0) {
+            throw new InvalidParameterException("Params cellSize and parallelism must be positive");
+        }
+        this.cellSize = cellSize;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * 构建目录下所有会话的磁图.
+     *
+     * @throws IOException 目录中没有可用的会话，或读取任何会话失败
+     */
+    public GridMagMap build(File sessionDir) throws IOException {
+        final List<SessionFiles> sessions = findSessions(sessionDir);
+        if (sessions.isEmpty()) {
+            throw new IOException("No session with points file found in " + sessionDir);
+        }
+        final GridMagMap template = createGrid(sessions);
+        try {
+            return pool.invoke(new BuildTask(sessions, 0, sessions.size(), template));
+        } catch (UncheckedIOException e) {
+            //fork/join跨线程重新抛出时可能再包装一层，找到最初的IOException
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw cause != null ? (IOException) cause : new IOException(e);
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * 找出目录下所有同时有传感器文件与打点文件的会话，按文件名排序保证结果可复现.
+     */
+    static List<SessionFiles> findSessions(File sessionDir) throws IOException {
+        final File[] files = sessionDir.listFiles();
+        if (files == null) {
+            throw new IOException(sessionDir + " is not a readable directory");
+        }
+        Arrays.sort(files);
+        final List<SessionFiles> sessions = new ArrayList<>();
+        for (File file : files) {
+            final String name = file.getName();
+            final int suffix = name.lastIndexOf(SENSORS_SUFFIX);
+            if (suffix <= 0 || !(name.endsWith(".csv") || name.endsWith(SessionBinaryFormat.FILE_SUFFIX))) {
+                continue;
+            }
+            final File points = new File(sessionDir, name.substring(0, suffix) + POINTS_SUFFIX);
+            if (points.isFile()) {
+                sessions.add(new SessionFiles(file, points));
+            } else {
+                System.err.println("Skip " + name + ": no " + points.getName());
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * 由所有打点文件的范围确定公共网格，保证各部分图可以合并.
+     */
+    private GridMagMap createGrid(List<SessionFiles> sessions) throws IOException {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (SessionFiles session : sessions) {
+            final MarkPointTrack track = MarkPointTrack.read(session.points);
+            for (int i = 0; i < track.size(); i++) {
+                minX = Math.min(minX, track.getX(i));
+                minY = Math.min(minY, track.getY(i));
+                maxX = Math.max(maxX, track.getX(i));
+                maxY = Math.max(maxY, track.getY(i));
+            }
+        }
+        if (minX > maxX) {
+            throw new IOException("All points files are empty");
+        }
+        minX -= GRID_MARGIN;
+        minY -= GRID_MARGIN;
+        final int cols = (int) Math.ceil((maxX + GRID_MARGIN - minX) / cellSize);
+        final int rows = (int) Math.ceil((maxY + GRID_MARGIN - minY) / cellSize);
+        return new GridMagMap(minX, minY, cellSize, cols, rows, FEATURE_CHANNELS);
+    }
+
+    /**
+     * 将一个会话的所有样本加入map.
+     */
+    static void accumulateSession(SessionFiles session, GridMagMap map) throws IOException {
+        final MarkPointTrack track = MarkPointTrack.read(session.points);
+        final float[] position = new float[2];
+        final float[] features = new float[FEATURE_CHANNELS];
+        try (SessionReader reader = SessionBinaryFormat.open(session.sensors)) {
+            while (reader.next()) {
+                if (!track.positionAt(reader.getTimeMillis(), position)) {
+                    continue;
+                }
+                final int cell = map.cellIndex(position[0], position[1]);
+                if (cell < 0) {
+                    continue;
+                }
+                extractFeatures(reader.getFrame(), features);
+                map.add(cell, features);
+            }
+        }
+    }
+
+    /**
+     * 从一帧中提取格子特征：磁场总强度（与手机朝向无关）.
+     */
+    static void extractFeatures(float[] frame, float[] features) {
+        final float mx = frame[SensorFrame.MAG];
+        final float my = frame[SensorFrame.MAG + 1];
+        final float mz = frame[SensorFrame.MAG + 2];
+        features[0] = (float) Math.sqrt(mx * mx + my * my + mz * mz);
+    }
+
+    /**
+     * 一个会话的传感器文件与打点文件.
+     */
+    static final class SessionFiles {
+        final File sensors;
+        final File points;
+
+        SessionFiles(File sensors, File points) {
+            this.sensors = sensors;
+            this.points = points;
+        }
+    }
+
+    /**
+     * 对会话列表[from, to)构建部分图：只剩一个会话时直接构建，否则二分、fork左半、计算右半后合并.
+     */
+    private static final class BuildTask extends RecursiveTask<GridMagMap> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SessionFiles> sessions;
+        private final int from;
+        private final int to;
+        private final GridMagMap template;
+
+        BuildTask(List<SessionFiles> sessions, int from, int to, GridMagMap template) {
+            this.sessions = sessions;
+            this.from = from;
+            this.to = to;
+            this.template = template;
+        }
+
+        @Override
+        protected GridMagMap compute() {
+            if (to - from == 1) {
+                final GridMagMap partial = template.emptyCopy();
+                try {
+                    accumulateSession(sessions.get(from), partial);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(sessions.get(from).sensors.getName(), e);
+                }
+                return partial;
+            }
+            final int mid = (from + to) >>> 1;
+            final BuildTask left = new BuildTask(sessions, from, mid, template);
+            left.fork();
+            final GridMagMap right = new BuildTask(sessions, mid, to, template).compute();
+            final GridMagMap merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Locale;
+
+/**
+ * NTP式的手机-服务器时钟偏移与漂移估计.
+ * 手机在数据流中发送{@code #PING,seq,t0}，服务器回复{@code PONG,seq,t0,serverTime}；
+ * 每次往返得到一个样本：offset = serverTime - (t0 + t1) / 2，误差不超过rtt / 2.
+ * 只使用往返时延接近最小值的样本（最小RTT滤波），样本跨度足够长时用最小二乘同时估计漂移.
+ * 模型：serverTime ≈ phoneTime + offset + drift * (phoneTime - referenceTime).
+ * 发送线程更新、编码级写会话尾，方法都是同步的.
+ */
+@ThreadSafe
+class ClockSyncEstimator implements SessionFooter {
+    static final String CLOCK_RECORD_TAG = "#CLOCK";
+
+    static final String PING_RECORD_TAG = "#PING";
+
+    static final String PONG_REPLY_TAG = "PONG";
+
+    /**
+     * 保留最近的样本数.
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * RTT不超过最小RTT的该倍数（再加1ms）的样本才参与估计.
+     */
+    private static final double RTT_ACCEPT_FACTOR = 1.5;
+
+    /**
+     * 估计漂移需要的最短样本时间跨度（ms）.
+     */
+    private static final long MIN_DRIFT_SPAN_MS = 10_000;
+
+    @GuardedBy("this")
+    private final double[] localTimes = new double[WINDOW];
+    @GuardedBy("this")
+    private final double[] offsets = new double[WINDOW];
+    @GuardedBy("this")
+    private final double[] rtts = new double[WINDOW];
+    @GuardedBy("this")
+    private int count = 0;
+    @GuardedBy("this")
+    private long totalSamples = 0;
+
+    @GuardedBy("this")
+    private int nextSeq = 0;
+
+    @GuardedBy("this")
+    private boolean modelValid = false;
+    @GuardedBy("this")
+    private double referenceTime = 0.0;
+    @GuardedBy("this")
+    private double offsetMs = 0.0;
+    @GuardedBy("this")
+    private double drift = 0.0;
+    @GuardedBy("this")
+    private double minRttMs = Double.MAX_VALUE;
+
+    /**
+     * 发送时间以nanoTime为准计算往返时延，墙上时钟只用于对齐样本行的时间戳.
+     */
+    private final long baseNanos = System.nanoTime();
+    private final long baseMillis = System.currentTimeMillis();
+
+    /**
+     * @return 与样本行同一时钟的当前时间（ms，带小数），往返时延不受墙上时钟调整的影响
+     */
+    private double nowMillis() {
+        return baseMillis + (System.nanoTime() - baseNanos) / 1e6;
+    }
+
+    /**
+     * 生成一条PING记录.
+     */
+    public synchronized String newPing() {
+        final int seq = nextSeq++;
+        return PING_RECORD_TAG + ',' + seq + ',' + String.format(Locale.US, "%.3f", nowMillis()) + '\n';
+    }
+
+    /**
+     * 处理服务器的一行回复.
+     *
+     * @return false 如果这一行不是PONG
+     */
+    public boolean onServerLine(String line) {
+        if (line == null || !line.startsWith(PONG_REPLY_TAG + ',')) {
+            return false;
+        }
+        final double t1 = nowMillis();
+        final String[] fields = line.split(",");
+        if (fields.length < 4) {
+            return true;
+        }
+        try {
+            final double t0 = Double.parseDouble(fields[2]);
+            final double serverTime = Double.parseDouble(fields[3]);
+            addSample(t0, serverTime, t1);
+        } catch (NumberFormatException e) {
+            //格式错误的回复直接忽略
+        }
+        return true;
+    }
+
+    synchronized void addSample(double t0, double serverTime, double t1) {
+        final double rtt = t1 - t0;
+        if (rtt < 0) {
+            return;
+        }
+        final int i = (int) (totalSamples % WINDOW);
+        localTimes[i] = (t0 + t1) / 2;
+        offsets[i] = serverTime - localTimes[i];
+        rtts[i] = rtt;
+        count = Math.min(count + 1, WINDOW);
+        totalSamples++;
+        estimate();
+    }
+
+    @GuardedBy("this")
+    private void estimate() {
+        double minRtt = Double.MAX_VALUE;
+        int best = 0;
+        for (int i = 0; i < count; i++) {
+            if (rtts[i] < minRtt) {
+                minRtt = rtts[i];
+                best = i;
+            }
+        }
+        minRttMs = minRtt;
+        final double accept = minRtt * RTT_ACCEPT_FACTOR + 1.0;
+        double sumT = 0;
+        double n = 0;
+        double tMin = Double.MAX_VALUE;
+        double tMax = -Double.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (rtts[i] <= accept) {
+                sumT += localTimes[i];
+                n++;
+                tMin = Math.min(tMin, localTimes[i]);
+                tMax = Math.max(tMax, localTimes[i]);
+            }
+        }
+        if (n < 3 || tMax - tMin < MIN_DRIFT_SPAN_MS) {
+            //样本太少或跨度太短，只用最小RTT的样本，不估计漂移
+            referenceTime = localTimes[best];
+            offsetMs = offsets[best];
+            drift = 0.0;
+        } else {
+            //以RTT的倒数为权重的最小二乘，时延越小的样本越可信
+            final double meanT = sumT / n;
+            double sw = 0;
+            double swT = 0;
+            double swO = 0;
+            double swTT = 0;
+            double swTO = 0;
+            for (int i = 0; i < count; i++) {
+                if (rtts[i] <= accept) {
+                    final double w = 1.0 / (rtts[i] + 1.0);
+                    final double t = localTimes[i] - meanT;
+                    sw += w;
+                    swT += w * t;
+                    swO += w * offsets[i];
+                    swTT += w * t * t;
+                    swTO += w * t * offsets[i];
+                }
+            }
+            final double det = sw * swTT - swT * swT;
+            drift = det == 0 ? 0.0 : (sw * swTO - swT * swO) / det;
+            offsetMs = (swO - drift * swT) / sw;
+            referenceTime = meanT;
+        }
+        modelValid = true;
+    }
+
+    /**
+     * @return 手机时间phoneTimeMillis对应的服务器时间，尚无样本时原样返回
+     */
+    public synchronized double toServerTime(double phoneTimeMillis) {
+        if (!modelValid) {
+            return phoneTimeMillis;
+        }
+        return phoneTimeMillis + offsetMs + drift * (phoneTimeMillis - referenceTime);
+    }
+
+    public synchronized boolean isValid() {
+        return modelValid;
+    }
+
+    public synchronized double getOffsetMs() {
+        return offsetMs;
+    }
+
+    /**
+     * @return 漂移（ppm）
+     */
+    public synchronized double getDriftPpm() {
+        return drift * 1e6;
+    }
+
+    /**
+     * @return 偏移估计的误差上界（ms），即最小RTT的一半
+     */
+    public synchronized double getUncertaintyMs() {
+        return modelValid ? minRttMs / 2 : Double.NaN;
+    }
+
+    /**
+     * @return 时钟模型记录，尚无样本时为null
+     */
+    public synchronized String toRecord(long timeMillis) {
+        if (!modelValid) {
+            return null;
+        }
+        return String.format(Locale.US,
+                "%s,%d,offset_ms=%.3f,drift_ppm=%.2f,ref_ms=%.3f,min_rtt_ms=%.3f,samples=%d\n",
+                CLOCK_RECORD_TAG, timeMillis, offsetMs, drift * 1e6, referenceTime, minRttMs, totalSamples);
+    }
+
+    @Override
+    public String footerRecord(long timeMillis) {
+        final String record = toRecord(timeMillis);
+        return record == null ? "" : record;
+    }
+}
@@ -0,0 +1,192 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidParameterException;
+
+/**
+ * 规则网格磁图：每个格子、每个特征通道保存样本数、均值与离差平方和（Welford）.
+ * 两张相同网格的图可以用{@link #merge(GridMagMap)}合并，合并满足结合律（Chan等的并行方差公式），
+ * 因此可以在多个线程中各自构建部分图，再两两合并成整张图.
+ */
+@NotThreadSafe
+class GridMagMap {
+    private final float originX;
+    private final float originY;
+    private final float cellSize;
+    private final int cols;
+    private final int rows;
+    private final int channels;
+
+    private final long[] counts;
+    private final double[] means;
+    private final double[] m2s;
+
+    /**
+     * @param originX  网格左下角x（m）
+     * @param originY  网格左下角y（m）
+     * @param cellSize 格子边长（m）
+     * @param cols     列数
+     * @param rows     行数
+     * @param channels 每个格子的特征通道数
+     */
+    GridMagMap(float originX, float originY, float cellSize, int cols, int rows, int channels)
+            throws InvalidParameterException {
+        if (cellSize <= 0 || cols <= 0 || rows <= 0 || channels <= 0) {
+            throw new InvalidParameterException("Grid size and channels must be positive");
+        }
+        this.originX = originX;
+        this.originY = originY;
+        this.cellSize = cellSize;
+        this.cols = cols;
+        this.rows = rows;
+        this.channels = channels;
+        counts = new long[cols * rows];
+        means = new double[cols * rows * channels];
+        m2s = new double[cols * rows * channels];
+    }
+
+    /**
+     * @return 与本图网格相同的空图
+     */
+    public GridMagMap emptyCopy() {
+        return new GridMagMap(originX, originY, cellSize, cols, rows, channels);
+    }
+
+    /**
+     * @return 坐标所在格子的下标，网格外返回-1
+     */
+    public int cellIndex(float x, float y) {
+        final int col = (int) Math.floor((x - originX) / cellSize);
+        final int row = (int) Math.floor((y - originY) / cellSize);
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    /**
+     * 向格子cell加入一个样本.
+     *
+     * @param values 长度为channels的特征值
+     */
+    public void add(int cell, float[] values) {
+        final long n = ++counts[cell];
+        for (int c = 0; c < channels; c++) {
+            final int k = cell * channels + c;
+            final double delta = values[c] - means[k];
+            means[k] += delta / n;
+            m2s[k] += delta * (values[c] - means[k]);
+        }
+    }
+
+    /**
+     * 将other合并进本图.
+     *
+     * @throws InvalidParameterException 如果两图网格不同
+     */
+    public void merge(GridMagMap other) throws InvalidParameterException {
+        if (other.cols != cols || other.rows != rows || other.channels != channels
+                || other.cellSize != cellSize || other.originX != originX || other.originY != originY) {
+            throw new InvalidParameterException("Cannot merge maps with different grids");
+        }
+        for (int cell = 0; cell < counts.length; cell++) {
+            final long nb = other.counts[cell];
+            if (nb == 0) {
+                continue;
+            }
+            final long na = counts[cell];
+            final long n = na + nb;
+            for (int c = 0; c < channels; c++) {
+                final int k = cell * channels + c;
+                final double delta = other.means[k] - means[k];
+                means[k] += delta * nb / n;
+                m2s[k] += other.m2s[k] + delta * delta * na * nb / n;
+            }
+            counts[cell] = n;
+        }
+    }
+
+    /**
+     * 直接设置格子的统计量，用于由其它形式保存的统计量导出磁图.
+     *
+     * @param cellMeans 长度为channels的均值
+     * @param cellM2s   长度为channels的离差平方和
+     */
+    void setCell(int cell, long count, double[] cellMeans, double[] cellM2s) {
+        counts[cell] = count;
+        System.arraycopy(cellMeans, 0, means, cell * channels, channels);
+        System.arraycopy(cellM2s, 0, m2s, cell * channels, channels);
+    }
+
+    public long getCount(int cell) {
+        return counts[cell];
+    }
+
+    public double getMean(int cell, int channel) {
+        return means[cell * channels + channel];
+    }
+
+    /**
+     * @return 样本方差，样本数小于2时为0
+     */
+    public double getVariance(int cell, int channel) {
+        final long n = counts[cell];
+        return n < 2 ? 0.0 : m2s[cell * channels + channel] / (n - 1);
+    }
+
+    public int getCellCount() {
+        return counts.length;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public float getOriginX() {
+        return originX;
+    }
+
+    public float getOriginY() {
+        return originY;
+    }
+
+    /**
+     * 将有样本的格子写为csv，每行"格子中心x,y,样本数,通道0均值,通道0标准差,..."
+     */
+    public void writeCsv(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII), 1 << 16)) {
+            for (int cell = 0; cell < counts.length; cell++) {
+                if (counts[cell] == 0) {
+                    continue;
+                }
+                final float x = originX + (cell % cols + 0.5f) * cellSize;
+                final float y = originY + (cell / cols + 0.5f) * cellSize;
+                writer.write(x + "," + y + "," + counts[cell]);
+                for (int c = 0; c < channels; c++) {
+                    writer.write("," + (float) getMean(cell, c) + "," + (float) Math.sqrt(getVariance(cell, c)));
+                }
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定桶的对数-线性直方图（HdrHistogram风格），用于记录延迟、间隔等非负整数值.
+ * 值按2的幂分段，每段再线性分为16个子桶，相对误差不超过1/16；小于16的值精确记录.
+ * {@link #record(long)}无锁、不分配对象，可以在采样、发送等热路径上调用.
+ */
+@ThreadSafe
+class LogLinearHistogram {
+    /**
+     * 每段的子桶数 = 2^SUB_BUCKET_BITS.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 覆盖[0, 2^63)的桶数.
+     */
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    LogLinearHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 记录一个值，负值按0记录.
+     */
+    public void record(long value) {
+        final long v = Math.max(0L, value);
+        counts.incrementAndGet(bucketIndex(v));
+        sum.add(v);
+        long currentMax = max.get();
+        while (v > currentMax && !max.compareAndSet(currentMax, v)) {
+            currentMax = max.get();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 当前分布的快照
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * 清空所有记录.与record()并发时可能丢失少量记录.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0L);
+        }
+        sum.reset();
+        max.set(0L);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return 桶index覆盖的最小值
+     */
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * 直方图快照，不可变.
+     */
+    static final class Snapshot {
+        private final long[] counts;
+        private final long totalCount;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long totalCount, long sum, long max) {
+            this.counts = counts;
+            this.totalCount = totalCount;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return totalCount;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return totalCount == 0 ? 0.0 : (double) sum / totalCount;
+        }
+
+        /**
+         * @param quantile [0, 1]
+         * @return 该分位数所在桶的下界，空直方图返回0
+         */
+        public long getValueAtQuantile(double quantile) {
+            if (totalCount == 0) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * totalCount));
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketLowerBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + totalCount
+                    + ";mean=" + Math.round(getMean())
+                    + ";p50=" + getValueAtQuantile(0.5)
+                    + ";p90=" + getValueAtQuantile(0.9)
+                    + ";p99=" + getValueAtQuantile(0.99)
+                    + ";max=" + max;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 磁图的二进制文件格式，用{@link FileChannel#map}只读映射后直接在映射区上查询，打开时不做反序列化.
+ * <pre>
+ *     header (64 bytes):
+ *         int magic "MMAP", int version, int headerSize, int flags,
+ *         float originX, float originY, float cellSize,
+ *         int cols, int rows, int channels, int occupied,
+ *         int crc32(payload), long payloadLength, 8 bytes reserved
+ *     payload:
+ *         cell grid:     int[cols * rows]     格子 -> 槽位，-1表示没有数据
+ *         spatial index: int[rows + 1]        每行第一个槽位（CSR），
+ *                        int[occupied]        槽位 -> 格子，按行优先排序
+ *         features:      occupied * (int count, float[channels] mean, float[channels] std)
+ * </pre>
+ * 打开时只检查magic、版本和长度；校验和较慢，由{@link #verifyChecksum()}在不影响启动的时机惰性校验.
+ */
+@ThreadSafe
+final class MagMapFile {
+    static final int MAGIC = 0x4D4D4150;
+
+    static final int VERSION = 1;
+
+    /**
+     * 磁图文件的扩展名.
+     */
+    static final String FILE_SUFFIX = ".mmap";
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int NO_SLOT = -1;
+
+    private final File file;
+
+    /**
+     * 只在绝对位置上读取，多线程并发查询是安全的.
+     */
+    private final ByteBuffer buffer;
+
+    private final float originX;
+    private final float originY;
+    private final float cellSize;
+    private final int cols;
+    private final int rows;
+    private final int channels;
+    private final int occupied;
+    private final int checksum;
+
+    private final int gridOffset;
+    private final int rowStartOffset;
+    private final int slotCellOffset;
+    private final int featureOffset;
+    private final int recordSize;
+
+    /**
+     * 惰性校验的结果，null表示尚未校验.
+     */
+    private volatile Boolean checksumValid = null;
+
+    private MagMapFile(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a magnetic map file");
+        }
+        final int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(file + ": unsupported map file version " + version + ", expected " + VERSION);
+        }
+        final int headerSize = buffer.getInt(8);
+        originX = buffer.getFloat(16);
+        originY = buffer.getFloat(20);
+        cellSize = buffer.getFloat(24);
+        cols = buffer.getInt(28);
+        rows = buffer.getInt(32);
+        channels = buffer.getInt(36);
+        occupied = buffer.getInt(40);
+        checksum = buffer.getInt(44);
+        final long payloadLength = buffer.getLong(48);
+        if (headerSize != HEADER_SIZE || cols <= 0 || rows <= 0 || channels <= 0 || occupied < 0
+                || occupied > (long) cols * rows || !(cellSize > 0)) {
+            throw new IOException(file + ": corrupted map file header");
+        }
+
+        recordSize = 4 + 8 * channels;
+        gridOffset = HEADER_SIZE;
+        rowStartOffset = gridOffset + 4 * cols * rows;
+        slotCellOffset = rowStartOffset + 4 * (rows + 1);
+        featureOffset = slotCellOffset + 4 * occupied;
+        final long expectedPayload = (long) featureOffset - HEADER_SIZE + (long) occupied * recordSize;
+        if (payloadLength != expectedPayload || buffer.capacity() != HEADER_SIZE + payloadLength) {
+            throw new IOException(file + ": truncated map file, expected " + (HEADER_SIZE + expectedPayload)
+                    + " bytes but got " + buffer.capacity());
+        }
+    }
+
+    /**
+     * 只读映射磁图文件.映射建立后文件通道即可关闭，映射区在对象被回收前一直有效.
+     */
+    static MagMapFile open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MagMapFile(file, mapped);
+        }
+    }
+
+    /**
+     * 将网格磁图写为磁图文件.先写临时文件再改名，读者不会映射到写了一半的文件.
+     * 每个通道保存均值与标准差.
+     */
+    static void write(GridMagMap map, File file) throws IOException {
+        final int cols = map.getCols();
+        final int rows = map.getRows();
+        final int channels = map.getChannels();
+        final int cellCount = map.getCellCount();
+        int occupied = 0;
+        for (int cell = 0; cell < cellCount; cell++) {
+            occupied += map.getCount(cell) > 0 ? 1 : 0;
+        }
+
+        final int recordSize = 4 + 8 * channels;
+        final long payloadLength = 4L * cellCount + 4L * (rows + 1) + 4L * occupied + (long) occupied * recordSize;
+        if (HEADER_SIZE + payloadLength > Integer.MAX_VALUE) {
+            throw new IOException("Map too large for a single map file: " + payloadLength + " bytes");
+        }
+        final ByteBuffer payload = ByteBuffer.allocate((int) payloadLength);
+        final int rowStartOffset = 4 * cellCount;
+        final int slotCellOffset = rowStartOffset + 4 * (rows + 1);
+        final int featureOffset = slotCellOffset + 4 * occupied;
+        int slot = 0;
+        for (int row = 0; row < rows; row++) {
+            payload.putInt(rowStartOffset + 4 * row, slot);
+            for (int col = 0; col < cols; col++) {
+                final int cell = row * cols + col;
+                final long count = map.getCount(cell);
+                if (count == 0) {
+                    payload.putInt(4 * cell, NO_SLOT);
+                    continue;
+                }
+                payload.putInt(4 * cell, slot);
+                payload.putInt(slotCellOffset + 4 * slot, cell);
+                final int record = featureOffset + slot * recordSize;
+                payload.putInt(record, (int) Math.min(count, Integer.MAX_VALUE));
+                for (int c = 0; c < channels; c++) {
+                    payload.putFloat(record + 4 + 4 * c, (float) map.getMean(cell, c));
+                    payload.putFloat(record + 4 + 4 * (channels + c), (float) Math.sqrt(map.getVariance(cell, c)));
+                }
+                slot++;
+            }
+        }
+        payload.putInt(rowStartOffset + 4 * rows, slot);
+
+        final CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payload.capacity());
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(0)
+                .putFloat(map.getOriginX()).putFloat(map.getOriginY()).putFloat(map.getCellSize())
+                .putInt(cols).putInt(rows).putInt(channels).putInt(occupied)
+                .putInt((int) crc.getValue()).putLong(payloadLength);
+        header.clear();
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            final ByteBuffer[] buffers = {header, payload};
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                channel.write(buffers);
+            }
+            channel.force(true);
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("Cannot replace " + file + " with " + tmp);
+        }
+    }
+
+    /**
+     * 对整个载荷做CRC32校验，结果会被缓存.读取整个文件，应在定位启动之后的后台线程中调用.
+     *
+     * @return 校验和是否一致
+     */
+    public boolean verifyChecksum() {
+        Boolean valid = checksumValid;
+        if (valid == null) {
+            final CRC32 crc = new CRC32();
+            final ByteBuffer payload = buffer.duplicate();
+            payload.position(HEADER_SIZE);
+            final byte[] chunk = new byte[1 << 16];
+            while (payload.hasRemaining()) {
+                final int n = Math.min(chunk.length, payload.remaining());
+                payload.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+            }
+            valid = (int) crc.getValue() == checksum;
+            checksumValid = valid;
+        }
+        return valid;
+    }
+
+    /**
+     * @return 坐标所在格子的下标，网格外返回-1
+     */
+    public int cellIndex(float x, float y) {
+        final int col = (int) Math.floor((x - originX) / cellSize);
+        final int row = (int) Math.floor((y - originY) / cellSize);
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    /**
+     * @return 格子对应的槽位，没有数据返回-1
+     */
+    public int slotOf(int cell) {
+        return buffer.getInt(gridOffset + 4 * cell);
+    }
+
+    /**
+     * @return 坐标所在格子的槽位，网格外或没有数据返回-1
+     */
+    public int lookup(float x, float y) {
+        final int cell = cellIndex(x, y);
+        return cell < 0 ? NO_SLOT : slotOf(cell);
+    }
+
+    public int getCellOfSlot(int slot) {
+        return buffer.getInt(slotCellOffset + 4 * slot);
+    }
+
+    public int getCount(int slot) {
+        return buffer.getInt(featureOffset + slot * recordSize);
+    }
+
+    public float getMean(int slot, int channel) {
+        return buffer.getFloat(featureOffset + slot * recordSize + 4 + 4 * channel);
+    }
+
+    public float getStd(int slot, int channel) {
+        return buffer.getFloat(featureOffset + slot * recordSize + 4 + 4 * (channels + channel));
+    }
+
+    /**
+     * 通过CSR空间索引遍历矩形范围内所有有数据的格子，不访问空格子.
+     *
+     * @return 访问的槽位数
+     */
+    public int forEachSlotInRect(float minX, float minY, float maxX, float maxY, SlotVisitor visitor) {
+        final int row0 = Math.max(0, (int) Math.floor((minY - originY) / cellSize));
+        final int row1 = Math.min(rows - 1, (int) Math.floor((maxY - originY) / cellSize));
+        final int col0 = Math.max(0, (int) Math.floor((minX - originX) / cellSize));
+        final int col1 = Math.min(cols - 1, (int) Math.floor((maxX - originX) / cellSize));
+        int visited = 0;
+        for (int row = row0; row <= row1 && col0 <= col1; row++) {
+            final int end = buffer.getInt(rowStartOffset + 4 * (row + 1));
+            //行内槽位按列有序，二分找到第一个不小于col0的槽位
+            int slot = lowerBound(buffer.getInt(rowStartOffset + 4 * row), end, row * cols + col0);
+            final int lastCell = row * cols + col1;
+            for (; slot < end; slot++) {
+                final int cell = getCellOfSlot(slot);
+                if (cell > lastCell) {
+                    break;
+                }
+                visitor.visit(slot, cell % cols, row);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    private int lowerBound(int from, int to, int cell) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getCellOfSlot(mid) < cell) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public float getOriginX() {
+        return originX;
+    }
+
+    public float getOriginY() {
+        return originY;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getOccupiedCount() {
+        return occupied;
+    }
+
+    /**
+     * 空间范围查询的回调.
+     */
+    interface SlotVisitor {
+        void visit(int slot, int col, int row);
+    }
+}
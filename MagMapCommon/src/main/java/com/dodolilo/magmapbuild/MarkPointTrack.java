@@ -0,0 +1,126 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 一次采集中按时间排列的打点真值轨迹，来自..._points.csv（每行"时间戳,x,y"）.
+ * 两个打点之间按时间线性插值得到行人位置.
+ */
+class MarkPointTrack {
+    /**
+     * 随数据流上传的打点记录（由手机端的MarkEventChannel生成），格式为{@code #MARK,time,elapsedNanos,name,x,y}.
+     */
+    static final String MARK_RECORD_TAG = "#MARK";
+
+    private final long[] times;
+    private final float[] xs;
+    private final float[] ys;
+
+    MarkPointTrack(long[] times, float[] xs, float[] ys) {
+        this.times = times;
+        this.xs = xs;
+        this.ys = ys;
+    }
+
+    /**
+     * 读取打点文件，忽略空行与无法解析的行，按时间排序.
+     */
+    static MarkPointTrack read(File pointsFile) throws IOException {
+        long[] times = new long[64];
+        float[] xs = new float[64];
+        float[] ys = new float[64];
+        int n = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(pointsFile), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] columns = line.split(",");
+                if (columns.length < 3 || line.isEmpty() || !Character.isDigit(line.charAt(0))) {
+                    continue;
+                }
+                if (n == times.length) {
+                    times = Arrays.copyOf(times, n * 2);
+                    xs = Arrays.copyOf(xs, n * 2);
+                    ys = Arrays.copyOf(ys, n * 2);
+                }
+                try {
+                    times[n] = Long.parseLong(columns[0].trim());
+                    xs[n] = Float.parseFloat(columns[1].trim());
+                    ys[n] = Float.parseFloat(columns[2].trim());
+                    n++;
+                } catch (NumberFormatException e) {
+                    //跳过格式错误的行
+                }
+            }
+        }
+        return sorted(Arrays.copyOf(times, n), Arrays.copyOf(xs, n), Arrays.copyOf(ys, n));
+    }
+
+    /**
+     * 按时间排序后构造轨迹，输入数组不被修改.
+     */
+    static MarkPointTrack sorted(long[] times, float[] xs, float[] ys) {
+        final Integer[] order = new Integer[times.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b]));
+        long[] t = new long[times.length];
+        float[] x = new float[times.length];
+        float[] y = new float[times.length];
+        for (int i = 0; i < order.length; i++) {
+            t[i] = times[order[i]];
+            x[i] = xs[order[i]];
+            y[i] = ys[order[i]];
+        }
+        return new MarkPointTrack(t, x, y);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public float getX(int index) {
+        return xs[index];
+    }
+
+    public float getY(int index) {
+        return ys[index];
+    }
+
+    /**
+     * 求时刻t的插值位置.
+     *
+     * @param t   时刻（ms）
+     * @param out 输出位置{x, y}
+     * @return false 如果t不在第一个与最后一个打点之间
+     */
+    public boolean positionAt(long t, float[] out) {
+        if (times.length < 2 || t < times[0] || t > times[times.length - 1]) {
+            return false;
+        }
+        int i = Arrays.binarySearch(times, t);
+        if (i >= 0) {
+            out[0] = xs[i];
+            out[1] = ys[i];
+            return true;
+        }
+        i = -i - 1;
+        final long t0 = times[i - 1];
+        final long t1 = times[i];
+        final float r = (float) (t - t0) / (t1 - t0);
+        out[0] = xs[i - 1] + r * (xs[i] - xs[i - 1]);
+        out[1] = ys[i - 1] + r * (ys[i] - ys[i - 1]);
+        return true;
+    }
+}
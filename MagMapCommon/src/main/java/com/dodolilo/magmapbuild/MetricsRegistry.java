@@ -0,0 +1,91 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的度量注册表：分条（striped）计数器与对数-线性直方图.
+ * 度量在启动时通过{@link #counter(String)}、{@link #histogram(String)}取得一次并保存引用，
+ * 热路径上只调用LongAdder.increment()/add()与{@link LogLinearHistogram#record(long)}，不查表、不分配对象.
+ * 可以随时生成快照，也可以编码成一行度量帧随数据流发给服务器.
+ */
+@ThreadSafe
+class MetricsRegistry {
+    /**
+     * 数据流中度量帧的行首标记.
+     */
+    static final String METRICS_FRAME_TAG = "#METRICS";
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<String, LogLinearHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @return 进程内唯一的注册表
+     */
+    static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 取得（或创建）名为name的计数器.
+     */
+    public LongAdder counter(String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new LongAdder());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * 取得（或创建）名为name的直方图.
+     */
+    public LogLinearHistogram histogram(String name) {
+        LogLinearHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new LogLinearHistogram(name));
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return 所有度量的当前值，每个度量一行，用于日志与界面显示
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue().sum()).append('\n');
+        }
+        for (LogLinearHistogram histogram : histograms.values()) {
+            sb.append(histogram.getName()).append('=').append(histogram.snapshot()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 将所有度量编码为一行度量帧："#METRICS,时间戳,name=value,...\n".
+     * 直方图的value为"count=..;mean=..;p50=..;p90=..;p99=..;max=..".
+     *
+     * @param timeMillis 帧时间戳（ms）
+     */
+    public String toFrame(long timeMillis) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(METRICS_FRAME_TAG).append(',').append(timeMillis);
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sb.append(',').append(entry.getKey()).append('=').append(entry.getValue().sum());
+        }
+        for (LogLinearHistogram histogram : histograms.values()) {
+            sb.append(',').append(histogram.getName()).append('=').append(histogram.snapshot());
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,84 @@
+package com.dodolilo.magmapbuild;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 数据采集流水线各级记录的度量，在类加载时向{@link MetricsRegistry}注册一次.
+ */
+final class PipelineMetrics {
+    private static final MetricsRegistry REGISTRY = MetricsRegistry.getInstance();
+
+    /**
+     * 采样线程输出的样本数.
+     */
+    static final LongAdder SAMPLES = REGISTRY.counter("samples");
+
+    /**
+     * 相邻两次采样的实际间隔（us），用于发现有效采样率低于200Hz的手机.
+     */
+    static final LogLinearHistogram SAMPLE_INTERVAL_US = REGISTRY.histogram("sample_interval_us");
+
+    /**
+     * 因编码队列满而丢弃的样本数.
+     */
+    static final LongAdder DROPPED_SAMPLES = REGISTRY.counter("dropped_samples");
+
+    /**
+     * 编码级处理的样本数.
+     */
+    static final LongAdder ENCODED_SAMPLES = REGISTRY.counter("encoded_samples");
+
+    /**
+     * 发送到服务器的字符数（数据流为ASCII，即字节数）.
+     */
+    static final LongAdder BYTES_SENT = REGISTRY.counter("bytes_sent");
+
+    /**
+     * 一次write+flush的耗时（us）.
+     */
+    static final LogLinearHistogram FLUSH_LATENCY_US = REGISTRY.histogram("flush_latency_us");
+
+    /**
+     * 会话中第一次之后的重连次数.
+     */
+    static final LongAdder RECONNECTS = REGISTRY.counter("reconnects");
+
+    /**
+     * 连接或握手失败的次数.
+     */
+    static final LongAdder CONNECT_FAILURES = REGISTRY.counter("connect_failures");
+
+    /**
+     * 磁图瓦片缓存命中、未命中（需从磁图文件加载）与淘汰的次数.
+     */
+    static final LongAdder TILE_HITS = REGISTRY.counter("tile_hits");
+
+    static final LongAdder TILE_MISSES = REGISTRY.counter("tile_misses");
+
+    static final LongAdder TILE_EVICTIONS = REGISTRY.counter("tile_evictions");
+
+    /**
+     * 从磁图文件加载一个瓦片的耗时（us）.
+     */
+    static final LogLinearHistogram TILE_LOAD_US = REGISTRY.histogram("tile_load_us");
+
+    /**
+     * 实时UDP流发出的数据报数，以及因socket缓冲区满或网络不可用而丢弃的数据报数.
+     */
+    static final LongAdder UDP_PACKETS_SENT = REGISTRY.counter("udp_packets_sent");
+
+    static final LongAdder UDP_PACKETS_DROPPED = REGISTRY.counter("udp_packets_dropped");
+
+    /**
+     * 转到世界坐标系时因四元数无效而丢弃的帧数.
+     */
+    static final LongAdder WORLD_FRAME_DROPS = REGISTRY.counter("world_frame_drops");
+
+    /**
+     * TLS握手的耗时（us），复用会话的简化握手明显短于完整握手.
+     */
+    static final LogLinearHistogram TLS_HANDSHAKE_US = REGISTRY.histogram("tls_handshake_us");
+
+    private PipelineMetrics() {
+    }
+}
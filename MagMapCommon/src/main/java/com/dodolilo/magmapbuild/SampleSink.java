@@ -0,0 +1,25 @@
+package com.dodolilo.magmapbuild;
+
+/**
+ * 传感器样本帧的接收者，数据采集流水线中各级之间传递样本的接口.
+ * 帧的布局见{@link SensorFrame}.
+ * <p>
+ * NOTE：frame数组由调用方复用，onSample()返回后其内容就会被覆盖，需要保留的数据必须自行拷贝.
+ */
+interface SampleSink {
+    /**
+     * 接收一帧样本.
+     *
+     * @param timeMillis 样本时间戳（ms）
+     * @param frame      样本帧，长度为{@link SensorFrame#SIZE}
+     */
+    void onSample(long timeMillis, float[] frame);
+
+    /**
+     * 上游的采样频率改变，之后的帧按新的频率到达，在下一帧之前调用.默认忽略.
+     *
+     * @param rateHz 新的采样频率（Hz）
+     */
+    default void onRateChanged(int rateHz) {
+    }
+}
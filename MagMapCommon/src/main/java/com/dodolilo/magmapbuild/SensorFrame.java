@@ -0,0 +1,46 @@
+package com.dodolilo.magmapbuild;
+
+/**
+ * 一帧传感器样本（float[]）的布局，与..._sensors.csv中时间戳之后的列一一对应.
+ */
+final class SensorFrame {
+    /**
+     * 加速度xyz的起始下标.
+     */
+    static final int ACC = 0;
+
+    /**
+     * 陀螺仪xyz的起始下标.
+     */
+    static final int GYRO = 3;
+
+    /**
+     * 磁力计xyz的起始下标.
+     */
+    static final int MAG = 6;
+
+    /**
+     * 方向四元数xyzw的起始下标.
+     */
+    static final int QUAT = 9;
+
+    /**
+     * 一帧的长度.
+     */
+    static final int SIZE = 13;
+
+    private SensorFrame() {
+    }
+
+    /**
+     * 将4个传感器的读数拷贝进一帧.
+     *
+     * @param frame 输出帧，长度为{@link #SIZE}
+     */
+    static void fill(float[] frame, float[] accValues, float[] gyroValues, float[] magValues, float[] quatValues) {
+        System.arraycopy(accValues, 0, frame, ACC, 3);
+        System.arraycopy(gyroValues, 0, frame, GYRO, 3);
+        System.arraycopy(magValues, 0, frame, MAG, 3);
+        System.arraycopy(quatValues, 0, frame, QUAT, 4);
+    }
+}
@@ -0,0 +1,141 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 会话的二进制格式，比csv小约一半且无需解析文本.
+ * <pre>
+ *     header: int magic "MMSB", int version, int frameSize
+ *     record: long timeMillis, float[frameSize] frame  （大端）
+ * </pre>
+ */
+final class SessionBinaryFormat {
+    static final int MAGIC = 0x4D4D5342;
+
+    static final int VERSION = 1;
+
+    /**
+     * 会话二进制文件的扩展名.
+     */
+    static final String FILE_SUFFIX = ".mmsb";
+
+    private SessionBinaryFormat() {
+    }
+
+    /**
+     * 根据扩展名打开会话文件：".mmsb"为二进制，其余按csv读取.
+     */
+    static SessionReader open(File file) throws IOException {
+        if (file.getName().endsWith(FILE_SUFFIX)) {
+            return new Reader(file);
+        }
+        return new SessionCsvReader(file);
+    }
+
+    /**
+     * 二进制会话写入器，也可以作为流水线中的本地记录消费者.
+     * 写入发生IO错误时记录第一个异常并停止写入，在{@link #close()}时抛出.
+     */
+    static final class Writer implements SampleSink, java.io.Closeable {
+        private final DataOutputStream out;
+
+        private IOException failure = null;
+
+        Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(SensorFrame.SIZE);
+        }
+
+        @Override
+        public void onSample(long timeMillis, float[] frame) {
+            if (failure != null) {
+                return;
+            }
+            try {
+                out.writeLong(timeMillis);
+                for (int i = 0; i < SensorFrame.SIZE; i++) {
+                    out.writeFloat(frame[i]);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * 二进制会话读取器.
+     */
+    static final class Reader implements SessionReader {
+        private final DataInputStream in;
+
+        private final float[] frame = new float[SensorFrame.SIZE];
+
+        private long timeMillis;
+
+        Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file.getName() + " is not a session binary file");
+                }
+                final int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported session binary version " + version);
+                }
+                final int frameSize = in.readInt();
+                if (frameSize != SensorFrame.SIZE) {
+                    throw new IOException("Unsupported frame size " + frameSize);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            try {
+                timeMillis = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int i = 0; i < SensorFrame.SIZE; i++) {
+                frame[i] = in.readFloat();
+            }
+            return true;
+        }
+
+        @Override
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        @Override
+        public float[] getFrame() {
+            return frame;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
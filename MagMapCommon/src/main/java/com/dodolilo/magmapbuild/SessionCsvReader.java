@@ -0,0 +1,173 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * ..._sensors.csv会话文件的读取器.
+ * 也可以读取上传数据流的原样转储：第一行的手机号、"#"开头的带内记录与END行都会被跳过.
+ * 例外是{@link #RATE_RECORD_TAG}记录：新的采样频率从记录的时间戳之后的第一帧开始由{@link #getRateHz()}给出.
+ * 编码级在一批样本之后才写入带内记录，记录可能落在它生效的帧之后，因此数据行预读{@link #LOOKAHEAD}行.
+ */
+class SessionCsvReader implements SessionReader {
+    /**
+     * 运动状态、采样频率改变的带内记录（由手机端的SensorsBee生成）：{@code #RATE,time,state,rateHz}.
+     */
+    static final String RATE_RECORD_TAG = "#RATE";
+
+    /**
+     * 预读的数据行数，远多于编码级每批取出的样本数，频率记录不会晚于它生效的帧这么多行.
+     */
+    private static final int LOOKAHEAD = 256;
+
+    private final BufferedReader reader;
+
+    private final float[] frame = new float[SensorFrame.SIZE];
+
+    private long timeMillis;
+
+    private int rateHz = 0;
+
+    private int lineNumber = 0;
+
+    /**
+     * 预读的数据行，环形缓冲.
+     */
+    private final long[] aheadTimes = new long[LOOKAHEAD];
+    private final float[] aheadFrames = new float[LOOKAHEAD * SensorFrame.SIZE];
+    private int aheadStart = 0;
+    private int aheadCount = 0;
+
+    private boolean endOfFile = false;
+
+    /**
+     * 已读到、尚未生效的频率改变{时间戳, 频率}，按记录顺序.
+     */
+    private final ArrayDeque<long[]> rateChanges = new ArrayDeque<>();
+
+    SessionCsvReader(File file) throws IOException {
+        this(new InputStreamReader(new FileInputStream(file), StandardCharsets.US_ASCII));
+    }
+
+    SessionCsvReader(Reader reader) {
+        this.reader = new BufferedReader(reader, 1 << 16);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        fillLookahead();
+        if (aheadCount == 0) {
+            return false;
+        }
+        timeMillis = aheadTimes[aheadStart];
+        System.arraycopy(aheadFrames, aheadStart * SensorFrame.SIZE, frame, 0, SensorFrame.SIZE);
+        aheadStart = (aheadStart + 1) % LOOKAHEAD;
+        aheadCount--;
+        while (!rateChanges.isEmpty() && rateChanges.peekFirst()[0] < timeMillis) {
+            rateHz = (int) rateChanges.pollFirst()[1];
+        }
+        return true;
+    }
+
+    @Override
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    @Override
+    public float[] getFrame() {
+        return frame;
+    }
+
+    @Override
+    public int getRateHz() {
+        return rateHz;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * 数据行以时间戳开头且至少包含一个','；手机号行没有','.
+     */
+    private static boolean isDataLine(String line) {
+        return !line.isEmpty() && Character.isDigit(line.charAt(0)) && line.indexOf(',') > 0;
+    }
+
+    /**
+     * 读入数据行直到预读满或文件结束，途中的频率记录加入待生效列表.
+     */
+    private void fillLookahead() throws IOException {
+        while (aheadCount < LOOKAHEAD && !endOfFile) {
+            final String line = reader.readLine();
+            if (line == null) {
+                endOfFile = true;
+                return;
+            }
+            lineNumber++;
+            if (isDataLine(line)) {
+                final int slot = (aheadStart + aheadCount) % LOOKAHEAD;
+                aheadTimes[slot] = parseLine(line, aheadFrames, slot * SensorFrame.SIZE);
+                aheadCount++;
+            } else if (line.startsWith(RATE_RECORD_TAG + ',')) {
+                parseRate(line);
+            }
+        }
+    }
+
+    /**
+     * 解析一个数据行，帧写入dst[offset, offset + SensorFrame.SIZE).
+     *
+     * @return 时间戳（ms）
+     */
+    private long parseLine(String line, float[] dst, int offset) throws IOException {
+        int start = 0;
+        int end = line.indexOf(',');
+        try {
+            final long time = Long.parseLong(line.substring(start, end));
+            for (int i = 0; i < SensorFrame.SIZE; i++) {
+                start = end + 1;
+                end = line.indexOf(',', start);
+                if (end < 0) {
+                    if (i != SensorFrame.SIZE - 1) {
+                        throw new IOException("Line " + lineNumber + ": expected "
+                                + (SensorFrame.SIZE + 1) + " columns, got " + (i + 2));
+                    }
+                    end = line.length();
+                }
+                dst[offset + i] = Float.parseFloat(line.substring(start, end));
+            }
+            return time;
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 解析"#RATE,time,state,rateHz".
+     */
+    private void parseRate(String line) throws IOException {
+        final String[] fields = line.split(",", -1);
+        if (fields.length != 4) {
+            throw new IOException("Line " + lineNumber + ": expected 4 fields in " + RATE_RECORD_TAG + " record");
+        }
+        try {
+            final long time = Long.parseLong(fields[1]);
+            final int rate = Integer.parseInt(fields[3]);
+            if (rate <= 0) {
+                throw new IOException("Line " + lineNumber + ": rate must be positive");
+            }
+            rateChanges.addLast(new long[]{time, rate});
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+}
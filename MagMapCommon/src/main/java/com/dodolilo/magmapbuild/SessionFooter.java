@@ -0,0 +1,13 @@
+package com.dodolilo.magmapbuild;
+
+/**
+ * 在会话结束时向数据流末尾（END之前）写入一行汇总记录的来源.
+ * 由编码级在采样线程停止、队列排空之后调用，此时来源的状态已不再变化.
+ */
+interface SessionFooter {
+    /**
+     * @param timeMillis 写入时刻（ms）
+     * @return 以'\n'结尾的一行"#TAG,时间戳,..."记录
+     */
+    String footerRecord(long timeMillis);
+}
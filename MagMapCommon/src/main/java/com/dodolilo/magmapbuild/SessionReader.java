@@ -0,0 +1,34 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 逐帧读取已记录会话的读取器.帧数组由读取器复用，每次{@link #next()}后内容被覆盖.
+ */
+interface SessionReader extends Closeable {
+    /**
+     * 读取下一帧.
+     *
+     * @return false 如果已读完
+     * @throws IOException 读文件失败或格式错误时
+     */
+    boolean next() throws IOException;
+
+    /**
+     * @return 当前帧的时间戳（ms）
+     */
+    long getTimeMillis();
+
+    /**
+     * @return 当前帧，布局见{@link SensorFrame}
+     */
+    float[] getFrame();
+
+    /**
+     * @return 记录当前帧时的采样频率（Hz），会话中没有记录频率时为0
+     */
+    default int getRateHz() {
+        return 0;
+    }
+}
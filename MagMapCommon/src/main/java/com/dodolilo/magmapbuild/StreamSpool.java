@@ -0,0 +1,55 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * 编码级与发送级之间的发送数据缓存（spool）.
+ * 编码级只追加，发送级按绝对位置读取；已确认发送的前缀可以释放，长时间采集时内存不会持续增长.
+ * 所有方法都是同步的，取代之前在两个线程间直接共享的StringBuilder.
+ */
+@ThreadSafe
+class StreamSpool {
+    @GuardedBy("this")
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * 已释放的字符数，即buffer[0]对应的绝对位置.
+     */
+    @GuardedBy("this")
+    private long releasedOffset = 0L;
+
+    /**
+     * 追加数据到缓存末尾.
+     */
+    public synchronized void append(CharSequence data) {
+        buffer.append(data);
+    }
+
+    /**
+     * @return 从会话开始到现在追加的总字符数（绝对位置）
+     */
+    public synchronized long length() {
+        return releasedOffset + buffer.length();
+    }
+
+    /**
+     * 读取绝对位置[from, to)的数据.
+     *
+     * @throws IndexOutOfBoundsException 如果from已被释放或to超过当前长度
+     */
+    public synchronized String read(long from, long to) {
+        return buffer.substring((int) (from - releasedOffset), (int) (to - releasedOffset));
+    }
+
+    /**
+     * 释放绝对位置index之前的数据，之后不能再读取它们.
+     */
+    public synchronized void releaseUpTo(long index) {
+        final int count = (int) Math.min(index - releasedOffset, buffer.length());
+        if (count > 0) {
+            buffer.delete(0, count);
+            releasedOffset += count;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.dodolilo.magmapbuild;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 实时定位UDP数据报的格式.每个数据报自成一体，丢失任何一个不影响其余数据报的解码.
+ * <pre>
+ *     header (24 bytes):
+ *         int magic "MMUD", byte version, byte type, short count, long sessionId, int seq, int reserved
+ *     data   (type 0)：long baseTimeMillis, count * (int dtMillis, float[SensorFrame.SIZE] frame)
+ *     parity (type 1)：seq为组内第一个数据报的序号，count为组大小；
+ *                      short 组内数据报长度的异或, 之后为组内数据报（含头部）逐字节异或的结果
+ * </pre>
+ * 全部为大端.
+ */
+final class UdpPacketFormat {
+    static final int MAGIC = 0x4D4D5544;
+
+    static final byte VERSION = 1;
+
+    static final byte TYPE_DATA = 0;
+
+    static final byte TYPE_PARITY = 1;
+
+    static final int HEADER_SIZE = 24;
+
+    /**
+     * 每个样本占用的字节数.
+     */
+    static final int SAMPLE_SIZE = 4 + 4 * SensorFrame.SIZE;
+
+    /**
+     * 一个数据报最多的样本数：保证数据报不超过以太网MTU（1500）减去IP/UDP头部.
+     */
+    static final int MAX_SAMPLES = (1472 - HEADER_SIZE - 8 - 2) / SAMPLE_SIZE;
+
+    static final int MAX_PACKET_SIZE = HEADER_SIZE + 8 + MAX_SAMPLES * SAMPLE_SIZE;
+
+    private UdpPacketFormat() {
+    }
+
+    static void putHeader(ByteBuffer buffer, byte type, int count, long sessionId, int seq) {
+        buffer.putInt(MAGIC).put(VERSION).put(type).putShort((short) count).putLong(sessionId).putInt(seq).putInt(0);
+    }
+
+    /**
+     * @return 数据报是否有正确的magic与版本
+     */
+    static boolean isValid(ByteBuffer packet) {
+        return packet.remaining() >= HEADER_SIZE
+                && packet.getInt(packet.position()) == MAGIC
+                && packet.get(packet.position() + 4) == VERSION;
+    }
+
+    static byte typeOf(ByteBuffer packet) {
+        return packet.get(packet.position() + 5);
+    }
+
+    static int countOf(ByteBuffer packet) {
+        return packet.getShort(packet.position() + 6) & 0xFFFF;
+    }
+
+    static long sessionIdOf(ByteBuffer packet) {
+        return packet.getLong(packet.position() + 8);
+    }
+
+    static int seqOf(ByteBuffer packet) {
+        return packet.getInt(packet.position() + 16);
+    }
+}
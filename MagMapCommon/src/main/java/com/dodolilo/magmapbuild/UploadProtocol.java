@@ -0,0 +1,108 @@
+package com.dodolilo.magmapbuild;
+
+/**
+ * 手机与服务器之间TCP上传数据流的行协议中，双方共用的常量.
+ * <pre>
+ *     服务器 -> 手机:  MMPS
+ *                     #CAPS,能力,...       可选，旧版本服务器不发送
+ *     手机 -> 服务器:  手机号                第一次连接时发送；服务器声明HEADER时每次连接都发送
+ *                     #FRAME,time,frame    非手机坐标系时每次连接都发送，服务器必须声明FRAME
+ *                     数据行、"#"开头的带内记录 ... END
+ * </pre>
+ * 断线重连后手机从上次确认发送的位置继续发送，缓存中早已没有手机号，所以手机号由连接头携带.
+ * 旧版本服务器只在数据流开头收到手机号，重连后的数据是原数据流的继续，因此重连时只对声明了{@link #CAPABILITY_HEADER}的服务器重新发送连接头.
+ * 手机一般不等待#CAPS行：在发送数据的间隙非阻塞地读取，需要用到某项能力而尚未收到#CAPS时，按旧版本服务器处理；
+ * 重连时为决定是否发送连接头，最多等待一个回复超时.
+ */
+final class UploadProtocol {
+    /**
+     * 服务器接受连接后回复的第一行.
+     */
+    static final String SERVER_RESPONSE = "MMPS";
+
+    /**
+     * 服务器声明所支持能力的记录，紧跟在{@link #SERVER_RESPONSE}之后.
+     */
+    static final String CAPABILITIES_TAG = "#CAPS";
+
+    /**
+     * 能力：收到END行并使之前的数据落盘后回复END行.
+     */
+    static final String CAPABILITY_END_ACK = "END";
+
+    /**
+     * 能力：对#PING立即回复PONG，见{@link ClockSyncEstimator}.
+     */
+    static final String CAPABILITY_PONG = "PONG";
+
+    /**
+     * 能力：每次连接（包括重连）都要求先收到连接头中的手机号.
+     */
+    static final String CAPABILITY_HEADER = "HEADER";
+
+    /**
+     * 能力：按连接头之后的#FRAME记录解析数据行，见{@link WorldFrameTransform}.
+     */
+    static final String CAPABILITY_FRAME = "FRAME";
+
+    /**
+     * 会话结束行，也是服务器的确认行.
+     */
+    static final String END_LINE = "END";
+
+    /**
+     * 手机号的最大长度.
+     */
+    private static final int MAX_PHONE_LENGTH = 20;
+
+    private UploadProtocol() {
+    }
+
+    /**
+     * 连接头的第一行必须是手机号：可选的'+'之后是1~20位数字.
+     * 数据行含有','与'.'，因此不会被误认为手机号.
+     */
+    static boolean isPhoneNumber(CharSequence line) {
+        final int start = line.length() > 0 && line.charAt(0) == '+' ? 1 : 0;
+        final int digits = line.length() - start;
+        if (digits < 1 || digits > MAX_PHONE_LENGTH) {
+            return false;
+        }
+        for (int i = start; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 服务器发出的#CAPS行，不含换行
+     */
+    static String capabilitiesLine(String... capabilities) {
+        final StringBuilder sb = new StringBuilder(CAPABILITIES_TAG);
+        for (String capability : capabilities) {
+            sb.append(',').append(capability);
+        }
+        return sb.toString();
+    }
+
+    static boolean isCapabilitiesLine(String line) {
+        return line != null && (line.equals(CAPABILITIES_TAG) || line.startsWith(CAPABILITIES_TAG + ','));
+    }
+
+    /**
+     * @param line #CAPS行
+     * @return true 如果line中声明了capability
+     */
+    static boolean hasCapability(String line, String capability) {
+        final String[] fields = line.split(",");
+        for (int i = 1; i < fields.length; i++) {
+            if (fields[i].trim().equals(capability)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.security.InvalidParameterException;
+
+/**
+ * 将样本帧从手机坐标系转到重力对齐的世界坐标系的变换级.
+ * 用帧中的方向四元数（TYPE_GAME_ROTATION_VECTOR，xyzw）先归一化，再把加速度、陀螺仪、磁力计三个向量旋转到世界坐标系：
+ * z轴竖直向上，x、y轴水平；游戏旋转向量不使用磁力计，所以水平方向的朝向（yaw）是任意但在一次采集中连续的.
+ * 输出帧的布局不变，四元数置为单位四元数，表示向量已在世界坐标系中，下游（包括服务器）不需要再旋转.
+ * <p>
+ * 四元数无效（传感器尚未给出读数时为全0，或含NaN）的帧无法变换，被丢弃并计入{@link PipelineMetrics#WORLD_FRAME_DROPS}.
+ * {@link #onSample(long, float[])}在编码线程中调用，不分配对象.
+ */
+@NotThreadSafe
+class WorldFrameTransform implements SampleSink {
+    /**
+     * 上传数据所在坐标系的带内记录，只发送给声明了{@link UploadProtocol#CAPABILITY_FRAME}的服务器，
+     * 每次连接都在连接头之后、数据之前发送：{@code #FRAME,time,frame}.
+     */
+    static final String FRAME_RECORD_TAG = "#FRAME";
+
+    /**
+     * 四元数模的平方小于它时认为无效.
+     */
+    private static final double MIN_QUAT_NORM2 = 1e-6;
+
+    /**
+     * 上传数据的坐标系与内容.
+     */
+    enum UploadFrame {
+        /**
+         * 手机坐标系的原始向量，服务器负责旋转.
+         */
+        DEVICE("device"),
+
+        /**
+         * 世界坐标系的向量，列与..._sensors.csv相同，四元数为单位四元数.
+         */
+        WORLD("world"),
+
+        /**
+         * 只有磁场特征：每行"time,水平分量,竖直分量,总强度".
+         */
+        FEATURES("features");
+
+        private final String recordName;
+
+        UploadFrame(String recordName) {
+            this.recordName = recordName;
+        }
+
+        /**
+         * @return 带内记录{@code #FRAME,time,frame\n}
+         */
+        String toRecord(long timeMillis) {
+            return FRAME_RECORD_TAG + ',' + timeMillis + ',' + recordName + '\n';
+        }
+
+        /**
+         * @return 记录中frame列对应的值，不认识时为null
+         */
+        static UploadFrame fromRecordName(String recordName) {
+            for (UploadFrame frame : values()) {
+                if (frame.recordName.equals(recordName)) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 特征行中各列的下标.
+     */
+    static final int FEATURE_MAG_HORIZONTAL = 0;
+    static final int FEATURE_MAG_VERTICAL = 1;
+    static final int FEATURE_MAG_TOTAL = 2;
+    static final int FEATURE_SIZE = 3;
+
+    private final SampleSink downstream;
+
+    /**
+     * 输出帧，复用.
+     */
+    private final float[] output = new float[SensorFrame.SIZE];
+
+    WorldFrameTransform(SampleSink downstream) throws InvalidParameterException {
+        if (downstream == null) {
+            throw new InvalidParameterException("Param downstream is null");
+        }
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        if (!toWorldFrame(frame, output)) {
+            PipelineMetrics.WORLD_FRAME_DROPS.increment();
+            return;
+        }
+        downstream.onSample(timeMillis, output);
+    }
+
+    @Override
+    public void onRateChanged(int rateHz) {
+        downstream.onRateChanged(rateHz);
+    }
+
+    /**
+     * 将一帧变换到世界坐标系.
+     *
+     * @param frame  手机坐标系的样本帧
+     * @param output 输出的世界坐标系样本帧，可以与frame相同
+     * @return false 如果四元数无效，此时output不变
+     */
+    static boolean toWorldFrame(float[] frame, float[] output) {
+        double qx = frame[SensorFrame.QUAT];
+        double qy = frame[SensorFrame.QUAT + 1];
+        double qz = frame[SensorFrame.QUAT + 2];
+        double qw = frame[SensorFrame.QUAT + 3];
+        final double norm2 = qx * qx + qy * qy + qz * qz + qw * qw;
+        //NaN时比较也为false
+        if (!(norm2 >= MIN_QUAT_NORM2) || Double.isInfinite(norm2)) {
+            return false;
+        }
+        final double inverseNorm = 1.0 / Math.sqrt(norm2);
+        qx *= inverseNorm;
+        qy *= inverseNorm;
+        qz *= inverseNorm;
+        qw *= inverseNorm;
+        rotate(qx, qy, qz, qw, frame, SensorFrame.ACC, output);
+        rotate(qx, qy, qz, qw, frame, SensorFrame.GYRO, output);
+        rotate(qx, qy, qz, qw, frame, SensorFrame.MAG, output);
+        output[SensorFrame.QUAT] = 0f;
+        output[SensorFrame.QUAT + 1] = 0f;
+        output[SensorFrame.QUAT + 2] = 0f;
+        output[SensorFrame.QUAT + 3] = 1f;
+        return true;
+    }
+
+    /**
+     * v' = q v q*，用 t = 2 (q.xyz × v)，v' = v + w t + q.xyz × t 展开，比构造旋转矩阵少一半乘法.
+     * 旋转向量传感器的四元数把手机坐标系中的向量变换到世界坐标系.
+     */
+    private static void rotate(double qx, double qy, double qz, double qw, float[] frame, int offset, float[] output) {
+        final double vx = frame[offset];
+        final double vy = frame[offset + 1];
+        final double vz = frame[offset + 2];
+        final double tx = 2 * (qy * vz - qz * vy);
+        final double ty = 2 * (qz * vx - qx * vz);
+        final double tz = 2 * (qx * vy - qy * vx);
+        output[offset] = (float) (vx + qw * tx + (qy * tz - qz * ty));
+        output[offset + 1] = (float) (vy + qw * ty + (qz * tx - qx * tz));
+        output[offset + 2] = (float) (vz + qw * tz + (qx * ty - qy * tx));
+    }
+
+    /**
+     * 从世界坐标系的样本帧中提取磁场特征：水平分量、竖直分量与总强度（uT）.
+     * 水平分量与yaw无关，所以游戏旋转向量的任意朝向不影响特征.
+     *
+     * @param worldFrame 世界坐标系的样本帧
+     * @param features   输出，长度至少为{@link #FEATURE_SIZE}
+     */
+    static void extractMagFeatures(float[] worldFrame, float[] features) {
+        final double mx = worldFrame[SensorFrame.MAG];
+        final double my = worldFrame[SensorFrame.MAG + 1];
+        final double mz = worldFrame[SensorFrame.MAG + 2];
+        final double horizontal2 = mx * mx + my * my;
+        features[FEATURE_MAG_HORIZONTAL] = (float) Math.sqrt(horizontal2);
+        features[FEATURE_MAG_VERTICAL] = (float) mz;
+        features[FEATURE_MAG_TOTAL] = (float) Math.sqrt(horizontal2 + mz * mz);
+    }
+
+    /**
+     * 将世界坐标系样本帧的磁场特征编码为csv行"time,水平分量,竖直分量,总强度"，追加到发送数据缓存中.
+     * 放在{@link WorldFrameTransform}之后；每行约为完整样本行的1/4.
+     */
+    @NotThreadSafe
+    static final class FeatureEncoder implements SampleSink {
+        private final StreamSpool spool;
+
+        private final float[] features = new float[FEATURE_SIZE];
+
+        /**
+         * 一行的格式化缓冲与追加到缓存时使用的字符缓冲，复用：时间20字节，每个特征最多15字节.
+         */
+        private final byte[] bytes = new byte[20 + FEATURE_SIZE * 16 + 1];
+
+        private final StringBuilder line = new StringBuilder(bytes.length);
+
+        FeatureEncoder(StreamSpool spool) throws InvalidParameterException {
+            if (spool == null) {
+                throw new InvalidParameterException("Param spool is null");
+            }
+            this.spool = spool;
+        }
+
+        @Override
+        public void onSample(long timeMillis, float[] frame) {
+            extractMagFeatures(frame, features);
+            int pos = AsciiNumbers.formatLong(timeMillis, bytes, 0);
+            for (int i = 0; i < FEATURE_SIZE; i++) {
+                bytes[pos++] = ',';
+                pos = AsciiNumbers.formatFloat(features[i], bytes, pos);
+            }
+            bytes[pos++] = '\n';
+            line.setLength(0);
+            for (int i = 0; i < pos; i++) {
+                line.append((char) bytes[i]);
+            }
+            spool.append(line);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link AsciiNumbers}的格式化与解析：formatFloat的输出必须能被Float.parseFloat精确还原，布局与Float.toString相同.
+ */
+public class AsciiNumbersTest {
+    private final byte[] buffer = new byte[32];
+
+    @Test
+    public void formatFloatSpecialValues() {
+        assertEquals("NaN", formatFloat(Float.NaN));
+        assertEquals("Infinity", formatFloat(Float.POSITIVE_INFINITY));
+        assertEquals("-Infinity", formatFloat(Float.NEGATIVE_INFINITY));
+        assertEquals("0.0", formatFloat(0.0f));
+        assertEquals("-0.0", formatFloat(-0.0f));
+    }
+
+    @Test
+    public void formatFloatShortestDigits() {
+        assertEquals("1.0", formatFloat(1.0f));
+        assertEquals("0.1", formatFloat(0.1f));
+        assertEquals("-9.81", formatFloat(-9.81f));
+        assertEquals("123.456", formatFloat(123.456f));
+        assertEquals("0.001", formatFloat(0.001f));
+        assertEquals("1000000.0", formatFloat(1e6f));
+        assertEquals("1.0E7", formatFloat(1e7f));
+        assertEquals("1.0E-4", formatFloat(1e-4f));
+    }
+
+    @Test
+    public void formatFloatRoundTripsRandomBits() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000000; i++) {
+            final float value = Float.intBitsToFloat(random.nextInt());
+            if (Float.isNaN(value)) {
+                continue;
+            }
+            assertRoundTrip(value);
+        }
+    }
+
+    @Test
+    public void formatFloatRoundTripsSensorRange() {
+        final Random random = new Random(7);
+        for (int i = 0; i < 1000000; i++) {
+            assertRoundTrip((random.nextFloat() - 0.5f) * 200f);
+        }
+    }
+
+    @Test
+    public void formatFloatRoundTripsExtremes() {
+        final float[] values = {Float.MIN_VALUE, Float.MIN_NORMAL, Float.MAX_VALUE, Math.nextDown(Float.MIN_NORMAL),
+                Math.nextUp(1.0f), Math.nextDown(1.0f), 1e-3f, Math.nextDown(1e-3f), 1e7f, Math.nextDown(1e7f)};
+        for (float value : values) {
+            assertRoundTrip(value);
+            assertRoundTrip(-value);
+        }
+    }
+
+    @Test
+    public void formatLongMatchesToString() {
+        final long[] values = {0, 7, -7, 10, 999, 1000, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, 1700000000000L};
+        for (long value : values) {
+            final int end = AsciiNumbers.formatLong(value, buffer, 0);
+            assertEquals(Long.toString(value), new String(buffer, 0, end, StandardCharsets.US_ASCII));
+            assertEquals(value, AsciiNumbers.parseLong(buffer, 0, end));
+        }
+    }
+
+    @Test
+    public void parseFloatMatchesWithinOneUlp() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            final float value = (random.nextFloat() - 0.5f) * 200f;
+            final byte[] text = Float.toString(value).getBytes(StandardCharsets.US_ASCII);
+            final float parsed = AsciiNumbers.parseFloat(text, 0, text.length);
+            assertEquals(value, parsed, Math.ulp(value));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseFloatRejectsGarbage() {
+        final byte[] text = "1.2x".getBytes(StandardCharsets.US_ASCII);
+        AsciiNumbers.parseFloat(text, 0, text.length);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseLongRejectsGarbage() {
+        final byte[] text = "12a".getBytes(StandardCharsets.US_ASCII);
+        AsciiNumbers.parseLong(text, 0, text.length);
+    }
+
+    private String formatFloat(float value) {
+        final int end = AsciiNumbers.formatFloat(value, buffer, 0);
+        return new String(buffer, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 输出能精确还原，且定点/指数布局与Float.toString一致.
+     */
+    private void assertRoundTrip(float value) {
+        final String text = formatFloat(value);
+        assertEquals(text, Float.floatToIntBits(value), Float.floatToIntBits(Float.parseFloat(text)));
+        final String expected = Float.toString(value);
+        assertEquals(expected + " vs " + text, expected.indexOf('E') >= 0, text.indexOf('E') >= 0);
+        assertTrue(text, text.indexOf('.') > 0);
+    }
+}
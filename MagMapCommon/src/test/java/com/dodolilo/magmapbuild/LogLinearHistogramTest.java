@@ -0,0 +1,108 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LogLinearHistogram}的桶划分与分位数.
+ */
+public class LogLinearHistogramTest {
+    @Test
+    public void smallValuesAreExact() {
+        for (long v = 0; v < 16; v++) {
+            assertEquals(v, LogLinearHistogram.bucketIndex(v));
+            assertEquals(v, LogLinearHistogram.bucketLowerBound((int) v));
+        }
+    }
+
+    @Test
+    public void bucketLowerBoundIsWithinOneSixteenth() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final long v = random.nextLong() >>> (1 + random.nextInt(63));
+            final int index = LogLinearHistogram.bucketIndex(v);
+            final long lower = LogLinearHistogram.bucketLowerBound(index);
+            assertTrue(v + " below bucket " + lower, lower <= v);
+            assertTrue(v + " too far above bucket " + lower, v - lower <= v / 16);
+        }
+    }
+
+    @Test
+    public void bucketsAreMonotonic() {
+        int previous = LogLinearHistogram.bucketIndex(0);
+        for (long v = 1; v < 1 << 20; v++) {
+            final int index = LogLinearHistogram.bucketIndex(v);
+            assertTrue(index == previous || index == previous + 1);
+            previous = index;
+        }
+        assertEquals(LogLinearHistogram.bucketIndex(Long.MAX_VALUE), LogLinearHistogram.bucketIndex(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void snapshotQuantiles() {
+        final LogLinearHistogram histogram = new LogLinearHistogram("test");
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        final LogLinearHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(500.5, snapshot.getMean(), 1e-9);
+        assertEquals(1, snapshot.getValueAtQuantile(0.0));
+        assertQuantile(500, snapshot.getValueAtQuantile(0.5));
+        assertQuantile(990, snapshot.getValueAtQuantile(0.99));
+        assertEquals(1000, snapshot.getValueAtQuantile(1.0), 1000 / 16);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        final LogLinearHistogram histogram = new LogLinearHistogram("test");
+        histogram.record(-5);
+        final LogLinearHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtQuantile(0.5));
+        assertEquals(0.0, snapshot.getMean(), 0.0);
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        final LogLinearHistogram histogram = new LogLinearHistogram("test");
+        histogram.record(123456);
+        histogram.reset();
+        final LogLinearHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtQuantile(0.99));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        final LogLinearHistogram histogram = new LogLinearHistogram("test");
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50000; i++) {
+                    histogram.record(i * 4 + offset);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final LogLinearHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(200000, snapshot.getCount());
+        assertEquals(199999, snapshot.getMax());
+    }
+
+    /**
+     * 分位数是桶下界，比真实值小且误差不超过1/16.
+     */
+    private static void assertQuantile(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual, actual <= expected && expected - actual <= expected / 16);
+    }
+}
@@ -0,0 +1,101 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SessionCsvReader}的数据行、跳过的行与#RATE记录.
+ */
+public class SessionCsvReaderTest {
+    @Test
+    public void readsDataLinesAndSkipsOthers() throws IOException {
+        final String csv = "13800000000\n"
+                + line(1000, 1f)
+                + "#MARK,1002,0,A1,1.0,2.0\n"
+                + "\n"
+                + line(1005, 2f)
+                + "END\n";
+        try (SessionCsvReader reader = new SessionCsvReader(new StringReader(csv))) {
+            assertTrue(reader.next());
+            assertEquals(1000, reader.getTimeMillis());
+            assertEquals(1f, reader.getFrame()[0], 0f);
+            assertEquals(1f, reader.getFrame()[SensorFrame.SIZE - 1], 0f);
+            assertTrue(reader.next());
+            assertEquals(1005, reader.getTimeMillis());
+            assertEquals(2f, reader.getFrame()[SensorFrame.MAG], 0f);
+            assertFalse(reader.next());
+            assertEquals(0, reader.getRateHz());
+        }
+    }
+
+    @Test
+    public void rateChangesAfterRecordedTimestamp() throws IOException {
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            csv.append(line(1000 + i * 5, i));
+            if (i == 6) {
+                //记录写在一批样本之后，晚于它生效的帧（时间戳在1015之后）
+                csv.append("#RATE,1015,STILL,10\n");
+            }
+        }
+        csv.append("#RATE,1100,MOVING,200\n");
+        csv.append(line(1100, 10));
+        csv.append(line(1105, 11));
+        final int[] expectedRates = {0, 0, 0, 0, 10, 10, 10, 10, 10, 10, 10, 200};
+        try (SessionCsvReader reader = new SessionCsvReader(new StringReader(csv.toString()))) {
+            for (int i = 0; i < expectedRates.length; i++) {
+                assertTrue(reader.next());
+                assertEquals(i, reader.getFrame()[0], 0f);
+                assertEquals("frame " + i, expectedRates[i], reader.getRateHz());
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void rateRecordBeforeItsFrameWaitsForTimestamp() throws IOException {
+        //采样线程交出帧与提交记录之间编码级可能先写入记录
+        final String csv = line(1000, 0f) + "#RATE,1005,STILL,10\n" + line(1005, 1f) + line(1100, 2f);
+        try (SessionCsvReader reader = new SessionCsvReader(new StringReader(csv))) {
+            assertTrue(reader.next());
+            assertEquals(0, reader.getRateHz());
+            assertTrue(reader.next());
+            assertEquals(0, reader.getRateHz());
+            assertTrue(reader.next());
+            assertEquals(10, reader.getRateHz());
+        }
+    }
+
+    @Test
+    public void reportsLineOfBadRecord() {
+        assertError(line(1000, 0f) + "#RATE,1005,STILL\n", "Line 2");
+        assertError(line(1000, 0f) + "#RATE,1005,STILL,0\n", "Line 2");
+        assertError(line(1000, 0f) + line(1005, 0f) + "1010,1,2\n", "Line 3");
+    }
+
+    private static void assertError(String csv, String message) {
+        try (SessionCsvReader reader = new SessionCsvReader(new StringReader(csv))) {
+            while (reader.next()) {
+                //读到出错为止
+            }
+            fail("expected IOException for " + csv);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    /**
+     * 所有通道都为value的数据行.
+     */
+    private static String line(long timeMillis, float value) {
+        final StringBuilder sb = new StringBuilder().append(timeMillis);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            sb.append(',').append(value);
+        }
+        return sb.append('\n').toString();
+    }
+}
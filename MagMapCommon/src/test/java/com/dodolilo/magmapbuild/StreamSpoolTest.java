@@ -0,0 +1,63 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link StreamSpool}按绝对位置读取与释放前缀.
+ */
+public class StreamSpoolTest {
+    @Test
+    public void readsByAbsolutePosition() {
+        final StreamSpool spool = new StreamSpool();
+        spool.append("hello,");
+        spool.append("world\n");
+        assertEquals(12, spool.length());
+        assertEquals("hello,world\n", spool.read(0, 12));
+        assertEquals("world", spool.read(6, 11));
+        assertEquals("", spool.read(12, 12));
+    }
+
+    @Test
+    public void releaseKeepsAbsolutePositions() {
+        final StreamSpool spool = new StreamSpool();
+        spool.append("0123456789");
+        spool.releaseUpTo(4);
+        assertEquals(10, spool.length());
+        assertEquals("456789", spool.read(4, 10));
+        spool.append("abc");
+        assertEquals(13, spool.length());
+        assertEquals("89abc", spool.read(8, 13));
+    }
+
+    @Test
+    public void releaseIsIdempotentAndBounded() {
+        final StreamSpool spool = new StreamSpool();
+        spool.append("abcdef");
+        spool.releaseUpTo(3);
+        //已经释放过的位置再释放不会出错，也不会回退
+        spool.releaseUpTo(2);
+        assertEquals("def", spool.read(3, 6));
+        //超过当前长度时只释放已有的数据
+        spool.releaseUpTo(100);
+        assertEquals(6, spool.length());
+        spool.append("gh");
+        assertEquals("gh", spool.read(6, 8));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readingReleasedDataFails() {
+        final StreamSpool spool = new StreamSpool();
+        spool.append("abcdef");
+        spool.releaseUpTo(3);
+        spool.read(2, 4);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readingPastEndFails() {
+        final StreamSpool spool = new StreamSpool();
+        spool.append("abc");
+        spool.read(0, 4);
+    }
+}
@@ -0,0 +1,118 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link WorldFrameTransform#toWorldFrame(float[], float[])}的旋转、归一化与无效四元数.
+ */
+public class WorldFrameTransformTest {
+    private static final float EPS = 1e-5f;
+
+    @Test
+    public void identityQuaternionKeepsVectors() {
+        final float[] frame = frame(0f, 0f, 0f, 1f);
+        final float[] output = new float[SensorFrame.SIZE];
+        assertTrue(WorldFrameTransform.toWorldFrame(frame, output));
+        for (int i = 0; i < SensorFrame.QUAT; i++) {
+            assertEquals(frame[i], output[i], EPS);
+        }
+        assertUnitQuaternion(output);
+    }
+
+    @Test
+    public void rotatesAboutVerticalAxis() {
+        //绕z轴转90度：手机x轴指向世界y轴
+        final float h = (float) Math.sqrt(0.5);
+        final float[] frame = frame(0f, 0f, h, h);
+        final float[] output = new float[SensorFrame.SIZE];
+        assertTrue(WorldFrameTransform.toWorldFrame(frame, output));
+        assertVector(output, SensorFrame.ACC, -2f, 1f, 3f);
+        assertVector(output, SensorFrame.GYRO, -0.2f, 0.1f, 0.3f);
+        assertVector(output, SensorFrame.MAG, -20f, 10f, 30f);
+        assertUnitQuaternion(output);
+    }
+
+    @Test
+    public void normalizesQuaternion() {
+        //绕x轴转90度，四元数放大3倍：手机y轴指向世界z轴
+        final float h = (float) Math.sqrt(0.5) * 3f;
+        final float[] frame = frame(h, 0f, 0f, h);
+        final float[] output = new float[SensorFrame.SIZE];
+        assertTrue(WorldFrameTransform.toWorldFrame(frame, output));
+        assertVector(output, SensorFrame.ACC, 1f, -3f, 2f);
+        assertVector(output, SensorFrame.MAG, 10f, -30f, 20f);
+    }
+
+    @Test
+    public void transformsInPlace() {
+        final float h = (float) Math.sqrt(0.5);
+        final float[] frame = frame(0f, 0f, h, h);
+        assertTrue(WorldFrameTransform.toWorldFrame(frame, frame));
+        assertVector(frame, SensorFrame.ACC, -2f, 1f, 3f);
+        assertUnitQuaternion(frame);
+    }
+
+    @Test
+    public void rejectsInvalidQuaternion() {
+        final float[] output = new float[SensorFrame.SIZE];
+        assertFalse(WorldFrameTransform.toWorldFrame(frame(0f, 0f, 0f, 0f), output));
+        assertFalse(WorldFrameTransform.toWorldFrame(frame(Float.NaN, 0f, 0f, 1f), output));
+        assertFalse(WorldFrameTransform.toWorldFrame(frame(Float.POSITIVE_INFINITY, 0f, 0f, 1f), output));
+        //无效时output不变
+        for (float v : output) {
+            assertEquals(0f, v, 0f);
+        }
+    }
+
+    @Test
+    public void magFeaturesIgnoreYaw() {
+        final float[] features = new float[WorldFrameTransform.FEATURE_SIZE];
+        final float[] rotated = new float[WorldFrameTransform.FEATURE_SIZE];
+        final float[] output = new float[SensorFrame.SIZE];
+        assertTrue(WorldFrameTransform.toWorldFrame(frame(0f, 0f, 0f, 1f), output));
+        WorldFrameTransform.extractMagFeatures(output, features);
+        final double yaw = 0.7;
+        assertTrue(WorldFrameTransform.toWorldFrame(frame(0f, 0f, (float) Math.sin(yaw / 2), (float) Math.cos(yaw / 2)), output));
+        WorldFrameTransform.extractMagFeatures(output, rotated);
+        assertArrayEquals(features, rotated, 1e-4f);
+        assertEquals(Math.sqrt(10 * 10 + 20 * 20), features[WorldFrameTransform.FEATURE_MAG_HORIZONTAL], 1e-4);
+        assertEquals(30f, features[WorldFrameTransform.FEATURE_MAG_VERTICAL], 1e-4f);
+        assertEquals(Math.sqrt(1400), features[WorldFrameTransform.FEATURE_MAG_TOTAL], 1e-4);
+    }
+
+    /**
+     * 加速度(1,2,3)，陀螺仪(0.1,0.2,0.3)，磁场(10,20,30)与给定的四元数（xyzw）.
+     */
+    private static float[] frame(float qx, float qy, float qz, float qw) {
+        final float[] frame = new float[SensorFrame.SIZE];
+        frame[SensorFrame.ACC] = 1f;
+        frame[SensorFrame.ACC + 1] = 2f;
+        frame[SensorFrame.ACC + 2] = 3f;
+        frame[SensorFrame.GYRO] = 0.1f;
+        frame[SensorFrame.GYRO + 1] = 0.2f;
+        frame[SensorFrame.GYRO + 2] = 0.3f;
+        frame[SensorFrame.MAG] = 10f;
+        frame[SensorFrame.MAG + 1] = 20f;
+        frame[SensorFrame.MAG + 2] = 30f;
+        frame[SensorFrame.QUAT] = qx;
+        frame[SensorFrame.QUAT + 1] = qy;
+        frame[SensorFrame.QUAT + 2] = qz;
+        frame[SensorFrame.QUAT + 3] = qw;
+        return frame;
+    }
+
+    private static void assertVector(float[] frame, int offset, float x, float y, float z) {
+        assertEquals(x, frame[offset], EPS * 30);
+        assertEquals(y, frame[offset + 1], EPS * 30);
+        assertEquals(z, frame[offset + 2], EPS * 30);
+    }
+
+    private static void assertUnitQuaternion(float[] frame) {
+        assertEquals(0f, frame[SensorFrame.QUAT], 0f);
+        assertEquals(0f, frame[SensorFrame.QUAT + 1], 0f);
+        assertEquals(0f, frame[SensorFrame.QUAT + 2], 0f);
+        assertEquals(1f, frame[SensorFrame.QUAT + 3], 0f);
+    }
+}
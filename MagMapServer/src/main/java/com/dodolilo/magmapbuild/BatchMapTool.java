@@ -0,0 +1,38 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 离线批量建图的命令行入口，见{@link BatchMapBuilder}.
+ * 输出文件以{@link MagMapFile#FILE_SUFFIX}结尾时写二进制磁图，否则写csv.
+ * <p>
+ * 用法：java ... BatchMapTool 会话目录 格子边长(m) 输出文件 [并行度]
+ */
+final class BatchMapTool {
+    private BatchMapTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: BatchMapTool <sessionDir> <cellSize(m)> <output.csv|output.mmap> [parallelism]");
+            System.exit(2);
+        }
+        final int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        final BatchMapBuilder builder = new BatchMapBuilder(Float.parseFloat(args[1]), parallelism);
+        final long start = System.nanoTime();
+        try {
+            final GridMagMap map = builder.build(new File(args[0]));
+            final File output = new File(args[2]);
+            if (output.getName().endsWith(MagMapFile.FILE_SUFFIX)) {
+                MagMapFile.write(map, output);
+            } else {
+                map.writeCsv(output);
+            }
+            System.out.println("Built " + map.getCols() + "x" + map.getRows() + " map in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } finally {
+            builder.shutdown();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 可增量更新的磁图存储：新的采集会话直接并入已有磁图，不需要从全部原始会话重建.
+ * <ul>
+ *     <li>每个格子保存充分统计量：权重（样本数）、各通道的和与平方和、最后更新时间；</li>
+ *     <li>合并一个会话只访问它经过的格子，耗时与会话大小成正比；</li>
+ *     <li>旧数据按半衰期指数衰减：格子在被新数据更新时，先把已有统计量乘以衰减系数，
+ *     机房设备挪动后新数据会很快占主导；</li>
+ *     <li>格子按块写时复制，每次合并发布一个新版本的{@link Snapshot}，读者在合并进行中看到的始终是一致的旧版本.</li>
+ * </ul>
+ * 合并是单写者（串行化），读取无锁.快照可以导出为{@link GridMagMap}，再写为{@link MagMapFile}供手机端使用.
+ * 命令行入口见{@link IncrementalMapTool}.
+ */
+@ThreadSafe
+class IncrementalMapStore {
+    /**
+     * 存储文件的标识与版本.
+     */
+    private static final int MAGIC = 0x4D4D4953;
+    private static final int VERSION = 1;
+
+    /**
+     * 每块的格子数，写时复制的粒度.
+     */
+    static final int CHUNK_CELLS = 64;
+
+    /**
+     * 权重低于该值的格子视为没有数据.
+     */
+    private static final double MIN_WEIGHT = 1e-6;
+
+    private final float originX;
+    private final float originY;
+    private final float cellSize;
+    private final int cols;
+    private final int rows;
+    private final int channels;
+
+    /**
+     * 衰减半衰期（ms），0表示不衰减.
+     */
+    private final long halfLifeMillis;
+
+    private volatile Snapshot current;
+
+    @GuardedBy("this")
+    private final Map<Integer, Chunk> dirtyChunks = new HashMap<>();
+
+    IncrementalMapStore(float originX, float originY, float cellSize, int cols, int rows, int channels,
+                        long halfLifeMillis) throws InvalidParameterException {
+        if (cellSize <= 0 || cols <= 0 || rows <= 0 || halfLifeMillis < 0) {
+            throw new InvalidParameterException("Invalid map store geometry or half life");
+        }
+        //合并时只提取BatchMapBuilder的特征通道，多出的通道会一直是0
+        if (channels != BatchMapBuilder.FEATURE_CHANNELS) {
+            throw new InvalidParameterException("Param channels must be " + BatchMapBuilder.FEATURE_CHANNELS);
+        }
+        this.originX = originX;
+        this.originY = originY;
+        this.cellSize = cellSize;
+        this.cols = cols;
+        this.rows = rows;
+        this.channels = channels;
+        this.halfLifeMillis = halfLifeMillis;
+        final int chunkCount = (cols * rows + CHUNK_CELLS - 1) / CHUNK_CELLS;
+        this.current = new Snapshot(0L, new Chunk[chunkCount]);
+    }
+
+    /**
+     * @return 当前已发布的版本，读者应在一次查询中只使用同一个快照
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * 将一个会话并入磁图并发布新版本.
+     *
+     * @param session         会话的传感器文件与打点文件
+     * @param mergeTimeMillis 本次合并的时间，用于衰减与记录格子的最后更新时间
+     * @return 新版本号
+     */
+    public synchronized long mergeSession(BatchMapBuilder.SessionFiles session, long mergeTimeMillis)
+            throws IOException {
+        final MarkPointTrack track = MarkPointTrack.read(session.points);
+        final float[] position = new float[2];
+        final float[] features = new float[channels];
+        final Snapshot base = current;
+        dirtyChunks.clear();
+        try (SessionReader reader = SessionBinaryFormat.open(session.sensors)) {
+            while (reader.next()) {
+                if (!track.positionAt(reader.getTimeMillis(), position)) {
+                    continue;
+                }
+                final int cell = cellIndex(position[0], position[1]);
+                if (cell < 0) {
+                    continue;
+                }
+                BatchMapBuilder.extractFeatures(reader.getFrame(), features);
+                final Chunk chunk = writableChunk(base, cell / CHUNK_CELLS);
+                final int i = cell % CHUNK_CELLS;
+                //格子在本次合并中第一次被访问时才做衰减（惰性衰减），之后的样本直接累加
+                if (chunk.touch(i)) {
+                    chunk.scale(i, decayFactor(mergeTimeMillis - chunk.lastUpdate[i]));
+                    chunk.lastUpdate[i] = mergeTimeMillis;
+                }
+                chunk.add(i, features);
+            }
+        }
+        return publish(base);
+    }
+
+    /**
+     * @return 坐标所在格子的下标，网格外返回-1
+     */
+    public int cellIndex(float x, float y) {
+        final int col = (int) Math.floor((x - originX) / cellSize);
+        final int row = (int) Math.floor((y - originY) / cellSize);
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    @GuardedBy("this")
+    private Chunk writableChunk(Snapshot base, int chunkIndex) {
+        Chunk chunk = dirtyChunks.get(chunkIndex);
+        if (chunk == null) {
+            final Chunk old = base.chunks[chunkIndex];
+            chunk = old == null ? new Chunk(channels) : old.copy();
+            dirtyChunks.put(chunkIndex, chunk);
+        }
+        return chunk;
+    }
+
+    @GuardedBy("this")
+    private long publish(Snapshot base) {
+        final Chunk[] chunks = base.chunks.clone();
+        for (Map.Entry<Integer, Chunk> entry : dirtyChunks.entrySet()) {
+            entry.getValue().markMergeDone();
+            chunks[entry.getKey()] = entry.getValue();
+        }
+        dirtyChunks.clear();
+        current = new Snapshot(base.version + 1, chunks);
+        return current.version;
+    }
+
+    /**
+     * 将当前版本写入文件.
+     */
+    public void writeTo(File file) throws IOException {
+        final Snapshot snapshot = current;
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeFloat(originX);
+            out.writeFloat(originY);
+            out.writeFloat(cellSize);
+            out.writeInt(cols);
+            out.writeInt(rows);
+            out.writeInt(channels);
+            out.writeLong(halfLifeMillis);
+            out.writeLong(snapshot.version);
+            int stored = 0;
+            for (Chunk chunk : snapshot.chunks) {
+                stored += chunk == null ? 0 : 1;
+            }
+            out.writeInt(stored);
+            for (int c = 0; c < snapshot.chunks.length; c++) {
+                if (snapshot.chunks[c] != null) {
+                    out.writeInt(c);
+                    snapshot.chunks[c].writeTo(out);
+                }
+            }
+        }
+    }
+
+    /**
+     * 从{@link #writeTo(File)}写出的文件恢复.
+     */
+    static IncrementalMapStore readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a map store of version " + VERSION);
+            }
+            final IncrementalMapStore store;
+            try {
+                store = new IncrementalMapStore(in.readFloat(), in.readFloat(),
+                        in.readFloat(), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+            } catch (InvalidParameterException e) {
+                throw new IOException("Unsupported map store " + file + ": " + e.getMessage(), e);
+            }
+            final long version = in.readLong();
+            final Chunk[] chunks = new Chunk[store.current.chunks.length];
+            final int stored = in.readInt();
+            for (int i = 0; i < stored; i++) {
+                final int index = in.readInt();
+                if (index < 0 || index >= chunks.length) {
+                    throw new IOException("Corrupted map store: chunk " + index);
+                }
+                chunks[index] = Chunk.readFrom(in, store.channels);
+            }
+            store.current = store.new Snapshot(version, chunks);
+            return store;
+        }
+    }
+
+    /**
+     * @return 经过dt毫秒后的衰减系数
+     */
+    private double decayFactor(long dtMillis) {
+        if (halfLifeMillis == 0 || dtMillis <= 0) {
+            return 1.0;
+        }
+        return Math.pow(0.5, (double) dtMillis / halfLifeMillis);
+    }
+
+    public int getCols() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * 一块格子的充分统计量.发布后不再修改；合并时先{@link #copy()}再写.
+     */
+    private static final class Chunk {
+        final int channels;
+        final double[] weights;
+        final double[] sums;
+        final double[] sumSquares;
+        final long[] lastUpdate;
+
+        /**
+         * 本次合并中已经衰减过的格子，避免同一次合并中重复衰减.只在合并线程中使用，发布时清空.
+         */
+        private boolean[] decayedInMerge;
+
+        Chunk(int channels) {
+            this.channels = channels;
+            weights = new double[CHUNK_CELLS];
+            sums = new double[CHUNK_CELLS * channels];
+            sumSquares = new double[CHUNK_CELLS * channels];
+            lastUpdate = new long[CHUNK_CELLS];
+            decayedInMerge = new boolean[CHUNK_CELLS];
+        }
+
+        private Chunk(Chunk other) {
+            channels = other.channels;
+            weights = other.weights.clone();
+            sums = other.sums.clone();
+            sumSquares = other.sumSquares.clone();
+            lastUpdate = other.lastUpdate.clone();
+            decayedInMerge = new boolean[CHUNK_CELLS];
+        }
+
+        Chunk copy() {
+            return new Chunk(this);
+        }
+
+        /**
+         * @return 该格子是否是本次合并中第一次被访问
+         */
+        boolean touch(int cell) {
+            if (decayedInMerge[cell]) {
+                return false;
+            }
+            decayedInMerge[cell] = true;
+            return true;
+        }
+
+        void scale(int cell, double factor) {
+            if (factor == 1.0) {
+                return;
+            }
+            weights[cell] *= factor;
+            for (int c = 0; c < channels; c++) {
+                sums[cell * channels + c] *= factor;
+                sumSquares[cell * channels + c] *= factor;
+            }
+        }
+
+        void add(int cell, float[] features) {
+            weights[cell] += 1.0;
+            for (int c = 0; c < channels; c++) {
+                sums[cell * channels + c] += features[c];
+                sumSquares[cell * channels + c] += (double) features[c] * features[c];
+            }
+        }
+
+        void markMergeDone() {
+            decayedInMerge = null;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < CHUNK_CELLS; i++) {
+                out.writeDouble(weights[i]);
+                out.writeLong(lastUpdate[i]);
+                for (int c = 0; c < channels; c++) {
+                    out.writeDouble(sums[i * channels + c]);
+                    out.writeDouble(sumSquares[i * channels + c]);
+                }
+            }
+        }
+
+        static Chunk readFrom(DataInputStream in, int channels) throws IOException {
+            final Chunk chunk = new Chunk(channels);
+            for (int i = 0; i < CHUNK_CELLS; i++) {
+                chunk.weights[i] = in.readDouble();
+                chunk.lastUpdate[i] = in.readLong();
+                for (int c = 0; c < channels; c++) {
+                    chunk.sums[i * channels + c] = in.readDouble();
+                    chunk.sumSquares[i * channels + c] = in.readDouble();
+                }
+            }
+            chunk.markMergeDone();
+            return chunk;
+        }
+    }
+
+    /**
+     * 某一版本的磁图，不可变.
+     */
+    @Immutable
+    final class Snapshot {
+        private final long version;
+        private final Chunk[] chunks;
+
+        private Snapshot(long version, Chunk[] chunks) {
+            this.version = version;
+            this.chunks = chunks;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return 格子在nowMillis时刻的有效权重（衰减后的样本数）
+         */
+        public double getWeight(int cell, long nowMillis) {
+            final Chunk chunk = chunks[cell / CHUNK_CELLS];
+            if (chunk == null) {
+                return 0.0;
+            }
+            final int i = cell % CHUNK_CELLS;
+            return chunk.weights[i] * decayFactor(nowMillis - chunk.lastUpdate[i]);
+        }
+
+        /**
+         * @return 格子第channel通道的加权均值，没有数据时为NaN
+         */
+        public double getMean(int cell, int channel) {
+            final Chunk chunk = chunks[cell / CHUNK_CELLS];
+            final int i = cell % CHUNK_CELLS;
+            if (chunk == null || chunk.weights[i] < MIN_WEIGHT) {
+                return Double.NaN;
+            }
+            return chunk.sums[i * channels + channel] / chunk.weights[i];
+        }
+
+        /**
+         * @return 格子第channel通道的加权方差，没有数据时为NaN
+         */
+        public double getVariance(int cell, int channel) {
+            final double mean = getMean(cell, channel);
+            if (Double.isNaN(mean)) {
+                return Double.NaN;
+            }
+            final Chunk chunk = chunks[cell / CHUNK_CELLS];
+            final int i = cell % CHUNK_CELLS;
+            return Math.max(0.0, chunk.sumSquares[i * channels + channel] / chunk.weights[i] - mean * mean);
+        }
+
+        /**
+         * @return 格子最后一次被更新的时间（ms），从未更新为0
+         */
+        public long getLastUpdate(int cell) {
+            final Chunk chunk = chunks[cell / CHUNK_CELLS];
+            return chunk == null ? 0L : chunk.lastUpdate[cell % CHUNK_CELLS];
+        }
+
+        /**
+         * 导出为同一网格的{@link GridMagMap}.
+         * 样本数取格子在nowMillis时刻的有效权重（四舍五入，有数据的格子至少为1），均值不受衰减影响；
+         * 离差平方和取加权方差乘以样本数.
+         */
+        public GridMagMap toGridMagMap(long nowMillis) {
+            final GridMagMap map = new GridMagMap(originX, originY, cellSize, cols, rows, channels);
+            final double[] cellMeans = new double[channels];
+            final double[] cellM2s = new double[channels];
+            for (int cell = 0; cell < cols * rows; cell++) {
+                if (Double.isNaN(getMean(cell, 0))) {
+                    continue;
+                }
+                final long count = Math.max(1L, Math.round(getWeight(cell, nowMillis)));
+                for (int c = 0; c < channels; c++) {
+                    cellMeans[c] = getMean(cell, c);
+                    cellM2s[c] = getVariance(cell, c) * count;
+                }
+                map.setCell(cell, count, cellMeans, cellM2s);
+            }
+            return map;
+        }
+    }
+}
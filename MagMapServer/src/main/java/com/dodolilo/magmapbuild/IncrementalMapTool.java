@@ -0,0 +1,58 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 增量磁图的命令行入口，见{@link IncrementalMapStore}.
+ * <ul>
+ *     <li>create：按给定网格与半衰期新建空的存储文件；</li>
+ *     <li>merge：把会话目录中的所有会话（与{@link BatchMapBuilder}相同的文件命名）并入存储文件；</li>
+ *     <li>export：把存储的当前版本导出为磁图，输出文件以{@link MagMapFile#FILE_SUFFIX}结尾时写二进制磁图，否则写csv.</li>
+ * </ul>
+ * 用法：java ... IncrementalMapTool create 存储文件 originX originY 格子边长(m) 列数 行数 半衰期(天)
+ * <br>
+ * 　　　java ... IncrementalMapTool merge 存储文件 会话目录
+ * <br>
+ * 　　　java ... IncrementalMapTool export 存储文件 输出文件
+ */
+final class IncrementalMapTool {
+    private IncrementalMapTool() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 8 && args[0].equals("create")) {
+            final IncrementalMapStore store = new IncrementalMapStore(Float.parseFloat(args[2]), Float.parseFloat(args[3]),
+                    Float.parseFloat(args[4]), Integer.parseInt(args[5]), Integer.parseInt(args[6]),
+                    BatchMapBuilder.FEATURE_CHANNELS, TimeUnit.DAYS.toMillis(Long.parseLong(args[7])));
+            store.writeTo(new File(args[1]));
+        } else if (args.length >= 3 && args[0].equals("merge")) {
+            final File storeFile = new File(args[1]);
+            final IncrementalMapStore store = IncrementalMapStore.readFrom(storeFile);
+            final List<BatchMapBuilder.SessionFiles> sessions = BatchMapBuilder.findSessions(new File(args[2]));
+            final long start = System.nanoTime();
+            for (BatchMapBuilder.SessionFiles session : sessions) {
+                store.mergeSession(session, System.currentTimeMillis());
+            }
+            store.writeTo(storeFile);
+            System.out.println("Merged " + sessions.size() + " sessions into version " + store.snapshot().getVersion()
+                    + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } else if (args.length >= 3 && args[0].equals("export")) {
+            final GridMagMap map = IncrementalMapStore.readFrom(new File(args[1])).snapshot()
+                    .toGridMagMap(System.currentTimeMillis());
+            final File output = new File(args[2]);
+            if (output.getName().endsWith(MagMapFile.FILE_SUFFIX)) {
+                MagMapFile.write(map, output);
+            } else {
+                map.writeCsv(output);
+            }
+        } else {
+            System.err.println("Usage: IncrementalMapTool create <store> <originX> <originY> <cellSize(m)> <cols> <rows> <halfLife(days)>");
+            System.err.println("       IncrementalMapTool merge <store> <sessionDir>");
+            System.err.println("       IncrementalMapTool export <store> <output.csv|output.mmap>");
+            System.exit(2);
+        }
+    }
+}
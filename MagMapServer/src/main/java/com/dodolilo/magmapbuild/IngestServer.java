@@ -0,0 +1,611 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 接收手机上传数据流的服务器（服务器侧），数据写入{@link SampleStore}.
+ * <p>
+ * 协议与手机端的SentDataBySocket一致（见{@link UploadProtocol}）：连接后服务器回复"MMPS"与"#CAPS"；
+ * 手机每次连接先发送一行手机号（服务器声明了HEADER能力，不是手机号的第一行被拒绝），之后是..._sensors.csv格式的数据行与"#"开头的带内记录；"#FRAME,time,features"之后的数据行只有磁场特征（见{@link WorldFrameTransform}），
+ * 一条连接的坐标系在第一行数据之前确定，之后改变坐标系的连接被拒绝；
+ * "#PING,seq,t0"立即回复"PONG,seq,t0,serverTime"；
+ * 收到"END"后，等END之前的数据全部随预写日志落盘再回复"END"，手机据此确认会话完成.
+ * 离线保存的会话文件（csv或.mmsb二进制格式）通过import命令写入同一个样本库.
+ * <p>
+ * 少量IO线程各用一个Selector服务上千条连接；数据行直接在字节上解析，不为每行创建String.
+ * 同一手机号的新连接会关闭它的旧连接（重连时旧连接可能还没有断开），每台手机只有一条连接在写入.
+ * <p>
+ * 同时可以在一个UDP端口上接收实时定位流（见{@link UdpStreamServer}），实时流不写入样本库.
+ * <p>
+ * 用法：java ... IngestServer 样本库目录 端口 [IO线程数] [实时流UDP端口]
+ * <br>
+ * 　　　java ... IngestServer import 样本库目录 手机号 会话文件...
+ */
+@ThreadSafe
+final class IngestServer implements Closeable {
+    /**
+     * 连接后的回复：MMPS与本服务器支持的能力，手机据此决定重连时是否发送连接头、是否等待END确认、是否进行时钟同步.
+     */
+    private static final byte[] SERVER_RESPONSE = (UploadProtocol.SERVER_RESPONSE + '\n'
+            + UploadProtocol.capabilitiesLine(UploadProtocol.CAPABILITY_HEADER, UploadProtocol.CAPABILITY_FRAME,
+                    UploadProtocol.CAPABILITY_END_ACK, UploadProtocol.CAPABILITY_PONG) + '\n').getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] END_ACK = (UploadProtocol.END_LINE + '\n').getBytes(StandardCharsets.US_ASCII);
+
+    private static final String PING_PREFIX = ClockSyncEstimator.PING_RECORD_TAG + ',';
+
+    private static final String FRAME_PREFIX = WorldFrameTransform.FRAME_RECORD_TAG + ',';
+
+    /**
+     * 每条连接的接收缓冲区，一行不能超过它.
+     */
+    private static final int READ_BUFFER_BYTES = 64 << 10;
+
+    /**
+     * 每批写入样本库的最多行数.
+     */
+    private static final int BATCH_ROWS = 1024;
+
+    /**
+     * 每条连接最多打印的格式错误行数.
+     */
+    private static final int MAX_REPORTED_ERRORS = 5;
+
+    /**
+     * 实时UDP流的重排窗口（数据报个数）：20个样本一个数据报时约为0.4~2秒的样本.
+     */
+    private static final int LIVE_REORDER_WINDOW = 4;
+
+    private final SampleStore store;
+
+    private final ServerSocketChannel serverChannel;
+
+    private final IoLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * 手机号 -> 该手机当前的连接.
+     */
+    private final ConcurrentHashMap<String, Connection> connectionsByPhone = new ConcurrentHashMap<>();
+
+    private final Thread acceptor;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param ioThreads IO线程数，通常为CPU核数
+     */
+    IngestServer(SampleStore store, int port, int ioThreads) throws IOException {
+        this.store = store;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop("ingest-io-" + i);
+        }
+        acceptor = new Thread(this::acceptLoop, "ingest-accept");
+    }
+
+    void start() {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 停止接受连接并关闭所有连接；未收到END的会话已收到的数据仍会写入样本库.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        try {
+            acceptor.join();
+            for (IoLoop loop : loops) {
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                final IoLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.execute(() -> loop.register(channel));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Ingest: accept failed, " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个IO线程与它的Selector.
+     */
+    private final class IoLoop {
+        final Thread thread;
+
+        final Selector selector;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this::run, name);
+        }
+
+        /**
+         * 在IO线程中执行task.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                final Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.send(SERVER_RESPONSE);
+            } catch (IOException e) {
+                System.err.println("Ingest: register failed, " + e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    //连接已不可用
+                }
+            }
+        }
+
+        private void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        final Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flushOutput();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.fail(e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Ingest: IO loop stopped, " + e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).closeQuietly();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    //退出中
+                }
+            }
+        }
+    }
+
+    /**
+     * 一条手机连接，只在所属的IO线程中访问.
+     */
+    @NotThreadSafe
+    private final class Connection {
+        private final IoLoop loop;
+
+        private final SocketChannel channel;
+
+        SelectionKey key;
+
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+
+        private final float[] frame = new float[SensorFrame.SIZE];
+
+        private final float[] features = new float[WorldFrameTransform.FEATURE_SIZE];
+
+        /**
+         * 本连接是否已收到数据行，之后不能再改变坐标系.
+         */
+        private boolean samplesReceived = false;
+
+        /**
+         * 数据行所在的坐标系，由#FRAME记录声明，没有时为手机坐标系.
+         */
+        private WorldFrameTransform.UploadFrame uploadFrame = WorldFrameTransform.UploadFrame.DEVICE;
+
+        private SampleStore.Device device = null;
+
+        private SampleStore.Batch batch = null;
+
+        private long lastTimeMillis = 0;
+
+        private long lineNumber = 0;
+
+        private int errors = 0;
+
+        private boolean closed = false;
+
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void onReadable() throws IOException {
+            final int n = channel.read(in);
+            if (n < 0) {
+                //没有END就断开：已收到的数据照常写入，但不确认
+                writeBatch();
+                closeQuietly();
+                return;
+            }
+            final byte[] bytes = in.array();
+            final int limit = in.position();
+            int start = 0;
+            for (int i = limit - n; i < limit; i++) {
+                if (bytes[i] == '\n') {
+                    int end = i;
+                    if (end > start && bytes[end - 1] == '\r') {
+                        end--;
+                    }
+                    lineNumber++;
+                    onLine(bytes, start, end);
+                    start = i + 1;
+                }
+            }
+            in.limit(limit).position(start);
+            in.compact();
+            if (!in.hasRemaining()) {
+                throw new IOException("Line " + (lineNumber + 1) + " longer than " + READ_BUFFER_BYTES + " bytes");
+            }
+            writeBatch();
+        }
+
+        private void onLine(byte[] bytes, int from, int to) throws IOException {
+            if (from == to || closed) {
+                return;
+            }
+            if (device == null) {
+                onPhoneLine(new String(bytes, from, to - from, StandardCharsets.US_ASCII).trim());
+                return;
+            }
+            final byte first = bytes[from];
+            if (first == '#') {
+                onRecord(bytes, from, to);
+            } else if ((first >= '0' && first <= '9') || first == '-') {
+                onDataLine(bytes, from, to);
+            } else if (to - from == 3 && first == 'E' && bytes[from + 1] == 'N' && bytes[from + 2] == 'D') {
+                onEnd();
+            }
+        }
+
+        /**
+         * 连接头的手机号：确定设备，并关闭同一手机的旧连接.
+         */
+        private void onPhoneLine(String phone) throws IOException {
+            if (!UploadProtocol.isPhoneNumber(phone)) {
+                throw new IOException("Expected phone number on line " + lineNumber + ", got \""
+                        + (phone.length() > 32 ? phone.substring(0, 32) + "..." : phone) + '"');
+            }
+            device = store.device(phone);
+            batch = new SampleStore.Batch(device.id, BATCH_ROWS);
+            final Connection previous = connectionsByPhone.put(phone, this);
+            if (previous != null) {
+                previous.loop.execute(() -> previous.fail(new IOException("superseded by a new connection")));
+            }
+        }
+
+        private void onDataLine(byte[] bytes, int from, int to) throws IOException {
+            try {
+                final boolean featureRow = uploadFrame == WorldFrameTransform.UploadFrame.FEATURES;
+                final float[] values = featureRow ? features : frame;
+                int end = indexOf(bytes, from, to, (byte) ',');
+                final long timeMillis = AsciiNumbers.parseLong(bytes, from, end);
+                for (int i = 0; i < values.length; i++) {
+                    if (end >= to) {
+                        throw new NumberFormatException("expected " + (values.length + 1) + " columns, got " + (i + 1));
+                    }
+                    final int start = end + 1;
+                    end = indexOf(bytes, start, to, (byte) ',');
+                    values[i] = AsciiNumbers.parseFloat(bytes, start, end);
+                }
+                if (featureRow) {
+                    expandFeatures();
+                }
+                if (batch.isFull()) {
+                    writeBatch();
+                }
+                batch.addSample(timeMillis, frame, 0);
+                lastTimeMillis = timeMillis;
+                samplesReceived = true;
+            } catch (NumberFormatException e) {
+                if (errors++ < MAX_REPORTED_ERRORS) {
+                    System.err.println("Ingest: " + device.phone + " line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * 特征行存为世界坐标系的样本帧：磁场为(水平分量, 0, 竖直分量)，总强度由此得出；
+         * 加速度、陀螺仪为0，四元数为单位四元数.
+         */
+        private void expandFeatures() {
+            Arrays.fill(frame, 0f);
+            frame[SensorFrame.MAG] = features[WorldFrameTransform.FEATURE_MAG_HORIZONTAL];
+            frame[SensorFrame.MAG + 2] = features[WorldFrameTransform.FEATURE_MAG_VERTICAL];
+            frame[SensorFrame.QUAT + 3] = 1f;
+        }
+
+        /**
+         * PING立即回复；#FRAME改变之后数据行的解析方式；其余带内记录按第二列的时间（没有时用上一个样本的时间）存入样本库.
+         */
+        private void onRecord(byte[] bytes, int from, int to) throws IOException {
+            final String ping = startsWith(bytes, from, to, PING_PREFIX)
+                    ? new String(bytes, from + PING_PREFIX.length(), to - from - PING_PREFIX.length(), StandardCharsets.US_ASCII)
+                    : null;
+            if (startsWith(bytes, from, to, FRAME_PREFIX)) {
+                onFrameRecord(bytes, from, to);
+            }
+            if (ping != null) {
+                final String pong = ClockSyncEstimator.PONG_REPLY_TAG + ',' + ping + ',' + System.currentTimeMillis() + '\n';
+                send(pong.getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            long timeMillis = lastTimeMillis;
+            final int start = indexOf(bytes, from, to, (byte) ',') + 1;
+            if (start < to) {
+                try {
+                    timeMillis = AsciiNumbers.parseLong(bytes, start, indexOf(bytes, start, to, (byte) ','));
+                } catch (NumberFormatException e) {
+                    //没有时间列的记录
+                }
+            }
+            batch.addRecord(timeMillis, bytes, from, to - from);
+        }
+
+        /**
+         * {@code #FRAME,time,frame}：之后的数据行按声明的坐标系解析；记录本身照常存入样本库.
+         * 样本库与查询（{@link SampleQueryEngine}）不区分坐标系，因此已收到数据行的连接不能再改变坐标系，
+         * 手机每次连接都在数据之前重新声明，一个会话内的样本总在同一坐标系中.
+         *
+         * @throws IOException 已收到数据行后声明了不同的坐标系
+         */
+        private void onFrameRecord(byte[] bytes, int from, int to) throws IOException {
+            final int timeEnd = indexOf(bytes, from + FRAME_PREFIX.length(), to, (byte) ',');
+            final String name = timeEnd < to
+                    ? new String(bytes, timeEnd + 1, to - timeEnd - 1, StandardCharsets.US_ASCII).trim() : "";
+            final WorldFrameTransform.UploadFrame declared = WorldFrameTransform.UploadFrame.fromRecordName(name);
+            if (declared == null) {
+                if (errors++ < MAX_REPORTED_ERRORS) {
+                    System.err.println("Ingest: " + device.phone + " line " + lineNumber + ": unknown frame \"" + name + "\"");
+                }
+                return;
+            }
+            if (samplesReceived && declared != uploadFrame) {
+                throw new IOException("Line " + lineNumber + ": frame changed from " + uploadFrame + " to " + declared
+                        + " after samples were received");
+            }
+            uploadFrame = declared;
+        }
+
+        private void onEnd() throws IOException {
+            final long lsn = store.write(batch);
+            store.sync(lsn).whenComplete((ignored, error) -> loop.execute(() -> {
+                if (error == null) {
+                    send(END_ACK);
+                } else {
+                    fail(error);
+                }
+            }));
+        }
+
+        private void writeBatch() throws IOException {
+            if (batch != null && !batch.isEmpty()) {
+                store.write(batch);
+            }
+        }
+
+        void send(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            out.add(ByteBuffer.wrap(bytes));
+            try {
+                flushOutput();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void flushOutput() throws IOException {
+            while (!out.isEmpty()) {
+                final ByteBuffer head = out.peek();
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+            }
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void fail(Throwable e) {
+            System.err.println("Ingest: connection " + (device != null ? device.phone : "?") + " closed, " + e);
+            try {
+                writeBatch();
+            } catch (IOException ignored) {
+                //日志已不可用
+            }
+            closeQuietly();
+        }
+
+        void closeQuietly() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (device != null) {
+                connectionsByPhone.remove(device.phone, this);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //已断开
+            }
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static boolean startsWith(byte[] bytes, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 将离线保存的会话文件写入样本库，并等待数据落盘.
+     */
+    static void importSession(SampleStore store, String phone, File file)
+            throws IOException, InterruptedException {
+        final SampleStore.Device device = store.device(phone);
+        final SampleStore.Batch batch = new SampleStore.Batch(device.id, BATCH_ROWS);
+        long lsn = 0;
+        try (SessionReader reader = SessionBinaryFormat.open(file)) {
+            while (reader.next()) {
+                if (batch.isFull()) {
+                    lsn = store.write(batch);
+                }
+                batch.addSample(reader.getTimeMillis(), reader.getFrame(), 0);
+            }
+        }
+        lsn = Math.max(lsn, store.write(batch));
+        try {
+            store.sync(lsn).get();
+        } catch (ExecutionException e) {
+            throw new IOException("WAL commit failed", e.getCause());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length >= 4 && args[0].equals("import")) {
+            try (SampleStore store = new SampleStore(new File(args[1]))) {
+                for (int i = 3; i < args.length; i++) {
+                    final long start = System.nanoTime();
+                    importSession(store, args[2], new File(args[i]));
+                    System.out.println("Imported " + args[i] + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+            }
+            return;
+        }
+        if (args.length < 2) {
+            System.err.println("Usage: IngestServer <storeDir> <port> [ioThreads] [udpPort]");
+            System.err.println("       IngestServer import <storeDir> <phone> <session.csv|session.mmsb>...");
+            System.exit(2);
+        }
+        final int ioThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final SampleStore store = new SampleStore(new File(args[0]));
+        final IngestServer server = new IngestServer(store, Integer.parseInt(args[1]), ioThreads);
+        //实时定位引擎不在本仓库中，这里只汇报每个实时会话的接收情况
+        final UdpStreamServer liveServer = args.length > 3 ? new UdpStreamServer(Integer.parseInt(args[3]),
+                LIVE_REORDER_WINDOW, new UdpStreamServer.Listener() {
+            @Override
+            public void onSample(long sessionId, long timeMillis, float[] frame) {
+            }
+
+            @Override
+            public void onSessionEnd(long sessionId, UdpStreamReceiver receiver) {
+                System.out.println("Live session " + Long.toHexString(sessionId)
+                        + ": delivered=" + receiver.getDeliveredPackets()
+                        + " recovered=" + receiver.getRecoveredPackets()
+                        + " lost=" + receiver.getLostPackets()
+                        + " late=" + receiver.getLatePackets());
+            }
+        }) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (liveServer != null) {
+                    liveServer.close();
+                }
+                server.close();
+                store.close();
+            } catch (IOException e) {
+                System.err.println("Ingest: shutdown failed, " + e);
+            }
+        }));
+        server.start();
+        System.out.println("Ingest server listening on " + server.getPort());
+        if (liveServer != null) {
+            liveServer.start();
+            System.out.println("Live UDP stream on " + liveServer.getPort());
+        }
+        server.acceptor.join();
+    }
+}
@@ -0,0 +1,953 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link SampleStore}上的查询：按设备、时间范围、列值范围与空间窗口取出样本，通过{@link Cursor}流式返回.
+ * <ul>
+ *     <li>设备：每台设备的分区按小时索引，只打开时间范围内的分区；</li>
+ *     <li>时间与列值：用段文件块索引中的最小最大值跳过整块，只读取需要的列；</li>
+ *     <li>空间窗口：由分区中#MARK打点记录连成的轨迹建立网格索引，只扫描轨迹经过窗口的时间段，
+ *         再按两个打点之间线性插值的位置逐行过滤.</li>
+ * </ul>
+ * 游标一次只打开一个分区，每个段只缓存一块，内存占用与结果的大小无关（另加未写成段的内存表中查询范围内的行）.
+ * <p>
+ * 样本按上传时的坐标系存储（见{@link WorldFrameTransform}），查询不区分坐标系；IngestServer保证一个会话内只有一种坐标系.
+ */
+@ThreadSafe
+final class SampleQueryEngine {
+    private static final int MARK_TIME_FIELD = 1;
+
+    private static final int MARK_X_FIELD = 4;
+
+    private static final int MARK_Y_FIELD = 5;
+
+    /**
+     * 同一个段被压缩删除后重新读取分区的次数上限.
+     */
+    private static final int OPEN_RETRIES = 3;
+
+    private final SampleStore store;
+
+    /**
+     * 轨迹网格索引的格子边长（m）.
+     */
+    private final float cellSize;
+
+    /**
+     * 各分区已索引的打点，分区的段或内存表中的记录变化后重建.
+     */
+    @GuardedBy("this")
+    private final Map<SampleStore.Partition, PartitionMarks> indexedMarks = new HashMap<>();
+
+    /**
+     * 格子 -> 经过它的轨迹段.
+     */
+    @GuardedBy("this")
+    private final Map<Long, List<Leg>> grid = new HashMap<>();
+
+    /**
+     * @param cellSize 轨迹网格索引的格子边长（m），与常用的查询半径相当即可
+     */
+    SampleQueryEngine(SampleStore store, float cellSize) {
+        this.store = store;
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * 一次查询的条件，未设置的条件不过滤.
+     */
+    @NotThreadSafe
+    static final class Query {
+        private String phone = null;
+
+        private long fromMillis = 0;
+
+        private long toMillis = Long.MAX_VALUE;
+
+        private int[] columns = null;
+
+        private final List<int[]> rangeColumns = new ArrayList<>();
+
+        private final List<float[]> ranges = new ArrayList<>();
+
+        private float centerX = Float.NaN;
+
+        private float centerY = Float.NaN;
+
+        private float radius = Float.NaN;
+
+        /**
+         * 只查询一台设备.
+         */
+        Query device(String phone) {
+            this.phone = phone;
+            return this;
+        }
+
+        /**
+         * 只查询[fromMillis, toMillis]内的样本.
+         */
+        Query timeRange(long fromMillis, long toMillis) {
+            this.fromMillis = Math.max(0, fromMillis);
+            this.toMillis = toMillis;
+            return this;
+        }
+
+        /**
+         * 只读取这些列（{@link SensorFrame}中的下标），默认全部列.
+         */
+        Query columns(int... columns) {
+            this.columns = columns.clone();
+            return this;
+        }
+
+        /**
+         * 只保留column的值在[min, max]内的样本.
+         */
+        Query valueRange(int column, float min, float max) {
+            rangeColumns.add(new int[]{column});
+            ranges.add(new float[]{min, max});
+            return this;
+        }
+
+        /**
+         * 只保留插值位置离(x, y)不超过radius（m）的样本；没有打点轨迹的样本被排除.
+         */
+        Query near(float x, float y, float radius) {
+            this.centerX = x;
+            this.centerY = y;
+            this.radius = radius;
+            return this;
+        }
+
+        boolean isSpatial() {
+            return !Float.isNaN(radius);
+        }
+    }
+
+    /**
+     * 打开一个游标，按设备id、时间顺序返回满足条件的样本.
+     * 游标只看到打开时已写入的数据，用完必须关闭.
+     */
+    Cursor open(Query query) throws IOException {
+        final List<SampleStore.Device> devices = new ArrayList<>();
+        if (query.phone != null) {
+            final SampleStore.Device device = store.findDevice(query.phone);
+            if (device != null) {
+                devices.add(device);
+            }
+        } else {
+            devices.addAll(store.getDevices());
+        }
+        if (query.isSpatial()) {
+            refreshIndex();
+        }
+        final List<ScanRange> plan = new ArrayList<>();
+        for (SampleStore.Device device : devices) {
+            final long[] intervals = query.isSpatial()
+                    ? spatialIntervals(device, query)
+                    : new long[]{query.fromMillis, query.toMillis};
+            if (intervals.length == 0) {
+                continue;
+            }
+            final long from = intervals[0];
+            final long to = intervals[intervals.length - 1];
+            final List<SampleStore.Partition> partitions = store.getPartitions(device, from, to);
+            if (partitions.isEmpty()) {
+                continue;
+            }
+            final MarkPointTrack track = query.isSpatial() ? deviceTrack(device, from, to) : null;
+            for (SampleStore.Partition partition : partitions) {
+                final long[] clipped = clip(intervals, partition.hourStart, partition.getHourEnd() - 1);
+                if (clipped.length > 0) {
+                    plan.add(new ScanRange(partition, clipped, track));
+                }
+            }
+        }
+        return new Cursor(query, plan);
+    }
+
+    /**
+     * 流式返回查询结果的游标.
+     */
+    @NotThreadSafe
+    final class Cursor implements Closeable {
+        private final Query query;
+
+        private final boolean[] readColumns = new boolean[SensorFrame.SIZE];
+
+        private final int[] filterColumns;
+
+        private final float[] filterMins;
+
+        private final float[] filterMaxs;
+
+        private final Iterator<ScanRange> plan;
+
+        private PartitionScan scan = null;
+
+        private ScanRange range = null;
+
+        private final float[] values = new float[SensorFrame.SIZE];
+
+        private final float[] position = new float[2];
+
+        private long timeMillis;
+
+        private float x = Float.NaN;
+
+        private float y = Float.NaN;
+
+        private Cursor(Query query, List<ScanRange> plan) {
+            this.query = query;
+            this.plan = plan.iterator();
+            if (query.columns == null) {
+                Arrays.fill(readColumns, true);
+            } else {
+                for (int column : query.columns) {
+                    readColumns[column] = true;
+                }
+            }
+            filterColumns = new int[query.rangeColumns.size()];
+            filterMins = new float[filterColumns.length];
+            filterMaxs = new float[filterColumns.length];
+            for (int i = 0; i < filterColumns.length; i++) {
+                filterColumns[i] = query.rangeColumns.get(i)[0];
+                filterMins[i] = query.ranges.get(i)[0];
+                filterMaxs[i] = query.ranges.get(i)[1];
+                readColumns[filterColumns[i]] = true;
+            }
+        }
+
+        /**
+         * @return false 如果没有更多结果
+         */
+        boolean next() throws IOException {
+            while (true) {
+                if (scan == null) {
+                    if (!plan.hasNext()) {
+                        return false;
+                    }
+                    range = plan.next();
+                    scan = openScan(range, this);
+                }
+                if (!scan.next(this)) {
+                    scan.close();
+                    scan = null;
+                    continue;
+                }
+                if (accept()) {
+                    return true;
+                }
+            }
+        }
+
+        String getPhone() {
+            return range.partition.device.phone;
+        }
+
+        long getTimeMillis() {
+            return timeMillis;
+        }
+
+        /**
+         * @return 当前样本column列的值，未读取的列为0
+         */
+        float get(int column) {
+            return values[column];
+        }
+
+        /**
+         * @return 当前样本的插值位置，只有空间查询才计算，否则为NaN
+         */
+        float getX() {
+            return x;
+        }
+
+        float getY() {
+            return y;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (scan != null) {
+                scan.close();
+                scan = null;
+            }
+        }
+
+        private boolean accept() {
+            for (int i = 0; i < filterColumns.length; i++) {
+                final float v = values[filterColumns[i]];
+                if (v < filterMins[i] || v > filterMaxs[i]) {
+                    return false;
+                }
+            }
+            if (range.track != null) {
+                if (!range.track.positionAt(timeMillis, position)) {
+                    return false;
+                }
+                x = position[0];
+                y = position[1];
+                final float dx = x - query.centerX;
+                final float dy = y - query.centerY;
+                return dx * dx + dy * dy <= query.radius * query.radius;
+            }
+            return true;
+        }
+
+        /**
+         * 块中所有行column列的值都在某个过滤范围之外时，整块跳过.
+         */
+        private boolean blockMayMatch(SegmentFile.Reader reader, int block) {
+            for (int i = 0; i < filterColumns.length; i++) {
+                if (reader.getBlockMax(block, filterColumns[i]) < filterMins[i]
+                        || reader.getBlockMin(block, filterColumns[i]) > filterMaxs[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 一个分区中要扫描的时间段.
+     */
+    private static final class ScanRange {
+        final SampleStore.Partition partition;
+
+        /**
+         * 按时间排序、互不重叠的闭区间[start0, end0, start1, end1, ...].
+         */
+        final long[] intervals;
+
+        final MarkPointTrack track;
+
+        ScanRange(SampleStore.Partition partition, long[] intervals, MarkPointTrack track) {
+            this.partition = partition;
+            this.intervals = intervals;
+            this.track = track;
+        }
+
+        /**
+         * @return [minTime, maxTime]是否与某个区间相交
+         */
+        boolean overlaps(long minTime, long maxTime) {
+            for (int i = 0; i < intervals.length; i += 2) {
+                if (intervals[i] > maxTime) {
+                    return false;
+                }
+                if (intervals[i + 1] >= minTime) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 一行数据的来源，按时间顺序产生.
+     */
+    private interface RowSource extends Closeable {
+        /**
+         * 前进到下一行.
+         *
+         * @return false 如果没有更多行
+         */
+        boolean advance() throws IOException;
+
+        long time();
+
+        /**
+         * 将当前行需要的列拷贝到values.
+         */
+        void copyTo(float[] values, boolean[] readColumns);
+    }
+
+    /**
+     * 一个分区的扫描：归并该分区各段与内存表快照，只返回落在区间内的行.
+     */
+    private static final class PartitionScan implements Closeable {
+        private final RowSource[] sources;
+
+        private final boolean[] live;
+
+        private final long[] intervals;
+
+        private int interval = 0;
+
+        PartitionScan(List<RowSource> sources, long[] intervals) throws IOException {
+            this.sources = sources.toArray(new RowSource[0]);
+            this.live = new boolean[this.sources.length];
+            this.intervals = intervals;
+            for (int i = 0; i < this.sources.length; i++) {
+                live[i] = this.sources[i].advance();
+            }
+        }
+
+        boolean next(Cursor cursor) throws IOException {
+            while (true) {
+                int min = -1;
+                for (int i = 0; i < sources.length; i++) {
+                    if (live[i] && (min < 0 || sources[i].time() < sources[min].time())) {
+                        min = i;
+                    }
+                }
+                if (min < 0) {
+                    return false;
+                }
+                final RowSource source = sources[min];
+                final long time = source.time();
+                while (interval < intervals.length && intervals[interval + 1] < time) {
+                    interval += 2;
+                }
+                if (interval >= intervals.length) {
+                    return false;
+                }
+                final boolean inside = intervals[interval] <= time;
+                if (inside) {
+                    cursor.timeMillis = time;
+                    source.copyTo(cursor.values, cursor.readColumns);
+                }
+                live[min] = source.advance();
+                if (inside) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RowSource source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * 段文件中的行：跳过时间与列值范围之外的块，只读取需要的列.
+     */
+    private static final class SegmentSource implements RowSource {
+        private final SegmentFile.Reader reader;
+
+        private final ScanRange range;
+
+        private final Cursor cursor;
+
+        private final long[] times = new long[SegmentFile.BLOCK_ROWS];
+
+        private final float[][] columns = new float[SensorFrame.SIZE][];
+
+        private int block = -1;
+
+        private int rows = 0;
+
+        private int row = 0;
+
+        SegmentSource(SegmentFile.Reader reader, ScanRange range, Cursor cursor) {
+            this.reader = reader;
+            this.range = range;
+            this.cursor = cursor;
+            for (int c = 0; c < SensorFrame.SIZE; c++) {
+                if (cursor.readColumns[c]) {
+                    columns[c] = new float[SegmentFile.BLOCK_ROWS];
+                }
+            }
+        }
+
+        @Override
+        public boolean advance() throws IOException {
+            row++;
+            while (row >= rows) {
+                if (!loadNextBlock()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean loadNextBlock() throws IOException {
+            while (++block < reader.getBlockCount()) {
+                if (!range.overlaps(reader.getBlockMinTime(block), reader.getBlockMaxTime(block))
+                        || !cursor.blockMayMatch(reader, block)) {
+                    continue;
+                }
+                rows = reader.readTimes(block, times);
+                for (int c = 0; c < SensorFrame.SIZE; c++) {
+                    if (columns[c] != null) {
+                        reader.readColumn(block, c, columns[c]);
+                    }
+                }
+                //跳过块中第一个区间之前的行
+                final int first = Arrays.binarySearch(times, 0, rows, range.intervals[0]);
+                row = first >= 0 ? first : -first - 1;
+                while (row > 0 && times[row - 1] == range.intervals[0]) {
+                    row--;
+                }
+                return true;
+            }
+            rows = 0;
+            row = 0;
+            return false;
+        }
+
+        @Override
+        public long time() {
+            return times[row];
+        }
+
+        @Override
+        public void copyTo(float[] values, boolean[] readColumns) {
+            for (int c = 0; c < SensorFrame.SIZE; c++) {
+                if (columns[c] != null) {
+                    values[c] = columns[c][row];
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * 内存表中落在查询范围内的行的快照，已按时间排序.
+     */
+    private static final class MemTableSource implements RowSource {
+        private final long[] times;
+
+        private final float[] frames;
+
+        private final int rows;
+
+        private int row = -1;
+
+        MemTableSource(long[] times, float[] frames, int rows) {
+            this.times = times;
+            this.frames = frames;
+            this.rows = rows;
+        }
+
+        @Override
+        public boolean advance() {
+            return ++row < rows;
+        }
+
+        @Override
+        public long time() {
+            return times[row];
+        }
+
+        @Override
+        public void copyTo(float[] values, boolean[] readColumns) {
+            for (int c = 0; c < SensorFrame.SIZE; c++) {
+                if (readColumns[c]) {
+                    values[c] = frames[row * SensorFrame.SIZE + c];
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 取分区的段与内存表的一致快照并打开；快照中的段恰好被压缩删除时重新取快照.
+     */
+    private static PartitionScan openScan(ScanRange range, Cursor cursor) throws IOException {
+        final SampleStore.Partition partition = range.partition;
+        final long from = range.intervals[0];
+        final long to = range.intervals[range.intervals.length - 1];
+        for (int attempt = 1; ; attempt++) {
+            final List<SampleStore.SegmentInfo> segments;
+            final MemTableSource memRows;
+            synchronized (partition) {
+                segments = partition.segments;
+                memRows = snapshot(range, partition.flushing, partition.active);
+            }
+            final List<RowSource> sources = new ArrayList<>(segments.size() + 1);
+            try {
+                for (SampleStore.SegmentInfo segment : segments) {
+                    if (segment.maxTime < from || segment.minTime > to || !range.overlaps(segment.minTime, segment.maxTime)) {
+                        continue;
+                    }
+                    sources.add(new SegmentSource(new SegmentFile.Reader(segment.file), range, cursor));
+                }
+                sources.add(memRows);
+                return new PartitionScan(sources, range.intervals);
+            } catch (FileNotFoundException e) {
+                for (RowSource source : sources) {
+                    source.close();
+                }
+                if (attempt >= OPEN_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 拷贝内存表中落在区间内的行并排序，调用者持有分区的锁.
+     */
+    private static MemTableSource snapshot(ScanRange range, SampleStore.MemTable... tables) {
+        int total = 0;
+        for (SampleStore.MemTable table : tables) {
+            if (table != null) {
+                total += table.rows;
+            }
+        }
+        long[] times = new long[Math.min(total, 1024)];
+        float[] frames = new float[times.length * SensorFrame.SIZE];
+        int rows = 0;
+        for (SampleStore.MemTable table : tables) {
+            if (table == null) {
+                continue;
+            }
+            for (int i = 0; i < table.rows; i++) {
+                final long t = table.times[i];
+                if (!range.overlaps(t, t)) {
+                    continue;
+                }
+                if (rows == times.length) {
+                    times = Arrays.copyOf(times, Math.max(16, rows * 2));
+                    frames = Arrays.copyOf(frames, times.length * SensorFrame.SIZE);
+                }
+                times[rows] = t;
+                System.arraycopy(table.frames, i * SensorFrame.SIZE, frames, rows * SensorFrame.SIZE, SensorFrame.SIZE);
+                rows++;
+            }
+        }
+        final int[] order = SampleStore.sortedOrder(times, rows, range.partition.hourStart);
+        final long[] sortedTimes = new long[rows];
+        final float[] sortedFrames = new float[rows * SensorFrame.SIZE];
+        for (int i = 0; i < rows; i++) {
+            sortedTimes[i] = times[order[i]];
+            System.arraycopy(frames, order[i] * SensorFrame.SIZE, sortedFrames, i * SensorFrame.SIZE, SensorFrame.SIZE);
+        }
+        return new MemTableSource(sortedTimes, sortedFrames, rows);
+    }
+
+    /**
+     * 将区间列表裁剪到[from, to].
+     */
+    private static long[] clip(long[] intervals, long from, long to) {
+        final long[] clipped = new long[intervals.length];
+        int n = 0;
+        for (int i = 0; i < intervals.length; i += 2) {
+            final long start = Math.max(intervals[i], from);
+            final long end = Math.min(intervals[i + 1], to);
+            if (start <= end) {
+                clipped[n++] = start;
+                clipped[n++] = end;
+            }
+        }
+        return Arrays.copyOf(clipped, n);
+    }
+
+    //------------------------------ 轨迹网格索引 ------------------------------
+
+    /**
+     * 两个相邻打点之间的一段轨迹.
+     */
+    private static final class Leg {
+        final SampleStore.Device device;
+        final long t0;
+        final long t1;
+        final float x0;
+        final float y0;
+        final float x1;
+        final float y1;
+
+        Leg(SampleStore.Device device, long t0, float x0, float y0, long t1, float x1, float y1) {
+            this.device = device;
+            this.t0 = t0;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.t1 = t1;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        /**
+         * @return 线段到点(x, y)的最短距离的平方
+         */
+        float distanceSquared(float x, float y) {
+            final float dx = x1 - x0;
+            final float dy = y1 - y0;
+            final float lengthSquared = dx * dx + dy * dy;
+            float r = lengthSquared > 0 ? ((x - x0) * dx + (y - y0) * dy) / lengthSquared : 0;
+            r = Math.max(0, Math.min(1, r));
+            final float ex = x0 + r * dx - x;
+            final float ey = y0 + r * dy - y;
+            return ex * ex + ey * ey;
+        }
+    }
+
+    /**
+     * 一个分区中已解析为坐标的打点，以及由它们连成、已加入网格的轨迹段.
+     */
+    private static final class PartitionMarks {
+        final List<SampleStore.SegmentInfo> segments;
+        final int memRecords;
+        final long[] times;
+        final float[] xs;
+        final float[] ys;
+        final List<Leg> legs = new ArrayList<>();
+        final List<Long> cells = new ArrayList<>();
+
+        PartitionMarks(List<SampleStore.SegmentInfo> segments, int memRecords, long[] times, float[] xs, float[] ys) {
+            this.segments = segments;
+            this.memRecords = memRecords;
+            this.times = times;
+            this.xs = xs;
+            this.ys = ys;
+        }
+    }
+
+    /**
+     * 重新索引段或内存表中记录有变化的分区.
+     * 跨小时的轨迹段（上一分区最后一个打点到本分区第一个打点）属于本分区.
+     */
+    private synchronized void refreshIndex() throws IOException {
+        for (SampleStore.Device device : store.getDevices()) {
+            PartitionMarks previous = null;
+            for (SampleStore.Partition partition : device.partitions.values()) {
+                final List<SampleStore.SegmentInfo> segments;
+                final List<SegmentFile.Record> memRecords = new ArrayList<>();
+                synchronized (partition) {
+                    segments = partition.segments;
+                    if (partition.flushing != null) {
+                        memRecords.addAll(partition.flushing.records);
+                    }
+                    memRecords.addAll(partition.active.records);
+                }
+                PartitionMarks marks = indexedMarks.get(partition);
+                if (marks == null || marks.segments != segments || marks.memRecords != memRecords.size()) {
+                    if (marks != null) {
+                        unindex(marks);
+                    }
+                    marks = readMarks(segments, memRecords);
+                    index(device, marks, previous);
+                    indexedMarks.put(partition, marks);
+                }
+                if (marks.times.length > 0) {
+                    previous = marks;
+                }
+            }
+        }
+    }
+
+    private static PartitionMarks readMarks(List<SampleStore.SegmentInfo> segments,
+                                            List<SegmentFile.Record> memRecords) throws IOException {
+        final List<SegmentFile.Record> records = new ArrayList<>(memRecords);
+        for (SampleStore.SegmentInfo segment : segments) {
+            try (SegmentFile.Reader reader = new SegmentFile.Reader(segment.file)) {
+                records.addAll(reader.readRecords());
+            } catch (FileNotFoundException e) {
+                //已被压缩删除，下次查询时按新的段列表重建
+            }
+        }
+        long[] times = new long[records.size()];
+        float[] xs = new float[records.size()];
+        float[] ys = new float[records.size()];
+        int n = 0;
+        for (SegmentFile.Record record : records) {
+            final String line = record.toString();
+            if (!line.startsWith(MarkPointTrack.MARK_RECORD_TAG + ',')) {
+                continue;
+            }
+            final String[] fields = line.split(",", -1);
+            if (fields.length <= MARK_Y_FIELD || fields[MARK_X_FIELD].isEmpty()) {
+                continue;
+            }
+            try {
+                times[n] = Long.parseLong(fields[MARK_TIME_FIELD]);
+                xs[n] = Float.parseFloat(fields[MARK_X_FIELD]);
+                ys[n] = Float.parseFloat(fields[MARK_Y_FIELD]);
+                n++;
+            } catch (NumberFormatException e) {
+                //格式错误的打点不参与轨迹
+            }
+        }
+        final MarkPointTrack track = MarkPointTrack.sorted(
+                Arrays.copyOf(times, n), Arrays.copyOf(xs, n), Arrays.copyOf(ys, n));
+        times = new long[n];
+        xs = new float[n];
+        ys = new float[n];
+        for (int i = 0; i < n; i++) {
+            times[i] = track.getTime(i);
+            xs[i] = track.getX(i);
+            ys[i] = track.getY(i);
+        }
+        return new PartitionMarks(segments, memRecords.size(), times, xs, ys);
+    }
+
+    @GuardedBy("this")
+    private void index(SampleStore.Device device, PartitionMarks marks, PartitionMarks previous) {
+        final int n = marks.times.length;
+        if (n > 0 && previous != null) {
+            final int last = previous.times.length - 1;
+            addLeg(marks, new Leg(device, previous.times[last], previous.xs[last], previous.ys[last],
+                    marks.times[0], marks.xs[0], marks.ys[0]));
+        }
+        for (int i = 1; i < n; i++) {
+            addLeg(marks, new Leg(device, marks.times[i - 1], marks.xs[i - 1], marks.ys[i - 1],
+                    marks.times[i], marks.xs[i], marks.ys[i]));
+        }
+    }
+
+    @GuardedBy("this")
+    private void addLeg(PartitionMarks marks, Leg leg) {
+        marks.legs.add(leg);
+        final int cx0 = cell(Math.min(leg.x0, leg.x1));
+        final int cx1 = cell(Math.max(leg.x0, leg.x1));
+        final int cy0 = cell(Math.min(leg.y0, leg.y1));
+        final int cy1 = cell(Math.max(leg.y0, leg.y1));
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                final Long key = cellKey(cx, cy);
+                grid.computeIfAbsent(key, k -> new ArrayList<>()).add(leg);
+                marks.cells.add(key);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void unindex(PartitionMarks marks) {
+        for (Long key : marks.cells) {
+            final List<Leg> legs = grid.get(key);
+            if (legs != null) {
+                legs.removeAll(marks.legs);
+                if (legs.isEmpty()) {
+                    grid.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 设备轨迹经过查询窗口的时间段，已按时间排序合并并裁剪到查询的时间范围
+     */
+    private synchronized long[] spatialIntervals(SampleStore.Device device, Query query) {
+        final List<long[]> hits = new ArrayList<>();
+        final float r = query.radius;
+        final int cx0 = cell(query.centerX - r);
+        final int cx1 = cell(query.centerX + r);
+        final int cy0 = cell(query.centerY - r);
+        final int cy1 = cell(query.centerY + r);
+        for (int cx = cx0; cx <= cx1; cx++) {
+            for (int cy = cy0; cy <= cy1; cy++) {
+                final List<Leg> legs = grid.get(cellKey(cx, cy));
+                if (legs == null) {
+                    continue;
+                }
+                for (Leg leg : legs) {
+                    if (leg.device == device && leg.t1 >= query.fromMillis && leg.t0 <= query.toMillis
+                            && leg.distanceSquared(query.centerX, query.centerY) <= r * r) {
+                        hits.add(new long[]{Math.max(leg.t0, query.fromMillis), Math.min(leg.t1, query.toMillis)});
+                    }
+                }
+            }
+        }
+        Collections.sort(hits, (a, b) -> Long.compare(a[0], b[0]));
+        final long[] merged = new long[hits.size() * 2];
+        int n = 0;
+        for (long[] hit : hits) {
+            if (n > 0 && hit[0] <= merged[n - 1]) {
+                merged[n - 1] = Math.max(merged[n - 1], hit[1]);
+            } else {
+                merged[n++] = hit[0];
+                merged[n++] = hit[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+
+    /**
+     * @return 设备在[from, to]前后各一个分区范围内的打点轨迹，用于插值样本位置
+     */
+    private synchronized MarkPointTrack deviceTrack(SampleStore.Device device, long from, long to) {
+        long[] times = new long[0];
+        float[] xs = new float[0];
+        float[] ys = new float[0];
+        for (SampleStore.Partition partition : store.getPartitions(device,
+                from - SampleStore.PARTITION_MILLIS, to + SampleStore.PARTITION_MILLIS)) {
+            final PartitionMarks marks = indexedMarks.get(partition);
+            if (marks == null || marks.times.length == 0) {
+                continue;
+            }
+            final int n = times.length;
+            times = Arrays.copyOf(times, n + marks.times.length);
+            xs = Arrays.copyOf(xs, times.length);
+            ys = Arrays.copyOf(ys, times.length);
+            System.arraycopy(marks.times, 0, times, n, marks.times.length);
+            System.arraycopy(marks.xs, 0, xs, n, marks.xs.length);
+            System.arraycopy(marks.ys, 0, ys, n, marks.ys.length);
+        }
+        return MarkPointTrack.sorted(times, xs, ys);
+    }
+
+    private int cell(float v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    private static Long cellKey(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 在已停止的样本库上做一次查询，结果以csv输出到标准输出：手机号,时间戳,x,y,13列.
+     * 样本库只读打开，不重放日志、不写段；服务器正在运行时拒绝查询.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SampleQueryEngine <storeDir> <phone|*> <fromMillis> <toMillis> [x y radius]");
+            System.exit(2);
+        }
+        final Query query = new Query().timeRange(Long.parseLong(args[2]), Long.parseLong(args[3]));
+        if (!args[1].equals("*")) {
+            query.device(args[1]);
+        }
+        if (args.length >= 7) {
+            query.near(Float.parseFloat(args[4]), Float.parseFloat(args[5]), Float.parseFloat(args[6]));
+        }
+        final long start = System.nanoTime();
+        long rows = 0;
+        final PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+        try (SampleStore store = SampleStore.openReadOnly(new File(args[0]));
+             Cursor cursor = new SampleQueryEngine(store, 2.0f).open(query)) {
+            final StringBuilder sb = new StringBuilder(200);
+            while (cursor.next()) {
+                sb.setLength(0);
+                sb.append(cursor.getPhone()).append(',').append(cursor.getTimeMillis())
+                        .append(',').append(cursor.getX()).append(',').append(cursor.getY());
+                for (int c = 0; c < SensorFrame.SIZE; c++) {
+                    sb.append(',').append(cursor.get(c));
+                }
+                out.println(sb);
+                rows++;
+            }
+        }
+        out.flush();
+        System.err.println(rows + " rows in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,978 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 服务器侧的样本库：按设备（手机号）与小时分区，每个分区是若干按时间排序的列式{@link SegmentFile}.
+ * <pre>
+ *     根目录/devices.txt                     设备字典：id,手机号
+ *     根目录/wal/wal-LSN.log                 预写日志
+ *     根目录/手机号/yyyyMMddHH/seg-LSN-代.mmsg 分区的段文件（UTC小时）
+ * </pre>
+ * 写入先追加到{@link WriteAheadLog}再进入分区的内存表，等待日志组提交后即可确认；
+ * 内存表满、小时结束或设备空闲后由刷写线程排序写成段文件，再以检查点删除不再需要的日志文件.
+ * 压缩线程在后台把一个分区的多个段归并成一个，查询一个设备一天最多只需打开24个段.
+ * 启动时扫描已有的段，并重放日志中尚未写入段的数据.
+ * 以读写方式打开时独占根目录下的锁文件，同一个样本库只能有一个写者；
+ * {@link #openReadOnly(File)}只读取已有的段，不重放日志、不启动后台线程，与写者互斥，供离线查询工具使用.
+ * <p>
+ * 同一设备的写入由设备的写锁串行化（重连时新旧两条连接可能同时写入），追加日志与进入内存表在同一把锁内完成，
+ * 保证分区内LSN单调，重放时可以按段的maxLsn去重.
+ */
+@ThreadSafe
+final class SampleStore implements Closeable {
+    /**
+     * 分区的时间跨度：1小时.
+     */
+    static final long PARTITION_MILLIS = 3_600_000L;
+
+    static final String DEVICES_FILE = "devices.txt";
+
+    private static final String LOCK_FILE = "LOCK";
+
+    private static final String WAL_DIR = "wal";
+
+    private static final String SEGMENT_PREFIX = "seg-";
+
+    private static final DateTimeFormatter HOUR_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMddHH", Locale.US).withZone(ZoneOffset.UTC);
+
+    /**
+     * 内存表行数达到该值时写成段：200Hz下约22分钟.
+     */
+    private static final int FLUSH_ROWS = 1 << 18;
+
+    /**
+     * 所有内存表的总行数上限，超过时优先刷写最大的内存表.
+     */
+    private static final long MAX_MEMTABLE_ROWS = 1L << 23;
+
+    /**
+     * 内存表空闲这么久（ms）后写成段，通常是会话已经结束.
+     */
+    private static final long IDLE_FLUSH_MS = 60_000;
+
+    /**
+     * 小时结束后再等这么久（ms）收迟到的数据，然后写段并允许归并成一个段.
+     */
+    private static final long HOUR_CLOSE_GRACE_MS = 120_000;
+
+    /**
+     * 分区中的段达到这个数目时归并.
+     */
+    private static final int COMPACT_SEGMENTS = 4;
+
+    private static final long MAINTENANCE_PERIOD_MS = 1000;
+
+    /**
+     * 一台设备.
+     */
+    static final class Device {
+        final int id;
+        final String phone;
+        final File dir;
+
+        /**
+         * 设备的分区索引：小时 -> 分区，按时间范围查询一台设备时不必遍历全部分区.
+         */
+        final ConcurrentSkipListMap<Long, Partition> partitions = new ConcurrentSkipListMap<>();
+
+        /**
+         * 串行化该设备的写入.
+         */
+        final Object writeLock = new Object();
+
+        Device(int id, String phone, File dir) {
+            this.id = id;
+            this.phone = phone;
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * 一个已写入的段的元数据.
+     */
+    static final class SegmentInfo {
+        final File file;
+        final long maxLsn;
+        final int rowCount;
+        final long minTime;
+        final long maxTime;
+        final int level;
+
+        SegmentInfo(File file, long maxLsn, int rowCount, long minTime, long maxTime, int level) {
+            this.file = file;
+            this.maxLsn = maxLsn;
+            this.rowCount = rowCount;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+            this.level = level;
+        }
+    }
+
+    /**
+     * 一个设备一个小时的数据.
+     */
+    static final class Partition {
+        final Device device;
+        final long hourStart;
+        final File dir;
+
+        /**
+         * 已写入的段，不可变列表，整体替换.
+         */
+        volatile List<SegmentInfo> segments = Collections.emptyList();
+
+        /**
+         * 段中数据的最大LSN，重放日志时跳过不大于它的记录.
+         */
+        volatile long flushedLsn = 0;
+
+        @GuardedBy("this")
+        MemTable active = new MemTable();
+
+        /**
+         * 正在写成段的内存表，写完前查询仍从这里读取.
+         */
+        @GuardedBy("this")
+        MemTable flushing = null;
+
+        /**
+         * 刷写与压缩互斥，由维护线程持有.
+         */
+        final Object maintenanceLock = new Object();
+
+        Partition(Device device, long hourStart, File dir) {
+            this.device = device;
+            this.hourStart = hourStart;
+            this.dir = dir;
+        }
+
+        long getHourEnd() {
+            return hourStart + PARTITION_MILLIS;
+        }
+    }
+
+    /**
+     * 一个分区尚未写成段的数据，行按到达顺序存放.
+     */
+    static final class MemTable {
+        long[] times = new long[1024];
+        float[] frames = new float[1024 * SensorFrame.SIZE];
+        int rows = 0;
+        final List<SegmentFile.Record> records = new ArrayList<>();
+        long minLsn = Long.MAX_VALUE;
+        long maxLsn = 0;
+        long lastWriteMillis = 0;
+
+        void addRow(long timeMillis, float[] src, int offset) {
+            if (rows == times.length) {
+                times = Arrays.copyOf(times, rows * 2);
+                frames = Arrays.copyOf(frames, rows * 2 * SensorFrame.SIZE);
+            }
+            times[rows] = timeMillis;
+            System.arraycopy(src, offset, frames, rows * SensorFrame.SIZE, SensorFrame.SIZE);
+            rows++;
+        }
+
+        void touch(long lsn) {
+            minLsn = Math.min(minLsn, lsn);
+            maxLsn = Math.max(maxLsn, lsn);
+            lastWriteMillis = System.currentTimeMillis();
+        }
+
+        boolean isEmpty() {
+            return rows == 0 && records.isEmpty();
+        }
+    }
+
+    /**
+     * 一个设备的一批待写入数据，同时编码成预写日志记录.由连接复用，{@link #write}后清空.
+     */
+    static final class Batch {
+        final int deviceId;
+        final long[] times;
+        final float[] frames;
+        int rows = 0;
+        final List<SegmentFile.Record> records = new ArrayList<>();
+        private ByteBuffer wal;
+
+        Batch(int deviceId, int capacity) {
+            this.deviceId = deviceId;
+            this.times = new long[capacity];
+            this.frames = new float[capacity * SensorFrame.SIZE];
+            this.wal = ByteBuffer.allocate(capacity * WriteAheadLog.SAMPLE_BYTES);
+        }
+
+        boolean isFull() {
+            return rows == times.length;
+        }
+
+        boolean isEmpty() {
+            return rows == 0 && records.isEmpty();
+        }
+
+        /**
+         * 加入一个样本，调用前需保证未满.
+         */
+        void addSample(long timeMillis, float[] frame, int offset) {
+            times[rows] = timeMillis;
+            System.arraycopy(frame, offset, frames, rows * SensorFrame.SIZE, SensorFrame.SIZE);
+            WriteAheadLog.putSample(wal, deviceId, timeMillis, frame, offset);
+            rows++;
+        }
+
+        /**
+         * 加入一条带内记录（不含换行）.
+         */
+        void addRecord(long timeMillis, byte[] src, int offset, int length) {
+            final int n = Math.min(length, 0xFFFF);
+            //始终为剩余的样本留出空间
+            final int needed = WriteAheadLog.RECORD_OVERHEAD + n + (times.length - rows) * WriteAheadLog.SAMPLE_BYTES;
+            if (wal.remaining() < needed) {
+                final ByteBuffer grown = ByteBuffer.allocate(wal.position() + needed);
+                wal.flip();
+                grown.put(wal);
+                wal = grown;
+            }
+            WriteAheadLog.putRecord(wal, deviceId, timeMillis, src, offset, n);
+            records.add(new SegmentFile.Record(timeMillis, Arrays.copyOfRange(src, offset, offset + n)));
+        }
+
+        void clear() {
+            rows = 0;
+            records.clear();
+            wal.clear();
+        }
+    }
+
+    private final File root;
+
+    private final boolean readOnly;
+
+    /**
+     * 锁文件的通道，读写方式打开时持有独占锁，只读方式打开时持有共享锁.
+     */
+    private final FileChannel lockChannel;
+
+    /**
+     * 只读方式打开时为null.
+     */
+    private final WriteAheadLog wal;
+
+    private final Object deviceLock = new Object();
+
+    private final Map<String, Device> devicesByPhone = new ConcurrentHashMap<>();
+
+    @GuardedBy("deviceLock")
+    private final List<Device> devicesById = new ArrayList<>();
+
+    /**
+     * (设备id, 小时) -> 分区.
+     */
+    private final ConcurrentHashMap<Long, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * 写入持有读锁，计算检查点持有写锁：避免一批数据已进入日志、尚未进入内存表时其日志文件被删除.
+     */
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(daemon("store-flush"));
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(daemon("store-compact"));
+
+    /**
+     * 打开（或创建）root下的样本库：读取设备字典与段元数据，重放日志，然后启动刷写与压缩线程.
+     *
+     * @throws IOException 样本库已被打开（如服务器正在运行）时
+     */
+    SampleStore(File root) throws IOException {
+        this(root, false);
+    }
+
+    private SampleStore(File root, boolean readOnly) throws IOException {
+        if (readOnly ? !root.isDirectory() : !root.isDirectory() && !root.mkdirs()) {
+            throw new IOException((readOnly ? "No sample store at " : "Cannot create ") + root);
+        }
+        this.root = root;
+        this.readOnly = readOnly;
+        lockChannel = lock(root, readOnly);
+        try {
+            loadDevices();
+            wal = readOnly ? null : replayLog();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        if (!readOnly) {
+            flusher.scheduleWithFixedDelay(this::flushDue, MAINTENANCE_PERIOD_MS, MAINTENANCE_PERIOD_MS, TimeUnit.MILLISECONDS);
+            compactor.scheduleWithFixedDelay(this::compactDue, MAINTENANCE_PERIOD_MS, MAINTENANCE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 只读打开已停止的样本库：只能看到已写成段的数据，服务器异常退出后还在日志中的数据要等下次读写方式打开时重放.
+     *
+     * @throws IOException 样本库不存在或正在被写入时
+     */
+    static SampleStore openReadOnly(File root) throws IOException {
+        return new SampleStore(root, true);
+    }
+
+    /**
+     * 锁住样本库：写者独占，只读者共享.
+     *
+     * @return 持有锁的通道，关闭时释放锁
+     */
+    private static FileChannel lock(File root, boolean shared) throws IOException {
+        final FileChannel channel = FileChannel.open(new File(root, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock(0L, Long.MAX_VALUE, shared);
+        } catch (IOException | OverlappingFileLockException e) {
+            //同一进程中已经打开
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException(root + " is in use" + (shared ? " by a running server" : ""));
+        }
+        return channel;
+    }
+
+    /**
+     * 重放日志中尚未写入段的数据，然后打开日志继续追加.
+     */
+    private WriteAheadLog replayLog() throws IOException {
+        final File walDir = new File(root, WAL_DIR);
+        final long endLsn = WriteAheadLog.replay(walDir, new WriteAheadLog.RecordVisitor() {
+            @Override
+            public void onSample(long lsn, int deviceId, long timeMillis, float[] frame) {
+                final Partition partition = replayPartition(lsn, deviceId, timeMillis);
+                if (partition != null) {
+                    synchronized (partition) {
+                        partition.active.addRow(timeMillis, frame, 0);
+                        partition.active.touch(lsn);
+                    }
+                }
+            }
+
+            @Override
+            public void onRecord(long lsn, int deviceId, long timeMillis, byte[] record) {
+                final Partition partition = replayPartition(lsn, deviceId, timeMillis);
+                if (partition != null) {
+                    synchronized (partition) {
+                        partition.active.records.add(new SegmentFile.Record(timeMillis, record));
+                        partition.active.touch(lsn);
+                    }
+                }
+            }
+        });
+        return new WriteAheadLog(walDir, endLsn);
+    }
+
+    /**
+     * @return 手机号对应的设备，第一次出现时分配id并写入设备字典
+     */
+    Device device(String phone) throws IOException {
+        final Device known = devicesByPhone.get(phone);
+        if (known != null) {
+            return known;
+        }
+        synchronized (deviceLock) {
+            final Device existing = devicesByPhone.get(phone);
+            if (existing != null) {
+                return existing;
+            }
+            checkWritable();
+            final Device device = newDevice(devicesById.size(), phone);
+            try (FileOutputStream out = new FileOutputStream(new File(root, DEVICES_FILE), true)) {
+                out.write((device.id + "," + phone + "\n").getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            devicesById.add(device);
+            devicesByPhone.put(phone, device);
+            return device;
+        }
+    }
+
+    /**
+     * @return 已知的设备，没有时为null
+     */
+    Device findDevice(String phone) {
+        return devicesByPhone.get(phone);
+    }
+
+    /**
+     * 写入一个设备的一批数据并清空batch.样本不必有序，也不必在同一小时内.
+     * 同一设备的并发写入按获得设备写锁的顺序串行执行.
+     *
+     * @return 这批数据的LSN，传给{@link #sync(long)}等待它落盘
+     */
+    long write(Batch batch) throws IOException {
+        checkWritable();
+        if (batch.isEmpty()) {
+            return wal.getAppendedLsn();
+        }
+        final Device device = deviceById(batch.deviceId);
+        checkpointLock.readLock().lock();
+        try {
+            synchronized (device.writeLock) {
+                return append(device, batch);
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+            batch.clear();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException(root + " is opened read-only");
+        }
+    }
+
+    /**
+     * 把batch追加到日志并放入分区的内存表，调用者持有设备写锁与检查点读锁.
+     */
+    private long append(Device device, Batch batch) throws IOException {
+        batch.wal.flip();
+        final long lsn = wal.append(batch.wal);
+        int from = 0;
+        while (from < batch.rows) {
+            final long hourStart = hourStart(batch.times[from]);
+            int to = from + 1;
+            while (to < batch.rows && hourStart(batch.times[to]) == hourStart) {
+                to++;
+            }
+            final Partition partition = partition(device, hourStart);
+            synchronized (partition) {
+                for (int i = from; i < to; i++) {
+                    partition.active.addRow(batch.times[i], batch.frames, i * SensorFrame.SIZE);
+                }
+                partition.active.touch(lsn);
+            }
+            from = to;
+        }
+        for (SegmentFile.Record record : batch.records) {
+            final Partition partition = partition(device, hourStart(record.timeMillis));
+            synchronized (partition) {
+                partition.active.records.add(record);
+                partition.active.touch(lsn);
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * @return lsn之前的数据全部落盘后完成的future
+     */
+    CompletableFuture<Void> sync(long lsn) {
+        return wal.sync(lsn);
+    }
+
+    /**
+     * @return 所有设备，按id排序
+     */
+    List<Device> getDevices() {
+        synchronized (deviceLock) {
+            return new ArrayList<>(devicesById);
+        }
+    }
+
+    /**
+     * @return 当前所有分区，顺序不定
+     */
+    List<Partition> getPartitions() {
+        return new ArrayList<>(partitions.values());
+    }
+
+    /**
+     * @return 设备在[fromMillis, toMillis]内有数据的分区，按小时排序
+     */
+    List<Partition> getPartitions(Device device, long fromMillis, long toMillis) {
+        if (fromMillis > toMillis) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(device.partitions.subMap(hourStart(fromMillis), true, hourStart(toMillis), true).values());
+    }
+
+    /**
+     * 写出所有内存表，停止后台线程并关闭日志，最后释放锁.
+     */
+    @Override
+    public void close() throws IOException {
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            if (readOnly) {
+                return;
+            }
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Partition partition : partitions.values()) {
+                flush(partition);
+            }
+            checkpoint();
+            wal.close();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    static long hourStart(long timeMillis) {
+        return Math.floorDiv(timeMillis, PARTITION_MILLIS) * PARTITION_MILLIS;
+    }
+
+    /**
+     * 刷写线程：写出满的、空闲的、小时已结束的内存表；总量超限时再写出最大的，然后做检查点.
+     */
+    private void flushDue() {
+        try {
+            final long now = System.currentTimeMillis();
+            long totalRows = 0;
+            Partition largest = null;
+            int largestRows = 0;
+            for (Partition partition : partitions.values()) {
+                final int rows;
+                final long lastWrite;
+                synchronized (partition) {
+                    if (partition.active.isEmpty()) {
+                        continue;
+                    }
+                    rows = partition.active.rows;
+                    lastWrite = partition.active.lastWriteMillis;
+                }
+                if (rows >= FLUSH_ROWS || now - lastWrite >= IDLE_FLUSH_MS
+                        || now >= partition.getHourEnd() + HOUR_CLOSE_GRACE_MS) {
+                    flush(partition);
+                } else {
+                    totalRows += rows;
+                    if (rows > largestRows) {
+                        largestRows = rows;
+                        largest = partition;
+                    }
+                }
+            }
+            if (totalRows > MAX_MEMTABLE_ROWS && largest != null) {
+                flush(largest);
+            }
+            checkpoint();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Store: flush failed, " + e);
+        }
+    }
+
+    /**
+     * 将分区的内存表排序后写成一个段.
+     */
+    private void flush(Partition partition) throws IOException {
+        synchronized (partition.maintenanceLock) {
+            final MemTable table;
+            synchronized (partition) {
+                //上次写段失败的内存表仍在flushing中，先重试它
+                if (partition.flushing == null) {
+                    if (partition.active.isEmpty()) {
+                        return;
+                    }
+                    partition.flushing = partition.active;
+                    partition.active = new MemTable();
+                }
+                table = partition.flushing;
+            }
+            final SegmentInfo segment = writeSegment(partition, table);
+            synchronized (partition) {
+                final List<SegmentInfo> segments = new ArrayList<>(partition.segments);
+                segments.add(segment);
+                partition.segments = Collections.unmodifiableList(segments);
+                partition.flushedLsn = Math.max(partition.flushedLsn, segment.maxLsn);
+                partition.flushing = null;
+            }
+        }
+    }
+
+    private SegmentInfo writeSegment(Partition partition, MemTable table) throws IOException {
+        if (!partition.dir.isDirectory() && !partition.dir.mkdirs()) {
+            throw new IOException("Cannot create " + partition.dir);
+        }
+        final int[] order = sortedOrder(table.times, table.rows, partition.hourStart);
+        final File file = segmentFile(partition, table.maxLsn, 0);
+        try (SegmentFile.Writer writer = new SegmentFile.Writer(file, table.maxLsn)) {
+            for (int i : order) {
+                writer.addRow(table.times[i], table.frames, i * SensorFrame.SIZE);
+            }
+            for (SegmentFile.Record record : table.records) {
+                writer.addRecord(record);
+            }
+            writer.finish();
+        }
+        final long minTime = table.rows > 0 ? table.times[order[0]] : Long.MAX_VALUE;
+        final long maxTime = table.rows > 0 ? table.times[order[table.rows - 1]] : Long.MIN_VALUE;
+        return new SegmentInfo(file, table.maxLsn, table.rows, minTime, maxTime, 0);
+    }
+
+    /**
+     * 按时间排序的行下标.行通常已经有序，直接返回；否则把（小时内的时间偏移，下标）打包成long排序，不装箱.
+     */
+    static int[] sortedOrder(long[] times, int rows, long hourStart) {
+        final int[] order = new int[rows];
+        boolean sorted = true;
+        for (int i = 0; i < rows; i++) {
+            order[i] = i;
+            if (i > 0 && times[i] < times[i - 1]) {
+                sorted = false;
+            }
+        }
+        if (sorted) {
+            return order;
+        }
+        final long[] keys = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            keys[i] = ((times[i] - hourStart) << 32) | i;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < rows; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * 删除所有数据都已写入段的日志文件.
+     */
+    private void checkpoint() {
+        checkpointLock.writeLock().lock();
+        try {
+            long minLsn = Long.MAX_VALUE;
+            for (Partition partition : partitions.values()) {
+                synchronized (partition) {
+                    if (!partition.active.isEmpty()) {
+                        minLsn = Math.min(minLsn, partition.active.minLsn);
+                    }
+                    if (partition.flushing != null) {
+                        minLsn = Math.min(minLsn, partition.flushing.minLsn);
+                    }
+                }
+            }
+            //LSN是记录结束的位置，日志文件从minLsn所在记录的开始处起都必须保留
+            wal.checkpoint(minLsn == Long.MAX_VALUE ? wal.getAppendedLsn() : minLsn - 1);
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 压缩线程：段数达到阈值、或小时结束后仍有多个段的分区，把全部段归并成一个.
+     */
+    private void compactDue() {
+        final long now = System.currentTimeMillis();
+        for (Partition partition : partitions.values()) {
+            final int count = partition.segments.size();
+            final boolean closedHour = now >= partition.getHourEnd() + HOUR_CLOSE_GRACE_MS;
+            if (count >= COMPACT_SEGMENTS || (closedHour && count > 1)) {
+                try {
+                    compact(partition);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Store: compaction of " + partition.dir + " failed, " + e);
+                }
+            }
+        }
+    }
+
+    private void compact(Partition partition) throws IOException {
+        synchronized (partition.maintenanceLock) {
+            final List<SegmentInfo> inputs = partition.segments;
+            if (inputs.size() < 2) {
+                return;
+            }
+            long maxLsn = 0;
+            int level = 0;
+            for (SegmentInfo input : inputs) {
+                maxLsn = Math.max(maxLsn, input.maxLsn);
+                level = Math.max(level, input.level + 1);
+            }
+            final File file = segmentFile(partition, maxLsn, level);
+            final List<SegmentFile.Reader> readers = new ArrayList<>(inputs.size());
+            long minTime = Long.MAX_VALUE;
+            long maxTime = Long.MIN_VALUE;
+            int rows;
+            try {
+                for (SegmentInfo input : inputs) {
+                    readers.add(new SegmentFile.Reader(input.file));
+                }
+                try (SegmentFile.Writer writer = new SegmentFile.Writer(file, maxLsn)) {
+                    mergeRows(readers, writer);
+                    for (SegmentFile.Reader reader : readers) {
+                        minTime = Math.min(minTime, reader.getMinTime());
+                        maxTime = Math.max(maxTime, reader.getMaxTime());
+                        for (SegmentFile.Record record : reader.readRecords()) {
+                            writer.addRecord(record);
+                        }
+                    }
+                    rows = writer.getRowCount();
+                    writer.finish();
+                }
+            } finally {
+                for (SegmentFile.Reader reader : readers) {
+                    reader.close();
+                }
+            }
+            final SegmentInfo output = new SegmentInfo(file, maxLsn, rows, minTime, maxTime, level);
+            synchronized (partition) {
+                final List<SegmentInfo> segments = new ArrayList<>(partition.segments);
+                segments.removeAll(inputs);
+                segments.add(0, output);
+                partition.segments = Collections.unmodifiableList(segments);
+            }
+            for (SegmentInfo input : inputs) {
+                //已打开的读取者在类Unix系统上仍可读完被删除的文件
+                if (!input.file.delete()) {
+                    System.err.println("Store: cannot delete " + input.file);
+                }
+            }
+        }
+    }
+
+    /**
+     * 多路归并各段（各自已按时间排序）的行.
+     */
+    private static void mergeRows(List<SegmentFile.Reader> readers, SegmentFile.Writer writer) throws IOException {
+        final SegmentFile.RowCursor[] cursors = new SegmentFile.RowCursor[readers.size()];
+        int live = 0;
+        for (SegmentFile.Reader reader : readers) {
+            final SegmentFile.RowCursor cursor = new SegmentFile.RowCursor(reader);
+            if (cursor.next()) {
+                cursors[live++] = cursor;
+            }
+        }
+        final float[] frame = new float[SensorFrame.SIZE];
+        while (live > 0) {
+            int min = 0;
+            for (int i = 1; i < live; i++) {
+                if (cursors[i].getTimeMillis() < cursors[min].getTimeMillis()) {
+                    min = i;
+                }
+            }
+            cursors[min].copyFrame(frame, 0);
+            writer.addRow(cursors[min].getTimeMillis(), frame, 0);
+            if (!cursors[min].next()) {
+                cursors[min] = cursors[--live];
+            }
+        }
+    }
+
+    private Partition partition(Device device, long hourStart) {
+        final Long key = partitionKey(device.id, hourStart);
+        final Partition partition = partitions.get(key);
+        if (partition != null) {
+            return partition;
+        }
+        final Partition created = partitions.computeIfAbsent(key, k -> new Partition(device, hourStart,
+                new File(device.dir, HOUR_FORMAT.format(Instant.ofEpochMilli(hourStart)))));
+        device.partitions.putIfAbsent(hourStart, created);
+        return created;
+    }
+
+    /**
+     * 重放时定位记录所在的分区.
+     *
+     * @return null 如果设备未知或记录已经在段中
+     */
+    private Partition replayPartition(long lsn, int deviceId, long timeMillis) {
+        final Device device;
+        synchronized (deviceLock) {
+            if (deviceId < 0 || deviceId >= devicesById.size()) {
+                return null;
+            }
+            device = devicesById.get(deviceId);
+        }
+        final Partition partition = partition(device, hourStart(timeMillis));
+        return lsn <= partition.flushedLsn ? null : partition;
+    }
+
+    private Device deviceById(int id) {
+        synchronized (deviceLock) {
+            return devicesById.get(id);
+        }
+    }
+
+    /**
+     * 读取设备字典与各设备目录下已有的段，删除写了一半的临时文件（只读方式打开时只跳过）.
+     */
+    private void loadDevices() throws IOException {
+        final File dictionary = new File(root, DEVICES_FILE);
+        if (!dictionary.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(dictionary), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int comma = line.indexOf(',');
+                if (comma <= 0) {
+                    continue;
+                }
+                final int id = Integer.parseInt(line.substring(0, comma));
+                if (id != devicesById.size()) {
+                    throw new IOException(dictionary + ": unexpected device id " + id);
+                }
+                final Device device = newDevice(id, line.substring(comma + 1));
+                devicesById.add(device);
+                devicesByPhone.put(device.phone, device);
+                loadPartitions(device);
+            }
+        }
+    }
+
+    private void loadPartitions(Device device) throws IOException {
+        final File[] hours = device.dir.listFiles(File::isDirectory);
+        if (hours == null) {
+            return;
+        }
+        for (File hourDir : hours) {
+            final long hourStart;
+            try {
+                hourStart = LocalDateTime.parse(hourDir.getName(), HOUR_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (RuntimeException e) {
+                continue;
+            }
+            final Partition partition = partition(device, hourStart);
+            final List<SegmentInfo> segments = new ArrayList<>();
+            final File[] files = hourDir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.endsWith(".tmp")) {
+                    if (!readOnly && !file.delete()) {
+                        System.err.println("Store: cannot delete " + file);
+                    }
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SegmentFile.FILE_SUFFIX)) {
+                    try (SegmentFile.Reader reader = new SegmentFile.Reader(file)) {
+                        segments.add(new SegmentInfo(file, reader.getMaxLsn(), reader.getRowCount(),
+                                reader.getMinTime(), reader.getMaxTime(), levelOf(name)));
+                        partition.flushedLsn = Math.max(partition.flushedLsn, reader.getMaxLsn());
+                    }
+                }
+            }
+            //压缩中途崩溃时，归并结果与输入段可能同时存在：被更高代的段覆盖的输入段删除
+            removeCompactedInputs(segments, !readOnly);
+            partition.segments = Collections.unmodifiableList(segments);
+        }
+    }
+
+    /**
+     * 去掉maxLsn不大于某个更高代段的段：它的数据已经全部归并进那个段.
+     *
+     * @param delete 是否同时删除段文件
+     */
+    private static void removeCompactedInputs(List<SegmentInfo> segments, boolean delete) {
+        final List<SegmentInfo> obsolete = new ArrayList<>();
+        for (SegmentInfo segment : segments) {
+            for (SegmentInfo other : segments) {
+                if (other.level > segment.level && other.maxLsn >= segment.maxLsn) {
+                    obsolete.add(segment);
+                    break;
+                }
+            }
+        }
+        for (SegmentInfo segment : obsolete) {
+            segments.remove(segment);
+            if (delete && !segment.file.delete()) {
+                System.err.println("Store: cannot delete " + segment.file);
+            }
+        }
+    }
+
+    private Device newDevice(int id, String phone) {
+        return new Device(id, phone, new File(root, directoryName(id, phone)));
+    }
+
+    /**
+     * 设备目录名为手机号；含有文件名中不安全的字符时替换为'_'并加上id避免重名.
+     */
+    private static String directoryName(int id, String phone) {
+        final StringBuilder sb = new StringBuilder(phone.length());
+        boolean replaced = phone.isEmpty() || phone.equals(WAL_DIR);
+        for (int i = 0; i < phone.length(); i++) {
+            final char c = phone.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '+' || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+                replaced = true;
+            }
+        }
+        if (replaced) {
+            sb.append('_').append(id);
+        }
+        return sb.toString();
+    }
+
+    private static File segmentFile(Partition partition, long maxLsn, int level) {
+        return new File(partition.dir, String.format(Locale.US, "%s%016x-%d%s",
+                SEGMENT_PREFIX, maxLsn, level, SegmentFile.FILE_SUFFIX));
+    }
+
+    private static int levelOf(String segmentName) {
+        final int dash = segmentName.lastIndexOf('-');
+        final int dot = segmentName.lastIndexOf('.');
+        try {
+            return Integer.parseInt(segmentName.substring(dash + 1, dot));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static Long partitionKey(int deviceId, long hourStart) {
+        return ((long) deviceId << 32) | (hourStart / PARTITION_MILLIS);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,492 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 样本库中一个分区（设备、小时）的段文件：按时间排序、按块列式存储.
+ * <pre>
+ *     header (32B):  int magic "MMSG", int version, int columns, int blockRows,
+ *                    long maxLsn, int rowCount, int recordCount
+ *     blocks:        每块 long[n] time，然后依次 float[n] column0 .. column(columns-1)
+ *     records:       (long time, short length, byte[length])...  按时间排序的带内记录
+ *     block index:   每块 long offset, int rows, long minTime, long maxTime, float[columns] min, float[columns] max
+ *     trailer (24B): long recordsOffset, long indexOffset, int blockCount, int magic
+ * </pre>
+ * 块索引中的时间与各列的最小最大值让查询不读数据即可跳过整块；列式布局让只需要磁力计的查询只读磁力计的列.
+ * maxLsn是段中数据在预写日志中的最大LSN，重放日志时不大于它的记录已经在段中.
+ */
+final class SegmentFile {
+    static final int MAGIC = 0x4D4D5347;
+
+    static final int VERSION = 1;
+
+    static final String FILE_SUFFIX = ".mmsg";
+
+    /**
+     * 每块的行数：200Hz下约20秒.
+     */
+    static final int BLOCK_ROWS = 4096;
+
+    static final int COLUMNS = SensorFrame.SIZE;
+
+    private static final int HEADER_BYTES = 32;
+
+    private static final int TRAILER_BYTES = 24;
+
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 8 + 8 + 8 * COLUMNS;
+
+    private SegmentFile() {
+    }
+
+    /**
+     * 一条带内记录及其时间.
+     */
+    static final class Record {
+        final long timeMillis;
+        final byte[] bytes;
+
+        Record(long timeMillis, byte[] bytes) {
+            this.timeMillis = timeMillis;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * 按时间顺序逐行写出段文件：先写到".tmp"文件，{@link #finish()}时fsync并改名，崩溃不会留下半个段.
+     */
+    @NotThreadSafe
+    static final class Writer implements Closeable {
+        private final File file;
+
+        private final File tmpFile;
+
+        private final RandomAccessFile raf;
+
+        private final FileChannel channel;
+
+        private final long maxLsn;
+
+        private final long[] times = new long[BLOCK_ROWS];
+
+        private final float[][] columns = new float[COLUMNS][BLOCK_ROWS];
+
+        private int blockFill = 0;
+
+        private int rowCount = 0;
+
+        private long lastTime = Long.MIN_VALUE;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_ROWS * (8 + 4 * COLUMNS));
+
+        private ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES * 64);
+
+        private int blockCount = 0;
+
+        private final List<Record> records = new ArrayList<>();
+
+        private boolean finished = false;
+
+        Writer(File file, long maxLsn) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            this.maxLsn = maxLsn;
+            raf = new RandomAccessFile(tmpFile, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            channel.position(HEADER_BYTES);
+        }
+
+        /**
+         * 写入一行，时间不得早于上一行.
+         */
+        void addRow(long timeMillis, float[] frames, int offset) throws IOException {
+            if (timeMillis < lastTime) {
+                throw new IllegalStateException("Rows must be sorted by time: " + timeMillis + " < " + lastTime);
+            }
+            lastTime = timeMillis;
+            times[blockFill] = timeMillis;
+            for (int c = 0; c < COLUMNS; c++) {
+                columns[c][blockFill] = frames[offset + c];
+            }
+            rowCount++;
+            if (++blockFill == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        void addRecord(Record record) {
+            records.add(record);
+        }
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * 写出块索引与文件尾，fsync后改名为正式的段文件.
+         */
+        void finish() throws IOException {
+            if (blockFill > 0) {
+                writeBlock();
+            }
+            final long recordsOffset = channel.position();
+            Collections.sort(records, (a, b) -> Long.compare(a.timeMillis, b.timeMillis));
+            for (Record record : records) {
+                final ByteBuffer entry = ByteBuffer.allocate(8 + 2 + record.bytes.length);
+                entry.putLong(record.timeMillis).putShort((short) record.bytes.length).put(record.bytes);
+                entry.flip();
+                writeFully(entry);
+            }
+            final long indexOffset = channel.position();
+            indexBuffer.flip();
+            writeFully(indexBuffer);
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            trailer.putLong(recordsOffset).putLong(indexOffset).putInt(blockCount).putInt(MAGIC);
+            trailer.flip();
+            writeFully(trailer);
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(COLUMNS).putInt(BLOCK_ROWS)
+                    .putLong(maxLsn).putInt(rowCount).putInt(records.size());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            raf.close();
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile + " to " + file);
+            }
+            finished = true;
+        }
+
+        /**
+         * 未finish时关闭会删除临时文件.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                raf.close();
+                if (!tmpFile.delete()) {
+                    System.err.println("Segment: cannot delete " + tmpFile);
+                }
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            final int n = blockFill;
+            final long offset = channel.position();
+            buffer.clear();
+            for (int i = 0; i < n; i++) {
+                buffer.putLong(times[i]);
+            }
+            if (indexBuffer.remaining() < INDEX_ENTRY_BYTES) {
+                final ByteBuffer grown = ByteBuffer.allocate(indexBuffer.capacity() * 2);
+                indexBuffer.flip();
+                grown.put(indexBuffer);
+                indexBuffer = grown;
+            }
+            indexBuffer.putLong(offset).putInt(n).putLong(times[0]).putLong(times[n - 1]);
+            final int minMaxPosition = indexBuffer.position();
+            indexBuffer.position(minMaxPosition + 8 * COLUMNS);
+            for (int c = 0; c < COLUMNS; c++) {
+                final float[] column = columns[c];
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (int i = 0; i < n; i++) {
+                    final float v = column[i];
+                    buffer.putFloat(v);
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                }
+                indexBuffer.putFloat(minMaxPosition + 4 * c, min);
+                indexBuffer.putFloat(minMaxPosition + 4 * (COLUMNS + c), max);
+            }
+            buffer.flip();
+            writeFully(buffer);
+            blockCount++;
+            blockFill = 0;
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+    }
+
+    /**
+     * 段文件的读取器：打开时只读取文件头与块索引，块数据按需用定位读取.
+     */
+    @NotThreadSafe
+    static final class Reader implements Closeable {
+        private final File file;
+
+        private final RandomAccessFile raf;
+
+        private final FileChannel channel;
+
+        private final long maxLsn;
+
+        private final int rowCount;
+
+        private final int recordCount;
+
+        private final long recordsOffset;
+
+        private final long indexOffset;
+
+        private final int blockCount;
+
+        private final long[] blockOffsets;
+
+        private final int[] blockRows;
+
+        private final long[] blockMinTimes;
+
+        private final long[] blockMaxTimes;
+
+        /**
+         * 各块各列的最小、最大值，下标为block * COLUMNS + column.
+         */
+        private final float[] blockMins;
+
+        private final float[] blockMaxs;
+
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_ROWS * 8);
+
+        Reader(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            try {
+                final ByteBuffer header = readAt(0, HEADER_BYTES);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a segment file");
+                }
+                final int version = header.getInt();
+                if (version != VERSION || header.getInt() != COLUMNS || header.getInt() != BLOCK_ROWS) {
+                    throw new IOException(file + ": unsupported segment version " + version);
+                }
+                maxLsn = header.getLong();
+                rowCount = header.getInt();
+                recordCount = header.getInt();
+                final ByteBuffer trailer = readAt(channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+                recordsOffset = trailer.getLong();
+                indexOffset = trailer.getLong();
+                blockCount = trailer.getInt();
+                if (trailer.getInt() != MAGIC) {
+                    throw new IOException(file + ": truncated segment");
+                }
+                blockOffsets = new long[blockCount];
+                blockRows = new int[blockCount];
+                blockMinTimes = new long[blockCount];
+                blockMaxTimes = new long[blockCount];
+                blockMins = new float[blockCount * COLUMNS];
+                blockMaxs = new float[blockCount * COLUMNS];
+                final ByteBuffer index = readAt(indexOffset, blockCount * INDEX_ENTRY_BYTES);
+                for (int b = 0; b < blockCount; b++) {
+                    blockOffsets[b] = index.getLong();
+                    blockRows[b] = index.getInt();
+                    blockMinTimes[b] = index.getLong();
+                    blockMaxTimes[b] = index.getLong();
+                    for (int c = 0; c < COLUMNS; c++) {
+                        blockMins[b * COLUMNS + c] = index.getFloat();
+                    }
+                    for (int c = 0; c < COLUMNS; c++) {
+                        blockMaxs[b * COLUMNS + c] = index.getFloat();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getMaxLsn() {
+            return maxLsn;
+        }
+
+        int getRowCount() {
+            return rowCount;
+        }
+
+        int getBlockCount() {
+            return blockCount;
+        }
+
+        int getBlockRows(int block) {
+            return blockRows[block];
+        }
+
+        long getBlockMinTime(int block) {
+            return blockMinTimes[block];
+        }
+
+        long getBlockMaxTime(int block) {
+            return blockMaxTimes[block];
+        }
+
+        float getBlockMin(int block, int column) {
+            return blockMins[block * COLUMNS + column];
+        }
+
+        float getBlockMax(int block, int column) {
+            return blockMaxs[block * COLUMNS + column];
+        }
+
+        /**
+         * @return 段中最早的时间，空段为Long.MAX_VALUE
+         */
+        long getMinTime() {
+            return blockCount == 0 ? Long.MAX_VALUE : blockMinTimes[0];
+        }
+
+        long getMaxTime() {
+            return blockCount == 0 ? Long.MIN_VALUE : blockMaxTimes[blockCount - 1];
+        }
+
+        /**
+         * 读取一块的时间列.
+         *
+         * @return 行数
+         */
+        int readTimes(int block, long[] times) throws IOException {
+            final int n = blockRows[block];
+            buffer.clear().limit(n * 8);
+            readFully(blockOffsets[block]);
+            for (int i = 0; i < n; i++) {
+                times[i] = buffer.getLong();
+            }
+            return n;
+        }
+
+        /**
+         * 读取一块中的一列.
+         *
+         * @return 行数
+         */
+        int readColumn(int block, int column, float[] values) throws IOException {
+            final int n = blockRows[block];
+            buffer.clear().limit(n * 4);
+            readFully(blockOffsets[block] + 8L * n + 4L * n * column);
+            for (int i = 0; i < n; i++) {
+                values[i] = buffer.getFloat();
+            }
+            return n;
+        }
+
+        /**
+         * @return 段中的全部带内记录，按时间排序
+         */
+        List<Record> readRecords() throws IOException {
+            final ByteBuffer data = readAt(recordsOffset, (int) (indexOffset - recordsOffset));
+            final List<Record> records = new ArrayList<>(recordCount);
+            for (int i = 0; i < recordCount; i++) {
+                final long timeMillis = data.getLong();
+                final byte[] bytes = new byte[data.getShort() & 0xFFFF];
+                data.get(bytes);
+                records.add(new Record(timeMillis, bytes));
+            }
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+
+        private void readFully(long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException(file + ": truncated block");
+                }
+            }
+            buffer.flip();
+        }
+
+        private ByteBuffer readAt(long position, int length) throws IOException {
+            final ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, position + data.position()) < 0) {
+                    throw new EOFException(file + ": truncated");
+                }
+            }
+            data.flip();
+            return data;
+        }
+    }
+
+    /**
+     * 按时间顺序逐行遍历一个段文件的所有列.
+     */
+    @NotThreadSafe
+    static final class RowCursor {
+        private final Reader reader;
+
+        private final long[] times = new long[BLOCK_ROWS];
+
+        private final float[][] columns = new float[COLUMNS][BLOCK_ROWS];
+
+        private int block = -1;
+
+        private int rows = 0;
+
+        private int row = 0;
+
+        RowCursor(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return false 如果已经遍历完
+         */
+        boolean next() throws IOException {
+            row++;
+            while (row >= rows) {
+                if (++block >= reader.getBlockCount()) {
+                    return false;
+                }
+                rows = reader.readTimes(block, times);
+                for (int c = 0; c < COLUMNS; c++) {
+                    reader.readColumn(block, c, columns[c]);
+                }
+                row = 0;
+            }
+            return true;
+        }
+
+        long getTimeMillis() {
+            return times[row];
+        }
+
+        /**
+         * 将当前行拷贝到frames[offset...].
+         */
+        void copyFrame(float[] frames, int offset) {
+            for (int c = 0; c < COLUMNS; c++) {
+                frames[offset + c] = columns[c][row];
+            }
+        }
+    }
+}
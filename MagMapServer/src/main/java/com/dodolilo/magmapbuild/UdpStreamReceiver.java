@@ -0,0 +1,233 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 实时UDP流的接收端（服务器侧）：一个会话一个实例.
+ * 用小的重排窗口按序号交付样本：窗口内乱序到达的数据报被重新排好，
+ * 缺失的数据报在后续数据报超出窗口时放弃，不会无限等待；
+ * 收到校验数据报后，组内只丢了一个数据报时用异或恢复它.
+ * 迟到（序号已经交付或放弃）与重复的数据报直接丢弃，实时定位宁可缺样本也不要过时的样本.
+ * 起始序号取会话开始时重排窗口内见到的最小序号：先发的数据报晚到时不会被当作迟到.
+ */
+@NotThreadSafe
+class UdpStreamReceiver {
+    /**
+     * 已交付数据报的保留个数，用于和之后到达的校验数据报一起恢复丢失的数据报.
+     */
+    private static final int HISTORY_SIZE = 64;
+
+    private final int reorderWindow;
+
+    private final SampleSink sink;
+
+    private long sessionId = 0L;
+
+    private boolean started = false;
+
+    /**
+     * 是否已经开始交付：此前起始序号未定，收到的数据报跨过重排窗口后才开始交付.
+     */
+    private boolean synced = false;
+
+    /**
+     * 下一个要交付的序号；开始交付之前为已收到的最小序号.
+     */
+    private int expected = 0;
+
+    private final TreeMap<Integer, byte[]> pending = new TreeMap<>();
+
+    private final Map<Integer, byte[]> parities = new HashMap<>();
+
+    private final LinkedHashMap<Integer, byte[]> history = new LinkedHashMap<Integer, byte[]>(HISTORY_SIZE * 2) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > HISTORY_SIZE;
+        }
+    };
+
+    private final float[] frame = new float[SensorFrame.SIZE];
+
+    private long deliveredPackets = 0L;
+    private long recoveredPackets = 0L;
+    private long lostPackets = 0L;
+    private long latePackets = 0L;
+
+    /**
+     * @param reorderWindow 重排窗口（数据报个数），越大越能容忍乱序，实时性越差
+     * @param sink          按序接收解码后的样本
+     */
+    UdpStreamReceiver(int reorderWindow, SampleSink sink) {
+        this.reorderWindow = Math.max(1, reorderWindow);
+        this.sink = sink;
+    }
+
+    /**
+     * 处理一个收到的数据报.
+     *
+     * @return false 如果数据报格式错误或不属于本会话
+     */
+    public boolean onDatagram(ByteBuffer datagram) {
+        if (!UdpPacketFormat.isValid(datagram)) {
+            return false;
+        }
+        final long id = UdpPacketFormat.sessionIdOf(datagram);
+        final int seq = UdpPacketFormat.seqOf(datagram);
+        if (!started) {
+            started = true;
+            sessionId = id;
+            expected = seq;
+        } else if (id != sessionId) {
+            return false;
+        } else if (!synced && seq < expected) {
+            expected = seq;
+        }
+        final byte[] bytes = new byte[datagram.remaining()];
+        datagram.duplicate().get(bytes);
+        if (UdpPacketFormat.typeOf(datagram) == UdpPacketFormat.TYPE_PARITY) {
+            final int groupSize = UdpPacketFormat.countOf(datagram);
+            if (seq + groupSize > expected) {
+                parities.put(seq, bytes);
+                tryRecover(seq);
+            }
+        } else {
+            if (seq < expected || pending.containsKey(seq)) {
+                latePackets++;
+                return true;
+            }
+            pending.put(seq, bytes);
+            for (Integer first : parities.keySet().toArray(new Integer[0])) {
+                tryRecover(first);
+            }
+        }
+        deliver(false);
+        return true;
+    }
+
+    /**
+     * 交付窗口内剩余的所有数据报，缺失的计为丢失.会话结束时调用.
+     */
+    public void flush() {
+        deliver(true);
+    }
+
+    private void deliver(boolean all) {
+        if (!synced) {
+            if (pending.isEmpty() || (!all && pending.lastKey() - expected < reorderWindow)) {
+                return;
+            }
+            synced = true;
+        }
+        while (!pending.isEmpty()) {
+            final byte[] next = pending.remove(expected);
+            if (next != null) {
+                decode(next);
+                history.put(expected, next);
+                deliveredPackets++;
+                expected++;
+            } else if (all || pending.lastKey() - expected >= reorderWindow) {
+                //窗口已满，不再等待这个数据报
+                lostPackets++;
+                expected++;
+            } else {
+                break;
+            }
+        }
+        final Iterator<Map.Entry<Integer, byte[]>> it = parities.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, byte[]> entry = it.next();
+            if (entry.getKey() + UdpPacketFormat.countOf(ByteBuffer.wrap(entry.getValue())) <= expected) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 组内恰好缺一个尚未交付的数据报时，用校验数据报恢复它.
+     */
+    private void tryRecover(int firstSeq) {
+        final byte[] parity = parities.get(firstSeq);
+        final ByteBuffer parityBuffer = ByteBuffer.wrap(parity);
+        final int groupSize = UdpPacketFormat.countOf(parityBuffer);
+        int missing = -1;
+        for (int seq = firstSeq; seq < firstSeq + groupSize; seq++) {
+            if (packetOf(seq) == null) {
+                if (missing >= 0) {
+                    return;
+                }
+                missing = seq;
+            }
+        }
+        parities.remove(firstSeq);
+        if (missing < expected) {
+            //没有缺失，或缺失的数据报已经被放弃
+            return;
+        }
+        final int bodyStart = UdpPacketFormat.HEADER_SIZE + 2;
+        int length = parityBuffer.getShort(UdpPacketFormat.HEADER_SIZE) & 0xFFFF;
+        final byte[] recovered = new byte[parity.length - bodyStart];
+        System.arraycopy(parity, bodyStart, recovered, 0, recovered.length);
+        for (int seq = firstSeq; seq < firstSeq + groupSize; seq++) {
+            if (seq == missing) {
+                continue;
+            }
+            final byte[] other = packetOf(seq);
+            length ^= other.length;
+            for (int i = 0; i < other.length && i < recovered.length; i++) {
+                recovered[i] ^= other[i];
+            }
+        }
+        if (length <= 0 || length > recovered.length) {
+            return;
+        }
+        final byte[] packet = new byte[length];
+        System.arraycopy(recovered, 0, packet, 0, length);
+        final ByteBuffer buffer = ByteBuffer.wrap(packet);
+        if (UdpPacketFormat.isValid(buffer) && UdpPacketFormat.seqOf(buffer) == missing) {
+            pending.put(missing, packet);
+            recoveredPackets++;
+        }
+    }
+
+    private byte[] packetOf(int seq) {
+        final byte[] packet = pending.get(seq);
+        return packet != null ? packet : history.get(seq);
+    }
+
+    private void decode(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int count = UdpPacketFormat.countOf(buffer);
+        buffer.position(UdpPacketFormat.HEADER_SIZE);
+        final long baseTimeMillis = buffer.getLong();
+        for (int n = 0; n < count && buffer.remaining() >= UdpPacketFormat.SAMPLE_SIZE; n++) {
+            final long timeMillis = baseTimeMillis + buffer.getInt();
+            for (int i = 0; i < SensorFrame.SIZE; i++) {
+                frame[i] = buffer.getFloat();
+            }
+            sink.onSample(timeMillis, frame);
+        }
+    }
+
+    public long getDeliveredPackets() {
+        return deliveredPackets;
+    }
+
+    public long getRecoveredPackets() {
+        return recoveredPackets;
+    }
+
+    public long getLostPackets() {
+        return lostPackets;
+    }
+
+    public long getLatePackets() {
+        return latePackets;
+    }
+}
@@ -0,0 +1,173 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 实时UDP流的服务器端点（服务器侧）：一个线程从一个UDP端口收取所有手机的数据报，
+ * 按会话标识分给各自的{@link UdpStreamReceiver}，重排后按序交付的样本交给{@link Listener}，如实时定位引擎.
+ * 超过{@link #SESSION_IDLE_MS}没有数据报的会话被冲刷并移除.
+ */
+@ThreadSafe
+final class UdpStreamServer implements Closeable {
+    /**
+     * 会话的空闲超时（ms）：手机停止发送后，窗口内剩余的样本最迟在这之后交付.
+     */
+    static final long SESSION_IDLE_MS = 5_000;
+
+    /**
+     * 接收数据报的缓冲区，能容纳最大的校验数据报.
+     */
+    private static final int RECEIVE_BUFFER_BYTES = UdpPacketFormat.HEADER_SIZE + 2 + UdpPacketFormat.MAX_PACKET_SIZE;
+
+    /**
+     * 实时样本的接收者，所有回调都在接收线程中进行.
+     */
+    interface Listener {
+        void onSample(long sessionId, long timeMillis, float[] frame);
+
+        /**
+         * 会话空闲超时或服务器关闭，剩余样本已交付.
+         */
+        default void onSessionEnd(long sessionId, UdpStreamReceiver receiver) {
+        }
+    }
+
+    /**
+     * 一个会话的接收端与最后一次收到数据报的时间.
+     */
+    private static final class Session {
+        final UdpStreamReceiver receiver;
+        long lastReceivedMillis;
+
+        Session(UdpStreamReceiver receiver) {
+            this.receiver = receiver;
+        }
+    }
+
+    private final int reorderWindow;
+
+    private final Listener listener;
+
+    private final DatagramChannel channel;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    /**
+     * 只在接收线程中访问.
+     */
+    private final Map<Long, Session> sessions = new HashMap<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param reorderWindow 每个会话的重排窗口（数据报个数），见{@link UdpStreamReceiver}
+     */
+    UdpStreamServer(int port, int reorderWindow, Listener listener) throws IOException {
+        this.reorderWindow = reorderWindow;
+        this.listener = listener;
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+        thread = new Thread(this::run, "ingest-udp");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * 停止接收，交付所有会话窗口内剩余的样本.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        final ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_BYTES);
+        long lastExpireMillis = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SESSION_IDLE_MS / 2);
+                selector.selectedKeys().clear();
+                final long now = System.currentTimeMillis();
+                buffer.clear();
+                while (channel.receive(buffer) != null) {
+                    buffer.flip();
+                    onDatagram(buffer, now);
+                    buffer.clear();
+                }
+                if (now - lastExpireMillis >= SESSION_IDLE_MS / 2) {
+                    expireSessions(now - SESSION_IDLE_MS);
+                    lastExpireMillis = now;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ingest: UDP receiver stopped, " + e);
+        } finally {
+            expireSessions(Long.MAX_VALUE);
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ignored) {
+                //退出中
+            }
+        }
+    }
+
+    private void onDatagram(ByteBuffer datagram, long now) {
+        if (!UdpPacketFormat.isValid(datagram)) {
+            return;
+        }
+        final long sessionId = UdpPacketFormat.sessionIdOf(datagram);
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            session = new Session(new UdpStreamReceiver(reorderWindow,
+                    (timeMillis, frame) -> listener.onSample(sessionId, timeMillis, frame)));
+            sessions.put(sessionId, session);
+        }
+        session.lastReceivedMillis = now;
+        session.receiver.onDatagram(datagram);
+    }
+
+    /**
+     * 冲刷并移除最后一次收到数据报早于before的会话.
+     */
+    private void expireSessions(long before) {
+        final Iterator<Map.Entry<Long, Session>> it = sessions.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Long, Session> entry = it.next();
+            final Session session = entry.getValue();
+            if (session.lastReceivedMillis < before) {
+                it.remove();
+                session.receiver.flush();
+                listener.onSessionEnd(entry.getKey(), session.receiver);
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * 样本库的预写日志.各连接追加的记录先进入内存中的待提交缓冲区，由一个提交线程成组写入文件并fsync（组提交）：
+ * 一次fsync确认这段时间内所有连接追加的数据，而不是每个连接、每条记录一次.
+ * <pre>
+ *     文件: wal-起始LSN(16位十六进制).log
+ *     批:   int length, long startLsn, int crc32(payload), byte[length] payload
+ *     记录: byte type, int deviceId, long timeMillis, 然后
+ *           'S': float[SensorFrame.SIZE] frame
+ *           'R': short length, byte[length] 带内记录（ASCII，不含换行）
+ * </pre>
+ * LSN是记录在整个日志中的逻辑字节位置（只计payload），单调递增、跨文件连续；一条记录的LSN是它结束处的位置.
+ * 重放时遇到长度、LSN或校验和不对的批即认为是崩溃时写了一半的尾部，停止重放.
+ */
+@ThreadSafe
+final class WriteAheadLog implements Closeable {
+    static final byte TYPE_SAMPLE = 'S';
+
+    static final byte TYPE_RECORD = 'R';
+
+    /**
+     * 一条样本记录的字节数.
+     */
+    static final int SAMPLE_BYTES = 1 + 4 + 8 + 4 * SensorFrame.SIZE;
+
+    /**
+     * 一条带内记录除内容外的字节数.
+     */
+    static final int RECORD_OVERHEAD = 1 + 4 + 8 + 2;
+
+    private static final int BATCH_HEADER_BYTES = 4 + 8 + 4;
+
+    private static final String FILE_PREFIX = "wal-";
+
+    private static final String FILE_SUFFIX = ".log";
+
+    /**
+     * 一个日志文件写到多大后换新文件，换文件后旧文件才能在检查点被删除.
+     */
+    private static final long FILE_BYTES = 64L << 20;
+
+    /**
+     * 没有等待者时，提交线程最多攒这么久（ms）或这么多字节再提交.
+     */
+    private static final long COMMIT_INTERVAL_MS = 10;
+
+    private static final int COMMIT_BYTES = 1 << 20;
+
+    /**
+     * 待提交缓冲区的上限，超过时追加者阻塞等待提交线程（对连接形成反压）.
+     */
+    private static final int MAX_PENDING_BYTES = 16 << 20;
+
+    /**
+     * 重放日志时的回调，lsn为记录结束处的位置.
+     */
+    interface RecordVisitor {
+        void onSample(long lsn, int deviceId, long timeMillis, float[] frame);
+
+        void onRecord(long lsn, int deviceId, long timeMillis, byte[] record);
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final long lsn;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long lsn) {
+            this.lsn = lsn;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            return Long.compare(lsn, other.lsn);
+        }
+    }
+
+    private final File dir;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private ByteBuffer pending = ByteBuffer.allocate(COMMIT_BYTES);
+
+    /**
+     * 提交线程写文件时使用的另一块缓冲区，与pending交换.
+     */
+    private ByteBuffer committing = ByteBuffer.allocate(COMMIT_BYTES);
+
+    @GuardedBy("lock")
+    private long appendedLsn;
+
+    @GuardedBy("lock")
+    private long durableLsn;
+
+    @GuardedBy("lock")
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+    @GuardedBy("lock")
+    private IOException failure = null;
+
+    @GuardedBy("lock")
+    private boolean closed = false;
+
+    /**
+     * 起始LSN -> 日志文件，只含本实例与之前未删除的文件.
+     */
+    @GuardedBy("files")
+    private final TreeMap<Long, File> files = new TreeMap<>();
+
+    /**
+     * 当前写入的文件，只由提交线程访问.
+     */
+    private FileChannel channel;
+
+    private long channelBytes;
+
+    private final ByteBuffer batchHeader = ByteBuffer.allocate(BATCH_HEADER_BYTES);
+
+    private final CRC32 crc = new CRC32();
+
+    private final Thread committer;
+
+    /**
+     * 在dir中从startLsn开始写新的日志文件，startLsn应为{@link #replay}的返回值.
+     */
+    WriteAheadLog(File dir, long startLsn) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.appendedLsn = startLsn;
+        this.durableLsn = startLsn;
+        for (File file : listLogFiles(dir).values()) {
+            synchronized (files) {
+                files.put(startLsnOf(file), file);
+            }
+        }
+        openFile(startLsn);
+        committer = new Thread(this::commitLoop, "wal-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * 追加src中剩余的已编码记录.
+     *
+     * @return 追加后的LSN，传给{@link #sync(long)}等待它落盘
+     * @throws IOException 如果之前的提交失败或日志已关闭
+     */
+    long append(ByteBuffer src) throws IOException {
+        final int n = src.remaining();
+        synchronized (lock) {
+            while (failure == null && !closed && pending.position() > 0
+                    && pending.position() + n > MAX_PENDING_BYTES) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for WAL commit", e);
+                }
+            }
+            checkUsable();
+            if (pending.remaining() < n) {
+                final ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + n));
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+            pending.put(src);
+            appendedLsn += n;
+            if (pending.position() >= COMMIT_BYTES) {
+                lock.notifyAll();
+            }
+            return appendedLsn;
+        }
+    }
+
+    /**
+     * @return 在lsn之前（含）追加的记录全部落盘后完成的future，回调在提交线程中执行
+     */
+    CompletableFuture<Void> sync(long lsn) {
+        synchronized (lock) {
+            if (lsn <= durableLsn) {
+                return CompletableFuture.completedFuture(null);
+            }
+            final Waiter waiter = new Waiter(lsn);
+            if (failure != null || closed) {
+                waiter.future.completeExceptionally(failure != null ? failure : new IOException("WAL closed"));
+                return waiter.future;
+            }
+            waiters.add(waiter);
+            lock.notifyAll();
+            return waiter.future;
+        }
+    }
+
+    long getAppendedLsn() {
+        synchronized (lock) {
+            return appendedLsn;
+        }
+    }
+
+    /**
+     * 删除只含LSN不大于minUnflushedLsn（所有分区中尚未写入段文件的最小LSN）的记录的日志文件.
+     */
+    void checkpoint(long minUnflushedLsn) {
+        final List<File> obsolete = new ArrayList<>();
+        synchronized (files) {
+            final Iterator<Map.Entry<Long, File>> it = files.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Long, File> entry = it.next();
+                final Long nextStart = files.higherKey(entry.getKey());
+                if (nextStart == null || nextStart > minUnflushedLsn) {
+                    break;
+                }
+                obsolete.add(entry.getValue());
+                it.remove();
+            }
+        }
+        for (File file : obsolete) {
+            if (!file.delete()) {
+                System.err.println("WAL: cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * 提交剩余的数据后关闭.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("WAL closed");
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            final long startLsn;
+            final long endLsn;
+            synchronized (lock) {
+                if (pending.position() < COMMIT_BYTES && waiters.isEmpty() && !closed) {
+                    try {
+                        lock.wait(COMMIT_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        closed = true;
+                    }
+                }
+                if (pending.position() == 0) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                final ByteBuffer swap = committing;
+                committing = pending;
+                pending = swap;
+                pending.clear();
+                endLsn = appendedLsn;
+                startLsn = endLsn - committing.position();
+                lock.notifyAll();
+            }
+            committing.flip();
+            final List<Waiter> done = new ArrayList<>();
+            IOException error = null;
+            try {
+                writeBatch(committing, startLsn);
+            } catch (IOException e) {
+                error = e;
+            }
+            committing.clear();
+            synchronized (lock) {
+                if (error != null) {
+                    failure = error;
+                    done.addAll(waiters);
+                    waiters.clear();
+                } else {
+                    durableLsn = endLsn;
+                    while (!waiters.isEmpty() && waiters.peek().lsn <= durableLsn) {
+                        done.add(waiters.poll());
+                    }
+                }
+                lock.notifyAll();
+            }
+            for (Waiter waiter : done) {
+                if (error != null) {
+                    waiter.future.completeExceptionally(error);
+                } else {
+                    waiter.future.complete(null);
+                }
+            }
+            if (error != null) {
+                System.err.println("WAL: commit failed, " + error);
+                return;
+            }
+        }
+    }
+
+    private void writeBatch(ByteBuffer payload, long startLsn) throws IOException {
+        crc.reset();
+        crc.update(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        batchHeader.clear();
+        batchHeader.putInt(payload.remaining()).putLong(startLsn).putInt((int) crc.getValue());
+        batchHeader.flip();
+        final long bytes = batchHeader.remaining() + payload.remaining();
+        while (batchHeader.hasRemaining()) {
+            channel.write(batchHeader);
+        }
+        while (payload.hasRemaining()) {
+            channel.write(payload);
+        }
+        channel.force(false);
+        channelBytes += bytes;
+        if (channelBytes >= FILE_BYTES) {
+            channel.close();
+            openFile(startLsn + payload.limit());
+        }
+    }
+
+    private void openFile(long startLsn) throws IOException {
+        final File file = new File(dir, String.format(Locale.US, "%s%016x%s", FILE_PREFIX, startLsn, FILE_SUFFIX));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        //同一LSN的文件只可能是上次重放后没有写入任何批的空文件
+        raf.setLength(0);
+        channel = raf.getChannel();
+        channelBytes = 0;
+        synchronized (files) {
+            files.put(startLsn, file);
+        }
+    }
+
+    /**
+     * 按LSN顺序重放dir中所有日志文件.
+     *
+     * @return 最后一条完整记录之后的LSN，新日志从这里继续
+     */
+    static long replay(File dir, RecordVisitor visitor) throws IOException {
+        long endLsn = 0;
+        final float[] frame = new float[SensorFrame.SIZE];
+        final CRC32 checksum = new CRC32();
+        for (Map.Entry<Long, File> entry : listLogFiles(dir).entrySet()) {
+            if (entry.getKey() < endLsn) {
+                //上一个文件的尾部是写了一半的批，之后的文件不连续，不再可信
+                System.err.println("WAL: skip non-contiguous " + entry.getValue());
+                continue;
+            }
+            endLsn = entry.getKey();
+            try (RandomAccessFile raf = new RandomAccessFile(entry.getValue(), "r")) {
+                final FileChannel in = raf.getChannel();
+                final ByteBuffer data = ByteBuffer.allocate((int) in.size());
+                while (data.hasRemaining() && in.read(data) >= 0) {
+                    //读满
+                }
+                data.flip();
+                while (data.remaining() >= BATCH_HEADER_BYTES) {
+                    final int length = data.getInt();
+                    final long startLsn = data.getLong();
+                    final int expectedCrc = data.getInt();
+                    if (length < 0 || length > data.remaining() || startLsn != endLsn) {
+                        break;
+                    }
+                    checksum.reset();
+                    checksum.update(data.array(), data.position(), length);
+                    if ((int) checksum.getValue() != expectedCrc) {
+                        break;
+                    }
+                    final int batchEnd = data.position() + length;
+                    while (data.position() < batchEnd) {
+                        final byte type = data.get();
+                        final int deviceId = data.getInt();
+                        final long timeMillis = data.getLong();
+                        if (type == TYPE_SAMPLE) {
+                            for (int i = 0; i < SensorFrame.SIZE; i++) {
+                                frame[i] = data.getFloat();
+                            }
+                            visitor.onSample(startLsn + data.position() - (batchEnd - length), deviceId, timeMillis, frame);
+                        } else if (type == TYPE_RECORD) {
+                            final byte[] record = new byte[data.getShort() & 0xFFFF];
+                            data.get(record);
+                            visitor.onRecord(startLsn + data.position() - (batchEnd - length), deviceId, timeMillis, record);
+                        } else {
+                            throw new IOException("Unknown WAL record type " + type + " in " + entry.getValue());
+                        }
+                    }
+                    endLsn = startLsn + length;
+                }
+            }
+        }
+        return endLsn;
+    }
+
+    /**
+     * 将一条样本编码到buffer.
+     */
+    static void putSample(ByteBuffer buffer, int deviceId, long timeMillis, float[] frames, int offset) {
+        buffer.put(TYPE_SAMPLE).putInt(deviceId).putLong(timeMillis);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            buffer.putFloat(frames[offset + i]);
+        }
+    }
+
+    /**
+     * 将一条带内记录编码到buffer，长度不超过65535字节.
+     */
+    static void putRecord(ByteBuffer buffer, int deviceId, long timeMillis, byte[] record, int offset, int length) {
+        buffer.put(TYPE_RECORD).putInt(deviceId).putLong(timeMillis).putShort((short) length).put(record, offset, length);
+    }
+
+    private static TreeMap<Long, File> listLogFiles(File dir) {
+        final TreeMap<Long, File> logs = new TreeMap<>();
+        final File[] list = dir.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                final String name = file.getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    logs.put(startLsnOf(file), file);
+                }
+            }
+        }
+        return logs;
+    }
+
+    private static long startLsnOf(File file) {
+        final String name = file.getName();
+        return Long.parseUnsignedLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()), 16);
+    }
+}
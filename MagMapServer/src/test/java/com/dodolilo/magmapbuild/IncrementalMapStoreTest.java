@@ -0,0 +1,135 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link IncrementalMapStore}的合并、衰减、持久化与导出.
+ * 网格为一行10个1m的格子，会话以1m/s沿x轴匀速行走，每10ms一个样本，每个格子100个样本.
+ */
+public class IncrementalMapStoreTest {
+    private static final long MERGE_MILLIS = 1_700_000_000_000L;
+
+    private static final long HALF_LIFE_MILLIS = 86_400_000L;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mapstore").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void mergeWithoutDecayPoolsSessions() throws IOException {
+        final IncrementalMapStore store = newStore(0);
+        assertEquals(1, store.mergeSession(session("a", 10, 50f), MERGE_MILLIS));
+        final IncrementalMapStore.Snapshot first = store.snapshot();
+        assertEquals(2, store.mergeSession(session("b", 10, 60f), MERGE_MILLIS + HALF_LIFE_MILLIS));
+        final IncrementalMapStore.Snapshot second = store.snapshot();
+        for (int cell = 0; cell < 10; cell++) {
+            //合并前取得的快照不受之后合并的影响
+            assertEquals(100.0, first.getWeight(cell, MERGE_MILLIS), 0.0);
+            assertEquals(50.0, first.getMean(cell, 0), 1e-4);
+            assertEquals(200.0, second.getWeight(cell, MERGE_MILLIS * 2), 0.0);
+            assertEquals(55.0, second.getMean(cell, 0), 1e-4);
+            assertEquals(25.0, second.getVariance(cell, 0), 1e-3);
+            assertEquals(MERGE_MILLIS + HALF_LIFE_MILLIS, second.getLastUpdate(cell));
+        }
+        assertEquals(1, first.getVersion());
+        assertEquals(2, second.getVersion());
+    }
+
+    @Test
+    public void oldDataDecaysByHalfLife() throws IOException {
+        final IncrementalMapStore store = newStore(HALF_LIFE_MILLIS);
+        store.mergeSession(session("a", 10, 50f), MERGE_MILLIS);
+        //一个半衰期后只经过前5个格子
+        final long secondMerge = MERGE_MILLIS + HALF_LIFE_MILLIS;
+        store.mergeSession(session("b", 5, 60f), secondMerge);
+        final IncrementalMapStore.Snapshot snapshot = store.snapshot();
+        for (int cell = 0; cell < 5; cell++) {
+            assertEquals(150.0, snapshot.getWeight(cell, secondMerge), 1e-6);
+            assertEquals((50.0 * 50 + 100.0 * 60) / 150, snapshot.getMean(cell, 0), 1e-4);
+            assertEquals(75.0, snapshot.getWeight(cell, secondMerge + HALF_LIFE_MILLIS), 1e-6);
+        }
+        for (int cell = 5; cell < 10; cell++) {
+            //未被更新的格子在读取时衰减，均值不变
+            assertEquals(50.0, snapshot.getWeight(cell, secondMerge), 1e-6);
+            assertEquals(50.0, snapshot.getMean(cell, 0), 1e-4);
+            assertEquals(MERGE_MILLIS, snapshot.getLastUpdate(cell));
+        }
+    }
+
+    @Test
+    public void persistsAndExportsMapFile() throws IOException {
+        final IncrementalMapStore store = newStore(HALF_LIFE_MILLIS);
+        store.mergeSession(session("a", 10, 50f), MERGE_MILLIS);
+        store.mergeSession(session("b", 5, 60f), MERGE_MILLIS + HALF_LIFE_MILLIS);
+        final File storeFile = new File(dir, "map.mmis");
+        store.writeTo(storeFile);
+        final IncrementalMapStore restored = IncrementalMapStore.readFrom(storeFile);
+        assertEquals(2, restored.snapshot().getVersion());
+        assertEquals(store.snapshot().getMean(2, 0), restored.snapshot().getMean(2, 0), 0.0);
+
+        final long exportMillis = MERGE_MILLIS + HALF_LIFE_MILLIS;
+        final GridMagMap map = restored.snapshot().toGridMagMap(exportMillis);
+        assertEquals(150, map.getCount(0));
+        assertEquals(50, map.getCount(9));
+        final File mapFile = new File(dir, "map" + MagMapFile.FILE_SUFFIX);
+        MagMapFile.write(map, mapFile);
+        final MagMapFile opened = MagMapFile.open(mapFile);
+        assertEquals(10, opened.getOccupiedCount());
+        final int slot = opened.lookup(0.5f, 0.5f);
+        assertEquals(150, opened.getCount(slot));
+        assertEquals((50.0 * 50 + 100.0 * 60) / 150, opened.getMean(slot, 0), 1e-3);
+        assertEquals(50f, opened.getMean(opened.lookup(9.5f, 0.5f), 0), 1e-3f);
+        assertEquals(-1, opened.lookup(0.5f, 1.5f));
+    }
+
+    private static IncrementalMapStore newStore(long halfLifeMillis) {
+        return new IncrementalMapStore(0f, 0f, 1f, 10, 1, BatchMapBuilder.FEATURE_CHANNELS, halfLifeMillis);
+    }
+
+    /**
+     * 从(0, 0.5)走到(meters, 0.5)的会话，磁场总强度恒为magnitude.
+     * 样本时间错开半个间隔，插值位置不会落在格子边界上.
+     */
+    private BatchMapBuilder.SessionFiles session(String name, int meters, float magnitude) throws IOException {
+        final File sensors = new File(dir, name + BatchMapBuilder.SENSORS_SUFFIX + ".csv");
+        final File points = new File(dir, name + BatchMapBuilder.POINTS_SUFFIX);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(points))) {
+            writer.write("0,0,0.5\n");
+            writer.write(meters * 1000 + "," + meters + ",0.5\n");
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(sensors))) {
+            for (long t = 5; t < meters * 1000; t += 10) {
+                final StringBuilder sb = new StringBuilder().append(t);
+                for (int i = 0; i < SensorFrame.SIZE; i++) {
+                    final float value = i == SensorFrame.MAG ? magnitude : i == SensorFrame.QUAT + 3 ? 1f : 0f;
+                    sb.append(',').append(value);
+                }
+                writer.write(sb.append('\n').toString());
+            }
+        }
+        return new BatchMapBuilder.SessionFiles(sensors, points);
+    }
+}
@@ -0,0 +1,127 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link IngestServer}的连接协议：能力声明、#FRAME与END确认.
+ */
+public class IngestServerTest {
+    private static final String PHONE = "13800000000";
+
+    private File dir;
+
+    private SampleStore store;
+
+    private IngestServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("ingest").toFile();
+        store = new SampleStore(dir);
+        server = new IngestServer(store, 0, 1);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void featureRowsAreStoredInWorldFrame() throws Exception {
+        try (Socket socket = connect()) {
+            final BufferedReader reader = handshake(socket);
+            send(socket, PHONE + "\n"
+                    + WorldFrameTransform.UploadFrame.FEATURES.toRecord(1000)
+                    + "1000,20.5,-40.25,45.17\n"
+                    + "1005,21.5,-41.25,46.52\n"
+                    + "END\n");
+            assertEquals(UploadProtocol.END_LINE, reader.readLine());
+        }
+        final SampleQueryEngine.Query query = new SampleQueryEngine.Query().device(PHONE);
+        try (SampleQueryEngine.Cursor cursor = new SampleQueryEngine(store, 2.0f).open(query)) {
+            assertTrue(cursor.next());
+            assertEquals(1000, cursor.getTimeMillis());
+            assertEquals(20.5f, cursor.get(SensorFrame.MAG), 0f);
+            assertEquals(0f, cursor.get(SensorFrame.MAG + 1), 0f);
+            assertEquals(-40.25f, cursor.get(SensorFrame.MAG + 2), 0f);
+            assertEquals(1f, cursor.get(SensorFrame.QUAT + 3), 0f);
+            assertTrue(cursor.next());
+            assertEquals(1005, cursor.getTimeMillis());
+            assertFalse(cursor.next());
+        }
+    }
+
+    @Test
+    public void frameChangeAfterSamplesClosesConnection() throws Exception {
+        try (Socket socket = connect()) {
+            final BufferedReader reader = handshake(socket);
+            send(socket, PHONE + "\n"
+                    + WorldFrameTransform.UploadFrame.WORLD.toRecord(1000)
+                    + deviceLine(1000)
+                    //同一坐标系的重复声明照常接受
+                    + WorldFrameTransform.UploadFrame.WORLD.toRecord(1002)
+                    + deviceLine(1005)
+                    + WorldFrameTransform.UploadFrame.FEATURES.toRecord(1008)
+                    + "1010,20.5,-40.25,45.17\n"
+                    + "END\n");
+            //连接被关闭，END没有确认
+            assertNull(reader.readLine());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * 读取MMPS与#CAPS回复.
+     */
+    private static BufferedReader handshake(Socket socket) throws IOException {
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        assertEquals(UploadProtocol.SERVER_RESPONSE, reader.readLine());
+        final String capabilities = reader.readLine();
+        assertTrue(UploadProtocol.isCapabilitiesLine(capabilities));
+        assertTrue(UploadProtocol.hasCapability(capabilities, UploadProtocol.CAPABILITY_HEADER));
+        assertTrue(UploadProtocol.hasCapability(capabilities, UploadProtocol.CAPABILITY_FRAME));
+        assertTrue(UploadProtocol.hasCapability(capabilities, UploadProtocol.CAPABILITY_END_ACK));
+        return reader;
+    }
+
+    private static void send(Socket socket, String lines) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        out.write(lines.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String deviceLine(long timeMillis) {
+        final StringBuilder sb = new StringBuilder().append(timeMillis);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            sb.append(",0.5");
+        }
+        return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,199 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SampleQueryEngine}在段文件与内存表上的时间范围、设备与打点半径查询.
+ * 第一个小时的样本在重新打开样本库前写成段，第二个小时的样本留在内存表中.
+ */
+public class SampleQueryEngineTest {
+    private static final String PHONE = "13800000000";
+
+    private static final String OTHER_PHONE = "13900000000";
+
+    private static final long HOUR = SampleStore.hourStart(1_700_000_000_000L);
+
+    private static final long STEP_MILLIS = 10;
+
+    /**
+     * 第一个小时的样本数，写成一个段的三个块.
+     */
+    private static final int SEGMENT_ROWS = 10_000;
+
+    private static final int MEM_ROWS = 1000;
+
+    private File dir;
+
+    private SampleStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("query").toFile();
+        final SampleStore writer = new SampleStore(dir);
+        try {
+            writeSamples(writer, PHONE, HOUR, SEGMENT_ROWS, 0);
+            //打点：100s内从(0, 0)匀速走到(100, 0)
+            writeMark(writer, PHONE, HOUR, 0f, 0f);
+            writeMark(writer, PHONE, HOUR + 100_000, 100f, 0f);
+            writeSamples(writer, OTHER_PHONE, HOUR, 100, 1_000_000);
+        } finally {
+            writer.close();
+        }
+        store = new SampleStore(dir);
+        writeSamples(store, PHONE, HOUR + SampleStore.PARTITION_MILLIS, MEM_ROWS, SEGMENT_ROWS);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void timeRangeStraddlingBlockBoundary() throws IOException {
+        final SampleStore.Partition partition = store.getPartitions(store.findDevice(PHONE), HOUR, HOUR).get(0);
+        assertEquals(1, partition.segments.size());
+        final long from = HOUR + 40_000;
+        final long to = HOUR + 50_000;
+        try (SegmentFile.Reader reader = new SegmentFile.Reader(partition.segments.get(0).file)) {
+            assertEquals(3, reader.getBlockCount());
+            //查询范围跨过第0块与第1块的边界
+            assertTrue(reader.getBlockMinTime(0) < from && reader.getBlockMaxTime(0) >= from);
+            assertTrue(reader.getBlockMinTime(1) <= to && reader.getBlockMaxTime(1) > to);
+        }
+        final List<long[]> rows = query(new SampleQueryEngine.Query().device(PHONE).timeRange(from, to));
+        assertConsecutive(rows, from, to);
+    }
+
+    @Test
+    public void timeRangeAcrossPartitionsMergesSegmentAndMemTable() throws IOException {
+        final long from = HOUR + SampleStore.PARTITION_MILLIS - 50;
+        final long to = HOUR + SampleStore.PARTITION_MILLIS + 50;
+        //第一个小时的最后样本在HOUR + 99990，查询范围内只有第二个小时的样本
+        assertConsecutive(query(new SampleQueryEngine.Query().device(PHONE).timeRange(from, to)),
+                HOUR + SampleStore.PARTITION_MILLIS, to);
+        final List<long[]> all = query(new SampleQueryEngine.Query().device(PHONE));
+        assertEquals(SEGMENT_ROWS + MEM_ROWS, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i)[1]);
+        }
+        assertTrue(query(new SampleQueryEngine.Query().device(PHONE).timeRange(HOUR - 1000, HOUR - 1)).isEmpty());
+    }
+
+    @Test
+    public void valueRangeInsideTimeRange() throws IOException {
+        final List<long[]> rows = query(new SampleQueryEngine.Query().device(PHONE)
+                .timeRange(HOUR + 40_000, HOUR + 50_000)
+                .valueRange(SensorFrame.MAG, 4090f, 4100f));
+        assertConsecutive(rows, HOUR + 40_900, HOUR + 41_000);
+    }
+
+    @Test
+    public void deviceFilter() throws IOException {
+        final List<long[]> other = query(new SampleQueryEngine.Query().device(OTHER_PHONE));
+        assertEquals(100, other.size());
+        assertEquals(1_000_000, other.get(0)[1]);
+        assertTrue(query(new SampleQueryEngine.Query().device("13700000000")).isEmpty());
+        assertEquals(SEGMENT_ROWS + MEM_ROWS + 100, query(new SampleQueryEngine.Query()).size());
+    }
+
+    @Test
+    public void markRadius() throws IOException {
+        final SampleQueryEngine engine = new SampleQueryEngine(store, 2.0f);
+        //x在[45.005, 55.005]内，即时间在[45005, 55005]ms内
+        final SampleQueryEngine.Query query = new SampleQueryEngine.Query().near(50.005f, 0f, 5f);
+        final List<long[]> rows = new ArrayList<>();
+        try (SampleQueryEngine.Cursor cursor = engine.open(query)) {
+            while (cursor.next()) {
+                assertEquals(PHONE, cursor.getPhone());
+                final float dx = cursor.getX() - 50.005f;
+                assertTrue(Math.abs(dx) <= 5f);
+                assertEquals((cursor.getTimeMillis() - HOUR) / 1000f, cursor.getX(), 1e-3f);
+                assertEquals(0f, cursor.getY(), 0f);
+                rows.add(new long[]{cursor.getTimeMillis(), (long) cursor.get(SensorFrame.MAG)});
+            }
+        }
+        assertConsecutive(rows, HOUR + 45_010, HOUR + 55_000);
+        //与时间范围同时使用
+        final List<long[]> clipped = query(new SampleQueryEngine.Query().near(50.005f, 0f, 5f)
+                .timeRange(HOUR + 50_000, HOUR + 60_000));
+        assertConsecutive(clipped, HOUR + 50_000, HOUR + 55_000);
+        assertTrue(query(new SampleQueryEngine.Query().near(50f, 30f, 5f)).isEmpty());
+    }
+
+    /**
+     * @return 每行为{时间戳, 磁场x分量}
+     */
+    private List<long[]> query(SampleQueryEngine.Query query) throws IOException {
+        final List<long[]> rows = new ArrayList<>();
+        try (SampleQueryEngine.Cursor cursor = new SampleQueryEngine(store, 2.0f).open(query)) {
+            while (cursor.next()) {
+                rows.add(new long[]{cursor.getTimeMillis(), (long) cursor.get(SensorFrame.MAG)});
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * rows恰好是第一个小时起、时间在[from, to]内的全部样本.
+     */
+    private static void assertConsecutive(List<long[]> rows, long from, long to) {
+        assertEquals((to - from) / STEP_MILLIS + 1, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            final long time = from + i * STEP_MILLIS;
+            assertEquals(time, rows.get(i)[0]);
+            assertEquals(sampleIndex(time), rows.get(i)[1]);
+        }
+    }
+
+    private static long sampleIndex(long time) {
+        return time < HOUR + SampleStore.PARTITION_MILLIS
+                ? (time - HOUR) / STEP_MILLIS
+                : SEGMENT_ROWS + (time - HOUR - SampleStore.PARTITION_MILLIS) / STEP_MILLIS;
+    }
+
+    /**
+     * 从start起每10ms一个样本，磁场x分量依次为firstValue, firstValue + 1, ...
+     */
+    private static void writeSamples(SampleStore store, String phone, long start, int count, int firstValue)
+            throws Exception {
+        final SampleStore.Device device = store.device(phone);
+        final SampleStore.Batch batch = new SampleStore.Batch(device.id, 500);
+        final float[] frame = new float[SensorFrame.SIZE];
+        frame[SensorFrame.QUAT + 3] = 1f;
+        for (int i = 0; i < count; i++) {
+            frame[SensorFrame.MAG] = firstValue + i;
+            batch.addSample(start + i * STEP_MILLIS, frame, 0);
+            if (batch.isFull()) {
+                store.sync(store.write(batch)).get();
+            }
+        }
+        if (!batch.isEmpty()) {
+            store.sync(store.write(batch)).get();
+        }
+    }
+
+    private static void writeMark(SampleStore store, String phone, long time, float x, float y) throws Exception {
+        final SampleStore.Batch batch = new SampleStore.Batch(store.device(phone).id, 1);
+        final byte[] record = (MarkPointTrack.MARK_RECORD_TAG + ',' + time + ",0,P," + x + ',' + y)
+                .getBytes(StandardCharsets.US_ASCII);
+        batch.addRecord(time, record, 0, record.length);
+        store.sync(store.write(batch)).get();
+    }
+}
@@ -0,0 +1,178 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SampleStore}的崩溃恢复：已同步的数据在进程异常退出后由日志重放，已写成段的数据不重复重放.
+ */
+public class SampleStoreTest {
+    private static final String PHONE = "13800000000";
+
+    private static final long START_MILLIS = 1_700_000_000_000L;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("store").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replaysSyncedBatchesAfterCrash() throws Exception {
+        final File live = new File(dir, "live");
+        final File crashed = new File(dir, "crashed");
+        final SampleStore store = new SampleStore(live);
+        try {
+            writeSamples(store, 0, 1000);
+            //复制同步后的目录，相当于进程在此刻被杀死：内存表都还没有写成段
+            copyTree(live.toPath(), crashed.toPath());
+        } finally {
+            store.close();
+        }
+
+        final SampleStore recovered = new SampleStore(crashed);
+        try {
+            assertNotNull(recovered.findDevice(PHONE));
+            assertEquals(0, segmentRows(recovered));
+            assertEquals(1000, memTableRows(recovered));
+            //重放后可以继续写入
+            writeSamples(recovered, 1000, 500);
+            assertEquals(1500, memTableRows(recovered));
+        } finally {
+            recovered.close();
+        }
+
+        final SampleStore reopened = new SampleStore(crashed);
+        try {
+            assertEquals(1500, segmentRows(reopened));
+            assertEquals(0, memTableRows(reopened));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void flushedDataIsNotReplayedAgain() throws Exception {
+        final File root = new File(dir, "store");
+        final SampleStore store = new SampleStore(root);
+        try {
+            writeSamples(store, 0, 300);
+        } finally {
+            store.close();
+        }
+        //关闭时写出了段，日志文件仍在，重放时要按分区的LSN跳过
+        for (int i = 0; i < 2; i++) {
+            final SampleStore reopened = new SampleStore(root);
+            try {
+                assertEquals(300, segmentRows(reopened));
+                assertEquals(0, memTableRows(reopened));
+            } finally {
+                reopened.close();
+            }
+        }
+    }
+
+    @Test
+    public void rowsAreSplitByHour() throws Exception {
+        final File root = new File(dir, "store");
+        final SampleStore store = new SampleStore(root);
+        try {
+            final SampleStore.Device device = store.device(PHONE);
+            final SampleStore.Batch batch = new SampleStore.Batch(device.id, 4);
+            final long hour = SampleStore.hourStart(START_MILLIS);
+            batch.addSample(hour + SampleStore.PARTITION_MILLIS - 1, frame(0), 0);
+            batch.addSample(hour + SampleStore.PARTITION_MILLIS, frame(1), 0);
+            batch.addSample(hour, frame(2), 0);
+            store.sync(store.write(batch)).get();
+            assertEquals(2, store.getPartitions().size());
+            assertEquals(2, store.getPartitions(device, hour, hour + SampleStore.PARTITION_MILLIS - 1).get(0).active.rows);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void secondWriterIsRejected() throws Exception {
+        final File root = new File(dir, "store");
+        final SampleStore store = new SampleStore(root);
+        try {
+            new SampleStore(root).close();
+            fail("second writer opened a locked store");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("in use"));
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * 以每批100个写入count个样本，每批都等待落盘.
+     */
+    private static void writeSamples(SampleStore store, int from, int count) throws Exception {
+        final SampleStore.Device device = store.device(PHONE);
+        final SampleStore.Batch batch = new SampleStore.Batch(device.id, 100);
+        for (int i = from; i < from + count; i++) {
+            batch.addSample(START_MILLIS + i * 10L, frame(i), 0);
+            if (batch.isFull()) {
+                store.sync(store.write(batch)).get();
+            }
+        }
+        if (!batch.isEmpty()) {
+            store.sync(store.write(batch)).get();
+        }
+    }
+
+    private static float[] frame(int i) {
+        final float[] frame = new float[SensorFrame.SIZE];
+        frame[SensorFrame.MAG] = i;
+        frame[SensorFrame.QUAT + 3] = 1f;
+        return frame;
+    }
+
+    private static int segmentRows(SampleStore store) {
+        int rows = 0;
+        for (SampleStore.Partition partition : store.getPartitions()) {
+            for (SampleStore.SegmentInfo segment : partition.segments) {
+                rows += segment.rowCount;
+            }
+        }
+        return rows;
+    }
+
+    private static int memTableRows(SampleStore store) {
+        int rows = 0;
+        for (SampleStore.Partition partition : store.getPartitions()) {
+            synchronized (partition) {
+                rows += partition.active.rows;
+            }
+        }
+        return rows;
+    }
+
+    private static void copyTree(Path from, Path to) throws IOException {
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.copy(path, to.resolve(from.relativize(path)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
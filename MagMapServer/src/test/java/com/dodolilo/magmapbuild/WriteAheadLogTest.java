@@ -0,0 +1,160 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link WriteAheadLog}的重放：写了一半的批被截掉，只重放已同步的前缀，重新打开后日志仍连续.
+ */
+public class WriteAheadLogTest {
+    private static final int DEVICE_ID = 3;
+
+    private static final int SAMPLES_PER_BATCH = 10;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void replaysSyncedPrefixAfterTruncation() throws Exception {
+        final long[] lsns = new long[3];
+        final WriteAheadLog wal = new WriteAheadLog(dir, 0L);
+        try {
+            for (int b = 0; b < lsns.length; b++) {
+                lsns[b] = wal.append(batch(b));
+                wal.sync(lsns[b]).get();
+            }
+        } finally {
+            wal.close();
+        }
+        final File log = onlyLogFile();
+        //每批单独提交：批头16字节加负载
+        assertEquals(lsns[2] + 3 * 16, log.length());
+
+        //最后一批写了一半时进程退出
+        try (RandomAccessFile raf = new RandomAccessFile(log, "rw")) {
+            raf.setLength(log.length() - WriteAheadLog.SAMPLE_BYTES - 7);
+        }
+        final List<Long> times = new ArrayList<>();
+        final List<Long> replayedLsns = new ArrayList<>();
+        final long endLsn = replay(times, replayedLsns);
+        assertEquals(lsns[1], endLsn);
+        assertEquals(2 * SAMPLES_PER_BATCH, times.size());
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(i, (long) times.get(i));
+            assertEquals((i + 1) * (long) WriteAheadLog.SAMPLE_BYTES, (long) replayedLsns.get(i));
+        }
+
+        //从重放结束处继续写，截断的尾部之后是新文件
+        final WriteAheadLog reopened = new WriteAheadLog(dir, endLsn);
+        final long lsn;
+        try {
+            lsn = reopened.append(batch(5));
+            reopened.sync(lsn).get();
+        } finally {
+            reopened.close();
+        }
+        times.clear();
+        replayedLsns.clear();
+        assertEquals(lsn, replay(times, replayedLsns));
+        assertEquals(3 * SAMPLES_PER_BATCH, times.size());
+        assertEquals(5L * SAMPLES_PER_BATCH, (long) times.get(2 * SAMPLES_PER_BATCH));
+        assertEquals(lsn, (long) replayedLsns.get(replayedLsns.size() - 1));
+    }
+
+    @Test
+    public void stopsAtCorruptedBatch() throws Exception {
+        final long[] lsns = new long[3];
+        final WriteAheadLog wal = new WriteAheadLog(dir, 0L);
+        try {
+            for (int b = 0; b < lsns.length; b++) {
+                lsns[b] = wal.append(batch(b));
+                wal.sync(lsns[b]).get();
+            }
+        } finally {
+            wal.close();
+        }
+        //改动第二批负载中的一个字节，CRC不再匹配
+        try (RandomAccessFile raf = new RandomAccessFile(onlyLogFile(), "rw")) {
+            final long offset = lsns[0] + 16 + 16 + 5;
+            raf.seek(offset);
+            final int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xFF);
+        }
+        final List<Long> times = new ArrayList<>();
+        assertEquals(lsns[0], replay(times, new ArrayList<>()));
+        assertEquals(SAMPLES_PER_BATCH, times.size());
+    }
+
+    @Test
+    public void emptyDirectoryReplaysNothing() throws IOException {
+        final List<Long> times = new ArrayList<>();
+        assertEquals(0L, replay(times, new ArrayList<>()));
+        assertTrue(times.isEmpty());
+    }
+
+    /**
+     * 第b批：时间为b * SAMPLES_PER_BATCH起的连续整数.
+     */
+    private static ByteBuffer batch(int b) {
+        final ByteBuffer buffer = ByteBuffer.allocate(SAMPLES_PER_BATCH * WriteAheadLog.SAMPLE_BYTES);
+        final float[] frame = new float[SensorFrame.SIZE];
+        for (int i = 0; i < SAMPLES_PER_BATCH; i++) {
+            final long time = (long) b * SAMPLES_PER_BATCH + i;
+            frame[SensorFrame.MAG] = time;
+            WriteAheadLog.putSample(buffer, DEVICE_ID, time, frame, 0);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private long replay(final List<Long> times, final List<Long> lsns) throws IOException {
+        return WriteAheadLog.replay(dir, new WriteAheadLog.RecordVisitor() {
+            @Override
+            public void onSample(long lsn, int deviceId, long timeMillis, float[] frame) {
+                assertEquals(DEVICE_ID, deviceId);
+                assertEquals(timeMillis, frame[SensorFrame.MAG], 0f);
+                times.add(timeMillis);
+                lsns.add(lsn);
+            }
+
+            @Override
+            public void onRecord(long lsn, int deviceId, long timeMillis, byte[] record) {
+                fail("unexpected record");
+            }
+        });
+    }
+
+    private File onlyLogFile() {
+        final File[] files = dir.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+}
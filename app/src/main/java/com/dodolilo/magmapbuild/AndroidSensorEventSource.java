@@ -0,0 +1,74 @@
+package com.dodolilo.magmapbuild;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+/**
+ * 基于SensorManager的传感器事件来源.
+ * 需要使用加速度计、陀螺仪、磁力计、方向四元数这4个传感器.
+ */
+class AndroidSensorEventSource implements SensorEventSource {
+    /**
+     * 各传感器类型，下标与{@link TimelineQualityMonitor#ACC}等一致.
+     */
+    private static final int[] SENSOR_TYPES = {
+            Sensor.TYPE_ACCELEROMETER,
+            Sensor.TYPE_GYROSCOPE,
+            Sensor.TYPE_MAGNETIC_FIELD,
+            Sensor.TYPE_GAME_ROTATION_VECTOR
+    };
+
+    private final SensorManager sensorManager;
+
+    private final Sensor[] sensors = new Sensor[TimelineQualityMonitor.SENSOR_COUNT];
+
+    private final SensorEventListener[] listeners = new SensorEventListener[TimelineQualityMonitor.SENSOR_COUNT];
+
+    AndroidSensorEventSource(Context context) {
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    }
+
+    @Override
+    public boolean start(int samplingPeriodUs, SensorEventCallback callback) {
+        stop();
+        //重新获取传感器对象引用，检查该手机的传感器是否可用，如存在不可用的，则启动失败
+        for (int i = 0; i < SENSOR_TYPES.length; i++) {
+            sensors[i] = sensorManager.getDefaultSensor(SENSOR_TYPES[i]);
+            if (sensors[i] == null) {
+                return false;
+            }
+        }
+        for (int i = 0; i < SENSOR_TYPES.length; i++) {
+            final int index = i;
+            listeners[i] = new SensorEventListener() {
+                @Override
+                public void onSensorChanged(SensorEvent event) {
+                    callback.onSensorEvent(index, event.timestamp, event.values);
+                }
+
+                @Override
+                public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                    callback.onAccuracyChanged(index, accuracy);
+                }
+            };
+            if (!sensorManager.registerListener(listeners[i], sensors[i], samplingPeriodUs)) {
+                stop();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] != null) {
+                sensorManager.unregisterListener(listeners[i], sensors[i]);
+                listeners[i] = null;
+            }
+        }
+    }
+}
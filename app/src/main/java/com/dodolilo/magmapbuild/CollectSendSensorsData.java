@@ -2,15 +2,21 @@ package com.dodolilo.magmapbuild;
 
 import android.app.Activity;
 import android.content.Context;
-import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
 import android.widget.Toast;
 
+import net.jcip.annotations.GuardedBy;
+
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.security.InvalidParameterException;
+import java.util.concurrent.CompletableFuture;
+import java.util.Map;
 import java.util.TreeMap;
 
+import javax.net.ssl.SSLContext;
+
 /**
  * 采集并发送数据，封装SensorBee与SentDataBySocket.
  * 使用后必须在Android的onDestroy中调用leavingTheRoom()方法来停止工作.
@@ -24,6 +30,8 @@ public class CollectSendSensorsData {
      */
     private static CollectSendSensorsData singleInstance = new CollectSendSensorsData();
 
+    private static final String TAG = "CollectSendSensorsData";
+
     private Context context;
 
     /**
@@ -42,9 +50,34 @@ public class CollectSendSensorsData {
     private String userPhone = "123456789";
 
     /**
-     * 数据采集对象
+     * 上传数据的输出频率（Hz），仅建磁图时可设为10~50Hz以减少上传量；不低于采样频率时不做降采样.
+     */
+    private int uploadRateHz = 200;
+
+    /**
+     * 上传数据的坐标系：手机坐标系的原始数据、世界坐标系的数据或只有磁场特征.
+     */
+    private WorldFrameTransform.UploadFrame uploadFrame = WorldFrameTransform.UploadFrame.DEVICE;
+
+    /**
+     * 静止时的采样频率（Hz），上传频率随之降低；0表示不随运动状态调整.只对实时采集的SensorsBee生效.
+     */
+    private int stillSamplingRateHz = SensorsBee.DEFAULT_STILL_SAMPLING_FREQUENCY;
+
+    /**
+     * 随数据流向服务器推送度量帧的周期（ms），0表示不推送.
+     */
+    private long metricsFramePeriodMs = 0;
+
+    /**
+     * 样本来源：实时采集对象SensorsBee，或离线回放的SessionReplaySource
+     */
+    private SampleSource sampleSource;
+
+    /**
+     * 创建到服务器连接的工厂，随单例存在，TLS连接因此可以在多次会话、多次重连之间复用TLS会话.
      */
-    private SensorsBee sensorsBee;
+    private StreamTransport.Factory transportFactory = StreamTransport.PLAIN;
 
     /**
      * 数据发送对象
@@ -52,10 +85,106 @@ public class CollectSendSensorsData {
     private SentDataBySocket dataSentor;
 
     /**
-     * 该单例最新的状态：false 不处于可定位场景中；true 处于预设场景中
+     * 编码级，未进入机房时为null.
+     */
+    private SampleEncoderStage encoderStage;
+
+    /**
+     * 采样、编码、发送队列的容量：5秒的200Hz样本.
+     */
+    private static final int SAMPLE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * 重新进入机房前，等待上一次的各级线程结束的时间上限（ms），这段等待不在UI线程中进行.
+     */
+    private static final long STAGE_JOIN_TIME_OUT = 1000;
+
+    /**
+     * 运行采样、编码、发送等各级线程的调度器，随单例存在，保证任何时候旧线程都可被取消与回收.
+     */
+    private final PipelineScheduler scheduler = new PipelineScheduler("MagMap");
+
+    /**
+     * 当前（或最近一次）采集会话，从未进入过机房时为null.
+     * 是否处于机房中由会话状态决定，不再使用单独的标志位.
+     */
+    private volatile SessionController session = null;
+
+    /**
+     * 会话代数，每次leavingTheRoom()加一，用于作废在其之前发起、尚未开始的异步启动.
+     */
+    @GuardedBy("this")
+    private long sessionGeneration = 0L;
+
+    /**
+     * 磁图瓦片缓存占用堆内存的上限：8MB.
+     */
+    private static final long MAP_TILE_BYTE_BUDGET = 8L << 20;
+
+    /**
+     * 各楼宇、楼层的磁图瓦片管理器，随单例存在，切换楼层时已加载的瓦片可继续复用.
+     */
+    private final MapTileManager mapTileManager = new MapTileManager(MAP_TILE_BYTE_BUDGET);
+
+    /**
+     * 当前所在的楼宇与楼层，未设置时activeBuilding为null.
+     */
+    private volatile String activeBuilding = null;
+
+    private volatile int activeFloor = 0;
+
+    /**
+     * 点名 -> 坐标，用于将打点解析为坐标，未设置时打点只记录点名.
+     */
+    private volatile PointTable pointTable = null;
+
+    /**
+     * 覆盖度网格的格子边长与打点包围盒的外扩（m），热力图的最大边长（像素）.
+     */
+    private static final float COVERAGE_CELL_SIZE = 1f;
+
+    private static final float COVERAGE_MARGIN = 2f;
+
+    private static final int HEATMAP_MAX_SIDE = 256;
+
+    /**
+     * 采集现场的覆盖度统计，跨会话累计；设置打点表时重建，没有打点表时为null.
+     */
+    private volatile CoverageEngine coverage = null;
+
+    private volatile CoverageEngine.HeatmapListener heatmapListener = null;
+
+    private CoverageEngine.RenderStage coverageRenderStage = null;
+
+    /**
+     * Wi-Fi/BLE指纹采集，与磁场数据进入同一数据流；没有权限时自动跳过.
+     */
+    private RfScanCollector rfScanCollector = null;
+
+    private boolean rfScanEnabled = true;
+
+    /**
+     * 实时定位UDP流的服务器端口，0表示不开启；输出频率（Hz）与是否附加FEC校验数据报.
      */
-    private boolean inTheRoom = false;
+    private int liveUdpPort = 0;
+
+    private int liveUdpRateHz = 50;
+
+    private boolean liveUdpFec = true;
+
+    /**
+     * 每个UDP数据报的样本数，以及每组数据报的个数（每组附加一个校验数据报）.
+     */
+    private static final int LIVE_UDP_SAMPLES_PER_PACKET = 20;
+
+    private static final int LIVE_UDP_PARITY_GROUP = 4;
+
+    private UdpStreamSender liveUdpSender = null;
 
+    /**
+     * 当前（或最近一次）会话的打点通道.
+     */
+    private volatile MarkEventChannel markChannel = null;
 
     /**
      * 返回该类单例，同时强制初始化参数.后续参数变化可用setter改变.
@@ -101,36 +230,258 @@ public class CollectSendSensorsData {
     public boolean enteringTheRoom() {
         //单例模式，在对唯一的对象启动线程时，先调用leavingTheRoom();
         //此时就不会出现一直占用服务器唯一的socket连接的情况了！因为在下一次使用前，保证了旧线程的死亡
-        leavingTheRoom();
-        //共享数据缓存，第一行固定为电话号码
-        StringBuilder sharedBuffer = new StringBuilder();
-        sharedBuffer.append(userPhone.concat("\n"));
+        final long generation = leavingTheRoom();
+        scheduler.joinAll(STAGE_JOIN_TIME_OUT);
+        return startSession(generation);
+    }
+
+    /**
+     * {@link #enteringTheRoom()}的异步版本，供UI线程使用：立即停止旧会话，
+     * 在后台线程中等待旧线程结束后再启动新会话，不阻塞UI线程.
+     * 启动完成前调用了leavingTheRoom()时，新会话不再启动，future给出false.
+     *
+     * @return 启动结果，回调在后台线程中执行，更新UI需要自行切换到UI线程
+     */
+    public CompletableFuture<Boolean> enteringTheRoomAsync() {
+        final long generation = leavingTheRoom();
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        scheduler.start(new PipelineStage("enter", Process.THREAD_PRIORITY_DEFAULT) {
+            @Override
+            protected void runStage() {
+                try {
+                    scheduler.joinAll(STAGE_JOIN_TIME_OUT);
+                    result.complete(startSession(generation));
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 启动新会话的各级线程.
+     *
+     * @param generation 调用leavingTheRoom()时得到的代数，此后又调用过leavingTheRoom()则不再启动
+     */
+    private synchronized boolean startSession(long generation) {
+        if (generation != sessionGeneration) {
+            return false;
+        }
+        SessionController newSession = new SessionController();
+        newSession.start();
+        //共享数据缓存；手机号与坐标系声明不放在缓存中，由发送级在每次连接时发送
+        StreamSpool sharedBuffer = new StreamSpool();
+        if (sampleSource instanceof SensorsBee) {
+            ((SensorsBee) sampleSource).setStillSamplingFrequency(
+                    Math.min(stillSamplingRateHz, sampleSource.getSamplingFrequency()));
+        }
+        //降采样滤波器组：每个消费者按自己的频率接收样本
+        DownsampleFilterBank filterBank = new DownsampleFilterBank(sampleSource.getSamplingFrequency());
+        filterBank.addConsumer(uploadRateHz, createUploadEncoder(sharedBuffer));
+        if (liveUdpPort > 0) {
+            //通道在编码线程中打开；实时流不可用时仍然进行建图数据的采集与TCP上传
+            final long sessionId = ((long) userPhone.hashCode() << 32) ^ System.currentTimeMillis();
+            liveUdpSender = new UdpStreamSender(serverIP, liveUdpPort, sessionId,
+                    LIVE_UDP_SAMPLES_PER_PACKET, liveUdpFec ? LIVE_UDP_PARITY_GROUP : 0);
+            filterBank.addConsumer(liveUdpRateHz, liveUdpSender);
+        }
+        final CoverageEngine currentCoverage = coverage;
+        if (currentCoverage != null) {
+            //上一个会话的编码线程已在进入机房前结束，不会与重置并发
+            currentCoverage.startTrack();
+            filterBank.addConsumer(CoverageEngine.INPUT_RATE_HZ, currentCoverage);
+        }
+        //采样级 -> 有界队列 -> 编码级（滤波器组与编码器） -> 共享缓存 -> 发送级
+        SampleQueue sampleQueue = new SampleQueue(SAMPLE_QUEUE_CAPACITY);
+        //会话尾记录：如时间线质量汇总与磁力计校准质量
+        for (SessionFooter footer : sampleSource.getSessionFooters()) {
+            newSession.addFooter(footer);
+        }
         //启动数据采集
-        if (!sensorsBee.startSensorRecord(sharedBuffer)) {
+        if (!sampleSource.startSensorRecord(sampleQueue, newSession, scheduler)) {
+            newSession.fail(new IllegalStateException("Sensors start failed."));
             return false;
         }
+        encoderStage = new SampleEncoderStage(sampleQueue, filterBank, sharedBuffer, newSession);
+        scheduler.start(encoderStage);
         //重新声明数据发送实例，启动数据发送
-        dataSentor = SentDataBySocket.sentDataWithFixedDelay(serverIP, serverPort, sharedBuffer, context);
-        dataSentor.startSentData();
-        inTheRoom = true;
+        dataSentor = SentDataBySocket.sentDataWithFixedDelay(serverIP, serverPort, sharedBuffer, newSession, context);
+        dataSentor.setConnectionHeader(userPhone.concat("\n"));
+        if (uploadFrame != WorldFrameTransform.UploadFrame.DEVICE) {
+            dataSentor.setFrameRecord(uploadFrame.toRecord(System.currentTimeMillis()));
+        }
+        dataSentor.setMetricsFramePeriodMs(metricsFramePeriodMs);
+        dataSentor.setTransportFactory(transportFactory);
+        //会话结束时写出最终的时钟偏移模型
+        newSession.addFooter(dataSentor.getClockSync());
+        dataSentor.startSentData(scheduler);
+        mapTileManager.start(scheduler);
+        markChannel = new MarkEventChannel(newSession, pointTable);
+        if (rfScanEnabled) {
+            if (rfScanCollector == null) {
+                rfScanCollector = new RfScanCollector(context);
+            }
+            rfScanCollector.start(newSession);
+        }
+        final CoverageEngine.HeatmapListener listener = heatmapListener;
+        if (currentCoverage != null && listener != null) {
+            coverageRenderStage = new CoverageEngine.RenderStage(currentCoverage, listener, HEATMAP_MAX_SIDE);
+            scheduler.start(coverageRenderStage);
+        }
+        session = newSession;
         return true;
     }
 
+    /**
+     * @return 按uploadFrame将样本编码进发送数据缓存的消费者
+     */
+    private SampleSink createUploadEncoder(StreamSpool spool) {
+        switch (uploadFrame) {
+            case WORLD:
+                return new WorldFrameTransform(new CsvSpoolEncoder(spool));
+            case FEATURES:
+                return new WorldFrameTransform(new WorldFrameTransform.FeatureEncoder(spool));
+            default:
+                return new CsvSpoolEncoder(spool);
+        }
+    }
+
     /**
      * 结束传感器数据采集线程、注销传感器，结束数据发送线程.
+     * 会话进入DRAINING，剩余数据发送并被服务器确认后，{@link #getSessionCompletion()}完成.
+     * 只请求各级结束，不等待线程退出，可以在UI线程中调用.
+     *
+     * @return 新的会话代数，尚未开始的异步启动因此作废
      */
-    public void leavingTheRoom() {
-        if (sensorsBee != null) {
-            sensorsBee.stopSensorRecord();
+    public synchronized long leavingTheRoom() {
+        sessionGeneration++;
+        final SessionController current = session;
+        final boolean wasInTheRoom = current != null && current.beginDraining();
+        if (sampleSource != null) {
+            sampleSource.stopSensorRecord();
+        }
+        //在编码级结束前停止扫描，已提交的扫描记录仍会被写入
+        if (rfScanCollector != null) {
+            rfScanCollector.stop();
+        }
+        //编码级在采样级之后结束，会先排空队列中剩余的样本
+        if (encoderStage != null) {
+            encoderStage.cancel();
         }
         if (dataSentor != null) {
             dataSentor.finishSentData();
         }
-        inTheRoom = false;
+        if (liveUdpSender != null) {
+            liveUdpSender.close();
+            liveUdpSender = null;
+        }
+        mapTileManager.stop();
+        if (coverageRenderStage != null) {
+            coverageRenderStage.cancel();
+            coverageRenderStage = null;
+        }
+        if (wasInTheRoom) {
+            Log.i(TAG, "Stage throughput:\n".concat(scheduler.describeThroughput()));
+            Log.i(TAG, "Metrics:\n".concat(getMetricsSnapshot()));
+        }
+        return sessionGeneration;
     }
 
     public boolean isInTheRoom() {
-        return inTheRoom;
+        final SessionController current = session;
+        return current != null && current.isActive();
+    }
+
+    /**
+     * @return 采样率、丢样、发送字节、flush延迟、重连等度量的当前快照，每个度量一行
+     */
+    public String getMetricsSnapshot() {
+        return MetricsRegistry.getInstance().snapshot();
+    }
+
+    /**
+     * 最近一次会话的完成future：正常完成代表所有数据都已被服务器确认，异常完成代表数据尾部可能丢失.
+     * 回调在发送线程中执行，更新UI需要自行切换到UI线程.
+     *
+     * @return null 如果从未进入过机房
+     */
+    public CompletableFuture<Void> getSessionCompletion() {
+        final SessionController current = session;
+        return current == null ? null : current.getCompletion();
+    }
+
+    /**
+     * 在当前位置打点，打点随数据流实时上传.
+     *
+     * @param pointName 点名（点的下标）
+     * @return 打点事件，不在机房中时为null
+     * @throws InvalidParameterException 点名为空或含有','、换行
+     */
+    public MarkEventChannel.MarkEvent markPoint(String pointName) throws InvalidParameterException {
+        final MarkEventChannel channel = markChannel;
+        if (channel == null || !isInTheRoom()) {
+            return null;
+        }
+        final MarkEventChannel.MarkEvent event = channel.mark(pointName);
+        final CoverageEngine currentCoverage = coverage;
+        if (currentCoverage != null) {
+            currentCoverage.onMark(event);
+        }
+        return event;
+    }
+
+    /**
+     * @return 采集现场的覆盖度统计，没有设置打点表时为null
+     */
+    public CoverageEngine getCoverage() {
+        return coverage;
+    }
+
+    /**
+     * 设置覆盖度热力图的回调，在下一次进入机房时生效.回调在后台渲染线程中执行.
+     */
+    public void setHeatmapListener(CoverageEngine.HeatmapListener heatmapListener) {
+        this.heatmapListener = heatmapListener;
+    }
+
+    /**
+     * 在后台把已记录的会话导出为应用外部存储cache文件夹中的csv，导出过程只占用一块写缓冲的内存.
+     *
+     * @param sessionFile 会话文件，".mmsb"为二进制，其余按csv读取
+     * @param fileName    导出的文件名，不以".csv"结尾时自动补上
+     * @param listener    进度回调，在导出线程中调用，可为null
+     * @return 导出完成时给出样本行数，失败时异常完成
+     */
+    public CompletableFuture<Long> exportSessionCsv(File sessionFile, String fileName,
+                                                    CsvStreamExporter.ProgressListener listener) {
+        final String suffix = CsvDataTools.FileSaveType.CSV.getFileType();
+        final File target = new File(context.getExternalCacheDir(),
+                fileName.endsWith(suffix) ? fileName : fileName.concat(suffix));
+        final CsvStreamExporter.ExportStage stage = new CsvStreamExporter.ExportStage(sessionFile, target, null, listener);
+        scheduler.start(stage);
+        return stage.getResult();
+    }
+
+    /**
+     * @return 当前（或最近一次）会话的打点通道，从未进入过机房时为null
+     */
+    public MarkEventChannel getMarkChannel() {
+        return markChannel;
+    }
+
+    /**
+     * 位置估计更新时调用，加载当前磁图中所在的瓦片并沿行走方向预取.
+     *
+     * @param heading 行走方向（弧度），未知时传NaN
+     * @return 当前所在瓦片，未设置当前磁图或位置不在磁图内时为null
+     */
+    public MapTileManager.Tile updatePosition(float x, float y, float heading) {
+        final String building = activeBuilding;
+        if (building == null) {
+            return null;
+        }
+        return mapTileManager.updatePosition(building, activeFloor, x, y, heading);
     }
 
     /**
@@ -139,35 +490,46 @@ public class CollectSendSensorsData {
      * @param activity 显示UI提醒的activity的实例引用
      */
     private void pretestConnection(Activity activity) {
-        new Thread(() -> {
-            Socket socket = null;
-            Boolean connectSucceed = false;
-            try {
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(serverIP, serverPort), 3000);
-                socket.sendUrgentData(0xFF);
-                connectSucceed = true;
-
-            } catch (IOException e) {
-                connectSucceed = false;
-            } finally {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+        scheduler.start(new PipelineStage("pretest", Process.THREAD_PRIORITY_BACKGROUND) {
+            @Override
+            protected void runStage() {
+                pretestConnectionOnce(activity);
+            }
+        });
+    }
 
-                if (connectSucceed) {
-                    activity.runOnUiThread(() -> MessageBuilder.showMessageWithOK(context, "测试连接", "连接成功"));
-//                    activity.runOnUiThread(()-> Toast.makeText(context, "测试连接成功！", Toast.LENGTH_LONG).show());
-                } else {
-                    activity.runOnUiThread(() -> MessageBuilder.showMessageWithOK(context, "测试连接", "连接失败"));
-//                    activity.runOnUiThread(()-> Toast.makeText(context, "测试连接失败！", Toast.LENGTH_LONG).show());
+    /**
+     * 在当前线程中测试一次连接，并在UI线程中提示结果.
+     */
+    private void pretestConnectionOnce(Activity activity) {
+        //TLS连接的测试同时完成一次完整握手，进入机房后的第一次连接即可复用会话
+        StreamTransport transport = null;
+        Boolean connectSucceed = false;
+        try {
+            transport = transportFactory.create();
+            transport.connect(serverIP, serverPort, 3000);
+            transport.probe();
+            connectSucceed = true;
+
+        } catch (IOException e) {
+            connectSucceed = false;
+        } finally {
+            if (transport != null) {
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
-        }).start();
+
+            if (connectSucceed) {
+                activity.runOnUiThread(() -> MessageBuilder.showMessageWithOK(context, "测试连接", "连接成功"));
+//                activity.runOnUiThread(()-> Toast.makeText(context, "测试连接成功！", Toast.LENGTH_LONG).show());
+            } else {
+                activity.runOnUiThread(() -> MessageBuilder.showMessageWithOK(context, "测试连接", "连接失败"));
+//                activity.runOnUiThread(()-> Toast.makeText(context, "测试连接失败！", Toast.LENGTH_LONG).show());
+            }
+        }
     }
 
 
@@ -194,6 +556,15 @@ public class CollectSendSensorsData {
         this.serverIP = serverIP;
     }
 
+    /**
+     * 设置与服务器之间的TLS加密，下次进入机房时生效.
+     *
+     * @param sslContext 信任服务器证书的SSLContext，null表示使用明文TCP
+     */
+    public void setTlsContext(SSLContext sslContext) {
+        this.transportFactory = sslContext == null ? StreamTransport.PLAIN : new TlsChannelTransport.Factory(sslContext);
+    }
+
     public int getServerPort() {
         return serverPort;
     }
@@ -213,10 +584,149 @@ public class CollectSendSensorsData {
         this.userPhone = userPhone;
     }
 
+    public int getUploadRateHz() {
+        return uploadRateHz;
+    }
+
+    public void setUploadRateHz(int uploadRateHz) throws InvalidParameterException {
+        if (uploadRateHz <= 0) {
+            throw new InvalidParameterException("Param uploadRateHz must be positive");
+        }
+        this.uploadRateHz = uploadRateHz;
+    }
+
+    public WorldFrameTransform.UploadFrame getUploadFrame() {
+        return uploadFrame;
+    }
+
+    /**
+     * 设置上传数据的坐标系，在下一次进入机房时生效.
+     * WORLD与FEATURES在手机上完成旋转，服务器不再逐帧旋转；只需要磁场特征时用FEATURES，上传量约为原来的1/4.
+     */
+    public void setUploadFrame(WorldFrameTransform.UploadFrame uploadFrame) throws InvalidParameterException {
+        if (uploadFrame == null) {
+            throw new InvalidParameterException("Param uploadFrame is null");
+        }
+        this.uploadFrame = uploadFrame;
+    }
+
+    public int getStillSamplingRateHz() {
+        return stillSamplingRateHz;
+    }
+
+    /**
+     * 设置静止时的采样频率，在下一次进入机房时生效.
+     *
+     * @param stillSamplingRateHz 静止时的采样频率（Hz），0表示始终以名义采样频率采集
+     */
+    public void setStillSamplingRateHz(int stillSamplingRateHz) throws InvalidParameterException {
+        if (stillSamplingRateHz < 0) {
+            throw new InvalidParameterException("Param stillSamplingRateHz is negative");
+        }
+        this.stillSamplingRateHz = stillSamplingRateHz;
+    }
+
+    public long getMetricsFramePeriodMs() {
+        return metricsFramePeriodMs;
+    }
+
+    public void setMetricsFramePeriodMs(long metricsFramePeriodMs) throws InvalidParameterException {
+        if (metricsFramePeriodMs < 0) {
+            throw new InvalidParameterException("Param metricsFramePeriodMs is negative");
+        }
+        this.metricsFramePeriodMs = metricsFramePeriodMs;
+    }
+
+    /**
+     * 设置点名到坐标的表，在下一次进入机房时生效；同时按点的范围重建覆盖度网格.
+     *
+     * @param pointTable 如{@link CsvDataTools#readPointsFromExternalStorage(String, Context)}的结果
+     */
+    public void setPointTable(PointTable pointTable) {
+        this.pointTable = pointTable;
+        this.coverage = CoverageEngine.forPointTable(pointTable, COVERAGE_CELL_SIZE, COVERAGE_MARGIN);
+    }
+
+    /**
+     * @param pointTable 点名 -> 坐标{x, y}，如{@link CsvDataTools#changePointsCsvToMap(String)}的结果
+     * @see #setPointTable(PointTable)
+     */
+    public void setPointTable(Map<String, float[]> pointTable) {
+        setPointTable(PointTable.fromMap(pointTable));
+    }
+
+    /**
+     * 设置实时定位UDP流，在下一次进入机房时生效.UDP流与TCP上传同时进行，使用同一个服务器IP.
+     *
+     * @param port   服务器UDP端口，0表示不开启
+     * @param rateHz 实时流的输出频率（Hz）
+     * @param fec    是否每4个数据报附加一个异或校验数据报
+     */
+    public void setLiveStreaming(int port, int rateHz, boolean fec) throws InvalidParameterException {
+        if (port < 0 || rateHz <= 0) {
+            throw new InvalidParameterException("Param port is negative or rateHz is not positive");
+        }
+        this.liveUdpPort = port;
+        this.liveUdpRateHz = rateHz;
+        this.liveUdpFec = fec;
+    }
+
+    public boolean isRfScanEnabled() {
+        return rfScanEnabled;
+    }
+
+    /**
+     * 是否同时采集Wi-Fi/BLE指纹，在下一次进入机房时生效.
+     */
+    public void setRfScanEnabled(boolean rfScanEnabled) {
+        this.rfScanEnabled = rfScanEnabled;
+    }
+
+    /**
+     * 登记某楼宇某楼层的磁图文件（{@link MagMapFile}格式）.
+     */
+    public void registerMap(String building, int floor, File mapFile) throws InvalidParameterException {
+        if (mapFile == null) {
+            throw new InvalidParameterException("Param mapFile is null");
+        }
+        mapTileManager.registerMap(building, floor, mapFile);
+    }
+
+    /**
+     * 切换当前所在的楼宇与楼层.
+     */
+    public void setActiveMap(String building, int floor) throws InvalidParameterException {
+        if (building == null || building.equals("")) {
+            throw new InvalidParameterException("Param building is null or empty");
+        }
+        this.activeFloor = floor;
+        this.activeBuilding = building;
+    }
+
+    public String getActiveBuilding() {
+        return activeBuilding;
+    }
+
+    public int getActiveFloor() {
+        return activeFloor;
+    }
+
+    public MapTileManager getMapTileManager() {
+        return mapTileManager;
+    }
+
     public void setSensorsBee(SensorsBee sensorsBee) throws InvalidParameterException {
-        if (sensorsBee == null) {
-            throw new InvalidParameterException("Param sensorsBee is null");
+        setSampleSource(sensorsBee);
+    }
+
+    /**
+     * 替换样本来源，例如用{@link SessionReplaySource}回放已记录的会话来驱动整条流水线.
+     * 应在enteringTheRoom()之前调用.
+     */
+    public void setSampleSource(SampleSource sampleSource) throws InvalidParameterException {
+        if (sampleSource == null) {
+            throw new InvalidParameterException("Param sampleSource is null");
         }
-        this.sensorsBee = sensorsBee;
+        this.sampleSource = sampleSource;
     }
 }
@@ -0,0 +1,419 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 采集现场的增量覆盖度统计：每个格子的样本数与总磁场强度的均值、方差，以及已访问位图.
+ * 样本的位置由相邻两次打点线性插值得到：两次打点之间的样本先缓存，下一次打点到达时按时间分配到轨迹上，
+ * 因此与离线建图（{@link MarkPointTrack}）使用同样的插值模型.
+ * 样本由滤波器组以{@link #INPUT_RATE_HZ}送入（编码线程），打点来自UI线程；
+ * 热力图由{@link RenderStage}在后台线程降采样渲染，不阻塞UI线程；图中标出离最近一次打点最近、样本数不足的几个格子，提示下一步去哪里采集.
+ */
+@ThreadSafe
+class CoverageEngine implements SampleSink {
+    /**
+     * 覆盖度统计不需要高频样本，从滤波器组以10Hz接收.
+     */
+    static final int INPUT_RATE_HZ = 10;
+
+    /**
+     * 每个格子的目标样本数：10Hz下约5秒.
+     */
+    static final int TARGET_SAMPLES = 50;
+
+    /**
+     * 两次打点之间最多缓存的样本数：10Hz下10分钟，超过后丢弃最早的样本.
+     */
+    private static final int MAX_PENDING = INPUT_RATE_HZ * 600;
+
+    /**
+     * 热力图渲染周期（ms）.
+     */
+    private static final long RENDER_PERIOD_MS = 1000;
+
+    /**
+     * 热力图中标出的建议采集格子数.
+     */
+    static final int SUGGESTIONS = 5;
+
+    private static final int COLOR_EMPTY = 0x20808080;
+    private static final int COLOR_DONE = 0xC000C853;
+    static final int COLOR_SUGGESTED = 0xE02962FF;
+
+    private final float originX;
+    private final float originY;
+    private final float cellSize;
+    private final int cols;
+    private final int rows;
+
+    @GuardedBy("this")
+    private final int[] counts;
+    @GuardedBy("this")
+    private final float[] means;
+    @GuardedBy("this")
+    private final float[] m2s;
+    @GuardedBy("this")
+    private final long[] visited;
+    @GuardedBy("this")
+    private long version = 0L;
+
+    private final Queue<MarkEventChannel.MarkEvent> marks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 以下字段只在编码线程中使用（会话之间由{@link #startTrack()}重置）：上一次有坐标的打点，以及之后尚未分配位置的样本.
+     */
+    private MarkEventChannel.MarkEvent lastMark = null;
+    private final long[] pendingTimes = new long[MAX_PENDING];
+    private final float[] pendingValues = new float[MAX_PENDING];
+    private int pendingStart = 0;
+    private int pendingSize = 0;
+    private final float[] features = new float[BatchMapBuilder.FEATURE_CHANNELS];
+
+    private volatile float lastX = Float.NaN;
+    private volatile float lastY = Float.NaN;
+
+    CoverageEngine(float originX, float originY, float cellSize, int cols, int rows) throws InvalidParameterException {
+        if (cellSize <= 0 || cols <= 0 || rows <= 0) {
+            throw new InvalidParameterException("Invalid coverage grid geometry");
+        }
+        this.originX = originX;
+        this.originY = originY;
+        this.cellSize = cellSize;
+        this.cols = cols;
+        this.rows = rows;
+        counts = new int[cols * rows];
+        means = new float[cols * rows];
+        m2s = new float[cols * rows];
+        visited = new long[(cols * rows + 63) >>> 6];
+    }
+
+    /**
+     * 以打点表中所有点的包围盒外扩margin米建立覆盖网格.
+     *
+     * @return null 如果打点表为空
+     */
+    static CoverageEngine forPointTable(PointTable pointTable, float cellSize, float margin) {
+        if (pointTable == null || pointTable.isEmpty()) {
+            return null;
+        }
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < pointTable.size(); i++) {
+            minX = Math.min(minX, pointTable.getX(i));
+            minY = Math.min(minY, pointTable.getY(i));
+            maxX = Math.max(maxX, pointTable.getX(i));
+            maxY = Math.max(maxY, pointTable.getY(i));
+        }
+        minX -= margin;
+        minY -= margin;
+        final int cols = (int) Math.ceil((maxX + margin - minX) / cellSize) + 1;
+        final int rows = (int) Math.ceil((maxY + margin - minY) / cellSize) + 1;
+        return new CoverageEngine(minX, minY, cellSize, cols, rows);
+    }
+
+    /**
+     * 新会话开始时调用：丢弃上一个会话的打点与未分配位置的样本，已累计的覆盖度保留.
+     * 必须在上一个会话的编码线程结束之后、新会话的编码线程启动之前调用.
+     */
+    void startTrack() {
+        marks.clear();
+        lastMark = null;
+        pendingStart = 0;
+        pendingSize = 0;
+        lastX = Float.NaN;
+        lastY = Float.NaN;
+    }
+
+    /**
+     * 打点到达，可在任意线程调用；在下一个样本到达时由编码线程处理.
+     */
+    public void onMark(MarkEventChannel.MarkEvent mark) {
+        if (mark != null && mark.isResolved()) {
+            marks.offer(mark);
+        }
+    }
+
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        MarkEventChannel.MarkEvent mark;
+        while ((mark = marks.poll()) != null) {
+            assignPending(mark);
+        }
+        if (lastMark == null) {
+            return;
+        }
+        BatchMapBuilder.extractFeatures(frame, features);
+        if (pendingSize == MAX_PENDING) {
+            pendingStart = (pendingStart + 1) % MAX_PENDING;
+            pendingSize--;
+        }
+        final int i = (pendingStart + pendingSize) % MAX_PENDING;
+        pendingTimes[i] = timeMillis;
+        pendingValues[i] = features[0];
+        pendingSize++;
+    }
+
+    /**
+     * 将上一次打点到本次打点之间的样本按线性插值的位置计入网格.
+     */
+    private void assignPending(MarkEventChannel.MarkEvent mark) {
+        final MarkEventChannel.MarkEvent from = lastMark;
+        lastMark = mark;
+        lastX = mark.x;
+        lastY = mark.y;
+        if (from == null) {
+            pendingSize = 0;
+            //建议的格子取决于打点位置，第一次打点也要重新渲染
+            synchronized (this) {
+                version++;
+            }
+            return;
+        }
+        final long span = mark.timeMillis - from.timeMillis;
+        synchronized (this) {
+            while (pendingSize > 0) {
+                final long t = pendingTimes[pendingStart];
+                if (t > mark.timeMillis) {
+                    break;
+                }
+                if (t >= from.timeMillis) {
+                    final float r = span <= 0 ? 1f : (float) (t - from.timeMillis) / span;
+                    final int cell = cellIndex(from.x + (mark.x - from.x) * r, from.y + (mark.y - from.y) * r);
+                    if (cell >= 0) {
+                        addToCell(cell, pendingValues[pendingStart]);
+                    }
+                }
+                pendingStart = (pendingStart + 1) % MAX_PENDING;
+                pendingSize--;
+            }
+            version++;
+        }
+    }
+
+    @GuardedBy("this")
+    private void addToCell(int cell, float value) {
+        final int n = ++counts[cell];
+        final float delta = value - means[cell];
+        means[cell] += delta / n;
+        m2s[cell] += delta * (value - means[cell]);
+        visited[cell >>> 6] |= 1L << cell;
+    }
+
+    public int cellIndex(float x, float y) {
+        final int col = (int) Math.floor((x - originX) / cellSize);
+        final int row = (int) Math.floor((y - originY) / cellSize);
+        if (col < 0 || col >= cols || row < 0 || row >= rows) {
+            return -1;
+        }
+        return row * cols + col;
+    }
+
+    public synchronized int getCount(int cell) {
+        return counts[cell];
+    }
+
+    /**
+     * @return 格子中总磁场强度的方差，样本少于2个时为NaN
+     */
+    public synchronized float getVariance(int cell) {
+        return counts[cell] < 2 ? Float.NaN : m2s[cell] / (counts[cell] - 1);
+    }
+
+    public synchronized boolean isVisited(int cell) {
+        return (visited[cell >>> 6] & (1L << cell)) != 0;
+    }
+
+    /**
+     * @return 样本数达到目标的格子占已访问格子的比例
+     */
+    public synchronized float getCompletedRatio() {
+        int visitedCells = 0;
+        int done = 0;
+        for (int cell = 0; cell < counts.length; cell++) {
+            if (counts[cell] > 0) {
+                visitedCells++;
+                done += counts[cell] >= TARGET_SAMPLES ? 1 : 0;
+            }
+        }
+        return visitedCells == 0 ? 0f : (float) done / visitedCells;
+    }
+
+    /**
+     * 从最近一次打点的位置出发按网格广度优先搜索，返回最近的k个样本数不足的格子中心.
+     *
+     * @return 每个元素为{x, y}，尚未打点时为空
+     */
+    public List<float[]> suggestUnvisited(int k) {
+        final List<float[]> result = new ArrayList<>(k);
+        final float x = lastX;
+        final float y = lastY;
+        //NaN转为int是0，尚未打点时会被当作第0格
+        final int start = Float.isNaN(x) || Float.isNaN(y) ? -1 : cellIndex(x, y);
+        if (start < 0 || k <= 0) {
+            return result;
+        }
+        final int[] snapshot;
+        synchronized (this) {
+            snapshot = counts.clone();
+        }
+        final boolean[] seen = new boolean[snapshot.length];
+        final ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(start);
+        seen[start] = true;
+        while (!queue.isEmpty() && result.size() < k) {
+            final int cell = queue.poll();
+            if (snapshot[cell] < TARGET_SAMPLES) {
+                result.add(new float[]{originX + (cell % cols + 0.5f) * cellSize,
+                        originY + (cell / cols + 0.5f) * cellSize});
+            }
+            final int col = cell % cols;
+            final int row = cell / cols;
+            if (col > 0 && !seen[cell - 1]) {
+                seen[cell - 1] = true;
+                queue.add(cell - 1);
+            }
+            if (col < cols - 1 && !seen[cell + 1]) {
+                seen[cell + 1] = true;
+                queue.add(cell + 1);
+            }
+            if (row > 0 && !seen[cell - cols]) {
+                seen[cell - cols] = true;
+                queue.add(cell - cols);
+            }
+            if (row < rows - 1 && !seen[cell + cols]) {
+                seen[cell + cols] = true;
+                queue.add(cell + cols);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 将覆盖网格降采样渲染为ARGB像素：每个像素取所含格子样本数之和相对目标的比例，
+     * 未访问为半透明灰，不足目标从红到黄，达到目标为绿；{@link #suggestUnvisited(int)}的格子所在像素为蓝.
+     * y轴向上，第0行像素对应最大的y.
+     *
+     * @param maxSide 热力图的最大边长（像素）
+     */
+    public Heatmap render(int maxSide) {
+        final int factor = Math.max(1, (Math.max(cols, rows) + maxSide - 1) / maxSide);
+        final int width = (cols + factor - 1) / factor;
+        final int height = (rows + factor - 1) / factor;
+        final int[] snapshot;
+        final long renderedVersion;
+        synchronized (this) {
+            snapshot = counts.clone();
+            renderedVersion = version;
+        }
+        final int[] argb = new int[width * height];
+        for (int py = 0; py < height; py++) {
+            for (int px = 0; px < width; px++) {
+                long sum = 0;
+                int cells = 0;
+                for (int row = py * factor; row < Math.min(rows, (py + 1) * factor); row++) {
+                    for (int col = px * factor; col < Math.min(cols, (px + 1) * factor); col++) {
+                        sum += snapshot[row * cols + col];
+                        cells++;
+                    }
+                }
+                argb[(height - 1 - py) * width + px] = colorOf((float) sum / (cells * TARGET_SAMPLES));
+            }
+        }
+        final List<float[]> suggestions = suggestUnvisited(SUGGESTIONS);
+        for (float[] center : suggestions) {
+            final int cell = cellIndex(center[0], center[1]);
+            argb[(height - 1 - cell / cols / factor) * width + cell % cols / factor] = COLOR_SUGGESTED;
+        }
+        return new Heatmap(width, height, argb, renderedVersion, suggestions);
+    }
+
+    private static int colorOf(float ratio) {
+        if (ratio <= 0f) {
+            return COLOR_EMPTY;
+        }
+        if (ratio >= 1f) {
+            return COLOR_DONE;
+        }
+        //红(0xFF0000) -> 黄(0xFFFF00)
+        final int green = (int) (255 * ratio);
+        return 0xC0FF0000 | (green << 8);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * 渲染好的热力图.
+     */
+    @Immutable
+    static final class Heatmap {
+        final int width;
+        final int height;
+        final int[] argb;
+        final long version;
+
+        /**
+         * 图中标出的建议采集格子中心{x, y}，由近到远.
+         */
+        final List<float[]> suggestions;
+
+        Heatmap(int width, int height, int[] argb, long version, List<float[]> suggestions) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.version = version;
+            this.suggestions = suggestions;
+        }
+    }
+
+    /**
+     * 热力图更新的回调，在渲染线程中调用，更新UI需要自行切换到UI线程.
+     */
+    interface HeatmapListener {
+        void onHeatmap(Heatmap heatmap);
+    }
+
+    /**
+     * 渲染级：周期性检查覆盖网格是否有变化，有变化时重新渲染.
+     */
+    static final class RenderStage extends PipelineStage {
+        private final CoverageEngine engine;
+        private final HeatmapListener listener;
+        private final int maxSide;
+
+        RenderStage(CoverageEngine engine, HeatmapListener listener, int maxSide) {
+            super("coverage-render", Process.THREAD_PRIORITY_BACKGROUND);
+            this.engine = engine;
+            this.listener = listener;
+            this.maxSide = maxSide;
+        }
+
+        @Override
+        protected void runStage() throws InterruptedException {
+            long renderedVersion = -1L;
+            while (!isCancelled()) {
+                if (engine.getVersion() != renderedVersion) {
+                    final Heatmap heatmap = engine.render(maxSide);
+                    renderedVersion = heatmap.version;
+                    listener.onHeatmap(heatmap);
+                    recordProcessed(1);
+                }
+                Thread.sleep(RENDER_PERIOD_MS);
+            }
+        }
+    }
+}
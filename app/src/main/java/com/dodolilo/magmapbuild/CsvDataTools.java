@@ -8,12 +8,21 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 class CsvDataTools {
+    /**
+     * 写文件时每次编码的字符数.
+     */
+    private static final int WRITE_CHUNK_CHARS = 8192;
+
     public enum FileSaveType {
         CSV(".csv"), TXT(".txt");
 
@@ -68,6 +77,26 @@ class CsvDataTools {
         return csvLine.toString();
     }
 
+    /**
+     * 将一帧传感器样本转为可供csv文件存储的字符串格式，列顺序与{@link SensorFrame}一致.
+     *
+     * @param timeMillis 样本时间戳（ms）
+     * @param frame      样本帧
+     * @return 以'\n'结尾的一行csv
+     */
+    public static String convertSensorFrameToCsvFormat(long timeMillis, float[] frame) {
+        StringBuilder csvLine = new StringBuilder(160);
+
+        csvLine.append(timeMillis);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            csvLine.append(',');
+            csvLine.append(frame[i]);
+        }
+        csvLine.append('\n');
+
+        return csvLine.toString();
+    }
+
     /**
      * @param point
      * @return
@@ -85,51 +114,79 @@ class CsvDataTools {
 
 
     /**
-     * 向Android<b>应用外部存储空间的cache文件夹</b>中保存<b>csv文件</b>.
-     * 涉及UI Handler，若不是在主线程中使用，需要主动创建Looper.
+     * 向Android<b>应用外部存储空间的cache文件夹</b>中保存<b>csv文件</b>，在调用线程中同步写入.
+     * 不涉及UI，在UI线程中保存请使用{@link PersistenceService}.
      *
      * @param fileName 文件名，应该以".csv"结尾，不需要外部给外存路径
      * @param fileType 文件类型后缀，如".csv"
-     * @param dataStr  写入csv文件的数据
+     * @param data     写入csv文件的数据
      * @param context  上下文
-     * @return true 如果保存文件成功
+     * @return 保存的文件
+     * @throws IOException 外存不可写或写文件失败时
      */
-    public static boolean saveCsvToExternalStorage(String fileName, FileSaveType fileType, String dataStr, Context context) {
+    public static File saveCsvToExternalStorage(String fileName, FileSaveType fileType, CharSequence data, Context context) throws IOException {
+        final File externalCacheFile = externalCacheFile(fileName, fileType, context);
+        writeCsv(externalCacheFile, false, Collections.singletonList(data));
+        return externalCacheFile;
+    }
+
+    /**
+     * @return 以fileType结尾的文件名，如"a" -> "a.csv"
+     */
+    static String withFileType(String fileName, FileSaveType fileType) {
         //检查文件名是否以“.csv"结尾
-        if (!fileName.endsWith(fileType.getFileType())) {
-            fileName = fileName.concat(fileType.getFileType());
-        }
+        return fileName.endsWith(fileType.getFileType()) ? fileName : fileName.concat(fileType.getFileType());
+    }
 
+    /**
+     * 得到<b>应用外部存储空间的cache文件夹</b>中的文件，文件名不以fileType结尾时补上.
+     *
+     * @throws IOException 外存不可写时
+     */
+    static File externalCacheFile(String fileName, FileSaveType fileType, Context context) throws IOException {
+        fileName = withFileType(fileName, fileType);
         //检查外存是否可写
         if (!isExternalStorageWritable()) {
-            MessageBuilder.showMessageWithOK(context, "Write Error", "External Storage Not Writable!");
-            return false;
+            throw new IOException("External Storage Not Writable!");
         }
+        return new File(context.getExternalCacheDir(), fileName);
+    }
 
-        //写文件，选择外部存储cache文件夹
-        File externalCacheFile = new File(context.getExternalCacheDir(), fileName);
-        try (FileOutputStream fos = new FileOutputStream(externalCacheFile)) {
-            fos.write(dataStr.getBytes());
-        } catch (IOException e) {
-            e.printStackTrace();
-            MessageBuilder.showMessageWithOK(context, "Write Error", e.getMessage());
-            return false;
+    /**
+     * 按顺序将chunks以UTF-8写入文件，逐段编码，不需要把数据整体转为byte[].
+     *
+     * @param append true 追加到文件末尾；false 覆盖原有内容
+     */
+    static void writeCsv(File file, boolean append, List<CharSequence> chunks) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8)) {
+            final char[] buffer = new char[WRITE_CHUNK_CHARS];
+            for (CharSequence chunk : chunks) {
+                final int length = chunk.length();
+                for (int from = 0; from < length; from += WRITE_CHUNK_CHARS) {
+                    final int to = Math.min(length, from + WRITE_CHUNK_CHARS);
+                    if (chunk instanceof String) {
+                        ((String) chunk).getChars(from, to, buffer, 0);
+                    } else {
+                        for (int i = from; i < to; i++) {
+                            buffer[i - from] = chunk.charAt(i);
+                        }
+                    }
+                    writer.write(buffer, 0, to - from);
+                }
+            }
         }
-
-        MessageBuilder.showMessageWithOK(context, "Save Succeed to", externalCacheFile.getName());
-        return true;
     }
 
     /**
      * 从Android<b>应用外部存储空间的files文件夹</b>中读取<b>csv文件</b>.
      * NOTE:读取一个文件时，不仅要检查存储空间是否可读，还需要检查该文件是否存在.
-     * 涉及UI Handler，若不是在主线程中使用，需要主动创建Looper.
      *
      * @param csvFileName 文件名，应该以".csv"结尾，不需要外部给外存路径
      * @param context     上下文
-     * @return null 如果外部存储空间不可读or读失败；否则返回读取到的StringBuilder内容
+     * @return 读取到的内容
+     * @throws IOException 外部存储空间不可读、文件不存在或为空、读失败时
      */
-    public static String readCsvFromExternalStorage(String csvFileName, Context context) {
+    public static String readCsvFromExternalStorage(String csvFileName, Context context) throws IOException {
         //检查文件名是否以“.csv"结尾
         if (!csvFileName.endsWith(".csv")) {
             csvFileName = csvFileName.concat(".csv");
@@ -137,32 +194,23 @@ class CsvDataTools {
 
         //检查外存是否可读
         if (!isExternalStorageReadable()) {
-            MessageBuilder.showMessageWithOK(context, "Read Error", "External Storage Not Readable!");
-            return null;
+            throw new IOException("External Storage Not Readable!");
         }
 
         File externalFilesFile = new File(context.getExternalFilesDir(null), csvFileName);
         //检查文件是否存在，且文件大小 > 0 byte
-        if (externalFilesFile.exists() && externalFilesFile.length() > 0L) {
-            StringBuilder readDataStrBuilder = new StringBuilder();
-            try (InputStream is = new FileInputStream(externalFilesFile)) {
-                BufferedReader br = new BufferedReader(new InputStreamReader(is));
-                String line = br.readLine();
-                while (line != null) {
-                    readDataStrBuilder.append(line).append('\n');
-                    line = br.readLine();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                MessageBuilder.showMessageWithOK(context, "Read Error", e.getMessage());
-                return null;
+        if (!externalFilesFile.exists() || externalFilesFile.length() == 0L) {
+            throw new IOException(externalFilesFile.getAbsolutePath().concat("不存在or为空文件"));
+        }
+        StringBuilder readDataStrBuilder = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(externalFilesFile), StandardCharsets.UTF_8))) {
+            String line = br.readLine();
+            while (line != null) {
+                readDataStrBuilder.append(line).append('\n');
+                line = br.readLine();
             }
-            return readDataStrBuilder.toString();
         }
-
-        //文件不存在或为空文件
-        MessageBuilder.showMessageWithOK(context, "Read Error", externalFilesFile.getAbsolutePath().concat("不存在or为空文件"));
-        return null;
+        return readDataStrBuilder.toString();
     }
 
     /**
@@ -214,33 +262,42 @@ class CsvDataTools {
     }
 
     /**
-     * 将读出来的打点文件转为Map<坐标名，坐标>
+     * 从Android<b>应用外部存储空间的files文件夹</b>中读取【打点文件】，每行"name:x,y".
+     * 解析结果缓存在应用的cache文件夹中，打点文件未变时直接读取缓存.
+     *
+     * @param csvFileName 文件名，应该以".csv"结尾，不需要外部给外存路径
+     * @param context     上下文
+     * @return 打点坐标表
+     * @throws IOException 外部存储空间不可读、文件不存在或为空、读失败时；格式错误时为{@link PointTable.FormatException}，带有行号
+     */
+    public static PointTable readPointsFromExternalStorage(String csvFileName, Context context) throws IOException {
+        if (!csvFileName.endsWith(".csv")) {
+            csvFileName = csvFileName.concat(".csv");
+        }
+        if (!isExternalStorageReadable()) {
+            throw new IOException("External Storage Not Readable!");
+        }
+        File externalFilesFile = new File(context.getExternalFilesDir(null), csvFileName);
+        if (!externalFilesFile.exists() || externalFilesFile.length() == 0L) {
+            throw new IOException(externalFilesFile.getAbsolutePath().concat("不存在or为空文件"));
+        }
+        return PointTable.load(externalFilesFile, context.getCacheDir());
+    }
+
+    /**
+     * 将读出来的打点文件转为Map<坐标名，坐标>.
+     * 读取文件时应直接使用{@link CsvDataTools#readPointsFromExternalStorage(String, Context)}，不必先读成字符串.
      *
      * @param pointsStr 应该是通过{@link CsvDataTools#readCsvFromExternalStorage(String, Context)}
      *                  从【打点文件】中读出的字符串"name:x,y\n" * N，此时每行由'\n'作为分隔符
      * @return Map<坐标名String ， 坐标float [ ]>
+     * @throws PointTable.FormatException 某一行格式错误时，信息中带有行号
      */
-    public static Map<String, float[]> changePointsCsvToMap(String pointsStr) {
+    public static Map<String, float[]> changePointsCsvToMap(String pointsStr) throws PointTable.FormatException {
         if (pointsStr == null) {
             return new HashMap<>();
         }
-        //NOTE: 无法确定Map的初始大小
-        Map<String, float[]> pointMap = new HashMap<>();
-        String[] lines = pointsStr.split("\n");
-
-        //从每一行中读出坐标名与坐标
-        for (String line : lines) {
-            if (line.length() == 0) {
-                continue;
-            }
-            //line = "name:x,y"
-            String[] nameAndPoint = line.split(":");
-            String[] xyStrArr = nameAndPoint[1].split(",");
-            if (xyStrArr.length == 2) {
-                pointMap.put(nameAndPoint[0], new float[]{Float.parseFloat(xyStrArr[0]), Float.parseFloat(xyStrArr[1])});
-            }
-        }
-
-        return pointMap;
+        final byte[] data = pointsStr.getBytes(StandardCharsets.UTF_8);
+        return PointTable.parse(data, 0, data.length, "points").toMap();
     }
 }
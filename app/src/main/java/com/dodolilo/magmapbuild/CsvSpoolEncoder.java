@@ -0,0 +1,26 @@
+package com.dodolilo.magmapbuild;
+
+import java.security.InvalidParameterException;
+
+/**
+ * 将样本帧编码为csv行，追加到发送数据缓存中的消费者.
+ * 缓存的格式与..._sensors.csv相同，由{@link SentDataBySocket}读取发送.
+ */
+class CsvSpoolEncoder implements SampleSink {
+    /**
+     * 发送数据缓存，数据只增长.
+     */
+    private final StreamSpool spool;
+
+    CsvSpoolEncoder(StreamSpool spool) throws InvalidParameterException {
+        if (spool == null) {
+            throw new InvalidParameterException("Param spool is null");
+        }
+        this.spool = spool;
+    }
+
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        spool.append(CsvDataTools.convertSensorFrameToCsvFormat(timeMillis, frame));
+    }
+}
@@ -0,0 +1,259 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 流式csv写入器：样本直接格式化为字节写入复用的缓冲区，满一块后经FileChannel写出，运行中不分配对象.
+ * 行格式与{@link CsvDataTools#convertSensorFrameToCsvFormat(long, float[])}相同，
+ * float用能精确还原的最短十进制表示（见{@link AsciiNumbers#formatFloat(float, byte[], int)}），布局与Float.toString一致（如"9.81"、"1.0E-5"），已有的读取方式不需要改变.
+ * 导出任意长的会话只占用一块缓冲区的内存.
+ * <p>
+ * 可以作为流水线中的本地记录消费者，也可以用{@link ExportStage}在后台把已记录的会话导出为csv.
+ * 写入发生IO错误时记录第一个异常并停止写入，在{@link #close()}时抛出.
+ */
+@NotThreadSafe
+class CsvStreamExporter implements SampleSink, Closeable {
+    /**
+     * 每次写出的块大小：256KB.
+     */
+    static final int CHUNK_BYTES = 1 << 18;
+
+    /**
+     * 一行样本的最大字节数：时间戳20 + 13 * (逗号1 + float最长15) + 换行1.
+     */
+    private static final int MAX_ROW_BYTES = 20 + SensorFrame.SIZE * 16 + 1;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+    /**
+     * 格式化一行的暂存区，整行写入buffer.
+     */
+    private final byte[] row = new byte[MAX_ROW_BYTES];
+
+    private long rows = 0L;
+
+    private long bytesWritten = 0L;
+
+    private IOException failure = null;
+
+    /**
+     * 创建（或截断）file并准备写入.
+     */
+    CsvStreamExporter(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        if (failure != null) {
+            return;
+        }
+        int pos = AsciiNumbers.formatLong(timeMillis, row, 0);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            row[pos++] = ',';
+            pos = AsciiNumbers.formatFloat(frame[i], row, pos);
+        }
+        row[pos++] = '\n';
+        put(row, pos);
+        rows++;
+    }
+
+    /**
+     * 写入一行非样本的文本，如第一行的手机号或"#MARK"等记录；非ASCII字符写为'?'.
+     *
+     * @param line 一行文本，不含结尾的'\n'时自动补上
+     */
+    void appendLine(CharSequence line) {
+        if (failure != null) {
+            return;
+        }
+        final int n = line.length();
+        int pos = 0;
+        for (int i = 0; i < n; i++) {
+            if (pos == row.length) {
+                put(row, pos);
+                pos = 0;
+            }
+            final char c = line.charAt(i);
+            row[pos++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+        if (n == 0 || line.charAt(n - 1) != '\n') {
+            if (pos == row.length) {
+                put(row, pos);
+                pos = 0;
+            }
+            row[pos++] = '\n';
+        }
+        put(row, pos);
+    }
+
+    /**
+     * @return 已写入的样本行数
+     */
+    long getRows() {
+        return rows;
+    }
+
+    /**
+     * @return 已交给文件的字节数，不含缓冲区中尚未写出的部分
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (failure == null) {
+                flush();
+            }
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void put(byte[] src, int length) {
+        if (buffer.remaining() < length) {
+            flush();
+            if (failure != null) {
+                return;
+            }
+        }
+        buffer.put(src, 0, length);
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                bytesWritten += channel.write(buffer);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 导出进度的回调，在导出线程中调用，更新UI需要自行切换到UI线程.
+     */
+    interface ProgressListener {
+        /**
+         * @param rows  已导出的样本行数
+         * @param bytes 已写入文件的字节数
+         */
+        void onProgress(long rows, long bytes);
+    }
+
+    /**
+     * 把会话逐帧导出为csv，直到读完或被取消.
+     *
+     * @param reader   会话读取器，由调用者关闭
+     * @param target   目标csv文件
+     * @param header   写在第一行的文本（如手机号），null表示不写
+     * @param listener 每写出一块调用一次，null表示不回调
+     * @return 导出的样本行数
+     */
+    static long export(SessionReader reader, File target, CharSequence header, ProgressListener listener)
+            throws IOException {
+        final CsvStreamExporter exporter = new CsvStreamExporter(target);
+        try (CsvStreamExporter closing = exporter) {
+            if (header != null) {
+                closing.appendLine(header);
+            }
+            long reportedBytes = 0L;
+            while (reader.next()) {
+                closing.onSample(reader.getTimeMillis(), reader.getFrame());
+                if (listener != null && closing.bytesWritten != reportedBytes) {
+                    reportedBytes = closing.bytesWritten;
+                    listener.onProgress(closing.rows, reportedBytes);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("export of " + target.getName() + " cancelled");
+                }
+            }
+        }
+        if (listener != null) {
+            listener.onProgress(exporter.rows, exporter.bytesWritten);
+        }
+        return exporter.rows;
+    }
+
+    /**
+     * 后台导出级：在低优先级线程中把已记录的会话（csv或二进制）导出为csv，完成后{@link #getResult()}给出行数.
+     */
+    static final class ExportStage extends PipelineStage {
+        private final File source;
+        private final File target;
+        private final CharSequence header;
+        private final ProgressListener listener;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        private volatile Thread worker = null;
+
+        /**
+         * @param source   会话文件，".mmsb"为二进制，其余按csv读取
+         * @param target   目标csv文件
+         * @param header   写在第一行的文本，null表示不写
+         * @param listener 进度回调，null表示不回调
+         */
+        ExportStage(File source, File target, CharSequence header, ProgressListener listener) {
+            super("csv-export", Process.THREAD_PRIORITY_BACKGROUND);
+            this.source = source;
+            this.target = target;
+            this.header = header;
+            this.listener = listener;
+        }
+
+        /**
+         * @return 导出完成时给出样本行数；失败或被取消时异常完成
+         */
+        CompletableFuture<Long> getResult() {
+            return result;
+        }
+
+        @Override
+        protected void runStage() {
+            worker = Thread.currentThread();
+            try (SessionReader reader = SessionBinaryFormat.open(source)) {
+                if (isCancelled()) {
+                    throw new InterruptedIOException("export of " + target.getName() + " cancelled");
+                }
+                final long rows = export(reader, target, header, listener);
+                recordProcessed(rows);
+                result.complete(rows);
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                worker = null;
+                //清除可能由取消设置的中断标志，线程回到调度器时不带中断状态
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            final Thread t = worker;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 位于采样线程与各个编码/消费者之间的降采样滤波器组.
+ * 每个不同的输出频率对应一个分支：先对加速度、陀螺仪、磁力计9个通道做4阶Butterworth低通（两级级联biquad）抗混叠，
+ * 再按相位累加器抽取到目标频率；四元数本身已由系统融合平滑，只做抽取与归一化.
+ * 相同输出频率的消费者共享同一个分支，滤波只计算一次.
+ * 输出频率不低于输入频率的分支直接透传.
+ * 上游按运动状态降低采样频率时（{@link #onRateChanged(int)}），各分支按新的输入频率重新计算滤波器系数，
+ * 输出频率高于新输入频率的分支改为透传，因此下游收到的频率是二者中较低的一个.
+ * <p>
+ * 所有消费者必须在开始采样前通过{@link #addConsumer(int, SampleSink)}加入；
+ * {@link #onSample(long, float[])}在采样线程中调用，不分配对象.
+ * NOTE：低通滤波会引入约1/(2*fc)量级的群延迟，输出帧沿用抽取时刻的输入时间戳，不做延迟补偿.
+ */
+@NotThreadSafe
+class DownsampleFilterBank implements SampleSink {
+    /**
+     * 截止频率与输出频率之比，低于输出奈奎斯特频率（0.5）留出过渡带.
+     */
+    private static final double CUTOFF_RATIO = 0.4;
+
+    /**
+     * 4阶Butterworth低通拆成两级二阶节的品质因数.
+     */
+    private static final double[] BUTTERWORTH_Q = {0.54119610, 1.30656296};
+
+    /**
+     * 参与低通滤波的通道数：acc、gyro、mag共9个.
+     */
+    private static final int FILTERED_CHANNELS = SensorFrame.QUAT;
+
+    /**
+     * 名义输入采样频率（Hz），决定分支的划分.
+     */
+    private final int inputRateHz;
+
+    /**
+     * 当前的输入采样频率（Hz）.
+     */
+    private int currentRateHz;
+
+    /**
+     * 按输出频率划分的分支.
+     */
+    private final List<RateBranch> branches = new ArrayList<>();
+
+    DownsampleFilterBank(int inputRateHz) throws InvalidParameterException {
+        if (inputRateHz <= 0) {
+            throw new InvalidParameterException("Param inputRateHz must be positive");
+        }
+        this.inputRateHz = inputRateHz;
+        this.currentRateHz = inputRateHz;
+    }
+
+    /**
+     * 加入一个消费者，它将以outputRateHz收到滤波、抽取后的样本.
+     *
+     * @param outputRateHz 输出频率（Hz），不低于输入频率时透传
+     * @param consumer     消费者
+     * @throws InvalidParameterException 当频率不为正或consumer为null时
+     */
+    public void addConsumer(int outputRateHz, SampleSink consumer) throws InvalidParameterException {
+        if (outputRateHz <= 0) {
+            throw new InvalidParameterException("Param outputRateHz must be positive");
+        }
+        if (consumer == null) {
+            throw new InvalidParameterException("Param consumer is null");
+        }
+        final int rate = Math.min(outputRateHz, inputRateHz);
+        for (RateBranch branch : branches) {
+            if (branch.outputRateHz == rate) {
+                branch.consumers.add(consumer);
+                return;
+            }
+        }
+        RateBranch branch = new RateBranch(rate);
+        branch.configure(currentRateHz);
+        branch.consumers.add(consumer);
+        branches.add(branch);
+    }
+
+    /**
+     * 清空所有分支的滤波器状态与抽取相位，开始新的一段采样前调用.
+     */
+    public void reset() {
+        for (RateBranch branch : branches) {
+            branch.reset();
+        }
+    }
+
+    /**
+     * 上游采样频率改变：各分支按新的输入频率重新计算系数，滤波器状态用下一帧重新初始化.
+     */
+    @Override
+    public void onRateChanged(int rateHz) {
+        if (rateHz <= 0 || rateHz == currentRateHz) {
+            return;
+        }
+        currentRateHz = rateHz;
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            final RateBranch branch = branches.get(i);
+            branch.configure(rateHz);
+            //消费者收到的是分支实际的输出频率
+            for (int k = 0, m = branch.consumers.size(); k < m; k++) {
+                branch.consumers.get(k).onRateChanged(branch.passThrough ? rateHz : branch.outputRateHz);
+            }
+        }
+    }
+
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        for (int i = 0, n = branches.size(); i < n; i++) {
+            branches.get(i).onSample(timeMillis, frame);
+        }
+    }
+
+    /**
+     * 一个输出频率的分支：两级biquad低通 + 相位累加器抽取.
+     */
+    private final class RateBranch {
+        private final int outputRateHz;
+
+        private final List<SampleSink> consumers = new ArrayList<>(2);
+
+        /**
+         * 当前的输入频率（Hz）.
+         */
+        private int branchInputRateHz;
+
+        /**
+         * 是否透传（输出频率不低于当前输入频率）.
+         */
+        private boolean passThrough;
+
+        /**
+         * 每一级二阶节的归一化系数 {b0, b1, b2, a1, a2}.
+         */
+        private final double[][] coefficients = new double[BUTTERWORTH_Q.length][5];
+
+        /**
+         * 转置直接II型的状态，按[通道][级][z1, z2]展开.
+         */
+        private final double[] state = new double[FILTERED_CHANNELS * BUTTERWORTH_Q.length * 2];
+
+        /**
+         * 输出帧，复用.
+         */
+        private final float[] output = new float[SensorFrame.SIZE];
+
+        /**
+         * 抽取相位累加器：每个输入样本加outputRateHz，超过当前输入频率时输出一帧.
+         */
+        private int phase;
+
+        private boolean primed;
+
+        RateBranch(int outputRateHz) {
+            this.outputRateHz = outputRateHz;
+        }
+
+        /**
+         * 按输入频率计算滤波器系数并清空状态.
+         */
+        void configure(int rateHz) {
+            this.branchInputRateHz = rateHz;
+            this.passThrough = outputRateHz >= rateHz;
+            final double w0 = 2 * Math.PI * CUTOFF_RATIO * outputRateHz / rateHz;
+            for (int s = 0; s < BUTTERWORTH_Q.length; s++) {
+                //RBJ Audio EQ Cookbook 低通
+                final double alpha = Math.sin(w0) / (2 * BUTTERWORTH_Q[s]);
+                final double cos = Math.cos(w0);
+                final double a0 = 1 + alpha;
+                coefficients[s][0] = (1 - cos) / 2 / a0;
+                coefficients[s][1] = (1 - cos) / a0;
+                coefficients[s][2] = (1 - cos) / 2 / a0;
+                coefficients[s][3] = -2 * cos / a0;
+                coefficients[s][4] = (1 - alpha) / a0;
+            }
+            reset();
+        }
+
+        void reset() {
+            for (int i = 0; i < state.length; i++) {
+                state[i] = 0.0;
+            }
+            phase = branchInputRateHz - outputRateHz;
+            primed = false;
+        }
+
+        void onSample(long timeMillis, float[] frame) {
+            if (passThrough) {
+                dispatch(timeMillis, frame);
+                return;
+            }
+            if (!primed) {
+                primeWith(frame);
+                primed = true;
+            }
+            //每个输入样本都要经过滤波器，只在抽取时刻输出
+            for (int ch = 0; ch < FILTERED_CHANNELS; ch++) {
+                double x = frame[ch];
+                for (int s = 0; s < BUTTERWORTH_Q.length; s++) {
+                    final double[] c = coefficients[s];
+                    final int z = (ch * BUTTERWORTH_Q.length + s) * 2;
+                    final double y = c[0] * x + state[z];
+                    state[z] = c[1] * x - c[3] * y + state[z + 1];
+                    state[z + 1] = c[2] * x - c[4] * y;
+                    x = y;
+                }
+                output[ch] = (float) x;
+            }
+
+            phase += outputRateHz;
+            if (phase < branchInputRateHz) {
+                return;
+            }
+            phase -= branchInputRateHz;
+
+            //四元数只抽取，并重新归一化
+            double norm = 0.0;
+            for (int k = SensorFrame.QUAT; k < SensorFrame.SIZE; k++) {
+                norm += (double) frame[k] * frame[k];
+            }
+            norm = norm > 0 ? Math.sqrt(norm) : 1.0;
+            for (int k = SensorFrame.QUAT; k < SensorFrame.SIZE; k++) {
+                output[k] = (float) (frame[k] / norm);
+            }
+            dispatch(timeMillis, output);
+        }
+
+        /**
+         * 用第一帧的值把滤波器置于稳态，避免从0开始的阶跃瞬态.
+         */
+        private void primeWith(float[] frame) {
+            for (int ch = 0; ch < FILTERED_CHANNELS; ch++) {
+                final double x = frame[ch];
+                for (int s = 0; s < BUTTERWORTH_Q.length; s++) {
+                    final double[] c = coefficients[s];
+                    final int z = (ch * BUTTERWORTH_Q.length + s) * 2;
+                    //直流增益为1，稳态时 y = x
+                    state[z + 1] = c[2] * x - c[4] * x;
+                    state[z] = c[1] * x - c[3] * x + state[z + 1];
+                }
+            }
+        }
+
+        private void dispatch(long timeMillis, float[] frame) {
+            for (int i = 0, n = consumers.size(); i < n; i++) {
+                consumers.get(i).onSample(timeMillis, frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * 磁力计在线硬铁/软铁校准器.
+ * 使用带遗忘因子的递推最小二乘（RLS）增量拟合椭球：
+ * <pre>
+ *     a*x^2 + b*y^2 + c*z^2 + 2d*xy + 2e*xz + 2f*yz + 2g*x + 2h*y + 2i*z = 1
+ * </pre>
+ * 由椭球参数求出硬铁偏移（椭球中心）与软铁矩阵（椭球形状矩阵的对称平方根），
+ * 将读数映射到以几何平均半径为半径的球面上.
+ * 所有状态都是固定大小的数组，{@link #update(float[])}与{@link #correct(float[], float[])}不分配任何对象.
+ * 输出所用的校正每次改变时{@link #getCorrectionVersion()}加1，采样线程据此写出{@link #correctionRecord(long)}带内记录.
+ * 只能在同一个线程（采样线程）中使用.
+ */
+@NotThreadSafe
+class MagCalibrator {
+    /**
+     * 校准的带内记录与会话尾记录的标签.
+     */
+    static final String MAGCAL_RECORD_TAG = "#MAGCAL";
+
+    /**
+     * 椭球参数个数.
+     */
+    private static final int N = 9;
+
+    /**
+     * 输入缩放系数（uT），使RLS的回归量保持在1附近，改善数值条件.
+     */
+    private static final double INPUT_SCALE = 50.0;
+
+    /**
+     * RLS遗忘因子，越接近1记忆越长.
+     */
+    private static final double FORGETTING_FACTOR = 0.9995;
+
+    /**
+     * 协方差矩阵P的初始对角值.
+     */
+    private static final double INITIAL_COVARIANCE = 1000.0;
+
+    /**
+     * 协方差矩阵P的迹上限.
+     * 长时间静止时数据缺乏激励，除以遗忘因子会使P无限增长（协方差饱和），
+     * 迹超过上限后本次不再除以遗忘因子，避免下一次运动时估计突变.
+     */
+    private static final double MAX_COVARIANCE_TRACE = N * INITIAL_COVARIANCE;
+
+    /**
+     * 每收到多少个新磁力计读数，重新求解一次校正矩阵.
+     */
+    private static final int SOLVE_INTERVAL = 100;
+
+    /**
+     * 方向覆盖统计的方向格数：按x、y、z三轴符号划分8个卦限，每个卦限再按最大分量轴划分3份.
+     */
+    private static final int DIRECTION_BINS = 24;
+
+    /**
+     * 认为校正可用所需的最少样本数、最低方向覆盖率与最大拟合误差.
+     */
+    private static final int MIN_SAMPLES = 300;
+    private static final float MIN_COVERAGE = 0.5f;
+    private static final float MAX_FIT_ERROR = 0.08f;
+
+    /**
+     * 拟合误差的指数滑动平均系数.
+     */
+    private static final double FIT_ERROR_ALPHA = 0.01;
+
+    /**
+     * RLS状态：参数向量theta与协方差矩阵p（按行展开的9x9）.
+     */
+    private final double[] theta = new double[N];
+    private final double[] p = new double[N * N];
+
+    /**
+     * 单次更新使用的临时向量，预先分配.
+     */
+    private final double[] phi = new double[N];
+    private final double[] pPhi = new double[N];
+    private final double[] gain = new double[N];
+
+    /**
+     * 求解使用的临时矩阵（按行展开的3x3），预先分配.
+     */
+    private final double[] shape = new double[9];
+    private final double[] eigenVectors = new double[9];
+    private final double[] eigenValues = new double[3];
+    private final double[] center = new double[3];
+
+    /**
+     * 当前生效的校正：offset为硬铁偏移（uT），softIron为软铁矩阵（已包含尺度）.
+     */
+    private final double[] offset = new double[3];
+    private final double[] softIron = new double[9];
+    private boolean calibrated = false;
+
+    /**
+     * 输出所用校正的版本：校正可用时每次重新求解、以及可用状态改变时加1.
+     */
+    private long correctionVersion = 0;
+    private boolean correctionUsable = false;
+
+    /**
+     * 质量统计.
+     */
+    private final boolean[] visitedBins = new boolean[DIRECTION_BINS];
+    private int visitedBinCount = 0;
+    private long sampleCount = 0;
+    private int samplesSinceSolve = 0;
+    private double fitError = 1.0;
+    private double fieldStrength = 0.0;
+    private double conditionRatio = 0.0;
+
+    MagCalibrator() {
+        reset();
+    }
+
+    /**
+     * 清空所有拟合状态，回到未校准状态.
+     */
+    public void reset() {
+        for (int i = 0; i < N; i++) {
+            theta[i] = 0.0;
+            for (int j = 0; j < N; j++) {
+                p[i * N + j] = i == j ? INITIAL_COVARIANCE : 0.0;
+            }
+        }
+        for (int i = 0; i < DIRECTION_BINS; i++) {
+            visitedBins[i] = false;
+        }
+        visitedBinCount = 0;
+        sampleCount = 0;
+        samplesSinceSolve = 0;
+        fitError = 1.0;
+        fieldStrength = 0.0;
+        conditionRatio = 0.0;
+        calibrated = false;
+        setIdentityCorrection();
+        if (correctionUsable) {
+            correctionUsable = false;
+            correctionVersion++;
+        }
+    }
+
+    /**
+     * 使用一个新的磁力计原始读数更新椭球拟合.
+     * 同一个读数不要重复输入，否则会使拟合偏向静止时的方向.
+     *
+     * @param rawMag 磁力计原始读数xyz（uT）
+     */
+    public void update(float[] rawMag) {
+        final double x = rawMag[0] / INPUT_SCALE;
+        final double y = rawMag[1] / INPUT_SCALE;
+        final double z = rawMag[2] / INPUT_SCALE;
+        phi[0] = x * x;
+        phi[1] = y * y;
+        phi[2] = z * z;
+        phi[3] = 2 * x * y;
+        phi[4] = 2 * x * z;
+        phi[5] = 2 * y * z;
+        phi[6] = 2 * x;
+        phi[7] = 2 * y;
+        phi[8] = 2 * z;
+
+        //pPhi = P * phi, denominator = lambda + phi' * P * phi
+        double denominator = FORGETTING_FACTOR;
+        for (int i = 0; i < N; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < N; j++) {
+                sum += p[i * N + j] * phi[j];
+            }
+            pPhi[i] = sum;
+            denominator += phi[i] * sum;
+        }
+
+        //先验误差 e = 1 - phi' * theta
+        double prediction = 0.0;
+        for (int i = 0; i < N; i++) {
+            prediction += phi[i] * theta[i];
+        }
+        final double error = 1.0 - prediction;
+
+        //K = P * phi / denominator, theta += K * e
+        for (int i = 0; i < N; i++) {
+            gain[i] = pPhi[i] / denominator;
+            theta[i] += gain[i] * error;
+        }
+
+        //P = (P - K * phi' * P) / lambda，P对称，phi' * P = pPhi'
+        double trace = 0.0;
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                p[i * N + j] -= gain[i] * pPhi[j];
+            }
+            trace += p[i * N + i];
+        }
+        if (trace / FORGETTING_FACTOR <= MAX_COVARIANCE_TRACE) {
+            for (int k = 0; k < N * N; k++) {
+                p[k] /= FORGETTING_FACTOR;
+            }
+        }
+
+        sampleCount++;
+        //首次求解前偏移为0，按原点分格会留下与真实中心无关的方向格
+        if (calibrated) {
+            markDirection(rawMag);
+            updateFitError(rawMag);
+        }
+        boolean solved = false;
+        if (++samplesSinceSolve >= SOLVE_INTERVAL) {
+            samplesSinceSolve = 0;
+            solved = solve();
+        }
+        final boolean usable = isCorrectionUsable();
+        if (usable != correctionUsable || usable && solved) {
+            correctionUsable = usable;
+            correctionVersion++;
+        }
+    }
+
+    /**
+     * 对原始读数应用当前的硬铁/软铁校正.
+     * 校正尚不可用时（样本不足、方向覆盖不足或拟合误差过大）原样输出.
+     *
+     * @param rawMag    磁力计原始读数xyz（uT）
+     * @param corrected 输出的校正后读数xyz（uT），可以与rawMag是同一个数组
+     */
+    public void correct(float[] rawMag, float[] corrected) {
+        if (!isCorrectionUsable()) {
+            if (corrected != rawMag) {
+                System.arraycopy(rawMag, 0, corrected, 0, 3);
+            }
+            return;
+        }
+        final double dx = rawMag[0] - offset[0];
+        final double dy = rawMag[1] - offset[1];
+        final double dz = rawMag[2] - offset[2];
+        corrected[0] = (float) (softIron[0] * dx + softIron[1] * dy + softIron[2] * dz);
+        corrected[1] = (float) (softIron[3] * dx + softIron[4] * dy + softIron[5] * dz);
+        corrected[2] = (float) (softIron[6] * dx + softIron[7] * dy + softIron[8] * dz);
+    }
+
+    /**
+     * @return true 如果当前校正质量满足使用要求
+     */
+    public boolean isCorrectionUsable() {
+        return calibrated
+                && sampleCount >= MIN_SAMPLES
+                && getCoverage() >= MIN_COVERAGE
+                && fitError <= MAX_FIT_ERROR;
+    }
+
+    /**
+     * @return 输出所用校正的版本，与上次取得的值不同说明校正已改变
+     */
+    public long getCorrectionVersion() {
+        return correctionVersion;
+    }
+
+    /**
+     * 当前输出所用校正的带内记录：
+     * {@code #MAGCAL,time,usable=...,offset=x/y/z,softIron=m00/m01/.../m22}，
+     * 校正不可用时为单位校正（偏移为0、软铁矩阵为单位矩阵），即输出为原始读数.
+     * 与会话尾的质量记录同一个标签，以softIron区分.
+     */
+    public String correctionRecord(long timeMillis) {
+        final boolean usable = isCorrectionUsable();
+        final StringBuilder sb = new StringBuilder(200);
+        sb.append(MAGCAL_RECORD_TAG).append(',').append(timeMillis).append(",usable=").append(usable).append(",offset=");
+        for (int k = 0; k < 3; k++) {
+            sb.append(k == 0 ? "" : "/").append(usable ? (float) offset[k] : 0f);
+        }
+        sb.append(",softIron=");
+        for (int k = 0; k < 9; k++) {
+            sb.append(k == 0 ? "" : "/").append(usable ? (float) softIron[k] : (k % 4 == 0 ? 1f : 0f));
+        }
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * @return 方向覆盖率[0, 1]，手机姿态转得越全面越高
+     */
+    public float getCoverage() {
+        return (float) visitedBinCount / DIRECTION_BINS;
+    }
+
+    /**
+     * @return 当前校准质量的快照
+     */
+    public Quality getQuality() {
+        return new Quality(sampleCount, getCoverage(), (float) fitError, (float) fieldStrength,
+                (float) conditionRatio, isCorrectionUsable(),
+                new float[]{(float) offset[0], (float) offset[1], (float) offset[2]});
+    }
+
+    /**
+     * 由RLS参数求解椭球中心与形状矩阵，得到新的校正.
+     * 若参数不构成椭球（形状矩阵非正定），保留上一次的校正.
+     *
+     * @return true 如果得到了新的校正
+     */
+    private boolean solve() {
+        //形状矩阵M（对称）与线性项n，均处于缩放后的坐标系
+        shape[0] = theta[0];
+        shape[4] = theta[1];
+        shape[8] = theta[2];
+        shape[1] = shape[3] = theta[3];
+        shape[2] = shape[6] = theta[4];
+        shape[5] = shape[7] = theta[5];
+
+        //中心 o = -M^-1 * n，用伴随矩阵求逆
+        final double det = determinant3(shape);
+        if (!(Math.abs(det) > 1e-12)) {
+            return false;
+        }
+        final double g = theta[6];
+        final double h = theta[7];
+        final double i = theta[8];
+        final double m00 = shape[0], m01 = shape[1], m02 = shape[2];
+        final double m11 = shape[4], m12 = shape[5], m22 = shape[8];
+        final double c00 = m11 * m22 - m12 * m12;
+        final double c01 = m02 * m12 - m01 * m22;
+        final double c02 = m01 * m12 - m02 * m11;
+        final double c11 = m00 * m22 - m02 * m02;
+        final double c12 = m01 * m02 - m00 * m12;
+        final double c22 = m00 * m11 - m01 * m01;
+        center[0] = -(c00 * g + c01 * h + c02 * i) / det;
+        center[1] = -(c01 * g + c11 * h + c12 * i) / det;
+        center[2] = -(c02 * g + c12 * h + c22 * i) / det;
+
+        //(v - o)' M (v - o) = 1 + o' M o = s
+        double s = 1.0;
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                s += center[r] * shape[r * 3 + c] * center[c];
+            }
+        }
+        if (!(s > 0)) {
+            return false;
+        }
+        for (int k = 0; k < 9; k++) {
+            shape[k] /= s;
+        }
+
+        //M/s = V diag(l) V'，椭球半轴 r_k = 1/sqrt(l_k)
+        jacobiEigen(shape, eigenValues, eigenVectors);
+        double minEigen = Double.MAX_VALUE;
+        double maxEigen = 0.0;
+        for (int k = 0; k < 3; k++) {
+            if (!(eigenValues[k] > 0)) {
+                return false;
+            }
+            minEigen = Math.min(minEigen, eigenValues[k]);
+            maxEigen = Math.max(maxEigen, eigenValues[k]);
+        }
+        //几何平均半径 R = (r1*r2*r3)^(1/3)
+        final double radius = Math.cbrt(1.0 / Math.sqrt(eigenValues[0] * eigenValues[1] * eigenValues[2]));
+
+        //softIron = R * V diag(sqrt(l)) V'，将椭球映射为半径R的球；offset与半径还原为uT
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                double sum = 0.0;
+                for (int k = 0; k < 3; k++) {
+                    sum += eigenVectors[r * 3 + k] * Math.sqrt(eigenValues[k]) * eigenVectors[c * 3 + k];
+                }
+                softIron[r * 3 + c] = radius * sum;
+            }
+            offset[r] = center[r] * INPUT_SCALE;
+        }
+        fieldStrength = radius * INPUT_SCALE;
+        conditionRatio = Math.sqrt(minEigen / maxEigen);
+        calibrated = true;
+        return true;
+    }
+
+    /**
+     * 用校正后模长偏离拟合半径的相对误差更新拟合误差的滑动平均.
+     */
+    private void updateFitError(float[] rawMag) {
+        final double dx = rawMag[0] - offset[0];
+        final double dy = rawMag[1] - offset[1];
+        final double dz = rawMag[2] - offset[2];
+        final double cx = softIron[0] * dx + softIron[1] * dy + softIron[2] * dz;
+        final double cy = softIron[3] * dx + softIron[4] * dy + softIron[5] * dz;
+        final double cz = softIron[6] * dx + softIron[7] * dy + softIron[8] * dz;
+        final double relative = Math.abs(Math.sqrt(cx * cx + cy * cy + cz * cz) - fieldStrength) / fieldStrength;
+        fitError += FIT_ERROR_ALPHA * (relative - fitError);
+    }
+
+    /**
+     * 记录读数（相对当前中心）所在的方向格，用于统计方向覆盖率.
+     */
+    private void markDirection(float[] rawMag) {
+        final double x = rawMag[0] - offset[0];
+        final double y = rawMag[1] - offset[1];
+        final double z = rawMag[2] - offset[2];
+        final int octant = (x >= 0 ? 1 : 0) | (y >= 0 ? 2 : 0) | (z >= 0 ? 4 : 0);
+        final double ax = Math.abs(x), ay = Math.abs(y), az = Math.abs(z);
+        final int majorAxis = ax >= ay && ax >= az ? 0 : (ay >= az ? 1 : 2);
+        final int bin = octant * 3 + majorAxis;
+        if (!visitedBins[bin]) {
+            visitedBins[bin] = true;
+            visitedBinCount++;
+        }
+    }
+
+    private void setIdentityCorrection() {
+        for (int k = 0; k < 9; k++) {
+            softIron[k] = k % 4 == 0 ? 1.0 : 0.0;
+        }
+        offset[0] = offset[1] = offset[2] = 0.0;
+    }
+
+    private static double determinant3(double[] m) {
+        return m[0] * (m[4] * m[8] - m[5] * m[7])
+                - m[1] * (m[3] * m[8] - m[5] * m[6])
+                + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
+
+    /**
+     * 3x3对称矩阵的循环Jacobi特征分解，原地使用a（会被破坏）.
+     *
+     * @param a       对称矩阵（按行展开）
+     * @param values  输出特征值
+     * @param vectors 输出特征向量，第k列对应values[k]
+     */
+    private static void jacobiEigen(double[] a, double[] values, double[] vectors) {
+        for (int k = 0; k < 9; k++) {
+            vectors[k] = k % 4 == 0 ? 1.0 : 0.0;
+        }
+        for (int sweep = 0; sweep < 32; sweep++) {
+            final double offDiagonal = a[1] * a[1] + a[2] * a[2] + a[5] * a[5];
+            if (offDiagonal < 1e-24) {
+                break;
+            }
+            for (int pi = 0; pi < 2; pi++) {
+                for (int qi = pi + 1; qi < 3; qi++) {
+                    final double apq = a[pi * 3 + qi];
+                    if (Math.abs(apq) < 1e-30) {
+                        continue;
+                    }
+                    final double app = a[pi * 3 + pi];
+                    final double aqq = a[qi * 3 + qi];
+                    final double tau = (aqq - app) / (2 * apq);
+                    final double t = Math.signum(tau == 0 ? 1 : tau) / (Math.abs(tau) + Math.sqrt(1 + tau * tau));
+                    final double c = 1 / Math.sqrt(1 + t * t);
+                    final double s = t * c;
+                    for (int k = 0; k < 3; k++) {
+                        final double akp = a[k * 3 + pi];
+                        final double akq = a[k * 3 + qi];
+                        a[k * 3 + pi] = c * akp - s * akq;
+                        a[k * 3 + qi] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        final double apk = a[pi * 3 + k];
+                        final double aqk = a[qi * 3 + k];
+                        a[pi * 3 + k] = c * apk - s * aqk;
+                        a[qi * 3 + k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < 3; k++) {
+                        final double vkp = vectors[k * 3 + pi];
+                        final double vkq = vectors[k * 3 + qi];
+                        vectors[k * 3 + pi] = c * vkp - s * vkq;
+                        vectors[k * 3 + qi] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+        values[0] = a[0];
+        values[1] = a[4];
+        values[2] = a[8];
+    }
+
+    /**
+     * 校准质量快照，不可变.
+     */
+    static final class Quality {
+        /**
+         * 参与拟合的磁力计读数个数.
+         */
+        final long samples;
+
+        /**
+         * 方向覆盖率[0, 1].
+         */
+        final float coverage;
+
+        /**
+         * 校正后模长相对拟合半径的平均相对误差.
+         */
+        final float fitError;
+
+        /**
+         * 拟合得到的场强（球半径，uT）.
+         */
+        final float fieldStrength;
+
+        /**
+         * 椭球最短/最长半轴之比，越接近1软铁畸变越小.
+         */
+        final float axisRatio;
+
+        /**
+         * 校正是否已应用到输出.
+         */
+        final boolean usable;
+
+        /**
+         * 硬铁偏移xyz（uT）.
+         */
+        final float[] hardIronOffset;
+
+        Quality(long samples, float coverage, float fitError, float fieldStrength, float axisRatio,
+                boolean usable, float[] hardIronOffset) {
+            this.samples = samples;
+            this.coverage = coverage;
+            this.fitError = fitError;
+            this.fieldStrength = fieldStrength;
+            this.axisRatio = axisRatio;
+            this.usable = usable;
+            this.hardIronOffset = hardIronOffset;
+        }
+
+        @Override
+        public String toString() {
+            return "samples=" + samples
+                    + ",coverage=" + coverage
+                    + ",fitError=" + fitError
+                    + ",field=" + fieldStrength
+                    + ",axisRatio=" + axisRatio
+                    + ",usable=" + usable
+                    + ",offset=" + hardIronOffset[0] + "/" + hardIronOffset[1] + "/" + hardIronOffset[2];
+        }
+    }
+}
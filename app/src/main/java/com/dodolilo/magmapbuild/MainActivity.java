@@ -1,16 +1,26 @@
 package com.dodolilo.magmapbuild;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import android.Manifest;
+
+import android.graphics.Bitmap;
+import android.os.Build;
 import android.os.Bundle;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.Spinner;
 import android.widget.Toast;
 
 import java.security.InvalidParameterException;
+import java.util.concurrent.CompletableFuture;
 
 public class MainActivity extends AppCompatActivity {
     /**
@@ -21,6 +31,8 @@ public class MainActivity extends AppCompatActivity {
     private Button btStartSampling;
     private EditText edtPointIndex;
     private Button btMarkPoint;
+    private ImageView ivCoverage;
+    private Spinner spUploadFrame;
 
     /**
      * 定位系统服务器ip地址.
@@ -39,8 +51,24 @@ public class MainActivity extends AppCompatActivity {
 
     private CollectSendSensorsData collectSendSensorsData = null;
 
+    /**
+     * 后台保存文件的服务，随进程存在；Activity重建后重新设置回调.
+     */
+    private PersistenceService persistenceService = null;
+
+    /**
+     * 应用外部存储files文件夹中的打点文件，每行"name:x,y".
+     */
+    private static final String POINTS_FILE_NAME = "points.csv";
+
+    /**
+     * 打点文件在后台读取，读完（无论成败）后才进入机房；读取失败时打点只记录点名，不统计覆盖度.
+     */
+    private CompletableFuture<PointTable> pointTableLoaded = CompletableFuture.completedFuture(null);
+
+    private static final int RF_PERMISSIONS_REQUEST = 1;
+
     private int pointIndex = 0;
-    private StringBuilder pointRecords = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -55,6 +83,8 @@ public class MainActivity extends AppCompatActivity {
         btStartSampling = findViewById(R.id.btStartSampling);
         edtPointIndex = findViewById(R.id.edtPointIndex);
         btMarkPoint = findViewById(R.id.btMarkPoint);
+        ivCoverage = findViewById(R.id.ivCoverage);
+        spUploadFrame = findViewById(R.id.spUploadFrame);
 
         //
 
@@ -68,6 +98,41 @@ public class MainActivity extends AppCompatActivity {
 
         //3.注册UI组件监听器
         setComponentsListeners();
+
+        //4.Wi-Fi/BLE指纹采集需要的运行时权限，拒绝时只采集磁场数据
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            ActivityCompat.requestPermissions(this, new String[]{
+                    Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.BLUETOOTH_SCAN}, RF_PERMISSIONS_REQUEST);
+        } else {
+            ActivityCompat.requestPermissions(this, new String[]{
+                    Manifest.permission.ACCESS_FINE_LOCATION}, RF_PERMISSIONS_REQUEST);
+        }
+
+        //5.文件在后台IO线程中保存，结果在主线程中提示
+        persistenceService = PersistenceService.getInstance(this);
+        persistenceService.setListener(result -> {
+            if (result.isSuccess()) {
+                MessageBuilder.showMessageWithOK(this, "Save Succeed to", result.file.getName());
+            } else {
+                MessageBuilder.showMessageWithOK(this, "Write Error", result.error.getMessage());
+            }
+        });
+
+        //6.打点文件在IO线程中读取（有二进制缓存），读完后设置给采数实例
+        pointTableLoaded = persistenceService.loadPoints(POINTS_FILE_NAME).handle((pointTable, e) -> {
+            if (e != null) {
+                runOnUiThread(() -> Toast.makeText(this, "打点文件读取失败：" + e.getMessage(), Toast.LENGTH_LONG).show());
+                return null;
+            }
+            collectSendSensorsData.setPointTable(pointTable);
+            return pointTable;
+        });
+
+        //7.覆盖度热力图在后台线程渲染，这里只把Bitmap交给ImageView
+        collectSendSensorsData.setHeatmapListener(heatmap -> {
+            Bitmap bitmap = Bitmap.createBitmap(heatmap.argb, heatmap.width, heatmap.height, Bitmap.Config.ARGB_8888);
+            runOnUiThread(() -> ivCoverage.setImageBitmap(bitmap));
+        });
     }
 
     /**
@@ -79,6 +144,10 @@ public class MainActivity extends AppCompatActivity {
      */
     @Override
     protected void onDestroy() {
+        //保存任务继续在后台进行，结果留到新的Activity设置回调时再提示
+        if (persistenceService != null) {
+            persistenceService.setListener(null);
+        }
         //停止开启的线程
         if (collectSendSensorsData != null) {
             collectSendSensorsData.leavingTheRoom();
@@ -128,29 +197,38 @@ public class MainActivity extends AppCompatActivity {
             if (collectSendSensorsData.isInTheRoom()) {
                 //离开机房：停止数据采集与发送，将按钮文本改为”开始采数“，将按钮颜色改为绿色
                 collectSendSensorsData.leavingTheRoom();
+                //会话在剩余数据被服务器确认后才真正结束
+                CompletableFuture<Void> completion = collectSendSensorsData.getSessionCompletion();
+                if (completion != null) {
+                    completion.whenComplete((v, e) -> runOnUiThread(() -> Toast.makeText(
+                            this, e == null ? "数据已全部上传" : "数据上传未完成", Toast.LENGTH_SHORT).show()));
+                }
 
                 btStartSampling.setText(R.string.button_start_record);
                 btStartSampling.setBackgroundColor(ContextCompat.getColor(this, R.color.start_green));
 
-                //保存打点信息文件到外存文件中
-                CsvDataTools.saveCsvToExternalStorage("mark_points" + System.currentTimeMillis() + ".csv", CsvDataTools.FileSaveType.CSV, pointRecords.toString(), this);
-                //
-                pointRecords = null;
+                //打点已随数据流上传，同时在外存中保存一份，写文件在后台进行
+                MarkEventChannel markChannel = collectSendSensorsData.getMarkChannel();
+                if (markChannel != null) {
+                    persistenceService.save("mark_points" + System.currentTimeMillis() + ".csv", CsvDataTools.FileSaveType.CSV, markChannel.toPointRecordsCsv());
+                }
             } else {
                 //进入机房：更新参数后开始采数与发送，将按钮文本改为”停止采数“，若启动成功，则按钮颜色变为红色
                 collectSendSensorsData.setServerIP(serverIP);
                 collectSendSensorsData.setServerPort(serverPort);
                 collectSendSensorsData.setUserPhone(userPhone);
-                if (collectSendSensorsData.enteringTheRoom() == false) {
-                    Toast.makeText(this, "启动失败，重新尝试启动or认为手机传感器不支持", Toast.LENGTH_LONG).show();
-                    return ;
-                }
-
-                btStartSampling.setText(R.string.button_stop_record);
-                btStartSampling.setBackgroundColor(ContextCompat.getColor(this, R.color.stop_red));
-
-                //保存打点
-                pointRecords = new StringBuilder();
+                //等待上一次会话的线程结束可能需要约1秒，在后台进行，期间按钮不可点击
+                btStartSampling.setEnabled(false);
+                pointTableLoaded.thenCompose(pointTable -> collectSendSensorsData.enteringTheRoomAsync()).whenComplete((started, e) -> runOnUiThread(() -> {
+                    btStartSampling.setEnabled(true);
+                    if (e != null || !started) {
+                        Toast.makeText(this, "启动失败，重新尝试启动or认为手机传感器不支持", Toast.LENGTH_LONG).show();
+                        return ;
+                    }
+
+                    btStartSampling.setText(R.string.button_stop_record);
+                    btStartSampling.setBackgroundColor(ContextCompat.getColor(this, R.color.stop_red));
+                }));
             }
         });
 
@@ -172,11 +250,22 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        //打点，如果pointRecords = null，则代表没有开始采集，不允许打点
+        //上传数据的坐标系，下一次进入机房时生效
+        spUploadFrame.setSelection(collectSendSensorsData.getUploadFrame().ordinal());
+        spUploadFrame.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                collectSendSensorsData.setUploadFrame(WorldFrameTransform.UploadFrame.values()[position]);
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        //打点，不在机房中（没有开始采集）时不允许打点
         btMarkPoint.setOnClickListener(v -> {
-            if (pointRecords != null) {
-                pointRecords.append(pointIndex + "," + System.currentTimeMillis() + "\n");
-            } else {
+            if (collectSendSensorsData.markPoint(String.valueOf(pointIndex)) == null) {
                 Toast.makeText(this, "请先点击 进入机房 按钮，再开始打点。", Toast.LENGTH_SHORT).show();
             }
         });
@@ -0,0 +1,423 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多楼宇、多楼层磁图的瓦片管理器.
+ * 每层磁图是一个{@link MagMapFile}，按{@link #TILE_CELLS}x{@link #TILE_CELLS}个格子切成瓦片，
+ * 在当前位置附近按需加载到堆内，并沿行走方向预取；
+ * 瓦片用按访问顺序排列的LRU缓存，总字节数超过预算时淘汰最久未使用的瓦片，
+ * 因此大园区也能在固定的内存上限内运行.
+ */
+@ThreadSafe
+class MapTileManager {
+    private static final String TAG = "MapTileManager";
+
+    /**
+     * 瓦片边长（格子数）.
+     */
+    static final int TILE_CELLS = 32;
+
+    /**
+     * 沿行走方向预取的瓦片数.
+     */
+    private static final int PREFETCH_TILES_AHEAD = 2;
+
+    /**
+     * 待预取瓦片队列的容量，位置更新很快时只保留最新的请求.
+     */
+    private static final int PREFETCH_QUEUE_CAPACITY = 16;
+
+    /**
+     * 瓦片对象与数组头的固定开销估计（字节）.
+     */
+    private static final int TILE_OVERHEAD_BYTES = 128;
+
+    private final long byteBudget;
+
+    /**
+     * 已登记的磁图文件，首次访问时才映射.
+     */
+    private final Map<MapId, File> mapFiles = new ConcurrentHashMap<>();
+
+    private final Map<MapId, MagMapFile> openedMaps = new ConcurrentHashMap<>();
+
+    @GuardedBy("this")
+    private final LinkedHashMap<TileKey, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true);
+
+    @GuardedBy("this")
+    private long usedBytes = 0L;
+
+    private final LinkedBlockingDeque<TileKey> prefetchQueue = new LinkedBlockingDeque<>(PREFETCH_QUEUE_CAPACITY);
+
+    private volatile PrefetchStage prefetchStage = null;
+
+    /**
+     * @param byteBudget 瓦片缓存占用堆内存的上限（字节）
+     */
+    MapTileManager(long byteBudget) throws InvalidParameterException {
+        if (byteBudget <= 0) {
+            throw new InvalidParameterException("Param byteBudget must be positive");
+        }
+        this.byteBudget = byteBudget;
+    }
+
+    /**
+     * 登记某楼宇某楼层的磁图文件.重新登记会清除该层已缓存的瓦片.
+     */
+    public void registerMap(String building, int floor, File mapFile) {
+        final MapId id = new MapId(building, floor);
+        mapFiles.put(id, mapFile);
+        openedMaps.remove(id);
+        synchronized (this) {
+            final Iterator<Map.Entry<TileKey, Tile>> it = tiles.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<TileKey, Tile> entry = it.next();
+                if (entry.getKey().map.equals(id)) {
+                    usedBytes -= entry.getValue().bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动后台预取线程.
+     */
+    public void start(PipelineScheduler scheduler) {
+        final PrefetchStage stage = new PrefetchStage();
+        prefetchStage = stage;
+        scheduler.start(stage);
+    }
+
+    public void stop() {
+        final PrefetchStage stage = prefetchStage;
+        prefetchStage = null;
+        if (stage != null) {
+            stage.cancel();
+        }
+        prefetchQueue.clear();
+    }
+
+    /**
+     * 位置估计更新时调用：当前所在瓦片同步加载，周围一圈瓦片与行走方向前方的瓦片交给后台预取.
+     *
+     * @param heading 行走方向（弧度，x轴为0，逆时针为正），未知时传NaN
+     * @return 当前所在瓦片，不在磁图范围内时为null
+     */
+    public Tile updatePosition(String building, int floor, float x, float y, float heading) {
+        final MapId id = new MapId(building, floor);
+        final MagMapFile map = openMap(id);
+        if (map == null) {
+            return null;
+        }
+        final float tileSize = map.getCellSize() * TILE_CELLS;
+        final int tx = (int) Math.floor((x - map.getOriginX()) / tileSize);
+        final int ty = (int) Math.floor((y - map.getOriginY()) / tileSize);
+        final Tile current = getTile(new TileKey(id, tx, ty));
+
+        prefetchQueue.clear();
+        if (!Float.isNaN(heading)) {
+            for (int i = 1; i <= PREFETCH_TILES_AHEAD; i++) {
+                final float ax = x + (float) Math.cos(heading) * tileSize * i;
+                final float ay = y + (float) Math.sin(heading) * tileSize * i;
+                requestPrefetch(new TileKey(id, (int) Math.floor((ax - map.getOriginX()) / tileSize),
+                        (int) Math.floor((ay - map.getOriginY()) / tileSize)));
+            }
+        }
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if (dx != 0 || dy != 0) {
+                    requestPrefetch(new TileKey(id, tx + dx, ty + dy));
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return 坐标处格子第channel通道的均值，没有数据或瓦片不可用时为NaN
+     */
+    public float getMean(String building, int floor, float x, float y, int channel) {
+        final MapId id = new MapId(building, floor);
+        final MagMapFile map = openMap(id);
+        if (map == null) {
+            return Float.NaN;
+        }
+        final int col = (int) Math.floor((x - map.getOriginX()) / map.getCellSize());
+        final int row = (int) Math.floor((y - map.getOriginY()) / map.getCellSize());
+        final Tile tile = getTile(new TileKey(id, Math.floorDiv(col, TILE_CELLS), Math.floorDiv(row, TILE_CELLS)));
+        if (tile == null) {
+            return Float.NaN;
+        }
+        return tile.getMean(Math.floorMod(col, TILE_CELLS), Math.floorMod(row, TILE_CELLS), channel);
+    }
+
+    /**
+     * 取瓦片，不在缓存中时在调用线程中从磁图文件加载.
+     *
+     * @return null 如果该层磁图未登记或瓦片超出磁图范围
+     */
+    Tile getTile(TileKey key) {
+        synchronized (this) {
+            final Tile cached = tiles.get(key);
+            if (cached != null) {
+                PipelineMetrics.TILE_HITS.increment();
+                return cached;
+            }
+        }
+        PipelineMetrics.TILE_MISSES.increment();
+        final MagMapFile map = openMap(key.map);
+        if (map == null || !inside(map, key)) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Tile loaded = Tile.load(map, key.tx, key.ty);
+        PipelineMetrics.TILE_LOAD_US.record((System.nanoTime() - start) / 1000);
+        synchronized (this) {
+            //预取线程可能已经先加载了同一个瓦片
+            final Tile raced = tiles.get(key);
+            if (raced != null) {
+                return raced;
+            }
+            tiles.put(key, loaded);
+            usedBytes += loaded.bytes;
+            evictOverBudget(key);
+        }
+        return loaded;
+    }
+
+    @GuardedBy("this")
+    private void evictOverBudget(TileKey keep) {
+        final Iterator<Map.Entry<TileKey, Tile>> it = tiles.entrySet().iterator();
+        while (usedBytes > byteBudget && it.hasNext()) {
+            final Map.Entry<TileKey, Tile> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            usedBytes -= eldest.getValue().bytes;
+            it.remove();
+            PipelineMetrics.TILE_EVICTIONS.increment();
+        }
+    }
+
+    private void requestPrefetch(TileKey key) {
+        synchronized (this) {
+            if (tiles.containsKey(key)) {
+                return;
+            }
+        }
+        prefetchQueue.offerLast(key);
+    }
+
+    private MagMapFile openMap(MapId id) {
+        MagMapFile map = openedMaps.get(id);
+        if (map != null) {
+            return map;
+        }
+        final File file = mapFiles.get(id);
+        if (file == null) {
+            return null;
+        }
+        try {
+            map = MagMapFile.open(file);
+        } catch (IOException e) {
+            Log.e(TAG, "cannot open map " + file, e);
+            return null;
+        }
+        final MagMapFile previous = openedMaps.putIfAbsent(id, map);
+        return previous != null ? previous : map;
+    }
+
+    private static boolean inside(MagMapFile map, TileKey key) {
+        return key.tx >= 0 && key.ty >= 0
+                && key.tx * TILE_CELLS < map.getCols() && key.ty * TILE_CELLS < map.getRows();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getTileCount() {
+        return tiles.size();
+    }
+
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * 一层磁图的标识：楼宇 + 楼层.
+     */
+    @Immutable
+    static final class MapId {
+        final String building;
+        final int floor;
+
+        MapId(String building, int floor) throws InvalidParameterException {
+            if (building == null || building.equals("")) {
+                throw new InvalidParameterException("Param building is null or empty");
+            }
+            this.building = building;
+            this.floor = floor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof MapId)) {
+                return false;
+            }
+            final MapId other = (MapId) o;
+            return floor == other.floor && building.equals(other.building);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * building.hashCode() + floor;
+        }
+
+        @Override
+        public String toString() {
+            return building + "/" + floor;
+        }
+    }
+
+    /**
+     * 瓦片标识：磁图 + 瓦片坐标.
+     */
+    @Immutable
+    static final class TileKey {
+        final MapId map;
+        final int tx;
+        final int ty;
+
+        TileKey(MapId map, int tx, int ty) {
+            this.map = map;
+            this.tx = tx;
+            this.ty = ty;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) o;
+            return tx == other.tx && ty == other.ty && map.equals(other.map);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(map, tx, ty);
+        }
+
+        @Override
+        public String toString() {
+            return map + "@" + tx + "," + ty;
+        }
+    }
+
+    /**
+     * 加载到堆内的一块瓦片：TILE_CELLS x TILE_CELLS个格子的样本数与各通道均值、标准差.
+     */
+    @Immutable
+    static final class Tile {
+        private final int channels;
+        private final int[] counts;
+        private final float[] means;
+        private final float[] stds;
+        final long bytes;
+
+        private Tile(int channels) {
+            this.channels = channels;
+            counts = new int[TILE_CELLS * TILE_CELLS];
+            means = new float[TILE_CELLS * TILE_CELLS * channels];
+            stds = new float[TILE_CELLS * TILE_CELLS * channels];
+            Arrays.fill(means, Float.NaN);
+            Arrays.fill(stds, Float.NaN);
+            bytes = TILE_OVERHEAD_BYTES + 4L * counts.length + 8L * means.length;
+        }
+
+        /**
+         * 通过磁图文件的空间索引只复制瓦片范围内有数据的格子.
+         */
+        static Tile load(MagMapFile map, int tx, int ty) {
+            final Tile tile = new Tile(map.getChannels());
+            final float tileSize = map.getCellSize() * TILE_CELLS;
+            final float half = map.getCellSize() / 2;
+            final float minX = map.getOriginX() + tx * tileSize + half;
+            final float minY = map.getOriginY() + ty * tileSize + half;
+            final int col0 = tx * TILE_CELLS;
+            final int row0 = ty * TILE_CELLS;
+            map.forEachSlotInRect(minX, minY, minX + tileSize - map.getCellSize(), minY + tileSize - map.getCellSize(),
+                    (slot, col, row) -> {
+                        final int local = (row - row0) * TILE_CELLS + (col - col0);
+                        tile.counts[local] = map.getCount(slot);
+                        for (int c = 0; c < tile.channels; c++) {
+                            tile.means[local * tile.channels + c] = map.getMean(slot, c);
+                            tile.stds[local * tile.channels + c] = map.getStd(slot, c);
+                        }
+                    });
+            return tile;
+        }
+
+        /**
+         * @param col 瓦片内的列，0 ~ TILE_CELLS-1
+         * @param row 瓦片内的行，0 ~ TILE_CELLS-1
+         */
+        public int getCount(int col, int row) {
+            return counts[row * TILE_CELLS + col];
+        }
+
+        public float getMean(int col, int row, int channel) {
+            return means[(row * TILE_CELLS + col) * channels + channel];
+        }
+
+        public float getStd(int col, int row, int channel) {
+            return stds[(row * TILE_CELLS + col) * channels + channel];
+        }
+    }
+
+    /**
+     * 后台预取级：依次加载队列中的瓦片，已在缓存中的直接跳过.
+     */
+    private final class PrefetchStage extends PipelineStage {
+        PrefetchStage() {
+            super("tile-prefetch", Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        @Override
+        protected void runStage() throws InterruptedException {
+            while (!isCancelled()) {
+                final TileKey key = prefetchQueue.pollFirst(100, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    getTile(key);
+                    recordProcessed(1);
+                }
+            }
+        }
+    }
+}
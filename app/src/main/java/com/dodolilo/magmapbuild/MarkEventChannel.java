@@ -0,0 +1,139 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.SystemClock;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 打点通道：将一次打点变成带时间戳、已解析坐标的地面真值事件，作为带内记录实时随数据流上传.
+ * 打点同时记录与样本行相同的墙上时钟（System.currentTimeMillis()），
+ * 和与SensorEvent.timestamp相同时间基准的SystemClock.elapsedRealtimeNanos()，
+ * 离线对齐时可以不受墙上时钟跳变的影响.
+ * 记录格式：{@code #MARK,time,elapsedNanos,name,x,y}，点名无法解析为坐标时x、y为空.
+ * 点名不能为空，也不能含有','与换行，否则记录与本地保存的csv都无法解析.
+ */
+@ThreadSafe
+class MarkEventChannel {
+    private final SessionController session;
+
+    /**
+     * 点名 -> 坐标，可以为空表.
+     */
+    private final PointTable pointTable;
+
+    @GuardedBy("this")
+    private final List<MarkEvent> history = new ArrayList<>();
+
+    MarkEventChannel(SessionController session, PointTable pointTable) {
+        this.session = session;
+        this.pointTable = pointTable == null ? PointTable.EMPTY : pointTable;
+    }
+
+    /**
+     * 打点，可在UI线程中调用.
+     *
+     * @param pointName 点名（点的下标）
+     * @return 打点事件，会话已排空、无法再发送时为null
+     * @throws InvalidParameterException 点名为空或含有','、换行
+     */
+    public MarkEvent mark(String pointName) throws InvalidParameterException {
+        MarkEvent.checkPointName(pointName);
+        final long elapsedNanos = SystemClock.elapsedRealtimeNanos();
+        final long timeMillis = System.currentTimeMillis();
+        final int index = pointTable.indexOf(pointName);
+        //解析成功时使用表中的点名实例，history中同名的打点共享一个String
+        final MarkEvent event = index < 0
+                ? new MarkEvent(pointName, timeMillis, elapsedNanos, Float.NaN, Float.NaN)
+                : new MarkEvent(pointTable.getName(index), timeMillis, elapsedNanos,
+                pointTable.getX(index), pointTable.getY(index));
+        if (!session.offerRecord(event.toRecord())) {
+            return null;
+        }
+        synchronized (this) {
+            history.add(event);
+        }
+        return event;
+    }
+
+    /**
+     * @return 本次会话的所有打点，按打点顺序
+     */
+    public synchronized List<MarkEvent> getHistory() {
+        return new ArrayList<>(history);
+    }
+
+    /**
+     * @return 旧格式的打点记录，每行"name,time"，用于本地保存
+     */
+    public synchronized String toPointRecordsCsv() {
+        final StringBuilder sb = new StringBuilder(history.size() * 24);
+        for (MarkEvent event : history) {
+            sb.append(event.pointName).append(',').append(event.timeMillis).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一次打点.
+     */
+    @Immutable
+    static final class MarkEvent {
+        final String pointName;
+        final long timeMillis;
+        final long elapsedNanos;
+        final float x;
+        final float y;
+
+        /**
+         * @throws InvalidParameterException 点名为空或含有','、换行
+         */
+        MarkEvent(String pointName, long timeMillis, long elapsedNanos, float x, float y)
+                throws InvalidParameterException {
+            checkPointName(pointName);
+            this.pointName = pointName;
+            this.timeMillis = timeMillis;
+            this.elapsedNanos = elapsedNanos;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * 点名原样写入以','分隔的记录，不转义，因此拒绝会破坏行格式的点名.
+         */
+        static void checkPointName(String pointName) throws InvalidParameterException {
+            if (pointName == null || pointName.isEmpty()) {
+                throw new InvalidParameterException("Param pointName is null or empty");
+            }
+            for (int i = 0; i < pointName.length(); i++) {
+                final char c = pointName.charAt(i);
+                if (c == ',' || c == '\n' || c == '\r') {
+                    throw new InvalidParameterException("Param pointName contains ',' or a line break: " + pointName);
+                }
+            }
+        }
+
+        public boolean isResolved() {
+            return !Float.isNaN(x);
+        }
+
+        String toRecord() {
+            final StringBuilder sb = new StringBuilder(64).append(MarkPointTrack.MARK_RECORD_TAG)
+                    .append(',').append(timeMillis)
+                    .append(',').append(elapsedNanos)
+                    .append(',').append(pointName)
+                    .append(',');
+            if (isResolved()) {
+                sb.append(x).append(',').append(y);
+            } else {
+                sb.append(',');
+            }
+            return sb.append('\n').toString();
+        }
+    }
+}
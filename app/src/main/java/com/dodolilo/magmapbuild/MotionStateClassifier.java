@@ -0,0 +1,153 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * 运动状态分类：静止、行走、转身，用于按状态调整采样与上传频率.
+ * 只用两个量：加速度模在滑动窗口内的方差与陀螺仪角速度模的滑动均值，每帧常数次运算、不分配对象.
+ * 滑动窗口按样本时间戳做指数衰减，采样频率改变时窗口的时长不变.
+ * 进入静止需要条件持续{@link #STILL_HOLD_MILLIS}，离开静止立即生效，避免开始行走时丢失数据.
+ * 只在采样线程中使用；各状态的累计时长在采样线程停止后读取.
+ */
+@NotThreadSafe
+class MotionStateClassifier {
+    enum State {
+        STILL,
+        WALKING,
+        TURNING
+    }
+
+    /**
+     * 滑动窗口的时间常数（ms）.
+     */
+    private static final double WINDOW_MILLIS = 300;
+
+    /**
+     * 静止的阈值：加速度模的标准差（m/s^2）与角速度模（rad/s）.
+     */
+    private static final double STILL_ACC_STD = 0.15;
+    private static final double STILL_GYRO = 0.1;
+
+    /**
+     * 角速度模超过它视为转身（rad/s），行走时手持手机的晃动一般在0.5以下.
+     */
+    private static final double TURNING_GYRO = 0.9;
+
+    /**
+     * 进入静止、从转身回到行走前，新状态需要持续的时长（ms）.
+     */
+    private static final long STILL_HOLD_MILLIS = 1000;
+    private static final long TURNING_HOLD_MILLIS = 300;
+
+    private double accMean;
+    private double accVariance;
+    private double gyroMean;
+
+    private long lastTimeMillis = -1L;
+
+    private State state = State.WALKING;
+
+    /**
+     * 原始判定结果及其开始时间，持续足够久才成为state.
+     */
+    private State candidate = State.WALKING;
+    private long candidateSinceMillis;
+
+    /**
+     * 各状态的累计时长（ms），下标为State.ordinal().
+     */
+    private final long[] stateMillis = new long[State.values().length];
+
+    /**
+     * 输入一帧样本.
+     *
+     * @param timeMillis 样本时间戳（ms）
+     * @param frame      样本帧，布局见{@link SensorFrame}
+     * @return 更新后的运动状态
+     */
+    State update(long timeMillis, float[] frame) {
+        final double acc = norm(frame, SensorFrame.ACC);
+        final double gyro = norm(frame, SensorFrame.GYRO);
+        if (lastTimeMillis < 0) {
+            accMean = acc;
+            accVariance = 0.0;
+            gyroMean = gyro;
+            lastTimeMillis = timeMillis;
+            candidateSinceMillis = timeMillis;
+            return state;
+        }
+        final long dt = Math.max(0L, timeMillis - lastTimeMillis);
+        stateMillis[state.ordinal()] += dt;
+        lastTimeMillis = timeMillis;
+
+        //指数加权的均值与方差（West 1979的增量形式）
+        final double alpha = 1.0 - Math.exp(-dt / WINDOW_MILLIS);
+        final double diff = acc - accMean;
+        accMean += alpha * diff;
+        accVariance = (1.0 - alpha) * (accVariance + alpha * diff * diff);
+        gyroMean += alpha * (gyro - gyroMean);
+
+        final State raw;
+        if (gyroMean > TURNING_GYRO) {
+            raw = State.TURNING;
+        } else if (accVariance < STILL_ACC_STD * STILL_ACC_STD && gyroMean < STILL_GYRO) {
+            raw = State.STILL;
+        } else {
+            raw = State.WALKING;
+        }
+        if (raw != candidate) {
+            candidate = raw;
+            candidateSinceMillis = timeMillis;
+        }
+        final long hold = raw == State.STILL ? STILL_HOLD_MILLIS
+                : (state == State.TURNING && raw == State.WALKING ? TURNING_HOLD_MILLIS : 0L);
+        if (raw != state && timeMillis - candidateSinceMillis >= hold) {
+            state = raw;
+        }
+        return state;
+    }
+
+    /**
+     * 回到初始的行走状态并清空窗口与累计时长，开始新的采集前调用.
+     */
+    void reset() {
+        lastTimeMillis = -1L;
+        state = State.WALKING;
+        candidate = State.WALKING;
+        for (int i = 0; i < stateMillis.length; i++) {
+            stateMillis[i] = 0L;
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * @return 加速度模在窗口内的标准差（m/s^2）
+     */
+    double getAccStd() {
+        return Math.sqrt(accVariance);
+    }
+
+    /**
+     * @return 角速度模在窗口内的均值（rad/s）
+     */
+    double getGyroMean() {
+        return gyroMean;
+    }
+
+    /**
+     * @return 处于state的累计时长（ms）
+     */
+    long getStateMillis(State state) {
+        return stateMillis[state.ordinal()];
+    }
+
+    private static double norm(float[] frame, int offset) {
+        final double x = frame[offset];
+        final double y = frame[offset + 1];
+        final double z = frame[offset + 2];
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+}
@@ -0,0 +1,311 @@
+package com.dodolilo.magmapbuild;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台保存、导出文件的服务，UI线程只提交任务，不做任何文件IO.
+ * <ul>
+ *     <li>所有任务在同一个IO线程中依次执行，同一个文件只有一个写者；</li>
+ *     <li>同一个文件尚未执行的保存与追加合并为一次写入：保存覆盖之前排队的内容，追加接在后面；</li>
+ *     <li>进度与结果通过{@link Listener}在主线程中回调.</li>
+ * </ul>
+ * 服务与进程同生命周期（持有Application context），Activity因配置变化重建时任务照常进行；
+ * 没有Listener时完成的结果暂存，重新{@link #setListener(Listener)}时补发.
+ */
+@ThreadSafe
+class PersistenceService {
+    private static final String TAG = "PersistenceService";
+
+    /**
+     * 暂存的、尚未交给Listener的结果数上限，超过时丢弃最早的.
+     */
+    private static final int MAX_UNDELIVERED = 32;
+
+    private static PersistenceService instance = null;
+
+    private final Context context;
+
+    private final ExecutorService io = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "persist-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicLong nextJobId = new AtomicLong(1);
+
+    /**
+     * 文件名（含扩展名） -> 排队中、尚未开始写的内容.
+     * 以文件名为键，外存路径只在IO线程中解析（检查外存状态、getExternalCacheDir()都有磁盘IO）.
+     */
+    @GuardedBy("this")
+    private final Map<String, PendingWrite> pendingWrites = new HashMap<>();
+
+    /**
+     * 只在主线程中读写.
+     */
+    private Listener listener = null;
+
+    private final ArrayDeque<Result> undelivered = new ArrayDeque<>();
+
+    /**
+     * 任务的结果.
+     */
+    static final class Result {
+        final long jobId;
+
+        /**
+         * 写入的文件.
+         */
+        final File file;
+
+        /**
+         * 失败原因，成功时为null.
+         */
+        final IOException error;
+
+        Result(long jobId, File file, IOException error) {
+            this.jobId = jobId;
+            this.file = file;
+            this.error = error;
+        }
+
+        boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * 任务进度与结果的回调，都在主线程中调用.
+     */
+    interface Listener {
+        /**
+         * 导出任务的进度.
+         */
+        default void onProgress(long jobId, long rows, long bytes) {
+        }
+
+        void onFinished(Result result);
+    }
+
+    /**
+     * 一个文件排队中的写入：从覆盖文件开始（truncate）或追加到文件末尾，内容按提交顺序排列.
+     */
+    private static final class PendingWrite {
+        boolean truncate = false;
+        final List<CharSequence> chunks = new ArrayList<>(2);
+        final List<Long> jobIds = new ArrayList<>(2);
+    }
+
+    private PersistenceService(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * @return 进程内唯一的实例
+     */
+    static synchronized PersistenceService getInstance(Context context) {
+        if (instance == null) {
+            instance = new PersistenceService(context);
+        }
+        return instance;
+    }
+
+    /**
+     * 设置接收回调的对象，如当前的Activity，必须在主线程中调用；补发之前暂存的结果.
+     * Activity销毁时应设为null，避免持有已销毁的Activity.
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null) {
+            while (!undelivered.isEmpty()) {
+                listener.onFinished(undelivered.pollFirst());
+            }
+        }
+    }
+
+    /**
+     * 将data保存到应用外部存储cache文件夹中的fileName，覆盖原有内容.
+     * data在写完之前不能再被修改.
+     *
+     * @return 任务id，与{@link Result#jobId}对应
+     */
+    long save(String fileName, CsvDataTools.FileSaveType fileType, CharSequence data) {
+        return enqueueWrite(fileName, fileType, data, true);
+    }
+
+    /**
+     * 将data追加到应用外部存储cache文件夹中的fileName末尾，排队中的多次追加合并为一次写入.
+     * data在写完之前不能再被修改.
+     *
+     * @return 任务id
+     */
+    long append(String fileName, CsvDataTools.FileSaveType fileType, CharSequence data) {
+        return enqueueWrite(fileName, fileType, data, false);
+    }
+
+    /**
+     * 把已记录的会话（csv或二进制）导出为应用外部存储cache文件夹中的csv，进度通过{@link Listener#onProgress}回调.
+     *
+     * @return 任务id
+     */
+    long exportSession(File sessionFile, String fileName) {
+        final long jobId = nextJobId.getAndIncrement();
+        io.execute(() -> {
+            File target = null;
+            IOException error = null;
+            try {
+                target = CsvDataTools.externalCacheFile(fileName, CsvDataTools.FileSaveType.CSV, context);
+                try (SessionReader reader = SessionBinaryFormat.open(sessionFile)) {
+                    CsvStreamExporter.export(reader, target, null, new ProgressPoster(jobId));
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            deliver(new Result(jobId, target, error));
+        });
+        return jobId;
+    }
+
+    /**
+     * 在IO线程中读取应用外部存储files文件夹中的打点文件，见{@link CsvDataTools#readPointsFromExternalStorage(String, Context)}.
+     *
+     * @return 打点坐标表，回调在IO线程中执行
+     */
+    CompletableFuture<PointTable> loadPoints(String csvFileName) {
+        final CompletableFuture<PointTable> result = new CompletableFuture<>();
+        io.execute(() -> {
+            try {
+                result.complete(CsvDataTools.readPointsFromExternalStorage(csvFileName, context));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    private long enqueueWrite(String fileName, CsvDataTools.FileSaveType fileType, CharSequence data,
+                              boolean truncate) {
+        final long jobId = nextJobId.getAndIncrement();
+        final String name = CsvDataTools.withFileType(fileName, fileType);
+        synchronized (this) {
+            PendingWrite pending = pendingWrites.get(name);
+            if (pending == null) {
+                pending = new PendingWrite();
+                pendingWrites.put(name, pending);
+                io.execute(() -> write(name, fileType));
+            }
+            if (truncate) {
+                //覆盖之前排队的全部内容
+                pending.truncate = true;
+                pending.chunks.clear();
+            }
+            pending.chunks.add(data);
+            pending.jobIds.add(jobId);
+        }
+        return jobId;
+    }
+
+    /**
+     * 在IO线程中取出文件排队的全部内容一次写入.
+     */
+    private void write(String name, CsvDataTools.FileSaveType fileType) {
+        final PendingWrite pending;
+        synchronized (this) {
+            pending = pendingWrites.remove(name);
+        }
+        File file = null;
+        IOException error = null;
+        try {
+            file = CsvDataTools.externalCacheFile(name, fileType, context);
+            CsvDataTools.writeCsv(file, !pending.truncate, pending.chunks);
+        } catch (IOException e) {
+            Log.e(TAG, "write " + name + " failed", e);
+            error = e;
+        }
+        for (long jobId : pending.jobIds) {
+            deliver(new Result(jobId, file, error));
+        }
+    }
+
+    private void deliver(Result result) {
+        mainHandler.post(() -> {
+            final Listener current = listener;
+            if (current != null) {
+                current.onFinished(result);
+                return;
+            }
+            if (undelivered.size() == MAX_UNDELIVERED) {
+                undelivered.pollFirst();
+            }
+            undelivered.addLast(result);
+        });
+    }
+
+    /**
+     * 把导出线程中的进度转到主线程；上一次的进度还没被主线程处理时只更新数值，不重复投递.
+     */
+    private final class ProgressPoster implements CsvStreamExporter.ProgressListener, Runnable {
+        private final long jobId;
+
+        @GuardedBy("this")
+        private long rows;
+
+        @GuardedBy("this")
+        private long bytes;
+
+        @GuardedBy("this")
+        private boolean posted = false;
+
+        ProgressPoster(long jobId) {
+            this.jobId = jobId;
+        }
+
+        @Override
+        public void onProgress(long rows, long bytes) {
+            synchronized (this) {
+                this.rows = rows;
+                this.bytes = bytes;
+                if (posted) {
+                    return;
+                }
+                posted = true;
+            }
+            mainHandler.post(this);
+        }
+
+        @Override
+        public void run() {
+            final long r;
+            final long b;
+            synchronized (this) {
+                r = rows;
+                b = bytes;
+                posted = false;
+            }
+            final Listener current = listener;
+            if (current != null) {
+                current.onProgress(jobId, r, b);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.dodolilo.magmapbuild;
+
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 流水线调度器：统一创建、命名、取消与回收各级的线程，取代各处零散的new Thread().
+ * 每一级独占一个线程，采样级使用高优先级且不与其它工作共用线程，避免与编码、发送抢占同一个核.
+ */
+@ThreadSafe
+class PipelineScheduler {
+    private static final String TAG = "PipelineScheduler";
+
+    /**
+     * 线程名前缀，便于在trace与ANR日志中辨认.
+     */
+    private final String threadNamePrefix;
+
+    @GuardedBy("this")
+    private final List<StageThread> stageThreads = new ArrayList<>();
+
+    PipelineScheduler(String threadNamePrefix) {
+        this.threadNamePrefix = threadNamePrefix;
+    }
+
+    /**
+     * 为stage创建一个专属的命名线程并启动.
+     */
+    public synchronized void start(PipelineStage stage) {
+        pruneFinished();
+        Thread thread = new Thread(stage, threadNamePrefix + "-" + stage.getName());
+        stageThreads.add(new StageThread(stage, thread));
+        thread.start();
+    }
+
+    /**
+     * 请求所有仍在运行的级结束，不等待.
+     */
+    public synchronized void cancelAll() {
+        for (StageThread st : stageThreads) {
+            st.stage.cancel();
+        }
+    }
+
+    /**
+     * 等待所有级的线程结束.
+     *
+     * @param timeoutMs 总的等待时间上限（ms）
+     * @return true 如果所有线程都已结束
+     */
+    public boolean joinAll(long timeoutMs) {
+        final List<StageThread> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(stageThreads);
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        boolean allFinished = true;
+        for (StageThread st : snapshot) {
+            //在某一级的线程中调用时（如异步启动会话），不等待自己
+            if (st.thread == Thread.currentThread()) {
+                continue;
+            }
+            final long remaining = deadline - System.currentTimeMillis();
+            try {
+                if (remaining > 0) {
+                    st.thread.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (st.thread.isAlive()) {
+                Log.w(TAG, st.thread.getName() + " is still running after join timeout");
+                allFinished = false;
+            }
+        }
+        synchronized (this) {
+            pruneFinished();
+        }
+        return allFinished;
+    }
+
+    /**
+     * 取消所有级并等待结束；超时仍未结束的线程会被中断，再等待一次.
+     *
+     * @param timeoutMs 正常结束的等待时间上限（ms）
+     * @return true 如果所有线程都已结束
+     */
+    public boolean cancelAndJoin(long timeoutMs) {
+        cancelAll();
+        if (joinAll(timeoutMs)) {
+            return true;
+        }
+        synchronized (this) {
+            for (StageThread st : stageThreads) {
+                st.thread.interrupt();
+            }
+        }
+        return joinAll(timeoutMs);
+    }
+
+    /**
+     * @return 各级的吞吐量描述，用于日志
+     */
+    public synchronized String describeThroughput() {
+        StringBuilder sb = new StringBuilder();
+        for (StageThread st : stageThreads) {
+            sb.append(st.stage.getName())
+                    .append(": ")
+                    .append(st.stage.getProcessedCount())
+                    .append(" (")
+                    .append(String.format("%.1f", st.stage.getThroughputPerSecond()))
+                    .append("/s)\n");
+        }
+        return sb.toString();
+    }
+
+    @GuardedBy("this")
+    private void pruneFinished() {
+        Iterator<StageThread> it = stageThreads.iterator();
+        while (it.hasNext()) {
+            if (!it.next().thread.isAlive()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static final class StageThread {
+        final PipelineStage stage;
+        final Thread thread;
+
+        StageThread(PipelineStage stage, Thread thread) {
+            this.stage = stage;
+            this.thread = thread;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 数据采集流水线中的一级，运行在{@link PipelineScheduler}为它创建的专属命名线程中.
+ * 子类在{@link #runStage()}中实现循环，并在循环条件中检查{@link #isCancelled()}；
+ * 每处理一批数据调用{@link #recordProcessed(long)}，以便统计本级吞吐量.
+ */
+abstract class PipelineStage implements Runnable {
+    private final String name;
+
+    /**
+     * android.os.Process中的线程优先级，在线程启动后设置.
+     */
+    private final int threadPriority;
+
+    /**
+     * 取消标志，由外部线程写、本级线程读，必须是volatile.
+     */
+    private volatile boolean cancelled = false;
+
+    private final AtomicLong processed = new AtomicLong();
+
+    private volatile long startNanos = 0L;
+
+    private volatile long stopNanos = 0L;
+
+    /**
+     * @param name           本级名字，也是线程名的后缀
+     * @param threadPriority android.os.Process.THREAD_PRIORITY_*
+     */
+    PipelineStage(String name, int threadPriority) {
+        this.name = name;
+        this.threadPriority = threadPriority;
+    }
+
+    @Override
+    public final void run() {
+        Process.setThreadPriority(threadPriority);
+        startNanos = System.nanoTime();
+        try {
+            runStage();
+        } catch (InterruptedException e) {
+            Log.i(name, "stage interrupted");
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            Log.e(name, "stage failed", e);
+        } finally {
+            stopNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 本级的工作循环，返回即代表本级结束.
+     *
+     * @throws InterruptedException 被强制中断时
+     */
+    protected abstract void runStage() throws InterruptedException;
+
+    /**
+     * 请求本级结束.本级应尽快排空手上的数据后从{@link #runStage()}返回.
+     */
+    public final void cancel() {
+        cancelled = true;
+        onCancel();
+    }
+
+    /**
+     * 取消时的附加动作（如唤醒阻塞的IO），在调用cancel()的线程中执行.
+     */
+    protected void onCancel() {
+    }
+
+    protected final boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * 记录本级处理的数据量（样本数、字节数等，由各级自行定义单位）.
+     */
+    protected final void recordProcessed(long count) {
+        processed.addAndGet(count);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    /**
+     * @return 本级从启动到现在（或到结束）的平均吞吐量（单位/秒）
+     */
+    public double getThroughputPerSecond() {
+        final long start = startNanos;
+        if (start == 0L) {
+            return 0.0;
+        }
+        final long stop = stopNanos == 0L ? System.nanoTime() : stopNanos;
+        final long elapsed = stop - start;
+        return elapsed <= 0 ? 0.0 : processed.get() * 1e9 / elapsed;
+    }
+}
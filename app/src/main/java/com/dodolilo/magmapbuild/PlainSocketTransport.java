@@ -0,0 +1,53 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * 明文TCP连接，即原先发送级直接使用的{@link Socket}.
+ */
+@NotThreadSafe
+final class PlainSocketTransport implements StreamTransport {
+    private final Socket socket = new Socket();
+
+    @Override
+    public void connect(String host, int port, int timeoutMs) throws IOException {
+        socket.connect(new InetSocketAddress(host, port), timeoutMs);
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMs) throws IOException {
+        socket.setSoTimeout(timeoutMs);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isConnected() && !socket.isClosed();
+    }
+
+    @Override
+    public void probe() throws IOException {
+        //紧急数据不进入服务器的普通数据流
+        socket.sendUrgentData(0xFF);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,435 @@
+package com.dodolilo.magmapbuild;
+
+import android.util.Log;
+
+import net.jcip.annotations.Immutable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 打点坐标表：点名 -> 下标 -> 坐标.
+ * 坐标按下标存放在float数组中，点名字典是开放寻址的int数组，每个点名只保存一个String实例.
+ * <p>
+ * 打点文件每行"name:x,y"，以'\n'或"\r\n"结束，空行被跳过；同名的点以后出现的为准.
+ * 由{@link #parse(byte[], int, int, String)}在字节上一次扫描完成解析，格式错误时抛出带行号的{@link FormatException}.
+ * {@link #load(File, File)}把解析结果缓存为二进制文件，源文件的长度与修改时间未变时直接读缓存；
+ * 修改时间变了但内容的CRC32相同（如被复制、touch过）时仍使用缓存.
+ */
+@Immutable
+final class PointTable {
+    static final PointTable EMPTY = new PointTable(new String[0], new float[0], new float[0], 0);
+
+    /**
+     * 缓存文件的格式.
+     * <pre>
+     *     header:  int magic "MMPT", int version, long sourceLength, long sourceMtime, int sourceCrc, int count
+     *     points:  float[count] xs, float[count] ys
+     *     names:   count * (short byteLength, byte[] utf8)
+     *     trailer: int crc32（之前所有字节）
+     * </pre>
+     */
+    private static final int CACHE_MAGIC = 0x4D4D5054;
+
+    private static final int CACHE_VERSION = 1;
+
+    private static final int CACHE_HEADER_BYTES = 4 + 4 + 8 + 8 + 4 + 4;
+
+    static final String CACHE_SUFFIX = ".mmpt";
+
+    private static final String TAG = "PointTable";
+
+    private final String[] names;
+
+    private final float[] xs;
+
+    private final float[] ys;
+
+    /**
+     * 点名字典：下标+1，0表示空槽；长度为2的幂.
+     */
+    private final int[] slots;
+
+    private final int size;
+
+    private PointTable(String[] names, float[] xs, float[] ys, int size) {
+        this.names = names;
+        this.xs = xs;
+        this.ys = ys;
+        this.size = size;
+        this.slots = new int[Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1];
+        for (int i = 0; i < size; i++) {
+            slots[findSlot(slots, names, names[i])] = i + 1;
+        }
+    }
+
+    /**
+     * 打点文件的格式错误.
+     */
+    static final class FormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int lineNumber;
+
+        FormatException(String source, int lineNumber, String message) {
+            super(source + ":" + lineNumber + ": " + message);
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * @return 出错的行号，从1开始
+         */
+        int getLineNumber() {
+            return lineNumber;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return 点名的下标，不存在时为-1
+     */
+    int indexOf(String name) {
+        final int slot = slots[findSlot(slots, names, name)];
+        return slot - 1;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    float getX(int index) {
+        return xs[index];
+    }
+
+    float getY(int index) {
+        return ys[index];
+    }
+
+    /**
+     * @return 点名 -> 坐标{x, y}，用于仍以Map工作的代码
+     */
+    Map<String, float[]> toMap() {
+        final Map<String, float[]> map = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(names[i], new float[]{xs[i], ys[i]});
+        }
+        return map;
+    }
+
+    /**
+     * 由点名 -> 坐标{x, y}的表构造.
+     */
+    static PointTable fromMap(Map<String, float[]> pointMap) {
+        if (pointMap == null || pointMap.isEmpty()) {
+            return EMPTY;
+        }
+        final Builder builder = new Builder(pointMap.size());
+        for (Map.Entry<String, float[]> entry : pointMap.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 解析打点文件的内容.
+     *
+     * @param data   文件内容，UTF-8
+     * @param from   起始位置
+     * @param to     结束位置（不含）
+     * @param source 错误信息中的来源名，如文件名
+     * @throws FormatException 某一行格式错误时，信息中带有行号
+     */
+    static PointTable parse(byte[] data, int from, int to, String source) throws FormatException {
+        final Builder builder = new Builder(Math.max(16, (to - from) / 16));
+        int lineNumber = 0;
+        int lineStart = from;
+        while (lineStart < to) {
+            lineNumber++;
+            int lineEnd = lineStart;
+            while (lineEnd < to && data[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            final int next = lineEnd + 1;
+            if (lineEnd > lineStart && data[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            parseLine(data, lineStart, lineEnd, builder, source, lineNumber);
+            lineStart = next;
+        }
+        return builder.build();
+    }
+
+    private static void parseLine(byte[] data, int start, int end, Builder builder, String source, int lineNumber)
+            throws FormatException {
+        if (isBlank(data, start, end)) {
+            return;
+        }
+        int colon = -1;
+        int comma = -1;
+        for (int i = start; i < end; i++) {
+            if (data[i] == ':' && colon < 0) {
+                colon = i;
+            } else if (data[i] == ',' && colon >= 0) {
+                if (comma >= 0) {
+                    throw new FormatException(source, lineNumber, "too many ',' in \"" + text(data, start, end) + "\"");
+                }
+                comma = i;
+            }
+        }
+        if (colon < 0) {
+            throw new FormatException(source, lineNumber, "missing ':' in \"" + text(data, start, end) + "\"");
+        }
+        if (colon == start) {
+            throw new FormatException(source, lineNumber, "empty point name");
+        }
+        if (comma < 0) {
+            throw new FormatException(source, lineNumber, "expected \"x,y\" after ':' in \"" + text(data, start, end) + "\"");
+        }
+        final float x = parseCoordinate(data, colon + 1, comma, source, lineNumber, "x");
+        final float y = parseCoordinate(data, comma + 1, end, source, lineNumber, "y");
+        builder.put(data, start, colon, x, y);
+    }
+
+    private static float parseCoordinate(byte[] data, int from, int to, String source, int lineNumber, String axis)
+            throws FormatException {
+        while (from < to && (data[from] == ' ' || data[from] == '\t')) {
+            from++;
+        }
+        while (to > from && (data[to - 1] == ' ' || data[to - 1] == '\t')) {
+            to--;
+        }
+        final float value;
+        try {
+            value = AsciiNumbers.parseFloat(data, from, to);
+        } catch (NumberFormatException e) {
+            throw new FormatException(source, lineNumber, "invalid " + axis + " coordinate \"" + text(data, from, to) + "\"");
+        }
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new FormatException(source, lineNumber, axis + " coordinate is not finite");
+        }
+        return value;
+    }
+
+    private static boolean isBlank(byte[] data, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[i] != ' ' && data[i] != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String text(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取打点文件，优先使用cacheDir中的二进制缓存；缓存无效时解析源文件并重写缓存.
+     * 缓存读写失败不影响结果，只会退回解析源文件.
+     *
+     * @param file     打点文件
+     * @param cacheDir 缓存目录，null表示不使用缓存
+     * @throws FormatException 源文件格式错误时
+     * @throws IOException     读源文件失败时
+     */
+    static PointTable load(File file, File cacheDir) throws IOException {
+        final long length = file.length();
+        final long mtime = file.lastModified();
+        final File cache = cacheDir == null ? null : cacheFile(file, cacheDir);
+        byte[] cached = null;
+        if (cache != null && cache.isFile()) {
+            try {
+                cached = Files.readAllBytes(cache.toPath());
+            } catch (IOException e) {
+                Log.w(TAG, "read cache " + cache + " failed", e);
+            }
+        }
+        if (cached != null && isValidCache(cached)) {
+            final ByteBuffer header = ByteBuffer.wrap(cached);
+            header.position(8);
+            if (header.getLong() == length && header.getLong() == mtime) {
+                return readCache(cached);
+            }
+        }
+
+        final byte[] data = Files.readAllBytes(file.toPath());
+        final int crc = crc32(data, 0, data.length);
+        if (cached != null && isValidCache(cached)) {
+            final ByteBuffer header = ByteBuffer.wrap(cached);
+            if (header.getLong(8) == data.length && header.getInt(24) == crc) {
+                //内容未变，只更新缓存中的修改时间
+                final PointTable table = readCache(cached);
+                writeCache(table, cache, data.length, mtime, crc);
+                return table;
+            }
+        }
+        final PointTable table = parse(data, 0, data.length, file.getName());
+        if (cache != null) {
+            writeCache(table, cache, data.length, mtime, crc);
+        }
+        return table;
+    }
+
+    /**
+     * @return 打点文件对应的缓存文件，以绝对路径的CRC32区分同名的文件
+     */
+    static File cacheFile(File file, File cacheDir) {
+        final byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        return new File(cacheDir, "points-" + Integer.toHexString(crc32(path, 0, path.length)) + CACHE_SUFFIX);
+    }
+
+    private static boolean isValidCache(byte[] cached) {
+        if (cached.length < CACHE_HEADER_BYTES + 4) {
+            return false;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(cached);
+        return buffer.getInt(0) == CACHE_MAGIC && buffer.getInt(4) == CACHE_VERSION
+                && buffer.getInt(cached.length - 4) == crc32(cached, 0, cached.length - 4);
+    }
+
+    private static PointTable readCache(byte[] cached) {
+        final ByteBuffer buffer = ByteBuffer.wrap(cached);
+        buffer.position(CACHE_HEADER_BYTES - 4);
+        final int count = buffer.getInt();
+        final float[] xs = new float[count];
+        final float[] ys = new float[count];
+        buffer.asFloatBuffer().get(xs);
+        buffer.position(buffer.position() + count * 4);
+        buffer.asFloatBuffer().get(ys);
+        buffer.position(buffer.position() + count * 4);
+        final String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            final int length = buffer.getShort() & 0xFFFF;
+            names[i] = new String(cached, buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        return new PointTable(names, xs, ys, count);
+    }
+
+    private static void writeCache(PointTable table, File cache, long sourceLength, long sourceMtime, int sourceCrc) {
+        final byte[][] encoded = new byte[table.size][];
+        int bytes = CACHE_HEADER_BYTES + table.size * 8 + 4;
+        for (int i = 0; i < table.size; i++) {
+            encoded[i] = table.names[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF) {
+                Log.w(TAG, "point name too long to cache: " + table.names[i].substring(0, 32));
+                return;
+            }
+            bytes += 2 + encoded[i].length;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        buffer.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putLong(sourceLength).putLong(sourceMtime)
+                .putInt(sourceCrc).putInt(table.size);
+        for (int i = 0; i < table.size; i++) {
+            buffer.putFloat(table.xs[i]);
+        }
+        for (int i = 0; i < table.size; i++) {
+            buffer.putFloat(table.ys[i]);
+        }
+        for (byte[] name : encoded) {
+            buffer.putShort((short) name.length).put(name);
+        }
+        buffer.putInt(crc32(buffer.array(), 0, bytes - 4));
+        final File tmp = new File(cache.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), buffer.array());
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.w(TAG, "write cache " + cache + " failed", e);
+            tmp.delete();
+        }
+    }
+
+    private static int crc32(byte[] data, int from, int to) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, from, to - from);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return name所在的槽，或它应当插入的空槽
+     */
+    private static int findSlot(int[] slots, String[] names, String name) {
+        final int mask = slots.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        while (slots[slot] != 0 && !names[slots[slot] - 1].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * 逐个加入点构造表，同名的点后加入的为准.
+     */
+    private static final class Builder {
+        private String[] names;
+        private float[] xs;
+        private float[] ys;
+        private int[] slots;
+        private int size = 0;
+
+        Builder(int capacity) {
+            names = new String[capacity];
+            xs = new float[capacity];
+            ys = new float[capacity];
+            slots = new int[Integer.highestOneBit(Math.max(2, capacity * 2 - 1)) << 1];
+        }
+
+        void put(byte[] data, int from, int to, float x, float y) {
+            put(new String(data, from, to - from, StandardCharsets.UTF_8), x, y);
+        }
+
+        void put(String name, float x, float y) {
+            int slot = findSlot(slots, names, name);
+            if (slots[slot] != 0) {
+                final int index = slots[slot] - 1;
+                xs[index] = x;
+                ys[index] = y;
+                return;
+            }
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            if ((size + 1) * 2 > slots.length) {
+                slots = new int[slots.length * 2];
+                for (int i = 0; i < size; i++) {
+                    slots[findSlot(slots, names, names[i])] = i + 1;
+                }
+                slot = findSlot(slots, names, name);
+            }
+            names[size] = name;
+            xs[size] = x;
+            ys[size] = y;
+            slots[slot] = ++size;
+        }
+
+        PointTable build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new PointTable(Arrays.copyOf(names, size), Arrays.copyOf(xs, size), Arrays.copyOf(ys, size), size);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.dodolilo.magmapbuild;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wi-Fi与BLE指纹的异步采集，扫描结果作为带内记录与传感器样本进入同一条时间线与发送缓存.
+ * 扫描回调全部在独立的HandlerThread中处理，记录经会话交给编码级写入，不触碰200Hz的采样线程.
+ * BSSID/MAC地址在会话内映射为整数id，第一次出现时写一条字典记录，之后的扫描只写id与RSSI：
+ * <pre>
+ *     #RFID,time,id,wifi|ble,address,frequencyMHz,name
+ *     #WIFI,time,elapsedNanos,id:rssi,id:rssi,...
+ *     #BLE,time,elapsedNanos,id:rssi,id:rssi,...
+ * </pre>
+ * elapsedNanos是扫描结果中最新的时间戳（与SensorEvent.timestamp同一时基）.
+ * 没有定位或蓝牙扫描权限时对应的扫描不启动，不影响磁场采集.
+ * 只能在同一线程（UI线程）中调用start/stop.
+ */
+@NotThreadSafe
+class RfScanCollector {
+    private static final String TAG = "RfScanCollector";
+
+    static final String RFID_RECORD_TAG = "#RFID";
+    static final String WIFI_RECORD_TAG = "#WIFI";
+    static final String BLE_RECORD_TAG = "#BLE";
+
+    /**
+     * Wi-Fi扫描周期（ms）：Android 9起前台应用每2分钟最多扫描4次.
+     */
+    private static final long WIFI_SCAN_PERIOD_MS = 30_000;
+
+    /**
+     * BLE扫描结果的批量上报延迟（ms），同一窗口内同一设备只保留最新的RSSI.
+     */
+    private static final long BLE_REPORT_DELAY_MS = 1000;
+
+    private final Context context;
+
+    private HandlerThread rfThread = null;
+    private Handler handler = null;
+    private SessionController session = null;
+
+    /**
+     * 地址 -> 会话内的id，只在rfThread中访问.
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private final BroadcastReceiver wifiReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            onWifiResults();
+        }
+    };
+
+    private final Runnable wifiScanTask = new Runnable() {
+        @Override
+        public void run() {
+            requestWifiScan();
+            handler.postDelayed(this, WIFI_SCAN_PERIOD_MS);
+        }
+    };
+
+    private final ScanCallback bleCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult result) {
+            final Handler h = handler;
+            if (h != null) {
+                h.post(() -> onBleResults(Collections.singletonList(result)));
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<android.bluetooth.le.ScanResult> results) {
+            final Handler h = handler;
+            if (h != null) {
+                h.post(() -> onBleResults(results));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.w(TAG, "BLE scan failed: " + errorCode);
+        }
+    };
+
+    private WifiManager wifiManager = null;
+    private BluetoothLeScanner bleScanner = null;
+
+    RfScanCollector(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 开始为会话采集RF指纹.
+     *
+     * @return false 如果没有任何一种扫描可以启动
+     */
+    @SuppressLint("MissingPermission")
+    public boolean start(SessionController session) {
+        stop();
+        this.session = session;
+        ids.clear();
+        rfThread = new HandlerThread("MagMap-rf", Process.THREAD_PRIORITY_BACKGROUND);
+        rfThread.start();
+        handler = new Handler(rfThread.getLooper());
+
+        boolean started = false;
+        if (granted(Manifest.permission.ACCESS_FINE_LOCATION)) {
+            wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+            if (wifiManager != null && wifiManager.isWifiEnabled()) {
+                context.registerReceiver(wifiReceiver,
+                        new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION), null, handler);
+                handler.post(wifiScanTask);
+                started = true;
+            }
+            final BluetoothManager bluetoothManager =
+                    (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+            final BluetoothAdapter adapter = bluetoothManager == null ? null : bluetoothManager.getAdapter();
+            if (adapter != null && adapter.isEnabled() && granted(Manifest.permission.BLUETOOTH_SCAN)) {
+                bleScanner = adapter.getBluetoothLeScanner();
+                if (bleScanner != null) {
+                    bleScanner.startScan(null, new ScanSettings.Builder()
+                            .setScanMode(ScanSettings.SCAN_MODE_BALANCED)
+                            .setReportDelay(BLE_REPORT_DELAY_MS)
+                            .build(), bleCallback);
+                    started = true;
+                }
+            }
+        }
+        if (!started) {
+            Log.i(TAG, "no RF scan permitted or available, collecting magnetic data only");
+        }
+        return started;
+    }
+
+    @SuppressLint("MissingPermission")
+    public void stop() {
+        if (handler == null) {
+            return;
+        }
+        handler.removeCallbacksAndMessages(null);
+        if (wifiManager != null) {
+            try {
+                context.unregisterReceiver(wifiReceiver);
+            } catch (IllegalArgumentException e) {
+                //接收器没有注册成功
+            }
+            wifiManager = null;
+        }
+        if (bleScanner != null) {
+            bleScanner.stopScan(bleCallback);
+            bleScanner = null;
+        }
+        handler = null;
+        rfThread.quitSafely();
+        rfThread = null;
+        session = null;
+    }
+
+    private boolean granted(String permission) {
+        //BLUETOOTH_SCAN在Android 12之前不存在，旧系统上由安装时的BLUETOOTH_ADMIN权限保证
+        if (Manifest.permission.BLUETOOTH_SCAN.equals(permission)
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+            return true;
+        }
+        return context.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    @SuppressWarnings("deprecation")
+    private void requestWifiScan() {
+        //被系统节流时返回false，结果广播仍会带上缓存的结果
+        if (wifiManager != null && !wifiManager.startScan()) {
+            Log.d(TAG, "Wi-Fi scan throttled");
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void onWifiResults() {
+        final SessionController current = session;
+        if (wifiManager == null || current == null) {
+            return;
+        }
+        final List<ScanResult> results = wifiManager.getScanResults();
+        if (results == null || results.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final StringBuilder scan = new StringBuilder(16 + results.size() * 8);
+        long latestNanos = 0L;
+        for (ScanResult result : results) {
+            final int id = intern(current, now, "wifi", result.BSSID, result.frequency, result.SSID);
+            //ScanResult.timestamp是开机以来的微秒数
+            latestNanos = Math.max(latestNanos, result.timestamp * 1000);
+            scan.append(',').append(id).append(':').append(result.level);
+        }
+        current.offerRecord(new StringBuilder(scan.length() + 48).append(WIFI_RECORD_TAG).append(',').append(now)
+                .append(',').append(latestNanos).append(scan).append('\n'));
+    }
+
+    private void onBleResults(List<android.bluetooth.le.ScanResult> results) {
+        final SessionController current = session;
+        if (current == null || results.isEmpty()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        //同一批中同一设备只保留最新一次
+        final Map<Integer, Integer> rssiById = new LinkedHashMap<>();
+        long latestNanos = 0L;
+        for (android.bluetooth.le.ScanResult result : results) {
+            final int id = intern(current, now, "ble", result.getDevice().getAddress(), 0, "");
+            rssiById.put(id, result.getRssi());
+            latestNanos = Math.max(latestNanos, result.getTimestampNanos());
+        }
+        final StringBuilder sb = new StringBuilder(48 + rssiById.size() * 8).append(BLE_RECORD_TAG)
+                .append(',').append(now).append(',').append(latestNanos);
+        for (Map.Entry<Integer, Integer> entry : rssiById.entrySet()) {
+            sb.append(',').append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        current.offerRecord(sb.append('\n'));
+    }
+
+    /**
+     * @return 地址在本会话中的id，第一次出现时提交一条字典记录
+     */
+    private int intern(SessionController current, long now, String type, String address, int frequency, String name) {
+        final String key = type + address;
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size();
+            ids.put(key, id);
+            current.offerRecord(RFID_RECORD_TAG + ',' + now + ',' + id + ',' + type + ',' + address + ','
+                    + frequency + ',' + sanitize(name) + '\n');
+        }
+        return id;
+    }
+
+    /**
+     * 名字（SSID）中的逗号与换行会破坏记录格式.
+     */
+    private static String sanitize(String name) {
+        if (name == null) {
+            return "";
+        }
+        return name.replace(',', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * 当前会话中出现过的不同AP与BLE设备数.只应在stop()之后调用.
+     */
+    public int getDictionarySize() {
+        return ids.size();
+    }
+}
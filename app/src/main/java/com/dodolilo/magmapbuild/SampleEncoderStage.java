@@ -0,0 +1,87 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 编码级：从{@link SampleQueue}取出样本，交给下游（滤波器组与各编码器）.
+ * 每批样本之后写入其它线程提交到会话中的带内记录（如打点），本级是发送缓存唯一的写者.
+ * 被取消后会等采样线程退出、排空队列再结束，保证采样线程交出的样本都被编码；
+ * 然后将会话尾记录写入发送缓存，通知会话已排空.
+ * 下游抛出异常时会话失败，同样写入会话尾记录并通知排空.
+ */
+class SampleEncoderStage extends PipelineStage {
+    /**
+     * 每次最多取出的帧数.
+     */
+    private static final int DRAIN_BATCH = 64;
+
+    /**
+     * 队列为空时的等待时间.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final SampleQueue queue;
+
+    private final SampleSink downstream;
+
+    private final StreamSpool spool;
+
+    private final SessionController session;
+
+    SampleEncoderStage(SampleQueue queue, SampleSink downstream, StreamSpool spool, SessionController session) {
+        super("encoder", Process.THREAD_PRIORITY_DEFAULT);
+        this.queue = queue;
+        this.downstream = downstream;
+        this.spool = spool;
+        this.session = session;
+    }
+
+    @Override
+    protected void runStage() {
+        RuntimeException failure = null;
+        try {
+            encodeLoop();
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        //出错时同样写完带内记录与会话尾记录，再结束排空等待，发送级不必等到排空超时
+        try {
+            session.closeRecords(spool);
+            session.appendFooters(spool, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            //会话失败：发送级发出已编码的数据但不发送END，服务器不会把缺了尾部的数据当作完整的会话
+            session.fail(failure);
+            throw failure;
+        }
+        session.onEncoderDrained();
+    }
+
+    private void encodeLoop() {
+        while (true) {
+            //先读取取消标志与采样线程状态再取数据，保证采样线程退出前入队的样本都能被排空
+            final boolean upstreamFinished = isCancelled() && session.isSamplerStopped();
+            final int n = queue.drainTo(downstream, DRAIN_BATCH);
+            if (n > 0) {
+                recordProcessed(n);
+                PipelineMetrics.ENCODED_SAMPLES.add(n);
+            }
+            session.drainRecords(spool);
+            if (n == 0) {
+                if (upstreamFinished) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+}
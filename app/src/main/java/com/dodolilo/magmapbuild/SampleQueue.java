@@ -0,0 +1,121 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接流水线两级的有界样本队列：单生产者、单消费者的环形缓冲.
+ * 槽位在构造时预先分配，入队时拷贝帧内容，运行中不分配对象.
+ * 队列满时丢弃新样本并计数，保证采样线程永远不会被下游阻塞.
+ * 采样频率的改变随帧一起入队，消费者在第一帧新频率的样本之前收到{@link SampleSink#onRateChanged(int)}.
+ */
+@ThreadSafe
+class SampleQueue implements SampleSink {
+    private final float[][] frames;
+    private final long[] times;
+    private final int[] rates;
+    private final int mask;
+
+    /**
+     * 生产者当前的采样频率，0表示未改变过；只由生产者读写.
+     */
+    private int producerRate = 0;
+
+    /**
+     * 消费者最近交付的帧的采样频率；只由消费者读写.
+     */
+    private int consumerRate = 0;
+
+    /**
+     * 下一个要读的位置，只由消费者推进.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * 下一个要写的位置，只由生产者推进.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity 容量，会向上取为2的幂
+     */
+    SampleQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        frames = new float[size][SensorFrame.SIZE];
+        times = new long[size];
+        rates = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * 生产者入队一帧，队列满时丢弃.
+     */
+    @Override
+    public void onSample(long timeMillis, float[] frame) {
+        final long t = tail.get();
+        if (t - head.get() > mask) {
+            dropped.incrementAndGet();
+            PipelineMetrics.DROPPED_SAMPLES.increment();
+            return;
+        }
+        final int slot = (int) (t & mask);
+        System.arraycopy(frame, 0, frames[slot], 0, SensorFrame.SIZE);
+        times[slot] = timeMillis;
+        rates[slot] = producerRate;
+        tail.lazySet(t + 1);
+    }
+
+    /**
+     * 生产者改变采样频率，之后入队的帧都带上新的频率.
+     */
+    @Override
+    public void onRateChanged(int rateHz) {
+        producerRate = rateHz;
+    }
+
+    /**
+     * 消费者将最多max帧依次交给target，交付期间槽位不会被覆盖.
+     *
+     * @return 实际交付的帧数
+     */
+    public int drainTo(SampleSink target, int max) {
+        long h = head.get();
+        final long available = tail.get() - h;
+        final int n = (int) Math.min(available, max);
+        for (int i = 0; i < n; i++, h++) {
+            final int slot = (int) (h & mask);
+            if (rates[slot] != consumerRate) {
+                consumerRate = rates[slot];
+                target.onRateChanged(consumerRate);
+            }
+            target.onSample(times[slot], frames[slot]);
+            head.lazySet(h + 1);
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return 还能入队的帧数
+     */
+    public int remainingCapacity() {
+        return mask + 1 - size();
+    }
+
+    /**
+     * @return 因队列满而丢弃的样本数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
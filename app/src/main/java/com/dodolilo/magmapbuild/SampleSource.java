@@ -0,0 +1,39 @@
+package com.dodolilo.magmapbuild;
+
+import java.util.List;
+
+/**
+ * 样本来源：数据采集流水线的第一级.
+ * 实时采集由{@link SensorsBee}实现，离线回放由{@link SessionReplaySource}实现，二者对下游完全相同.
+ */
+interface SampleSource {
+    /**
+     * 启动样本输出.
+     *
+     * @param sink      接收每一帧样本的下游，在来源自己的线程中被调用，不应阻塞
+     * @param session   所属会话，输出第一帧前调用onWarmedUp()，线程退出时调用onSamplerStopped()
+     * @param scheduler 运行来源线程的调度器
+     * @return false 如果启动失败
+     */
+    boolean startSensorRecord(SampleSink sink, SessionController session, PipelineScheduler scheduler);
+
+    /**
+     * 停止样本输出.
+     */
+    void stopSensorRecord();
+
+    /**
+     * @return true 如果正在输出样本
+     */
+    boolean isRecording();
+
+    /**
+     * @return 名义采样频率（Hz）
+     */
+    int getSamplingFrequency();
+
+    /**
+     * @return 来源在会话结束时要写入数据流末尾的汇总记录
+     */
+    List<SessionFooter> getSessionFooters();
+}
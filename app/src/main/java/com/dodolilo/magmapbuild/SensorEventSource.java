@@ -0,0 +1,40 @@
+package com.dodolilo.magmapbuild;
+
+/**
+ * 传感器事件来源：对SensorManager的抽象，{@link SensorsBee}只通过它接收加速度计、陀螺仪、磁力计、方向四元数的事件.
+ * 真机由{@link AndroidSensorEventSource}实现；纯JVM上由{@link SyntheticSensorEventSource}按任意频率合成事件，
+ * 用于压测采样、缓冲与编码各级.
+ * 传感器下标与{@link TimelineQualityMonitor#ACC}等一致.
+ */
+interface SensorEventSource {
+    /**
+     * 检查并注册所有传感器，之后事件在来源自己的线程中回调.
+     *
+     * @param samplingPeriodUs 期望的事件周期（us）
+     * @param callback         事件回调
+     * @return false 如果任何一个传感器不可用或注册失败
+     */
+    boolean start(int samplingPeriodUs, SensorEventCallback callback);
+
+    /**
+     * 注销所有传感器，返回后不再回调.
+     */
+    void stop();
+
+    /**
+     * 传感器事件回调.
+     */
+    interface SensorEventCallback {
+        /**
+         * @param sensor         传感器下标，{@link TimelineQualityMonitor#ACC}等
+         * @param timestampNanos 事件时间戳（ns），与SensorEvent.timestamp同一时基
+         * @param values         事件值，acc/gyro/mag为3维，四元数为4维；回调返回后可能被复用
+         */
+        void onSensorEvent(int sensor, long timestampNanos, float[] values);
+
+        /**
+         * 传感器精度变化.
+         */
+        void onAccuracyChanged(int sensor, int accuracy);
+    }
+}
@@ -1,26 +1,25 @@
 package com.dodolilo.magmapbuild;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
-import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
 import net.jcip.annotations.NotThreadSafe;
 
+import java.security.InvalidParameterException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * 一个实现传感器检查、注册、采集、注销、保存文件功能的类.
- * 需要使用加速度计、陀螺仪、磁力计、方向四元数这4个传感器.
+ * 需要使用加速度计、陀螺仪、磁力计、方向四元数这4个传感器，事件来自{@link SensorEventSource}.
+ * 采样频率随运动状态调整：行走、转身时为名义频率，静止（如站在打点处）时降为较低的频率，
+ * 改变通过{@link SampleSink#onRateChanged(int)}告知下游，并以"#RATE"记录写入数据流.
  */
 @NotThreadSafe
-class SensorsBee {
-    /**
-     * 外部提供的上下文.
-     */
-    private final Context context;
-
+class SensorsBee implements SampleSource {
     /**
      * 打印Log信息的标签.
      */
@@ -45,183 +44,179 @@ class SensorsBee {
         STOP_READING
     }
 
-    private BeeStates loopState = BeeStates.STOP_READING;
+    /**
+     * 由UI线程写、采样线程读，必须是volatile，否则采样线程可能永远看不到停止.
+     */
+    private volatile BeeStates loopState = BeeStates.STOP_READING;
+
+    /**
+     * 当前的采样级，未启动时为null.
+     */
+    private SamplerStage samplerStage = null;
+
+    /**
+     * 默认采样频率： 200 (Hz).
+     */
+    static final int DEFAULT_SAMPLING_FREQUENCY = 200;
 
     /**
-     * 采样频率： 200 (Hz).
+     * 默认的静止时采样频率： 10 (Hz).
      */
-    private final int SAMPLEING_FREQUENCY = 200;
+    static final int DEFAULT_STILL_SAMPLING_FREQUENCY = 10;
 
     /**
-     * 采样线程睡眠时间 = 1000 / 200 (ms) = 5 (ms)
+     * 采样频率（Hz）.
      */
-    private final long SAMPLEING_THREAD_SLEEP_MS = 1000 / SAMPLEING_FREQUENCY;
+    private final int SAMPLEING_FREQUENCY;
+
+    /**
+     * 采样周期 = 1,000,000,000 / 200 (ns) = 5 (ms)
+     */
+    private final long SAMPLEING_PERIOD_NANOS;
 
     /**
      * 传感器采样延迟 = 1,000,000 / 200 (us) = 5000 (us)
      */
-    private final int SAMPLING_PERIOD_US = 1000000 / SAMPLEING_FREQUENCY;
+    private final int SAMPLING_PERIOD_US;
 
     /**
-     * 为什么这个成员对象可以声明为final？因为它在构造函数中初始化了.
-     * "final修饰成员变量，该成员变量必须在创建对象之前（构造函数执行结束之前）进行赋值，否则编译失败".
+     * 静止时的采样频率（Hz），0表示不随运动状态调整.由UI线程写、采样线程读.
      */
-    private final SensorManager sensorManager;
+    private volatile int stillSamplingFrequency = DEFAULT_STILL_SAMPLING_FREQUENCY;
 
     /**
-     * 加速度计 TYPE_ACCELEROMETER
+     * 运动状态分类器，只在采样线程中使用；各状态累计时长在采样线程停止后写入会话尾记录.
      */
-    private Sensor accSensor;
-    private final float[] accValues = new float[3];
-    private final SensorEventListener accSensorListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            accValues[0] = event.values[0];
-            accValues[1] = event.values[1];
-            accValues[2] = event.values[2];
-        }
+    private final MotionStateClassifier motionClassifier = new MotionStateClassifier();
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.i(TAG, "Accuracy of acc changed into ".concat(SENSOR_STATUS_ACCURACY[accuracy + 1]));
-        }
-    };
+    /**
+     * 传感器事件来源：真机上是SensorManager，压测时是合成的事件.
+     */
+    private final SensorEventSource eventSource;
 
+    /**
+     * 各传感器最近一个事件的SensorEvent.timestamp（ns）与收到的事件总数，下标见TimelineQualityMonitor.ACC等.
+     * 由传感器回调线程写、采样线程读.
+     */
+    private final AtomicLongArray eventTimestamps = new AtomicLongArray(TimelineQualityMonitor.SENSOR_COUNT);
+    private final AtomicLongArray eventCounts = new AtomicLongArray(TimelineQualityMonitor.SENSOR_COUNT);
 
     /**
-     * 陀螺仪 TYPE_GYROSCOPE
+     * 加速度计、陀螺仪、磁力计、方向四元数的最新读数.
      */
-    private Sensor gyroSensor;
+    private final float[] accValues = new float[3];
     private final float[] gyroValues = new float[3];
-    private final SensorEventListener gyroSensorListener = new SensorEventListener() {
+    private final float[] magValues = new float[3];
+    private final float[] quatValues = new float[4];
+
+    /**
+     * 按传感器下标排列的最新读数，与TimelineQualityMonitor.ACC等一致.
+     */
+    private final float[][] sensorValues = {accValues, gyroValues, magValues, quatValues};
+
+    private final String[] SENSOR_NAMES = {"acc", "gyro", "mag", "quat"};
+
+    private final SensorEventSource.SensorEventCallback sensorEventCallback = new SensorEventSource.SensorEventCallback() {
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            gyroValues[0] = event.values[0];
-            gyroValues[1] = event.values[1];
-            gyroValues[2] = event.values[2];
+        public void onSensorEvent(int sensor, long timestampNanos, float[] values) {
+            eventTimestamps.lazySet(sensor, timestampNanos);
+            eventCounts.lazySet(sensor, eventCounts.get(sensor) + 1);
+            final float[] latest = sensorValues[sensor];
+            System.arraycopy(values, 0, latest, 0, latest.length);
         }
 
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.i(TAG, "Accuracy of gyro changed into ".concat(SENSOR_STATUS_ACCURACY[accuracy + 1]));
+        public void onAccuracyChanged(int sensor, int accuracy) {
+            Log.i(TAG, "Accuracy of " + SENSOR_NAMES[sensor] + " changed into ".concat(SENSOR_STATUS_ACCURACY[accuracy + 1]));
         }
     };
 
+    /**
+     * 磁力计在线校准器，只在采样线程中使用.
+     * 校准状态跨多次采集保留，同一台手机的校准会越来越稳定.
+     */
+    private final MagCalibrator magCalibrator = new MagCalibrator();
 
     /**
-     * 磁力计 TYPE_MAGNETIC_FIELD
+     * 上一次输入校准器的磁力计读数，用于判断是否有新的磁力计事件，避免重复值参与拟合.
      */
-    private Sensor magSensor;
-    private final float[] magValues = new float[3];
-    private final SensorEventListener magSensorListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            magValues[0] = event.values[0];
-            magValues[1] = event.values[1];
-            magValues[2] = event.values[2];
-        }
+    private final float[] lastCalibratedInput = new float[3];
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.i(TAG, "Accuracy of mag changed into ".concat(SENSOR_STATUS_ACCURACY[accuracy + 1]));
-        }
-    };
+    /**
+     * 校正后的磁力计读数，写入数据的是它而不是magValues.
+     */
+    private final float[] calibratedMagValues = new float[3];
 
     /**
-     * 方向四元数 TYPE_GAME_ROTATION_VECTOR
+     * 交给下游的样本帧，只在采样线程中复用.
      */
-    private Sensor quatSensor;
-    private final float[] quatValues = new float[4];
-    private final SensorEventListener quatSensorListener = new SensorEventListener() {
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            quatValues[0] = event.values[0];
-            quatValues[1] = event.values[1];
-            quatValues[2] = event.values[2];
-            quatValues[3] = event.values[3];
-        }
+    private final float[] frame = new float[SensorFrame.SIZE];
 
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
-            Log.i(TAG, "Accuracy of quat changed into ".concat(SENSOR_STATUS_ACCURACY[accuracy + 1]));
-        }
-    };
+    /**
+     * 采样线程中事件时间戳、事件计数的快照，复用.
+     */
+    private final long[] eventTimestampSnapshot = new long[TimelineQualityMonitor.SENSOR_COUNT];
+    private final long[] eventCountSnapshot = new long[TimelineQualityMonitor.SENSOR_COUNT];
+
+    /**
+     * 当前会话的时间线质量监测，每次开始采集时重新创建.
+     */
+    private volatile TimelineQualityMonitor timelineMonitor = null;
 
     /**
-     * 构造器，依赖注入context.
+     * 构造器，依赖注入context，使用手机的SensorManager以200Hz采样.
      *
      * @param context 上下文
      */
     public SensorsBee(Context context) {
-        this.context = context;
-        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        this(new AndroidSensorEventSource(context), DEFAULT_SAMPLING_FREQUENCY);
     }
 
     /**
-     * 检查所需的所有传感器的可用性.
+     * 使用指定的传感器事件来源与采样频率，如在纯JVM上以{@link SyntheticSensorEventSource}压测.
      *
-     * @return false 如果任何一个传感器不可用.
-     */
-    private boolean initSensorsAndCheckAvailable() {
-        accSensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        gyroSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-        magSensor = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        quatSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
-        //检查该手机的传感器是否可用，如存在不可用的，则初始化失败，弹出提示
-        StringBuilder lackedSensorsMsg = new StringBuilder();
-        lackedSensorsMsg.append(accSensor == null ? "No Accelerometer!\n" : "");
-        lackedSensorsMsg.append(gyroSensor == null ? "No Gyroscope!\n" : "");
-        lackedSensorsMsg.append(magSensor == null ? "No Magnetic Field!\n" : "");
-        lackedSensorsMsg.append(quatSensor == null ? "No Game Rotation Vector!\n" : "");
-        if (lackedSensorsMsg.length() != 0) {
-            return false;
+     * @param eventSource        传感器事件来源
+     * @param samplingFrequency 采样频率（Hz）
+     * @throws InvalidParameterException 当eventSource为null或频率不为正时
+     */
+    SensorsBee(SensorEventSource eventSource, int samplingFrequency) throws InvalidParameterException {
+        if (eventSource == null) {
+            throw new InvalidParameterException("Param eventSource is null");
         }
-
-        return true;
+        if (samplingFrequency <= 0) {
+            throw new InvalidParameterException("Param samplingFrequency must be positive");
+        }
+        this.eventSource = eventSource;
+        SAMPLEING_FREQUENCY = samplingFrequency;
+        SAMPLEING_PERIOD_NANOS = 1_000_000_000L / samplingFrequency;
+        SAMPLING_PERIOD_US = 1_000_000 / samplingFrequency;
     }
 
 
     /**
      * 供外部启动传感器进行数据采集.
-     * 调用此方法会启动数据采集线程，并且将循环状态置为Reading.
+     * 调用此方法会由scheduler启动数据采集线程，并且将循环状态置为Reading.
      *
+     * @param sink      接收每一帧样本的下游，在采样线程中被调用，不应阻塞
+     * @param session   所属会话，传感器预热完成、输出第一帧前通知它
+     * @param scheduler 运行采样线程的调度器
      * @return false 如果任何一个传感器启动or注册失败.
      */
-    public boolean startSensorRecord(StringBuilder sensorsData) {
-        //1.重新获取传感器对象引用检查传感器是否可用，注册传感器
-        if (!initSensorsAndCheckAvailable() || !registerSensors()) {
+    @Override
+    public boolean startSensorRecord(SampleSink sink, SessionController session, PipelineScheduler scheduler) {
+        //1.检查传感器是否可用，注册传感器
+        if (!eventSource.start(SAMPLING_PERIOD_US, sensorEventCallback)) {
             return false;
         }
 
         //2.启动采数线程
         //NOTE：这句状态量的设置不要放在线程中！否则，如果用户点击按钮很快，会导致状态变化未按预期顺序发生！
         loopState = BeeStates.SENSOR_READING;
-        new Thread(() -> {
-            //实际runnable执行代码块，每隔5ms从sensorValues获取数据存到buffer中
-            boolean zeroStage = true;
-            while (loopState == BeeStates.SENSOR_READING) {
-                if (zeroStage) {
-                    if (sensorsHaveZeroValue()) {
-                        //传感器存在0值，仍处于启动阶段
-                        continue;
-                    } else {
-                        zeroStage = false;
-                    }
-                }
-
-                //NOTE：这里的写buffer并非原子写，尽可能写入最新的传感器数据与时间戳
-                sensorsData.append(CsvDataTools.convertSensorValuesToCsvFormat(
-                        accValues, gyroValues, magValues, quatValues
-                ));
-
-                try {
-                    Thread.sleep(SAMPLEING_THREAD_SLEEP_MS);
-                } catch (InterruptedException e) {
-                    Log.i(TAG, "线程睡眠被打断！");
-                    e.printStackTrace();
-                }
-            }
-        }).start();
+        timelineMonitor = new TimelineQualityMonitor(SAMPLEING_FREQUENCY);
+        timelineMonitor.onWarmupStarted(System.nanoTime());
+        motionClassifier.reset();
+        samplerStage = new SamplerStage(sink, session, timelineMonitor);
+        scheduler.start(samplerStage);
 
         return true;
     }
@@ -229,9 +224,14 @@ class SensorsBee {
     /**
      * 供外部停止传感器数据采集.
      */
+    @Override
     public void stopSensorRecord() {
         loopState = BeeStates.STOP_READING;
-        unregisterSensors();
+        if (samplerStage != null) {
+            samplerStage.cancel();
+        }
+        eventSource.stop();
+        Log.i(TAG, "Mag calibration: ".concat(magCalibrator.getQuality().toString()));
     }
 
     /**
@@ -241,51 +241,93 @@ class SensorsBee {
      * @return false 如果任何一个传感器重置失败.
      */
     public boolean resetSensors() {
-        unregisterSensors();
-        return registerSensors();
+        eventSource.stop();
+        return eventSource.start(SAMPLING_PERIOD_US, sensorEventCallback);
     }
 
     /**
-     * @return true 如果该对象正在数据采集
+     * @return 采样频率（Hz）
      */
-    public boolean isRecording() {
-        return loopState == BeeStates.SENSOR_READING;
+    @Override
+    public int getSamplingFrequency() {
+        return SAMPLEING_FREQUENCY;
+    }
+
+    /**
+     * @return 静止时的采样频率（Hz），0表示不随运动状态调整
+     */
+    public int getStillSamplingFrequency() {
+        return stillSamplingFrequency;
     }
 
     /**
-     * 注册所有传感器.
+     * 设置静止时的采样频率，可在采集中改变，下一次运动状态改变时生效.
      *
-     * @return false 如果任何一个传感器注册失败.
+     * @param stillSamplingFrequency 静止时的采样频率（Hz），0表示始终使用名义采样频率
+     * @throws InvalidParameterException 当频率为负或高于名义采样频率时
      */
-    private boolean registerSensors() {
-        StringBuilder registerFailedMsg = new StringBuilder();
-        if (!sensorManager.registerListener(accSensorListener, accSensor, SAMPLING_PERIOD_US)) {
-            registerFailedMsg.append("Acceleromenter Register Failed!\n");
-        }
-        if (!sensorManager.registerListener(gyroSensorListener, gyroSensor, SAMPLING_PERIOD_US)) {
-            registerFailedMsg.append("Gyroscope Register Failed!\n");
-        }
-        if (!sensorManager.registerListener(magSensorListener, magSensor, SAMPLING_PERIOD_US)) {
-            registerFailedMsg.append("MagneticField Register Failed!\n");
-        }
-        if (!sensorManager.registerListener(quatSensorListener, quatSensor, SAMPLING_PERIOD_US)) {
-            registerFailedMsg.append("GameRotationVector Register Failed!\n");
-        }
-        if (registerFailedMsg.length() != 0) {
-            return false;
+    public void setStillSamplingFrequency(int stillSamplingFrequency) throws InvalidParameterException {
+        if (stillSamplingFrequency < 0 || stillSamplingFrequency > SAMPLEING_FREQUENCY) {
+            throw new InvalidParameterException("Param stillSamplingFrequency is out of [0, samplingFrequency]");
         }
+        this.stillSamplingFrequency = stillSamplingFrequency;
+    }
 
-        return true;
+    /**
+     * @return 磁力计在线校准的当前质量
+     */
+    public MagCalibrator.Quality getMagCalibrationQuality() {
+        return magCalibrator.getQuality();
+    }
+
+    /**
+     * @return 当前（或最近一次）采集的时间线质量监测，从未开始采集时为null
+     */
+    public TimelineQualityMonitor getTimelineMonitor() {
+        return timelineMonitor;
     }
 
     /**
-     * 注销所有传感器，只能返回void
+     * @return 时间线质量汇总"#QUALITY"、磁力计校准质量"#MAGCAL"与各运动状态时长"#MOTION"三行会话尾记录
      */
-    private void unregisterSensors() {
-        sensorManager.unregisterListener(accSensorListener, accSensor);
-        sensorManager.unregisterListener(gyroSensorListener, gyroSensor);
-        sensorManager.unregisterListener(magSensorListener, magSensor);
-        sensorManager.unregisterListener(quatSensorListener, quatSensor);
+    @Override
+    public List<SessionFooter> getSessionFooters() {
+        return Arrays.asList(
+                timeMillis -> {
+                    TimelineQualityMonitor monitor = timelineMonitor;
+                    return monitor == null ? "" : monitor.footerRecord(timeMillis);
+                },
+                timeMillis -> MagCalibrator.MAGCAL_RECORD_TAG + ',' + timeMillis + ',' + magCalibrator.getQuality() + '\n',
+                timeMillis -> "#MOTION," + timeMillis
+                        + ",still_ms=" + motionClassifier.getStateMillis(MotionStateClassifier.State.STILL)
+                        + ",walking_ms=" + motionClassifier.getStateMillis(MotionStateClassifier.State.WALKING)
+                        + ",turning_ms=" + motionClassifier.getStateMillis(MotionStateClassifier.State.TURNING) + "\n"
+        );
+    }
+
+    /**
+     * @return true 如果该对象正在数据采集
+     */
+    @Override
+    public boolean isRecording() {
+        return loopState == BeeStates.SENSOR_READING;
+    }
+
+    /**
+     * 磁力计出现新读数时更新在线校准，再将校正写入calibratedMagValues.
+     * 只在采样线程中调用.
+     */
+    private void calibrateMagValues() {
+        final float x = magValues[0];
+        final float y = magValues[1];
+        final float z = magValues[2];
+        if (x != lastCalibratedInput[0] || y != lastCalibratedInput[1] || z != lastCalibratedInput[2]) {
+            lastCalibratedInput[0] = x;
+            lastCalibratedInput[1] = y;
+            lastCalibratedInput[2] = z;
+            magCalibrator.update(lastCalibratedInput);
+        }
+        magCalibrator.correct(lastCalibratedInput, calibratedMagValues);
     }
 
     /**
@@ -319,4 +361,113 @@ class SensorsBee {
 
         return false;
     }
+
+    /**
+     * 采样级：每个采样周期（200Hz时为5ms）从各传感器的最新读数组装一帧交给下游.
+     * 使用高优先级的专属线程，保证采样节拍不被编码、发送等工作打乱.
+     * 每帧更新运动状态，状态改变时调整采样周期：静止时线程的唤醒次数与下游的处理量都按比例减少.
+     * 会话开头与磁力计校正每次改变时写出#MAGCAL带内记录，离线处理可以据此还原原始读数.
+     */
+    private final class SamplerStage extends PipelineStage {
+        private final SampleSink sink;
+
+        private final SessionController session;
+
+        private final TimelineQualityMonitor monitor;
+
+        SamplerStage(SampleSink sink, SessionController session, TimelineQualityMonitor monitor) {
+            super("sampler", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            this.sink = sink;
+            this.session = session;
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected void runStage() throws InterruptedException {
+            try {
+                sampleLoop();
+            } finally {
+                //采样线程的所有写入都发生在这之前，编码级看到后才会写会话尾记录
+                session.onSamplerStopped();
+            }
+        }
+
+        private void sampleLoop() throws InterruptedException {
+            //实际runnable执行代码块，每个采样周期从sensorValues获取数据交给下游
+            boolean zeroStage = true;
+            long lastSampleNanos = 0L;
+            //每个会话开头写出一次当前的校正，之后校正改变时再写
+            long magCorrectionVersion = -1;
+            long deadline = 0L;
+            long periodNanos = SAMPLEING_PERIOD_NANOS;
+            int rateHz = SAMPLEING_FREQUENCY;
+            MotionStateClassifier.State motion = motionClassifier.getState();
+            while (loopState == BeeStates.SENSOR_READING && !isCancelled()) {
+                if (zeroStage) {
+                    if (sensorsHaveZeroValue()) {
+                        //传感器存在0值，仍处于启动阶段，等待下一个周期再检查，不要空转占满CPU
+                        LockSupport.parkNanos(SAMPLEING_PERIOD_NANOS);
+                        continue;
+                    } else {
+                        zeroStage = false;
+                        session.onWarmedUp();
+                        deadline = System.nanoTime();
+                    }
+                }
+
+                calibrateMagValues();
+
+                //NOTE：这里的拷贝并非原子操作，尽可能交出最新的传感器数据与时间戳
+                SensorFrame.fill(frame, accValues, gyroValues, calibratedMagValues, quatValues);
+                final long timeMillis = System.currentTimeMillis();
+                sink.onSample(timeMillis, frame);
+                recordProcessed(1);
+                if (magCalibrator.getCorrectionVersion() != magCorrectionVersion) {
+                    magCorrectionVersion = magCalibrator.getCorrectionVersion();
+                    session.offerRecord(magCalibrator.correctionRecord(timeMillis));
+                }
+
+                final long nowNanos = System.nanoTime();
+                for (int i = 0; i < TimelineQualityMonitor.SENSOR_COUNT; i++) {
+                    eventTimestampSnapshot[i] = eventTimestamps.get(i);
+                    eventCountSnapshot[i] = eventCounts.get(i);
+                }
+                monitor.onSample(nowNanos, eventTimestampSnapshot, eventCountSnapshot);
+                if (lastSampleNanos != 0L) {
+                    PipelineMetrics.SAMPLE_INTERVAL_US.record((nowNanos - lastSampleNanos) / 1000);
+                }
+                lastSampleNanos = nowNanos;
+                PipelineMetrics.SAMPLES.increment();
+
+                //运动状态改变时调整采样周期，新频率先告知下游，再随下一帧生效
+                final MotionStateClassifier.State newMotion = motionClassifier.update(timeMillis, frame);
+                if (newMotion != motion) {
+                    motion = newMotion;
+                    final int stillRate = stillSamplingFrequency;
+                    final int newRate = motion == MotionStateClassifier.State.STILL && stillRate > 0
+                            ? stillRate : SAMPLEING_FREQUENCY;
+                    if (newRate != rateHz) {
+                        rateHz = newRate;
+                        periodNanos = 1_000_000_000L / rateHz;
+                        sink.onRateChanged(rateHz);
+                        monitor.onPeriodChanged(periodNanos);
+                    }
+                    session.offerRecord(SessionCsvReader.RATE_RECORD_TAG + ',' + timeMillis + ',' + motion + ',' + rateHz + '\n');
+                }
+
+                //按绝对节拍等待，周期不受本轮处理耗时影响；高频（如1000Hz）下sleep的毫秒粒度不够用
+                deadline += periodNanos;
+                final long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (-wait > periodNanos * 10) {
+                    //落后超过10个周期时不追赶，避免之后连续输出重复帧
+                    deadline = System.nanoTime();
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+    }
 }
@@ -2,6 +2,7 @@ package com.dodolilo.magmapbuild;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.Process;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -10,8 +11,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.security.InvalidParameterException;
 
 /**
@@ -23,10 +23,25 @@ class SentDataBySocket {
     private static final int BUFFER_SIZE = 160 * 200 * 60;
 
     /**
-     * 发送数据的内容.需要传入同步了的数据结构的引用？
-     * 不需要同步？因为服务器是readLine()，而data中的数据是只增长的，不同步也行.
+     * 发送数据的内容，由编码级追加，本类按绝对位置读取并释放已发送的部分.
      */
-    private StringBuilder dataToSent = null;
+    private StreamSpool dataToSent = null;
+
+    /**
+     * 本次发送所属的会话，结束时由本类确认会话完成或失败.
+     */
+    private SessionController session = null;
+
+    /**
+     * 连接成功后、发送缓存中的数据之前发送的连接头（以换行结束），第一行是手机号.
+     * 第一次连接时总是发送；重连时只有服务器声明了{@link UploadProtocol#CAPABILITY_HEADER}才重新发送.
+     */
+    private String connectionHeader = "";
+
+    /**
+     * 非手机坐标系时声明坐标系的#FRAME记录（以换行结束），每次连接都在连接头之后发送；手机坐标系时为空.
+     */
+    private String frameRecord = "";
 
     public void setServerIP(String serverIP) {
         this.serverIP = serverIP;
@@ -44,11 +59,21 @@ class SentDataBySocket {
 
     private long delay = 500;
 
+    /**
+     * 向服务器推送度量帧的周期（ms），0表示不推送.
+     */
+    private long metricsFramePeriodMs = 0;
+
     private Context context;
 
     private Activity activity;
 
-    private Socket socket = null;
+    /**
+     * 创建到服务器连接的工厂，默认为明文TCP.
+     */
+    private StreamTransport.Factory transportFactory = StreamTransport.PLAIN;
+
+    private StreamTransport transport = null;
 
     private Toast toast = null;
 
@@ -59,7 +84,37 @@ class SentDataBySocket {
     
     private static final int SERVER_RESPONE_TIME_OUT = 2000;
 
-    private static final String SERVER_RESPONSE = "MMPS";
+    /**
+     * 离开机房后等待编码级排空队列的时间上限（ms）.
+     */
+    private static final long DRAIN_TIME_OUT = 3000;
+
+    /**
+     * 每次连接后第一次发送数据时，连续往返测量时钟的次数.
+     */
+    private static final int CLOCK_SYNC_BURST = 8;
+
+    /**
+     * 连接期间发送PING的周期（ms），以及写出时钟模型记录的周期（ms）.
+     */
+    private static final long CLOCK_PING_PERIOD_MS = 5000;
+
+    private static final long CLOCK_RECORD_PERIOD_MS = 30_000;
+
+    /**
+     * 本次会话的时钟偏移估计，跨重连保留.
+     */
+    private final ClockSyncEstimator clockSync = new ClockSyncEstimator();
+
+    /**
+     * 服务器不回复PONG时（旧版本服务器）在本次连接中关闭时钟同步.
+     */
+    private boolean clockSyncSupported = true;
+
+    /**
+     * 本次连接中服务器发来的#CAPS行，尚未收到（或旧版本服务器不发送）时为null.
+     */
+    private String serverCapabilities = null;
 
     /**
      * 表示本数据传输类的当前数据传输状态.
@@ -70,15 +125,45 @@ class SentDataBySocket {
         FINISHED_SENT
     }
 
-    private DataSentState state = DataSentState.FINISHED_SENT;
+    /**
+     * 由UI线程写、发送线程读，必须是volatile，否则发送线程可能永远看不到结束.
+     */
+    private volatile DataSentState state = DataSentState.FINISHED_SENT;
 
-    public void setDataToSent(StringBuilder dataToSent) throws InvalidParameterException {
+    public void setDataToSent(StreamSpool dataToSent) throws InvalidParameterException {
         if (dataToSent == null) {
             throw new InvalidParameterException("Param dataToSent is null");
         }
         this.dataToSent = dataToSent;
     }
 
+    public void setSession(SessionController session) throws InvalidParameterException {
+        if (session == null) {
+            throw new InvalidParameterException("Param session is null");
+        }
+        this.session = session;
+    }
+
+    /**
+     * @param connectionHeader 数据之前发送的行，如手机号，以换行结束
+     */
+    public void setConnectionHeader(String connectionHeader) throws InvalidParameterException {
+        if (connectionHeader == null) {
+            throw new InvalidParameterException("Param connectionHeader is null");
+        }
+        this.connectionHeader = connectionHeader;
+    }
+
+    /**
+     * @param frameRecord 声明上传坐标系的#FRAME记录，以换行结束；手机坐标系时为空
+     */
+    public void setFrameRecord(String frameRecord) throws InvalidParameterException {
+        if (frameRecord == null) {
+            throw new InvalidParameterException("Param frameRecord is null");
+        }
+        this.frameRecord = frameRecord;
+    }
+
     public void setInitalDalay(long initalDelay) {
         this.initalDalay = initalDelay;
     }
@@ -87,6 +172,24 @@ class SentDataBySocket {
         this.delay = delay;
     }
 
+    public void setMetricsFramePeriodMs(long metricsFramePeriodMs) {
+        this.metricsFramePeriodMs = metricsFramePeriodMs;
+    }
+
+    public void setTransportFactory(StreamTransport.Factory transportFactory) throws InvalidParameterException {
+        if (transportFactory == null) {
+            throw new InvalidParameterException("Param transportFactory is null");
+        }
+        this.transportFactory = transportFactory;
+    }
+
+    /**
+     * @return 本次会话的时钟偏移估计，可作为会话尾记录
+     */
+    public ClockSyncEstimator getClockSync() {
+        return clockSync;
+    }
+
     public void setContext(Context context) {
         this.context = context;
         this.activity = (Activity) context;
@@ -100,6 +203,7 @@ class SentDataBySocket {
      * 初始等待时间后，每隔一段固定的时间，会发送data容器中增加的数据.
      *
      * @param dataToSent  发送的数据容器的引用，其中的数据只增长！
+     * @param session     本次发送所属的会话
      * @param initalDalay 初始等待时间（ms）
      * @param delay       延期性执行任务的延期时间（ms），注意区别period
      * @return SentDataBySocket实例引用
@@ -107,7 +211,8 @@ class SentDataBySocket {
     public static SentDataBySocket sentDataWithFixedDelay(
             String serverIP,
             int port,
-            StringBuilder dataToSent,
+            StreamSpool dataToSent,
+            SessionController session,
             long initalDalay,
             long delay,
             Context context
@@ -116,6 +221,7 @@ class SentDataBySocket {
         sd.setServerIP(serverIP);
         sd.setPort(port);
         sd.setDataToSent(dataToSent);
+        sd.setSession(session);
         sd.setInitalDalay(initalDalay);
         sd.setDelay(delay);
         sd.setContext(context);
@@ -125,23 +231,27 @@ class SentDataBySocket {
     public static SentDataBySocket sentDataWithFixedDelay(
             String serverIP,
             int port,
-            StringBuilder dataToSent,
+            StreamSpool dataToSent,
+            SessionController session,
             Context context
     ) throws InvalidParameterException {
         SentDataBySocket sd = new SentDataBySocket();
         sd.setServerIP(serverIP);
         sd.setPort(port);
         sd.setDataToSent(dataToSent);
+        sd.setSession(session);
         sd.setContext(context);
         return sd;
     }
 
 
     /**
-     * 开启数据发送线程.并不阻止采数程序的继续运行.
+     * 由scheduler开启数据发送线程.并不阻止采数程序的继续运行.
      * 当无法发送数据时，让外界知晓。
+     *
+     * @param scheduler 运行发送线程的调度器
      */
-    public void startSentData() {
+    public void startSentData(PipelineScheduler scheduler) {
         if (state == DataSentState.SENTING_DATA) {
             Log.e("startSentData()", "已有线程正在发送数据，不要重复启动，只允许一个发送数据的线程.");
             return;
@@ -150,8 +260,26 @@ class SentDataBySocket {
         //NOTE：这句状态量的设置不要放在线程中！否则，如果用户点击按钮很快，会导致状态变化未按预期顺序发生！
         state = DataSentState.SENTING_DATA;
 
-        //启动子线程
-        new Thread(() -> {
+        //由调度器启动发送线程
+        scheduler.start(new SenderStage());
+    }
+
+    /**
+     * 发送级：连接服务器，周期性地发送dataToSent中新增的数据，断线后重连；结束时发出剩余数据与END.
+     * 处理量的单位是发送的字符数.
+     */
+    private final class SenderStage extends PipelineStage {
+        SenderStage() {
+            super("sender", Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        @Override
+        protected void onCancel() {
+            finishSentData();
+        }
+
+        @Override
+        protected void runStage() {
             //对子线程，延迟initalDalay时间
             try {
                 Thread.sleep(initalDalay);
@@ -160,35 +288,44 @@ class SentDataBySocket {
             }
 
             //开始发送dataToSent里的数据，
-            int lastIndex = 0;
-            socket = null;
+            long lastIndex = 0;
+            long lastMetricsFrameTime = System.currentTimeMillis();
+            boolean firstConnect = true;
+            transport = null;
 
             while (state == DataSentState.SENTING_DATA) {
+                if (!firstConnect) {
+                    PipelineMetrics.RECONNECTS.increment();
+                }
+                firstConnect = false;
                 //使用额外变量记录是否连接成功，避免close()失败导致isClosed()错误
                 boolean connect_succeed = false;
+                boolean connected = false;
                 BufferedReader bfReader = null;
-                //连接socket，这里不使用finally或try-with-resources是因为该socket后面还要用
+                //连接socket，这里不使用finally或try-with-resources是因为该连接后面还要用
                 try {
-                    socket = new Socket();
-                    socket.connect(new InetSocketAddress(serverIP, port), CONNECT_TIME_OUT);
+                    transport = transportFactory.create();
+                    transport.connect(serverIP, port, CONNECT_TIME_OUT);
+                    connected = true;
 
                     //开启IO input流，等待服务器响应，如果超过时间未响应，则认为连接失败！
-                    socket.setSoTimeout(SERVER_RESPONE_TIME_OUT);
-                    bfReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    transport.setReadTimeout(SERVER_RESPONE_TIME_OUT);
+                    bfReader = new BufferedReader(new InputStreamReader(transport.getInputStream()));
                     String serverRespone = bfReader.readLine();
 
                     if (serverRespone == null) {
                         throw new IOException("Null response, wrong connection.");
                     }
 
-                    if (SERVER_RESPONSE.equals(serverRespone)) {
+                    if (UploadProtocol.SERVER_RESPONSE.equals(serverRespone)) {
                         connect_succeed = true;
                         activity.runOnUiThread(() -> Toast.makeText(context, "服务器响应成功", Toast.LENGTH_SHORT).show());
                     }
 
                 } catch (IOException e) {
                     connect_succeed = false;
-                    if (socket != null && socket.isConnected()) {
+                    PipelineMetrics.CONNECT_FAILURES.increment();
+                    if (connected) {
                         activity.runOnUiThread(() -> Toast.makeText(context, "服务器超时未响应", Toast.LENGTH_SHORT).show());
                     } else {
                         activity.runOnUiThread(() -> Toast.makeText(context, "服务器连接失败", Toast.LENGTH_SHORT).show());
@@ -199,8 +336,8 @@ class SentDataBySocket {
                         if (bfReader != null) {
                             bfReader.close();
                         }
-                        if (socket != null) {
-                            socket.close();
+                        if (transport != null) {
+                            transport.close();
                         }
                     } catch (IOException ex) {
                         ex.printStackTrace();
@@ -209,27 +346,75 @@ class SentDataBySocket {
 
                 //连接socket和进入该代码块分离，可能导致无法进入该代码块中的socket.close()!
                 //所以需要在最后额外增加socket.close()！
-                if (state == DataSentState.SENTING_DATA && socket != null && socket.isConnected() && !socket.isClosed() && connect_succeed) {
+                if (state == DataSentState.SENTING_DATA && transport != null && transport.isOpen() && connect_succeed) {
                     //如果没有“离开机房” 且 socket连接成功，则尝试发送数据
                     //socket连接成功、sendUrgentData没异常，也不能代表可以发送了
                     try (BufferedWriter bfWriter = new BufferedWriter(
-                            new OutputStreamWriter(socket.getOutputStream()), BUFFER_SIZE)) {
+                            new OutputStreamWriter(transport.getOutputStream()), BUFFER_SIZE)) {
+                        clockSyncSupported = true;
+                        serverCapabilities = null;
+                        //重连后从lastIndex继续发送，支持的服务器据连接头重新识别手机
+                        writeConnectionHeader(bfWriter, bfReader, lastIndex);
+                        //每次连接后，第一批数据发出后再测量时钟
+                        boolean clockBurstDone = false;
+                        long lastPingTime = System.currentTimeMillis();
+                        long lastClockRecordTime = lastPingTime;
                         while (state == DataSentState.SENTING_DATA) {
-                            socket.sendUrgentData(0xFF); //测试是否还能连上服务器
-                            int nextIndex = dataToSent.length(); //提前记录，不要多次调用.length()
-                            bfWriter.write(dataToSent.substring(lastIndex, nextIndex));
+                            transport.probe(); //测试是否还能连上服务器
+                            long nextIndex = dataToSent.length(); //提前记录，不要多次调用.length()
+                            //缓存中的数据总是以完整的行结束，度量帧可以插在两次发送之间
+                            final long now = System.currentTimeMillis();
+                            if (metricsFramePeriodMs > 0 && now - lastMetricsFrameTime >= metricsFramePeriodMs) {
+                                bfWriter.write(MetricsRegistry.getInstance().toFrame(now));
+                                lastMetricsFrameTime = now;
+                            }
+                            final long flushStart = System.nanoTime();
+                            bfWriter.write(dataToSent.read(lastIndex, nextIndex));
                             bfWriter.flush();
+                            PipelineMetrics.FLUSH_LATENCY_US.record((System.nanoTime() - flushStart) / 1000);
+                            PipelineMetrics.BYTES_SENT.add(nextIndex - lastIndex);
+                            recordProcessed(nextIndex - lastIndex);
+                            if (!clockBurstDone && nextIndex > 0) {
+                                clockBurstDone = true;
+                                syncClockBurst(bfWriter, bfReader);
+                                lastClockRecordTime = writeClockRecord(bfWriter);
+                            } else {
+                                readServerLines(bfReader);
+                            }
+                            if (clockBurstDone && clockSyncSupported) {
+                                final long pingNow = System.currentTimeMillis();
+                                if (pingNow - lastPingTime >= CLOCK_PING_PERIOD_MS) {
+                                    bfWriter.write(clockSync.newPing());
+                                    bfWriter.flush();
+                                    lastPingTime = pingNow;
+                                }
+                                if (pingNow - lastClockRecordTime >= CLOCK_RECORD_PERIOD_MS) {
+                                    lastClockRecordTime = writeClockRecord(bfWriter);
+                                }
+                            }
                             Thread.sleep(delay);
-                            //认为数据发生成功了，认为lastIndex前的数据都成功发送出去了
+                            //认为数据发生成功了，认为lastIndex前的数据都成功发送出去了，可以从缓存中释放
                             lastIndex = nextIndex;
+                            dataToSent.releaseUpTo(lastIndex);
+                        }
+                        //离开机房、离开循环，等编码级把最后的样本写入dataToSent，再将剩余的数据发出去，最后发送一行END标识符
+                        if (!session.awaitDrained(DRAIN_TIME_OUT)) {
+                            throw new IOException("Encoder not drained, data tail may be lost.");
                         }
-                        //离开机房、离开循环，先将剩余的数据发出去，再发送一行END标识符
-                        //这里睡一段时间，以保证先结束的SensorBee写入数据到dataToSent
-                        Thread.sleep(delay);
-                        bfWriter.write(dataToSent.substring(lastIndex, dataToSent.length()));
+                        final long endIndex = dataToSent.length();
+                        bfWriter.write(dataToSent.read(lastIndex, endIndex));
                         bfWriter.flush();
-                        bfWriter.write("END\n");
+                        PipelineMetrics.BYTES_SENT.add(endIndex - lastIndex);
+                        recordProcessed(endIndex - lastIndex);
+                        lastIndex = endIndex;
+                        if (session.isFailed()) {
+                            //会话已失败（如编码出错），已编码的数据照常发出，但不发送END，服务器不会把它当作完整的会话
+                            throw new IOException("Session failed, END not sent.");
+                        }
+                        bfWriter.write(UploadProtocol.END_LINE + "\n");
                         bfWriter.flush();
+                        awaitEndAck(bfReader);
+                        session.onAcknowledged();
                     } catch (Exception e) {
                         //出现意外，断开连接，将状态置为SOCKET_EXCEPTION，好让外部知晓.
                         Log.e("Socket Error", "connection failed...");
@@ -241,8 +426,8 @@ class SentDataBySocket {
                             if (bfReader != null) {
                                 bfReader.close();
                             }
-                            if (socket != null) {
-                                socket.close();
+                            if (transport != null) {
+                                transport.close();
                             }
                         } catch (IOException ex) {
                             ex.printStackTrace();
@@ -260,16 +445,192 @@ class SentDataBySocket {
                 }
             }
 
-            //退出循环
-            if (socket != null) {
+            //退出循环，如果此时会话还没有被确认完成，说明数据尾部没有送达
+            session.fail(new IOException("Sending finished before END was acknowledged."));
+            if (transport != null) {
                 try {
-                    socket.close();
+                    transport.close();
                     activity.runOnUiThread(() -> Toast.makeText(context, "服务器连接结束", Toast.LENGTH_SHORT).show());
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-        }).start();
+        }
+    }
+
+    /**
+     * 连续发送PING并等待PONG，得到初始的时钟模型.
+     * 服务器的#CAPS没有声明PONG时不发送PING；没有#CAPS（旧版本服务器）时，第一个PING超时未回复即在本次连接中关闭时钟同步，
+     * 因此对不支持时钟同步的服务器，每次连接最多只停顿一个回复超时.
+     */
+    private void syncClockBurst(BufferedWriter bfWriter, BufferedReader bfReader) throws IOException {
+        readServerLines(bfReader);
+        if (serverCapabilities != null
+                && !UploadProtocol.hasCapability(serverCapabilities, UploadProtocol.CAPABILITY_PONG)) {
+            clockSyncSupported = false;
+            return;
+        }
+        for (int i = 0; i < CLOCK_SYNC_BURST && clockSyncSupported; i++) {
+            bfWriter.write(clockSync.newPing());
+            bfWriter.flush();
+            try {
+                awaitPong(bfReader);
+            } catch (SocketTimeoutException e) {
+                Log.w("ClockSync", "server does not answer PING, clock sync disabled for this connection");
+                clockSyncSupported = false;
+            }
+        }
+    }
+
+    /**
+     * 阻塞读取服务器的回复直到一个PONG；其间收到的#CAPS没有声明PONG时关闭时钟同步并返回.
+     */
+    private void awaitPong(BufferedReader bfReader) throws IOException {
+        while (true) {
+            final String line = bfReader.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed by server.");
+            }
+            if (UploadProtocol.isCapabilitiesLine(line)) {
+                onServerLine(line);
+                if (!UploadProtocol.hasCapability(line, UploadProtocol.CAPABILITY_PONG)) {
+                    clockSyncSupported = false;
+                    return;
+                }
+            } else {
+                if (!clockSync.onServerLine(line)) {
+                    Log.w("ClockSync", "unexpected server line: " + line);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写出连接头与#FRAME记录.
+     * 连接头在还没有发出任何数据时总是发送，与旧版本在数据流开头写入手机号一致；
+     * 重连时只有服务器声明了{@link UploadProtocol#CAPABILITY_HEADER}才重新发送，旧版本服务器把重连后的数据当作原数据流的继续.
+     * #FRAME记录每次连接都发送，服务器没有声明{@link UploadProtocol#CAPABILITY_FRAME}时它会把数据行当作手机坐标系，不能发送.
+     *
+     * @throws IOException 非手机坐标系而服务器不支持#FRAME
+     */
+    private void writeConnectionHeader(BufferedWriter bfWriter, BufferedReader bfReader, long lastIndex) throws IOException {
+        final boolean capabilitiesReceived = (lastIndex > 0 || !frameRecord.isEmpty()) && awaitCapabilities(bfReader);
+        if (lastIndex == 0 || capabilitiesReceived
+                && UploadProtocol.hasCapability(serverCapabilities, UploadProtocol.CAPABILITY_HEADER)) {
+            bfWriter.write(connectionHeader);
+        }
+        if (!frameRecord.isEmpty()) {
+            if (!capabilitiesReceived
+                    || !UploadProtocol.hasCapability(serverCapabilities, UploadProtocol.CAPABILITY_FRAME)) {
+                throw new IOException("Server does not accept #FRAME, cannot upload " + frameRecord.trim());
+            }
+            bfWriter.write(frameRecord);
+        }
+        bfWriter.flush();
+    }
+
+    /**
+     * 等待服务器的#CAPS行，最多等待一个回复超时.
+     *
+     * @return false 如果没有收到（旧版本服务器不发送）
+     */
+    private boolean awaitCapabilities(BufferedReader bfReader) throws IOException {
+        while (serverCapabilities == null) {
+            final String line;
+            try {
+                line = bfReader.readLine();
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            if (line == null) {
+                throw new IOException("Connection closed by server.");
+            }
+            onServerLine(line);
+        }
+        return true;
+    }
+
+    /**
+     * 非阻塞地读取服务器已发来的回复行.
+     */
+    private void readServerLines(BufferedReader bfReader) throws IOException {
+        while (bfReader.ready()) {
+            final String line = bfReader.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed by server.");
+            }
+            onServerLine(line);
+        }
+    }
+
+    /**
+     * 处理服务器的一行回复：#CAPS或PONG.
+     *
+     * @return false 如果这一行两者都不是
+     */
+    private boolean onServerLine(String line) {
+        if (UploadProtocol.isCapabilitiesLine(line)) {
+            serverCapabilities = line;
+            return true;
+        }
+        return clockSync.onServerLine(line);
+    }
+
+    /**
+     * 发出END后等待服务器确认.
+     * 服务器没有声明END确认能力时（旧版本服务器）不等待，按原来的方式发出END即认为完成；
+     * 尚未收到#CAPS行时最多等待一个回复超时，期间收到#CAPS再按其声明处理.
+     *
+     * @throws IOException 服务器声明了END确认却没有确认，或连接断开
+     */
+    private void awaitEndAck(BufferedReader bfReader) throws IOException {
+        readServerLines(bfReader);
+        if (serverCapabilities != null
+                && !UploadProtocol.hasCapability(serverCapabilities, UploadProtocol.CAPABILITY_END_ACK)) {
+            return;
+        }
+        while (true) {
+            final String line;
+            try {
+                line = bfReader.readLine();
+            } catch (SocketTimeoutException e) {
+                if (serverCapabilities == null) {
+                    Log.w("SentDataBySocket", "server does not advertise END ack, assuming fire-and-forget END");
+                    return;
+                }
+                throw e;
+            }
+            if (line == null) {
+                throw new IOException("Connection closed before END was acknowledged.");
+            }
+            if (UploadProtocol.END_LINE.equals(line)) {
+                return;
+            }
+            //之前的PONG回复可能还没有读完
+            if (!onServerLine(line)) {
+                throw new IOException("END not acknowledged, got: " + line);
+            }
+            if (serverCapabilities != null
+                    && !UploadProtocol.hasCapability(serverCapabilities, UploadProtocol.CAPABILITY_END_ACK)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 在数据流中写出当前的时钟模型记录.
+     *
+     * @return 写出的时间
+     */
+    private long writeClockRecord(BufferedWriter bfWriter) throws IOException {
+        final long now = System.currentTimeMillis();
+        final String record = clockSync.toRecord(now);
+        if (record != null) {
+            bfWriter.write(record);
+            bfWriter.flush();
+        }
+        return now;
     }
 
     //结束发送数据.
@@ -0,0 +1,272 @@
+package com.dodolilo.magmapbuild;
+
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一次采集会话（一次进入、离开机房）的生命周期状态机.
+ * <pre>
+ *     IDLE -> WARMING -> SAMPLING -> DRAINING -> CLOSED
+ *                \___________________/ ^          ^
+ *                 (传感器预热中即离开)   |          |
+ *     任何状态出错 ----------------------------------/
+ * </pre>
+ * 状态转换全部是CAS原子操作，UI线程、采样、编码、发送线程之间通过它建立happens-before关系，
+ * 不再依赖未同步的标志位与固定时长的sleep.
+ * {@link #getCompletion()}只在最后一个样本被编码、写入发送缓存、发送并被服务器确认后才完成.
+ */
+@ThreadSafe
+class SessionController {
+    private static final String TAG = "SessionController";
+
+    enum State {
+        /**
+         * 已创建，尚未启动传感器.
+         */
+        IDLE,
+        /**
+         * 传感器已注册，读数仍存在0值，尚未输出样本.
+         */
+        WARMING,
+        /**
+         * 正在输出样本.
+         */
+        SAMPLING,
+        /**
+         * 已请求结束，采样停止，正在排空编码队列与发送缓存.
+         */
+        DRAINING,
+        /**
+         * 会话结束（成功或失败），不可再转换.
+         */
+        CLOSED
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.IDLE);
+
+    /**
+     * 编码级排空队列后完成.
+     */
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    /**
+     * 采样线程已经退出，之后不会再有样本入队.
+     */
+    private volatile boolean samplerStopped = false;
+
+    /**
+     * 会话结束时写在数据流末尾的汇总记录来源.
+     */
+    private final List<SessionFooter> footers = new CopyOnWriteArrayList<>();
+
+    /**
+     * 会话进行中由其它线程产生、等待编码级写入发送缓存的带内记录（如打点）.
+     * 编码级是发送缓存唯一的写者，带内记录与样本行因此不会交错成半行.
+     */
+    private final Queue<CharSequence> inBandRecords = new ConcurrentLinkedQueue<>();
+
+    @GuardedBy("inBandRecords")
+    private boolean recordsClosed = false;
+
+    /**
+     * 会话完成：正常完成代表服务器确认了END，异常完成代表数据尾部可能丢失.
+     */
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    /**
+     * IDLE -> WARMING，启动传感器前调用.
+     *
+     * @return false 如果会话已经启动过
+     */
+    public boolean start() {
+        return transition(State.IDLE, State.WARMING);
+    }
+
+    /**
+     * WARMING -> SAMPLING，采样线程输出第一帧前调用.
+     */
+    public void onWarmedUp() {
+        transition(State.WARMING, State.SAMPLING);
+    }
+
+    /**
+     * WARMING/SAMPLING -> DRAINING，离开机房时调用.
+     *
+     * @return false 如果会话不处于采样中（未启动或已经在结束）
+     */
+    public boolean beginDraining() {
+        while (true) {
+            final State current = state.get();
+            if (current != State.WARMING && current != State.SAMPLING) {
+                return false;
+            }
+            if (state.compareAndSet(current, State.DRAINING)) {
+                Log.i(TAG, current + " -> " + State.DRAINING);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 采样线程退出时调用（无论正常结束还是异常）.
+     */
+    public void onSamplerStopped() {
+        samplerStopped = true;
+    }
+
+    /**
+     * @return true 如果采样线程已经退出，此后队列中不会再有新样本
+     */
+    public boolean isSamplerStopped() {
+        return samplerStopped;
+    }
+
+    /**
+     * 加入一个会话尾记录来源，应在启动采样前加入.
+     */
+    public void addFooter(SessionFooter footer) {
+        footers.add(footer);
+    }
+
+    /**
+     * 将所有会话尾记录追加到spool，由编码级在排空队列后、{@link #onEncoderDrained()}前调用.
+     */
+    public void appendFooters(StreamSpool spool, long timeMillis) {
+        for (SessionFooter footer : footers) {
+            spool.append(footer.footerRecord(timeMillis));
+        }
+    }
+
+    /**
+     * 提交一条带内记录（以"\n"结尾的完整一行），由编码级在下一批样本之后写入发送缓存.
+     *
+     * @return false 如果编码级已经写完最后的带内记录，记录不会再被发送
+     */
+    public boolean offerRecord(CharSequence record) {
+        synchronized (inBandRecords) {
+            if (recordsClosed) {
+                return false;
+            }
+            inBandRecords.offer(record);
+            return true;
+        }
+    }
+
+    /**
+     * 将已提交的带内记录追加到spool，只由编码级调用.
+     *
+     * @return 写入的记录数
+     */
+    public int drainRecords(StreamSpool spool) {
+        int n = 0;
+        CharSequence record;
+        while ((record = inBandRecords.poll()) != null) {
+            spool.append(record);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 写入剩余的带内记录并不再接受新的记录，由编码级在排空队列后、写会话尾记录前调用.
+     */
+    public void closeRecords(StreamSpool spool) {
+        synchronized (inBandRecords) {
+            recordsClosed = true;
+        }
+        drainRecords(spool);
+    }
+
+    /**
+     * 编码级排空队列、最后一个样本已写入发送缓存后调用.
+     */
+    public void onEncoderDrained() {
+        drained.complete(null);
+    }
+
+    /**
+     * 等待编码级排空.
+     *
+     * @param timeoutMs 等待时间上限（ms）
+     * @return false 如果超时
+     */
+    public boolean awaitDrained(long timeoutMs) throws InterruptedException {
+        try {
+            drained.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            Log.w(TAG, "encoder not drained in " + timeoutMs + "ms");
+            return false;
+        }
+    }
+
+    /**
+     * DRAINING -> CLOSED，服务器确认收到END后调用，会话正常完成.
+     */
+    public void onAcknowledged() {
+        if (transition(State.DRAINING, State.CLOSED)) {
+            completion.complete(null);
+        }
+    }
+
+    /**
+     * 任何状态 -> CLOSED，会话以异常结束.已结束的会话调用无效果.
+     */
+    public void fail(Throwable cause) {
+        final State previous = state.getAndSet(State.CLOSED);
+        if (previous != State.CLOSED) {
+            Log.w(TAG, previous + " -> " + State.CLOSED + " (" + cause.getMessage() + ")");
+            //先标记失败再结束排空等待，等待排空的发送线程醒来时isFailed()一定为true，不会发送END
+            completion.completeExceptionally(cause);
+            drained.complete(null);
+        }
+    }
+
+    /**
+     * @return true 如果会话以异常结束
+     */
+    public boolean isFailed() {
+        return completion.isCompletedExceptionally();
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true 如果会话处于预热或采样中
+     */
+    public boolean isActive() {
+        final State current = state.get();
+        return current == State.WARMING || current == State.SAMPLING;
+    }
+
+    /**
+     * @return 会话完成的future，回调在完成它的线程（通常是发送线程）中执行
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    private boolean transition(State from, State to) {
+        if (state.compareAndSet(from, to)) {
+            Log.i(TAG, from + " -> " + to);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,183 @@
+package com.dodolilo.magmapbuild;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 离线回放来源：把已记录的会话（csv或二进制）按原始时间线重新送入采集流水线，接口与实时采集{@link SensorsBee}相同.
+ * 回放使用虚拟时钟：样本的时间戳就是记录中的时间戳，回放速度只决定两帧之间等待的真实时长.
+ * <ul>
+ *     <li>speed = 1：按真实速度回放；</li>
+ *     <li>speed = N：N倍速回放；</li>
+ *     <li>speed &lt;= 0：不等待，尽可能快地回放（用于回归测试与基准测试）.</li>
+ * </ul>
+ * 记录中的采样频率改变（见{@link SessionReader#getRateHz()}）与实时采集一样，在交出按新频率采样的第一帧前通过{@link SampleSink#onRateChanged(int)}告知下游.
+ * 下游是{@link SampleQueue}时，队列满会等待而不是丢样，保证回放结果确定.
+ * 回放到文件末尾后线程自行结束，{@link #getFinished()}完成.
+ */
+class SessionReplaySource implements SampleSource {
+    private static final String TAG = "SessionReplaySource";
+
+    /**
+     * 下游队列满时的等待时间.
+     */
+    private static final long BACKPRESSURE_PARK_NANOS = 100_000L;
+
+    private final File sessionFile;
+
+    private final double speed;
+
+    private final int samplingFrequency;
+
+    private volatile boolean recording = false;
+
+    /**
+     * 虚拟时钟：最近一次交出的样本的记录时间（ms）.
+     */
+    private volatile long virtualTimeMillis = 0L;
+
+    private volatile CompletableFuture<Long> finished = new CompletableFuture<>();
+
+    private ReplayStage replayStage = null;
+
+    /**
+     * @param sessionFile       会话文件，".mmsb"为二进制，其余按csv读取
+     * @param speed             回放倍速，&lt;= 0表示尽可能快
+     * @param samplingFrequency 记录时的名义采样频率（Hz）
+     */
+    SessionReplaySource(File sessionFile, double speed, int samplingFrequency) throws InvalidParameterException {
+        if (sessionFile == null) {
+            throw new InvalidParameterException("Param sessionFile is null");
+        }
+        if (samplingFrequency <= 0) {
+            throw new InvalidParameterException("Param samplingFrequency must be positive");
+        }
+        this.sessionFile = sessionFile;
+        this.speed = speed;
+        this.samplingFrequency = samplingFrequency;
+    }
+
+    @Override
+    public boolean startSensorRecord(SampleSink sink, SessionController session, PipelineScheduler scheduler) {
+        final SessionReader reader;
+        try {
+            reader = SessionBinaryFormat.open(sessionFile);
+        } catch (IOException e) {
+            Log.e(TAG, "open " + sessionFile + " failed", e);
+            return false;
+        }
+        recording = true;
+        finished = new CompletableFuture<>();
+        replayStage = new ReplayStage(reader, sink, session);
+        scheduler.start(replayStage);
+        return true;
+    }
+
+    @Override
+    public void stopSensorRecord() {
+        recording = false;
+        if (replayStage != null) {
+            replayStage.cancel();
+        }
+    }
+
+    @Override
+    public boolean isRecording() {
+        return recording;
+    }
+
+    @Override
+    public int getSamplingFrequency() {
+        return samplingFrequency;
+    }
+
+    @Override
+    public List<SessionFooter> getSessionFooters() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return 虚拟时钟的当前时间（ms），即最近一次交出的样本的记录时间
+     */
+    public long getVirtualTimeMillis() {
+        return virtualTimeMillis;
+    }
+
+    /**
+     * @return 回放结束（读完或被停止）时完成，值为交出的样本数；读文件失败时异常完成
+     */
+    public CompletableFuture<Long> getFinished() {
+        return finished;
+    }
+
+    private final class ReplayStage extends PipelineStage {
+        private final SessionReader reader;
+        private final SampleSink sink;
+        private final SessionController session;
+
+        ReplayStage(SessionReader reader, SampleSink sink, SessionController session) {
+            super("replay", Process.THREAD_PRIORITY_DEFAULT);
+            this.reader = reader;
+            this.sink = sink;
+            this.session = session;
+        }
+
+        @Override
+        protected void runStage() {
+            final CompletableFuture<Long> done = finished;
+            long count = 0L;
+            try {
+                final SampleQueue queue = sink instanceof SampleQueue ? (SampleQueue) sink : null;
+                final long wallStartNanos = System.nanoTime();
+                long firstTimeMillis = Long.MIN_VALUE;
+                int rateHz = 0;
+                while (recording && !isCancelled() && reader.next()) {
+                    final long t = reader.getTimeMillis();
+                    if (firstTimeMillis == Long.MIN_VALUE) {
+                        firstTimeMillis = t;
+                        session.onWarmedUp();
+                    }
+                    if (speed > 0) {
+                        final long targetNanos = wallStartNanos + (long) ((t - firstTimeMillis) * 1e6 / speed);
+                        long waitNanos;
+                        while ((waitNanos = targetNanos - System.nanoTime()) > 0 && !isCancelled()) {
+                            LockSupport.parkNanos(waitNanos);
+                        }
+                    }
+                    while (queue != null && queue.remainingCapacity() == 0 && !isCancelled()) {
+                        LockSupport.parkNanos(BACKPRESSURE_PARK_NANOS);
+                    }
+                    final int recordedRate = reader.getRateHz();
+                    if (recordedRate != 0 && recordedRate != rateHz) {
+                        rateHz = recordedRate;
+                        sink.onRateChanged(rateHz);
+                    }
+                    virtualTimeMillis = t;
+                    sink.onSample(t, reader.getFrame());
+                    recordProcessed(1);
+                    count++;
+                }
+                done.complete(count);
+            } catch (IOException e) {
+                Log.e(TAG, "replay " + sessionFile + " failed", e);
+                done.completeExceptionally(e);
+            } finally {
+                recording = false;
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                session.onSamplerStopped();
+            }
+        }
+    }
+}
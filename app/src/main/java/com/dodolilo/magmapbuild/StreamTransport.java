@@ -0,0 +1,64 @@
+package com.dodolilo.magmapbuild;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 发送级与服务器之间的一条字节流连接：明文的{@link PlainSocketTransport}或加密的{@link TlsChannelTransport}.
+ * 发送级在其上按行读写，不关心是否加密.
+ * 一个实例只对应一次连接，重连时由{@link Factory}创建新的实例.
+ */
+interface StreamTransport extends Closeable {
+    /**
+     * 创建连接的工厂，随单例存在；TLS工厂在多次连接之间共享会话缓存，使重连可以复用会话.
+     */
+    interface Factory {
+        StreamTransport create();
+    }
+
+    /**
+     * 明文TCP连接的工厂.
+     */
+    Factory PLAIN = PlainSocketTransport::new;
+
+    /**
+     * 建立连接（TLS连接同时完成握手）.
+     *
+     * @param timeoutMs 建立连接（与握手）的时间上限（ms）
+     * @throws java.net.SocketTimeoutException 如果超时
+     */
+    void connect(String host, int port, int timeoutMs) throws IOException;
+
+    /**
+     * 设置阻塞读的时间上限（ms），超时抛出{@link java.net.SocketTimeoutException}.
+     */
+    void setReadTimeout(int timeoutMs) throws IOException;
+
+    /**
+     * @return true 如果已经连接且尚未关闭
+     */
+    boolean isOpen();
+
+    /**
+     * 检测连接是否仍然可用，连接断开时抛出IOException.
+     */
+    void probe() throws IOException;
+
+    /**
+     * @return 读取服务器回复的流，available()返回不阻塞即可读出的字节数
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return 向服务器写数据的流，flush()后数据才会发出
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * 关闭连接，可重复调用.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,239 @@
+package com.dodolilo.magmapbuild;
+
+import java.security.InvalidParameterException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 纯JVM上的合成传感器事件来源，不依赖SensorManager，可以在任意频率（如400~1000Hz）下压测采样、缓冲与编码各级.
+ * 每个传感器的事件值 = 基准值 + 正弦波形 + 高斯噪声，另可注入以下异常：
+ * <ul>
+ *     <li>停顿：某个传感器在一段时间内没有事件；</li>
+ *     <li>零值突发：连续若干个事件的值全为0（与真机预热阶段相同）；</li>
+ *     <li>时间戳异常：抖动，以及早于上一个事件的倒序时间戳.</li>
+ * </ul>
+ * 所有传感器的事件在同一个生成线程中按节拍产生；给定种子时结果可复现.
+ * 配置必须在{@link #start(int, SensorEventCallback)}之前完成.
+ */
+class SyntheticSensorEventSource implements SensorEventSource {
+    private static final int SENSOR_COUNT = TimelineQualityMonitor.SENSOR_COUNT;
+
+    /**
+     * 各传感器事件值的维数.
+     */
+    private static final int[] DIMENSIONS = {3, 3, 3, 4};
+
+    /**
+     * 节拍周期低于该值时不再等待，全速生成.
+     */
+    private static final long MIN_PACED_PERIOD_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    private final Random random;
+
+    /**
+     * 事件频率（Hz），0表示使用start()传入的周期.
+     */
+    private final int rateHz;
+
+    private final float[][] base = new float[SENSOR_COUNT][];
+    private final float[][] amplitude = new float[SENSOR_COUNT][];
+    private final double[] waveFrequencyHz = new double[SENSOR_COUNT];
+    private final float[] noiseStd = new float[SENSOR_COUNT];
+
+    private double stallProbability = 0.0;
+    private long stallNanos = 0L;
+    private double zeroBurstProbability = 0.0;
+    private int zeroBurstEvents = 0;
+    private long timestampJitterNanos = 0L;
+    private double outOfOrderProbability = 0.0;
+
+    private volatile Thread generator = null;
+    private volatile boolean running = false;
+    private volatile long emittedEvents = 0L;
+
+    /**
+     * @param rateHz 事件频率（Hz），0表示使用start()传入的周期
+     * @param seed   随机种子
+     */
+    SyntheticSensorEventSource(int rateHz, long seed) throws InvalidParameterException {
+        if (rateHz < 0) {
+            throw new InvalidParameterException("Param rateHz is negative");
+        }
+        this.rateHz = rateHz;
+        this.random = new Random(seed);
+        //默认波形：手持行走，约2Hz的步频与缓慢变化的磁场
+        setWaveform(TimelineQualityMonitor.ACC, new float[]{0f, 0f, 9.81f}, new float[]{0.3f, 0.3f, 1.5f}, 2.0);
+        setWaveform(TimelineQualityMonitor.GYRO, new float[]{0f, 0f, 0f}, new float[]{0.05f, 0.05f, 0.2f}, 0.5);
+        setWaveform(TimelineQualityMonitor.MAG, new float[]{20f, -5f, -40f}, new float[]{5f, 3f, 2f}, 0.1);
+        setWaveform(TimelineQualityMonitor.QUAT, new float[]{0.01f, 0.01f, 0f, 1f}, new float[]{0f, 0f, 0.2f, 0f}, 0.05);
+        noiseStd[TimelineQualityMonitor.ACC] = 0.05f;
+        noiseStd[TimelineQualityMonitor.GYRO] = 0.01f;
+        noiseStd[TimelineQualityMonitor.MAG] = 0.5f;
+        noiseStd[TimelineQualityMonitor.QUAT] = 0.001f;
+    }
+
+    /**
+     * 设置某个传感器的波形：value[i] = base[i] + amplitude[i] * sin(2π·f·t).
+     * 四元数会在加上波形后重新归一化.
+     */
+    public SyntheticSensorEventSource setWaveform(int sensor, float[] base, float[] amplitude, double frequencyHz)
+            throws InvalidParameterException {
+        if (base.length != DIMENSIONS[sensor] || amplitude.length != DIMENSIONS[sensor]) {
+            throw new InvalidParameterException("Waveform dimension of sensor " + sensor + " must be " + DIMENSIONS[sensor]);
+        }
+        this.base[sensor] = base.clone();
+        this.amplitude[sensor] = amplitude.clone();
+        this.waveFrequencyHz[sensor] = frequencyHz;
+        return this;
+    }
+
+    public SyntheticSensorEventSource setNoise(int sensor, float std) {
+        noiseStd[sensor] = std;
+        return this;
+    }
+
+    /**
+     * 每个事件以probability的概率使该传感器停顿durationMs.
+     */
+    public SyntheticSensorEventSource setStall(double probability, long durationMs) {
+        stallProbability = probability;
+        stallNanos = TimeUnit.MILLISECONDS.toNanos(durationMs);
+        return this;
+    }
+
+    /**
+     * 每个事件以probability的概率开始一段连续events个全0值的事件.
+     */
+    public SyntheticSensorEventSource setZeroBurst(double probability, int events) {
+        zeroBurstProbability = probability;
+        zeroBurstEvents = events;
+        return this;
+    }
+
+    /**
+     * 时间戳加上[-jitter, +jitter]内均匀分布的抖动.
+     */
+    public SyntheticSensorEventSource setTimestampJitter(long jitterNanos) {
+        timestampJitterNanos = jitterNanos;
+        return this;
+    }
+
+    /**
+     * 每个事件以probability的概率使用早于上一个事件的时间戳.
+     */
+    public SyntheticSensorEventSource setOutOfOrder(double probability) {
+        outOfOrderProbability = probability;
+        return this;
+    }
+
+    @Override
+    public boolean start(int samplingPeriodUs, SensorEventCallback callback) {
+        stop();
+        final long periodNanos = rateHz > 0
+                ? TimeUnit.SECONDS.toNanos(1) / rateHz
+                : TimeUnit.MICROSECONDS.toNanos(Math.max(1, samplingPeriodUs));
+        running = true;
+        final Thread thread = new Thread(() -> generate(periodNanos, callback), "synthetic-sensors");
+        thread.setDaemon(true);
+        generator = thread;
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        final Thread thread = generator;
+        generator = null;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return 已回调的事件总数（所有传感器之和）
+     */
+    public long getEmittedEvents() {
+        return emittedEvents;
+    }
+
+    private void generate(long periodNanos, SensorEventCallback callback) {
+        final float[][] values = new float[SENSOR_COUNT][];
+        for (int s = 0; s < SENSOR_COUNT; s++) {
+            values[s] = new float[DIMENSIONS[s]];
+        }
+        final long[] stalledUntil = new long[SENSOR_COUNT];
+        final int[] zeroRemaining = new int[SENSOR_COUNT];
+        final long[] lastTimestamps = new long[SENSOR_COUNT];
+        final long startNanos = System.nanoTime();
+        long deadline = startNanos;
+        long emitted = 0L;
+        while (running) {
+            final long now = System.nanoTime();
+            final double t = (now - startNanos) / 1e9;
+            for (int s = 0; s < SENSOR_COUNT; s++) {
+                if (now < stalledUntil[s]) {
+                    continue;
+                }
+                if (stallProbability > 0 && random.nextDouble() < stallProbability) {
+                    stalledUntil[s] = now + stallNanos;
+                    continue;
+                }
+                if (zeroBurstProbability > 0 && zeroRemaining[s] == 0 && random.nextDouble() < zeroBurstProbability) {
+                    zeroRemaining[s] = zeroBurstEvents;
+                }
+                fillValues(s, t, values[s], zeroRemaining[s] > 0);
+                if (zeroRemaining[s] > 0) {
+                    zeroRemaining[s]--;
+                }
+                long timestamp = now;
+                if (timestampJitterNanos > 0) {
+                    timestamp += (long) ((random.nextDouble() * 2 - 1) * timestampJitterNanos);
+                }
+                if (outOfOrderProbability > 0 && lastTimestamps[s] != 0 && random.nextDouble() < outOfOrderProbability) {
+                    timestamp = lastTimestamps[s] - periodNanos;
+                }
+                lastTimestamps[s] = timestamp;
+                callback.onSensorEvent(s, timestamp, values[s]);
+                emitted++;
+            }
+            emittedEvents = emitted;
+            deadline += periodNanos;
+            if (periodNanos >= MIN_PACED_PERIOD_NANOS) {
+                final long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (-wait > 100 * periodNanos) {
+                    //落后太多（如被调试器暂停）时不追赶，避免之后突发大量事件
+                    deadline = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    private void fillValues(int sensor, double t, float[] out, boolean zero) {
+        if (zero) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = 0f;
+            }
+            return;
+        }
+        final double wave = Math.sin(2 * Math.PI * waveFrequencyHz[sensor] * t);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = (float) (base[sensor][i] + amplitude[sensor][i] * wave + noiseStd[sensor] * random.nextGaussian());
+        }
+        if (sensor == TimelineQualityMonitor.QUAT) {
+            final double norm = Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2] * out[2] + out[3] * out[3]);
+            if (norm > 0) {
+                for (int i = 0; i < out.length; i++) {
+                    out[i] = (float) (out[i] / norm);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.dodolilo.magmapbuild;
+
+import net.jcip.annotations.NotThreadSafe;
+
+/**
+ * 采样时间线质量监测：与采样线程同步运行、内存占用固定的流式分析器.
+ * 统计内容：
+ * <ul>
+ *     <li>采样间隔分布（对数-线性直方图）、间隙（超过3倍名义周期）的次数与时长；</li>
+ *     <li>各传感器的陈旧样本（两次采样之间没有新事件，输出的是重复值）与事件时间戳倒序次数；</li>
+ *     <li>各传感器的实际事件率，以及相对加速度计事件率的漂移；</li>
+ *     <li>预热时长：从注册传感器到输出第一帧的时间.</li>
+ * </ul>
+ * 采样频率按运动状态改变时（{@link #onPeriodChanged(long)}），间隙与有效采样率都相对当时的周期判定.
+ * 会话结束时作为{@link SessionFooter}写出一行"#QUALITY"汇总，服务器可据此拒绝或降权质量差的会话.
+ * 只能在采样线程中更新；footerRecord()在采样线程停止后由编码级调用.
+ */
+@NotThreadSafe
+class TimelineQualityMonitor implements SessionFooter {
+    static final String QUALITY_FRAME_TAG = "#QUALITY";
+
+    /**
+     * 传感器下标与名字，与SensorsBee中事件计数的顺序一致.
+     */
+    static final int ACC = 0;
+    static final int GYRO = 1;
+    static final int MAG = 2;
+    static final int QUAT = 3;
+    static final int SENSOR_COUNT = 4;
+    private static final String[] SENSOR_NAMES = {"acc", "gyro", "mag", "quat"};
+
+    /**
+     * 间隔超过名义周期的多少倍视为间隙.
+     */
+    private static final int GAP_FACTOR = 3;
+
+    /**
+     * 质量判定阈值：有效采样率低于名义值的比例、间隙时长占比、磁力计陈旧样本占比.
+     */
+    private static final double BAD_RATE_RATIO = 0.8;
+    private static final double BAD_GAP_RATIO = 0.05;
+    private static final double DEGRADED_STALE_MAG_RATIO = 0.6;
+
+    private long periodNanos;
+
+    private long gapThresholdNanos;
+
+    /**
+     * 各采样间隔按当时的周期应有的时长之和，与实际时长之比即有效采样率与名义采样率之比.
+     */
+    private long nominalNanos = 0L;
+
+    private final LogLinearHistogram intervalHistogram = new LogLinearHistogram("interval_us");
+
+    private long warmupStartNanos = 0L;
+    private long firstSampleNanos = 0L;
+    private long lastSampleNanos = 0L;
+    private long samples = 0L;
+
+    private long gaps = 0L;
+    private long totalGapNanos = 0L;
+    private long longestGapNanos = 0L;
+
+    private final long[] lastEventTimestamps = new long[SENSOR_COUNT];
+    private final long[] staleSamples = new long[SENSOR_COUNT];
+    private final long[] outOfOrderEvents = new long[SENSOR_COUNT];
+    private final long[] firstEventCounts = new long[SENSOR_COUNT];
+    private final long[] lastEventCounts = new long[SENSOR_COUNT];
+
+    /**
+     * @param nominalRateHz 名义采样频率（Hz）
+     */
+    TimelineQualityMonitor(int nominalRateHz) {
+        onPeriodChanged(1_000_000_000L / nominalRateHz);
+    }
+
+    /**
+     * 采样周期改变时调用，之后的间隔按新的周期判定.
+     */
+    public void onPeriodChanged(long periodNanos) {
+        this.periodNanos = periodNanos;
+        this.gapThresholdNanos = periodNanos * GAP_FACTOR;
+    }
+
+    /**
+     * 传感器注册、开始预热时调用.
+     */
+    public void onWarmupStarted(long nowNanos) {
+        warmupStartNanos = nowNanos;
+    }
+
+    /**
+     * 每输出一帧调用一次.
+     *
+     * @param nowNanos        本帧的System.nanoTime()
+     * @param eventTimestamps 各传感器最近一个事件的SensorEvent.timestamp（ns），下标见ACC等常量
+     * @param eventCounts     各传感器到目前为止收到的事件总数
+     */
+    public void onSample(long nowNanos, long[] eventTimestamps, long[] eventCounts) {
+        if (samples == 0L) {
+            firstSampleNanos = nowNanos;
+            System.arraycopy(eventCounts, 0, firstEventCounts, 0, SENSOR_COUNT);
+        } else {
+            final long interval = nowNanos - lastSampleNanos;
+            intervalHistogram.record(interval / 1000);
+            nominalNanos += periodNanos;
+            if (interval > gapThresholdNanos) {
+                gaps++;
+                totalGapNanos += interval - periodNanos;
+                longestGapNanos = Math.max(longestGapNanos, interval);
+            }
+            for (int i = 0; i < SENSOR_COUNT; i++) {
+                if (eventTimestamps[i] == lastEventTimestamps[i]) {
+                    staleSamples[i]++;
+                } else if (eventTimestamps[i] < lastEventTimestamps[i]) {
+                    outOfOrderEvents[i]++;
+                }
+            }
+        }
+        System.arraycopy(eventTimestamps, 0, lastEventTimestamps, 0, SENSOR_COUNT);
+        System.arraycopy(eventCounts, 0, lastEventCounts, 0, SENSOR_COUNT);
+        lastSampleNanos = nowNanos;
+        samples++;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * @return 输出的有效采样率（Hz）
+     */
+    public double getEffectiveRateHz() {
+        final long duration = lastSampleNanos - firstSampleNanos;
+        return samples < 2 || duration <= 0 ? 0.0 : (samples - 1) * 1e9 / duration;
+    }
+
+    /**
+     * @return 第index个传感器的实际事件率（Hz）
+     */
+    public double getEventRateHz(int index) {
+        final long duration = lastSampleNanos - firstSampleNanos;
+        return duration <= 0 ? 0.0 : (lastEventCounts[index] - firstEventCounts[index]) * 1e9 / duration;
+    }
+
+    /**
+     * @return 第index个传感器的陈旧样本比例[0, 1]
+     */
+    public double getStaleRatio(int index) {
+        return samples < 2 ? 0.0 : (double) staleSamples[index] / (samples - 1);
+    }
+
+    /**
+     * @return 会话质量判定：GOOD、DEGRADED或BAD
+     */
+    public String getGrade() {
+        final long duration = lastSampleNanos - firstSampleNanos;
+        if (samples < 2 || nominalNanos < duration * BAD_RATE_RATIO
+                || (duration > 0 && (double) totalGapNanos / duration > BAD_GAP_RATIO)) {
+            return "BAD";
+        }
+        if (getStaleRatio(MAG) > DEGRADED_STALE_MAG_RATIO) {
+            return "DEGRADED";
+        }
+        return "GOOD";
+    }
+
+    @Override
+    public String footerRecord(long timeMillis) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append(QUALITY_FRAME_TAG).append(',').append(timeMillis)
+                .append(",grade=").append(getGrade())
+                .append(",samples=").append(samples)
+                .append(",duration_ms=").append((lastSampleNanos - firstSampleNanos) / 1_000_000)
+                .append(",warmup_ms=").append(samples == 0 ? 0 : (firstSampleNanos - warmupStartNanos) / 1_000_000)
+                .append(",rate_hz=").append(round2(getEffectiveRateHz()))
+                .append(",interval_us=").append(intervalHistogram.snapshot())
+                .append(",gaps=").append(gaps)
+                .append(",gap_ms=").append(totalGapNanos / 1_000_000)
+                .append(",max_gap_ms=").append(longestGapNanos / 1_000_000);
+        final double accRate = getEventRateHz(ACC);
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            sb.append(",stale_").append(SENSOR_NAMES[i]).append('=').append(round2(getStaleRatio(i)))
+                    .append(",out_of_order_").append(SENSOR_NAMES[i]).append('=').append(outOfOrderEvents[i])
+                    .append(",rate_").append(SENSOR_NAMES[i]).append('=').append(round2(getEventRateHz(i)));
+            if (i != ACC) {
+                //相对加速度计事件率的漂移比例
+                sb.append(",drift_").append(SENSOR_NAMES[i]).append('=')
+                        .append(accRate <= 0 ? 0.0 : round2((getEventRateHz(i) - accRate) / accRate));
+            }
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private static double round2(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -0,0 +1,560 @@
+package com.dodolilo.magmapbuild;
+
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * 基于{@link SSLEngine}与非阻塞{@link SocketChannel}的TLS连接.
+ * <p>
+ * 同一个{@link Factory}创建的连接共享一个{@link SSLContext}，其客户端会话缓存按服务器地址保存会话（TLS1.2的会话ID，
+ * TLS1.3的会话票据），发送级断线重连时因此只需要简化握手，不必重新做证书验证与密钥交换.
+ * 加解密使用的四块缓冲区从静态的{@link BufferPool}借出、关闭时归还，稳定发送时不再分配内存；
+ * 使用直接缓冲区，底层的加密库不必再复制一次数据.
+ * 套件使用平台默认的顺序（有AES指令的手机优先AES-GCM，否则优先ChaCha20），只启用TLS1.3与TLS1.2.
+ * <p>
+ * 服务器证书按主机名（或IP地址）验证，自签名证书需要由调用者提供信任该证书的SSLContext.
+ */
+@NotThreadSafe
+final class TlsChannelTransport implements StreamTransport {
+    private static final String TAG = "TlsChannelTransport";
+
+    /**
+     * 客户端会话缓存的容量与会话的有效期（s）：一天内的重连都可以复用会话.
+     */
+    private static final int SESSION_CACHE_SIZE = 16;
+
+    private static final int SESSION_TIMEOUT_S = 24 * 3600;
+
+    /**
+     * 单次写出（含加密后等待socket可写）的时间上限（ms）.
+     */
+    private static final int WRITE_TIME_OUT = 10_000;
+
+    private static final String[] PREFERRED_PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    /**
+     * 所有连接共用的缓冲区池，同一时刻通常只有发送级的一条连接（加上测试连接）在使用.
+     */
+    private static final BufferPool BUFFERS = new BufferPool(8);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * 创建共享同一个SSLContext（即同一个会话缓存）的TLS连接，应随单例存在.
+     */
+    @ThreadSafe
+    static final class Factory implements StreamTransport.Factory {
+        private final SSLContext sslContext;
+
+        Factory(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            final SSLSessionContext clientSessions = sslContext.getClientSessionContext();
+            if (clientSessions != null) {
+                clientSessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+                clientSessions.setSessionTimeout(SESSION_TIMEOUT_S);
+            }
+        }
+
+        @Override
+        public StreamTransport create() {
+            return new TlsChannelTransport(sslContext);
+        }
+    }
+
+    /**
+     * 按容量复用的直接缓冲区池，池中最多保留maxPooled块.
+     */
+    @ThreadSafe
+    static final class BufferPool {
+        @GuardedBy("this")
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+        private final int maxPooled;
+
+        BufferPool(int maxPooled) {
+            this.maxPooled = maxPooled;
+        }
+
+        /**
+         * @return 容量不小于capacity、处于写模式的空缓冲区
+         */
+        synchronized ByteBuffer acquire(int capacity) {
+            for (Iterator<ByteBuffer> it = free.iterator(); it.hasNext(); ) {
+                final ByteBuffer buffer = it.next();
+                if (buffer.capacity() >= capacity) {
+                    it.remove();
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+            return ByteBuffer.allocateDirect(capacity);
+        }
+
+        synchronized void release(ByteBuffer buffer) {
+            if (buffer != null && free.size() < maxPooled) {
+                buffer.clear();
+                free.push(buffer);
+            }
+        }
+    }
+
+    private final SSLContext sslContext;
+
+    private SocketChannel channel;
+
+    private Selector selector;
+
+    private SelectionKey key;
+
+    private SSLEngine engine;
+
+    /**
+     * 收到的密文（写模式）与待发出的密文（写模式）.
+     */
+    private ByteBuffer netIn;
+
+    private ByteBuffer netOut;
+
+    /**
+     * 解密后尚未被读取的明文（读模式）与尚未加密的明文（写模式）.
+     */
+    private ByteBuffer appIn;
+
+    private ByteBuffer appOut;
+
+    private int readTimeoutMs = 0;
+
+    /**
+     * 服务器已关闭连接（收到close_notify或TCP结束）.
+     */
+    private boolean inboundClosed = false;
+
+    private boolean closed = false;
+
+    private final InputStream in = new TlsInputStream();
+
+    private final OutputStream out = new TlsOutputStream();
+
+    private TlsChannelTransport(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    @Override
+    public void connect(String host, int port, int timeoutMs) throws IOException {
+        final long deadline = deadlineAfter(timeoutMs);
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        selector = Selector.open();
+        key = channel.register(selector, 0);
+        if (!channel.connect(new InetSocketAddress(host, port))) {
+            while (!channel.finishConnect()) {
+                await(SelectionKey.OP_CONNECT, deadline);
+            }
+        }
+
+        engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        final SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        final String[] protocols = preferredProtocols(engine.getSupportedProtocols());
+        if (protocols.length > 0) {
+            params.setProtocols(protocols);
+        }
+        engine.setSSLParameters(params);
+
+        final SSLSession initialSession = engine.getSession();
+        netIn = BUFFERS.acquire(initialSession.getPacketBufferSize());
+        netOut = BUFFERS.acquire(initialSession.getPacketBufferSize());
+        appIn = BUFFERS.acquire(initialSession.getApplicationBufferSize());
+        appIn.flip();
+        appOut = BUFFERS.acquire(initialSession.getApplicationBufferSize());
+
+        final long handshakeStart = System.nanoTime();
+        handshake(deadline);
+        PipelineMetrics.TLS_HANDSHAKE_US.record((System.nanoTime() - handshakeStart) / 1000);
+        Log.i(TAG, "connected " + engine.getSession().getProtocol() + " " + engine.getSession().getCipherSuite());
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMs) {
+        this.readTimeoutMs = timeoutMs;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && !inboundClosed && channel != null && channel.isConnected() && engine != null
+                && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    /**
+     * TLS数据流中无法插入紧急数据，只检查连接状态；连接断开会在下一次写出时发现.
+     */
+    @Override
+    public void probe() throws IOException {
+        if (!isOpen()) {
+            throw new IOException("TLS connection closed.");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * 尽量发出close_notify，然后关闭socket并归还缓冲区.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (engine != null && channel != null && channel.isConnected()) {
+                engine.closeOutbound();
+                netOut.clear();
+                engine.wrap(EMPTY, netOut);
+                netOut.flip();
+                channel.write(netOut);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "close_notify not sent: " + e.getMessage());
+        } finally {
+            try {
+                if (selector != null) {
+                    selector.close();
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+                BUFFERS.release(netIn);
+                BUFFERS.release(netOut);
+                BUFFERS.release(appIn);
+                BUFFERS.release(appOut);
+                netIn = netOut = appIn = appOut = null;
+            }
+        }
+    }
+
+    private void handshake(long deadline) throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP:
+                    status = wrap(EMPTY, deadline).getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    if (netIn.position() == 0) {
+                        readNet(deadline);
+                    }
+                    final SSLEngineResult result = unwrap();
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        readNet(deadline);
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("Connection closed during TLS handshake.");
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status " + status);
+            }
+        }
+    }
+
+    /**
+     * 将src中的明文加密并全部写出到socket.
+     */
+    private SSLEngineResult wrap(ByteBuffer src, long deadline) throws IOException {
+        while (true) {
+            final SSLEngineResult result = engine.wrap(src, netOut);
+            switch (result.getStatus()) {
+                case OK:
+                    flushNet(deadline);
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    return result;
+                case BUFFER_OVERFLOW:
+                    //netOut已满，先写出再加密
+                    flushNet(deadline);
+                    break;
+                default:
+                    throw new SSLException("TLS wrap failed: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * 将netIn中已收到的密文解密到appIn，不读socket.
+     */
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        final SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            //只在appIn读空后才解密，一条记录总能放下
+            throw new SSLException("TLS record larger than application buffer.");
+        }
+        return result;
+    }
+
+    /**
+     * 保证appIn中有可读的明文.
+     *
+     * @param block false时只解密已经到达的数据，不等待
+     * @return appIn中可读的字节数，-1表示服务器已关闭连接
+     */
+    private int fillAppIn(boolean block) throws IOException {
+        ensureOpen();
+        final long deadline = deadlineAfter(readTimeoutMs);
+        while (!appIn.hasRemaining()) {
+            if (inboundClosed) {
+                return -1;
+            }
+            if (netIn.position() > 0) {
+                final SSLEngineResult result = unwrap();
+                handlePostHandshake(result.getHandshakeStatus());
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inboundClosed = true;
+                    return -1;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.OK) {
+                    //可能只是会话票据等握手后消息，没有明文
+                    continue;
+                }
+            }
+            final int n = channel.read(netIn);
+            if (n < 0) {
+                inboundClosed = true;
+                return -1;
+            }
+            if (n == 0) {
+                if (!block) {
+                    return 0;
+                }
+                await(SelectionKey.OP_READ, deadline);
+            }
+        }
+        return appIn.remaining();
+    }
+
+    /**
+     * 处理握手完成后服务器发来的消息（TLS1.3的会话票据、密钥更新）.
+     */
+    private void handlePostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            status = engine.getHandshakeStatus();
+        }
+        if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            wrap(EMPTY, deadlineAfter(WRITE_TIME_OUT));
+        }
+    }
+
+    /**
+     * 将appOut中的明文加密写出.
+     */
+    private void flushApp() throws IOException {
+        ensureOpen();
+        appOut.flip();
+        try {
+            final long deadline = deadlineAfter(WRITE_TIME_OUT);
+            while (appOut.hasRemaining()) {
+                wrap(appOut, deadline);
+            }
+        } finally {
+            appOut.compact();
+        }
+    }
+
+    private void flushNet(long deadline) throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    await(SelectionKey.OP_WRITE, deadline);
+                }
+            }
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void readNet(long deadline) throws IOException {
+        while (true) {
+            final int n = channel.read(netIn);
+            if (n > 0) {
+                return;
+            }
+            if (n < 0) {
+                throw new EOFException("Connection closed during TLS handshake.");
+            }
+            await(SelectionKey.OP_READ, deadline);
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 等待socket就绪.
+     *
+     * @param deadline System.nanoTime()的截止时间，0表示不限时
+     */
+    private void await(int ops, long deadline) throws IOException {
+        long waitMs = 0;
+        if (deadline != 0) {
+            waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (waitMs <= 0) {
+                throw new SocketTimeoutException("TLS transport timed out.");
+            }
+        }
+        key.interestOps(ops);
+        selector.select(waitMs);
+        selector.selectedKeys().clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("TLS transport closed.");
+        }
+    }
+
+    private static long deadlineAfter(int timeoutMs) {
+        return timeoutMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs) : 0;
+    }
+
+    private static String[] preferredProtocols(String[] supported) {
+        final List<String> protocols = new ArrayList<>(PREFERRED_PROTOCOLS.length);
+        for (String preferred : PREFERRED_PROTOCOLS) {
+            for (String protocol : supported) {
+                if (preferred.equals(protocol)) {
+                    protocols.add(protocol);
+                }
+            }
+        }
+        return protocols.toArray(new String[0]);
+    }
+
+    private final class TlsInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            if (fillAppIn(true) < 0) {
+                return -1;
+            }
+            return appIn.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (fillAppIn(true) < 0) {
+                return -1;
+            }
+            final int n = Math.min(len, appIn.remaining());
+            appIn.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * @return 不阻塞即可读出的字节数，BufferedReader.ready()依赖它
+         */
+        @Override
+        public int available() throws IOException {
+            return Math.max(fillAppIn(false), 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsChannelTransport.this.close();
+        }
+    }
+
+    private final class TlsOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (!appOut.hasRemaining()) {
+                flushApp();
+            }
+            appOut.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!appOut.hasRemaining()) {
+                    flushApp();
+                }
+                final int n = Math.min(len, appOut.remaining());
+                appOut.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushApp();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TlsChannelTransport.this.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.dodolilo.magmapbuild;
+
+import android.util.Log;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.InvalidParameterException;
+
+/**
+ * 实时定位用的UDP流式发送：作为滤波器组的消费者，每攒够若干样本就发出一个带序号、自成一体的数据报.
+ * 低频率（如静止时降频）下攒满一个数据报要等很久，因此数据报中最早的样本等待超过{@link #MAX_PACKET_DELAY_MILLIS}
+ * 或上游改变采样频率时，未满的数据报也立即发出.
+ * 与TCP发送缓存相互独立：丢包只丢失这一段样本，不会像TCP那样因队头阻塞让后续的实时数据一起迟到.
+ * 可选的FEC：每parityGroup个数据报追加一个异或校验数据报，接收端可以恢复组内任意一个丢失的数据报.
+ * 发送是非阻塞的，socket缓冲区满时直接丢弃该数据报，绝不阻塞编码线程.
+ * 通道在编码线程收到第一个样本时才打开并连接（可能需要解析服务器地址），构造可以在UI线程中进行；
+ * 打开失败时本会话不再发送实时流，TCP上传不受影响.
+ * 建图用的完整数据仍走{@link SentDataBySocket}的TCP通道.
+ */
+@ThreadSafe
+class UdpStreamSender implements SampleSink, Closeable {
+    private static final String TAG = "UdpStreamSender";
+
+    /**
+     * 样本在未满的数据报中最多等待的时间（ms，按样本时间戳计）.
+     * 没有定时线程，超时的数据报随下一个样本一起发出，因此实际等待还要加上一个采样间隔.
+     */
+    static final long MAX_PACKET_DELAY_MILLIS = 50L;
+
+    private final String serverIP;
+
+    private final int port;
+
+    @GuardedBy("this")
+    private DatagramChannel channel = null;
+
+    private final long sessionId;
+
+    private final int samplesPerPacket;
+
+    /**
+     * 每组数据报的个数，0表示不发送校验数据报.
+     */
+    private final int parityGroup;
+
+    @GuardedBy("this")
+    private final ByteBuffer packet = ByteBuffer.allocate(UdpPacketFormat.MAX_PACKET_SIZE);
+
+    @GuardedBy("this")
+    private final ByteBuffer parity = ByteBuffer.allocate(UdpPacketFormat.HEADER_SIZE + 2 + UdpPacketFormat.MAX_PACKET_SIZE);
+
+    @GuardedBy("this")
+    private int pendingSamples = 0;
+
+    @GuardedBy("this")
+    private long baseTimeMillis = 0L;
+
+    @GuardedBy("this")
+    private int seq = 0;
+
+    @GuardedBy("this")
+    private int groupPackets = 0;
+
+    @GuardedBy("this")
+    private int groupLengthXor = 0;
+
+    @GuardedBy("this")
+    private int groupMaxLength = 0;
+
+    @GuardedBy("this")
+    private boolean closed = false;
+
+    /**
+     * @param serverIP         服务器地址
+     * @param port             服务器UDP端口
+     * @param sessionId        会话标识，接收端据此区分不同手机与会话
+     * @param samplesPerPacket 每个数据报的样本数，不超过{@link UdpPacketFormat#MAX_SAMPLES}
+     * @param parityGroup      每组数据报的个数，0表示不使用FEC
+     */
+    UdpStreamSender(String serverIP, int port, long sessionId, int samplesPerPacket, int parityGroup)
+            throws InvalidParameterException {
+        if (samplesPerPacket <= 0 || samplesPerPacket > UdpPacketFormat.MAX_SAMPLES) {
+            throw new InvalidParameterException("Param samplesPerPacket must be in 1.." + UdpPacketFormat.MAX_SAMPLES);
+        }
+        if (parityGroup < 0 || parityGroup == 1) {
+            throw new InvalidParameterException("Param parityGroup must be 0 or at least 2");
+        }
+        this.serverIP = serverIP;
+        this.port = port;
+        this.sessionId = sessionId;
+        this.samplesPerPacket = samplesPerPacket;
+        this.parityGroup = parityGroup;
+    }
+
+    /**
+     * 在编码线程中打开并连接通道.
+     *
+     * @return false 如果打开失败，此时发送器被关闭
+     */
+    @GuardedBy("this")
+    private boolean openChannel() {
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(serverIP, port));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            //如地址无法解析、网络不可用
+            Log.e(TAG, "live UDP stream disabled", e);
+            closed = true;
+            closeChannel();
+            return false;
+        }
+    }
+
+    @GuardedBy("this")
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.d(TAG, "close failed: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    @Override
+    public synchronized void onSample(long timeMillis, float[] frame) {
+        if (closed || (channel == null && !openChannel())) {
+            return;
+        }
+        if (pendingSamples == 0) {
+            packet.clear();
+            UdpPacketFormat.putHeader(packet, UdpPacketFormat.TYPE_DATA, 0, sessionId, seq);
+            packet.putLong(timeMillis);
+            baseTimeMillis = timeMillis;
+        }
+        packet.putInt((int) (timeMillis - baseTimeMillis));
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            packet.putFloat(frame[i]);
+        }
+        if (++pendingSamples == samplesPerPacket || timeMillis - baseTimeMillis >= MAX_PACKET_DELAY_MILLIS) {
+            flushPacket();
+        }
+    }
+
+    /**
+     * 频率降低后下一个样本可能很久才到，先发出已攒的样本.
+     */
+    @Override
+    public synchronized void onRateChanged(int rateHz) {
+        if (!closed && pendingSamples > 0) {
+            flushPacket();
+        }
+    }
+
+    @GuardedBy("this")
+    private void flushPacket() {
+        packet.putShort(6, (short) pendingSamples);
+        packet.flip();
+        final int length = packet.remaining();
+        if (parityGroup > 0) {
+            accumulateParity(length);
+        }
+        send(packet);
+        pendingSamples = 0;
+        seq++;
+        if (parityGroup > 0 && groupPackets == parityGroup) {
+            flushParity();
+        }
+    }
+
+    @GuardedBy("this")
+    private void accumulateParity(int length) {
+        if (groupPackets == 0) {
+            parity.clear();
+            UdpPacketFormat.putHeader(parity, UdpPacketFormat.TYPE_PARITY, parityGroup, sessionId, seq);
+            parity.putShort((short) 0);
+            for (int i = parity.position(); i < parity.capacity(); i++) {
+                parity.put(i, (byte) 0);
+            }
+            groupLengthXor = 0;
+            groupMaxLength = 0;
+        }
+        final int bodyStart = UdpPacketFormat.HEADER_SIZE + 2;
+        for (int i = 0; i < length; i++) {
+            parity.put(bodyStart + i, (byte) (parity.get(bodyStart + i) ^ packet.get(i)));
+        }
+        groupLengthXor ^= length;
+        groupMaxLength = Math.max(groupMaxLength, length);
+        groupPackets++;
+    }
+
+    @GuardedBy("this")
+    private void flushParity() {
+        parity.putShort(UdpPacketFormat.HEADER_SIZE, (short) groupLengthXor);
+        parity.position(0);
+        parity.limit(UdpPacketFormat.HEADER_SIZE + 2 + groupMaxLength);
+        send(parity);
+        parity.clear();
+        groupPackets = 0;
+    }
+
+    @GuardedBy("this")
+    private void send(ByteBuffer buffer) {
+        try {
+            if (channel.write(buffer) == 0) {
+                PipelineMetrics.UDP_PACKETS_DROPPED.increment();
+            } else {
+                PipelineMetrics.UDP_PACKETS_SENT.increment();
+            }
+        } catch (IOException e) {
+            //网络暂时不可用（如切换Wi-Fi）时丢弃该数据报，实时数据没有重发的价值
+            PipelineMetrics.UDP_PACKETS_DROPPED.increment();
+            Log.d(TAG, "datagram dropped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 关闭通道，可以在UI线程中调用，因此不做网络IO：未满的最后一个数据报与不完整的校验组都不再发送，
+     * 会话末尾不到一个数据报的样本对实时定位没有价值.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        pendingSamples = 0;
+        closed = true;
+        closeChannel();
+    }
+}
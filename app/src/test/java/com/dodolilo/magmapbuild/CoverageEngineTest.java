@@ -0,0 +1,72 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CoverageEngine}的建议采集格子及其在热力图中的标记.
+ */
+public class CoverageEngineTest {
+    @Test
+    public void heatmapMarksNearestUndersampledCells() {
+        final CoverageEngine engine = new CoverageEngine(0f, 0f, 1f, 10, 10);
+        final float[] frame = new float[SensorFrame.SIZE];
+        frame[SensorFrame.MAG] = 40f;
+
+        //尚未打点时没有建议
+        assertTrue(engine.suggestUnvisited(CoverageEngine.SUGGESTIONS).isEmpty());
+        assertEquals(0, countSuggested(engine.render(100)));
+
+        //在(0.5, 0.5)打点：第一次打点也会使热力图重新渲染
+        final long version = engine.getVersion();
+        engine.onMark(new MarkEventChannel.MarkEvent("0", 1000, 0, 0.5f, 0.5f));
+        engine.onSample(1000, frame);
+        assertNotEquals(version, engine.getVersion());
+
+        final CoverageEngine.Heatmap heatmap = engine.render(100);
+        assertEquals(CoverageEngine.SUGGESTIONS, heatmap.suggestions.size());
+        assertEquals(CoverageEngine.SUGGESTIONS, countSuggested(heatmap));
+        //广度优先：第一个建议是打点所在的格子，第0行像素对应最大的y
+        assertArrayEquals(new float[]{0.5f, 0.5f}, heatmap.suggestions.get(0), 0f);
+        assertEquals(CoverageEngine.COLOR_SUGGESTED, heatmap.argb[(heatmap.height - 1) * heatmap.width]);
+    }
+
+    @Test
+    public void sufficientlySampledCellsAreNotSuggested() {
+        final CoverageEngine engine = new CoverageEngine(0f, 0f, 1f, 10, 1);
+        final float[] frame = new float[SensorFrame.SIZE];
+        frame[SensorFrame.MAG] = 40f;
+        engine.onMark(new MarkEventChannel.MarkEvent("0", 0, 0, 0.5f, 0.5f));
+        engine.onSample(0, frame);
+        //在第0格停留，样本数达到目标
+        for (int i = 1; i <= CoverageEngine.TARGET_SAMPLES; i++) {
+            engine.onSample(i * 100L, frame);
+        }
+        engine.onMark(new MarkEventChannel.MarkEvent("0", CoverageEngine.TARGET_SAMPLES * 100L, 0, 0.5f, 0.5f));
+        engine.onSample(CoverageEngine.TARGET_SAMPLES * 100L + 1, frame);
+        assertTrue(engine.getCount(0) >= CoverageEngine.TARGET_SAMPLES);
+
+        final List<float[]> suggestions = engine.suggestUnvisited(3);
+        assertEquals(3, suggestions.size());
+        assertArrayEquals(new float[]{1.5f, 0.5f}, suggestions.get(0), 0f);
+        assertArrayEquals(new float[]{3.5f, 0.5f}, suggestions.get(2), 0f);
+
+        //降采样时多个格子落在同一像素中
+        final CoverageEngine.Heatmap heatmap = engine.render(5);
+        assertEquals(5, heatmap.width);
+        assertEquals(CoverageEngine.COLOR_SUGGESTED, heatmap.argb[0]);
+        assertEquals(CoverageEngine.COLOR_SUGGESTED, heatmap.argb[2]);
+        assertNotEquals(CoverageEngine.COLOR_SUGGESTED, heatmap.argb[3]);
+    }
+
+    private static int countSuggested(CoverageEngine.Heatmap heatmap) {
+        int n = 0;
+        for (int color : heatmap.argb) {
+            n += color == CoverageEngine.COLOR_SUGGESTED ? 1 : 0;
+        }
+        return n;
+    }
+}
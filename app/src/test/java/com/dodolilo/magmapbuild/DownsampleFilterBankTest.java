@@ -0,0 +1,187 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DownsampleFilterBank}的抽取频率、直流增益、抗混叠与分支共享.
+ */
+public class DownsampleFilterBankTest {
+    @Test
+    public void passesThroughWhenOutputRateIsNotLower() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(100);
+        final RecordingSink sink = new RecordingSink();
+        bank.addConsumer(200, sink);
+        final float[] frame = constantFrame(3f);
+        for (int i = 0; i < 10; i++) {
+            frame[0] = i;
+            bank.onSample(i * 10L, frame);
+        }
+        assertEquals(10, sink.times.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i * 10L, (long) sink.times.get(i));
+            assertEquals(i, sink.frames.get(i)[0], 0f);
+        }
+    }
+
+    @Test
+    public void decimatesToOutputRate() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink quarter = new RecordingSink();
+        final RecordingSink fractional = new RecordingSink();
+        bank.addConsumer(50, quarter);
+        bank.addConsumer(30, fractional);
+        final float[] frame = constantFrame(1f);
+        for (int i = 0; i < 2000; i++) {
+            bank.onSample(i * 5L, frame);
+        }
+        assertEquals(500, quarter.times.size());
+        assertEquals(300, fractional.times.size());
+        //整数比时等间隔抽取，输出沿用输入时间戳
+        for (int i = 1; i < quarter.times.size(); i++) {
+            assertEquals(20L, quarter.times.get(i) - quarter.times.get(i - 1));
+        }
+    }
+
+    @Test
+    public void constantInputPassesWithUnitGain() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink sink = new RecordingSink();
+        bank.addConsumer(50, sink);
+        final float[] frame = constantFrame(-9.81f);
+        for (int i = 0; i < 400; i++) {
+            bank.onSample(i * 5L, frame);
+        }
+        //第一帧预置了滤波器状态，没有阶跃瞬态
+        for (float[] output : sink.frames) {
+            for (int ch = 0; ch < SensorFrame.QUAT; ch++) {
+                assertEquals(-9.81f, output[ch], 1e-4f);
+            }
+        }
+    }
+
+    @Test
+    public void attenuatesAboveOutputNyquist() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink sink = new RecordingSink();
+        bank.addConsumer(50, sink);
+        final float[] frame = constantFrame(0f);
+        for (int i = 0; i < 2000; i++) {
+            //80Hz，远高于50Hz输出的奈奎斯特频率
+            frame[SensorFrame.MAG] = (float) Math.sin(2 * Math.PI * 80 * i / 200.0);
+            bank.onSample(i * 5L, frame);
+        }
+        float peak = 0f;
+        for (int i = sink.frames.size() / 2; i < sink.frames.size(); i++) {
+            peak = Math.max(peak, Math.abs(sink.frames.get(i)[SensorFrame.MAG]));
+        }
+        assertTrue("aliased amplitude " + peak, peak < 0.05f);
+    }
+
+    @Test
+    public void normalizesQuaternion() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(100);
+        final RecordingSink sink = new RecordingSink();
+        bank.addConsumer(50, sink);
+        final float[] frame = constantFrame(0f);
+        frame[SensorFrame.QUAT + 2] = 2f;
+        frame[SensorFrame.QUAT + 3] = 2f;
+        for (int i = 0; i < 4; i++) {
+            bank.onSample(i * 10L, frame);
+        }
+        assertEquals(2, sink.frames.size());
+        final float h = (float) Math.sqrt(0.5);
+        assertEquals(h, sink.frames.get(0)[SensorFrame.QUAT + 2], 1e-6f);
+        assertEquals(h, sink.frames.get(0)[SensorFrame.QUAT + 3], 1e-6f);
+    }
+
+    @Test
+    public void consumersWithSameRateShareBranch() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink first = new RecordingSink();
+        final RecordingSink second = new RecordingSink();
+        bank.addConsumer(50, first);
+        bank.addConsumer(50, second);
+        final float[] frame = constantFrame(1f);
+        for (int i = 0; i < 100; i++) {
+            frame[0] = i;
+            bank.onSample(i * 5L, frame);
+        }
+        assertEquals(25, first.frames.size());
+        assertEquals(first.times, second.times);
+        for (int i = 0; i < first.frames.size(); i++) {
+            assertArrayEquals(first.frames.get(i), second.frames.get(i), 0f);
+        }
+    }
+
+    @Test
+    public void rateChangeSwitchesBranchToPassThrough() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink slow = new RecordingSink();
+        final RecordingSink fast = new RecordingSink();
+        bank.addConsumer(50, slow);
+        bank.addConsumer(100, fast);
+        bank.onRateChanged(100);
+        assertEquals(50, slow.rateHz);
+        assertEquals(100, fast.rateHz);
+        final float[] frame = constantFrame(1f);
+        for (int i = 0; i < 100; i++) {
+            bank.onSample(i * 10L, frame);
+        }
+        assertEquals(50, slow.frames.size());
+        assertEquals(100, fast.frames.size());
+    }
+
+    @Test
+    public void resetRestartsDecimationPhase() {
+        final DownsampleFilterBank bank = new DownsampleFilterBank(200);
+        final RecordingSink sink = new RecordingSink();
+        bank.addConsumer(50, sink);
+        final float[] frame = constantFrame(1f);
+        for (int i = 0; i < 3; i++) {
+            bank.onSample(i * 5L, frame);
+        }
+        bank.reset();
+        sink.times.clear();
+        for (int i = 0; i < 8; i++) {
+            bank.onSample(1000L + i * 5L, frame);
+        }
+        //复位后第一帧即输出，之后每4帧一帧
+        assertEquals(2, sink.times.size());
+        assertEquals(1000L, (long) sink.times.get(0));
+        assertEquals(1020L, (long) sink.times.get(1));
+    }
+
+    private static float[] constantFrame(float value) {
+        final float[] frame = new float[SensorFrame.SIZE];
+        for (int ch = 0; ch < SensorFrame.QUAT; ch++) {
+            frame[ch] = value;
+        }
+        frame[SensorFrame.QUAT + 3] = 1f;
+        return frame;
+    }
+
+    /**
+     * 记录收到的样本，帧被下游复用，因此保存副本.
+     */
+    private static final class RecordingSink implements SampleSink {
+        final List<Long> times = new ArrayList<>();
+        final List<float[]> frames = new ArrayList<>();
+        int rateHz;
+
+        @Override
+        public void onSample(long timeMillis, float[] frame) {
+            times.add(timeMillis);
+            frames.add(frame.clone());
+        }
+
+        @Override
+        public void onRateChanged(int rateHz) {
+            this.rateHz = rateHz;
+        }
+    }
+}
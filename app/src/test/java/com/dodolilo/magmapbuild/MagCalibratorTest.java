@@ -0,0 +1,120 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MagCalibrator}在合成数据上的收敛：恒定地磁场随手机姿态旋转，经已知的软铁矩阵与硬铁偏移畸变.
+ */
+public class MagCalibratorTest {
+    private static final double FIELD_UT = 45.0;
+
+    private static final double[] OFFSET = {20.0, -15.0, 30.0};
+
+    /**
+     * 对称正定的软铁畸变.
+     */
+    private static final double[] SOFT_IRON = {
+            1.15, 0.05, -0.03,
+            0.05, 0.90, 0.02,
+            -0.03, 0.02, 1.00
+    };
+
+    /**
+     * 收敛容差：硬铁偏移（uT）与校正后模长的相对标准差.
+     */
+    private static final double OFFSET_TOLERANCE_UT = 0.5;
+    private static final double MAGNITUDE_TOLERANCE = 0.01;
+
+    @Test
+    public void convergesOnRotatedSphere() {
+        final Random random = new Random(26);
+        final MagCalibrator calibrator = new MagCalibrator();
+        final float[] raw = new float[3];
+        assertFalse(calibrator.isCorrectionUsable());
+        for (int i = 0; i < 5000; i++) {
+            distortedReading(random, raw);
+            calibrator.update(raw);
+        }
+        final MagCalibrator.Quality quality = calibrator.getQuality();
+        assertTrue(quality.toString(), quality.usable);
+        assertEquals(1f, quality.coverage, 0f);
+        for (int k = 0; k < 3; k++) {
+            assertEquals(quality.toString(), OFFSET[k], quality.hardIronOffset[k], OFFSET_TOLERANCE_UT);
+        }
+
+        //新的读数校正后落在同一个球面上
+        final float[] corrected = new float[3];
+        double sum = 0;
+        double sumSquares = 0;
+        final int n = 1000;
+        for (int i = 0; i < n; i++) {
+            distortedReading(random, raw);
+            calibrator.correct(raw, corrected);
+            final double norm = Math.sqrt(corrected[0] * corrected[0] + corrected[1] * corrected[1]
+                    + corrected[2] * corrected[2]);
+            sum += norm;
+            sumSquares += norm * norm;
+        }
+        final double mean = sum / n;
+        final double std = Math.sqrt(Math.max(0, sumSquares / n - mean * mean));
+        assertEquals(quality.fieldStrength, mean, mean * MAGNITUDE_TOLERANCE);
+        assertTrue("relative std " + std / mean, std / mean < MAGNITUDE_TOLERANCE);
+    }
+
+    @Test
+    public void correctionRecordFollowsVersion() {
+        final Random random = new Random(7);
+        final MagCalibrator calibrator = new MagCalibrator();
+        final float[] raw = new float[3];
+        assertEquals(0, calibrator.getCorrectionVersion());
+        assertEquals("#MAGCAL,1000,usable=false,offset=0.0/0.0/0.0,softIron=1.0/0.0/0.0/0.0/1.0/0.0/0.0/0.0/1.0\n",
+                calibrator.correctionRecord(1000));
+        long version = 0;
+        int changes = 0;
+        for (int i = 0; i < 3000; i++) {
+            distortedReading(random, raw);
+            calibrator.update(raw);
+            if (calibrator.getCorrectionVersion() != version) {
+                version = calibrator.getCorrectionVersion();
+                changes++;
+            }
+        }
+        assertTrue(calibrator.isCorrectionUsable());
+        //可用后每次重新求解都是一次改变
+        assertTrue(String.valueOf(changes), changes > 1 && changes <= 3000 / 100 + 1);
+        final String record = calibrator.correctionRecord(2000);
+        assertTrue(record, record.startsWith("#MAGCAL,2000,usable=true,offset="));
+        final String[] fields = record.trim().split(",");
+        assertEquals(5, fields.length);
+        assertEquals(3, fields[3].substring("offset=".length()).split("/").length);
+        assertEquals(9, fields[4].substring("softIron=".length()).split("/").length);
+
+        calibrator.reset();
+        assertEquals(version + 1, calibrator.getCorrectionVersion());
+        assertFalse(calibrator.correctionRecord(3000).contains("usable=true"));
+    }
+
+    /**
+     * 随机姿态下的读数：单位球面上均匀分布的方向乘以场强，再经软铁矩阵与硬铁偏移，加0.1uT噪声.
+     */
+    private static void distortedReading(Random random, float[] out) {
+        double x, y, z, norm;
+        do {
+            x = random.nextGaussian();
+            y = random.nextGaussian();
+            z = random.nextGaussian();
+            norm = Math.sqrt(x * x + y * y + z * z);
+        } while (norm < 1e-6);
+        x = x / norm * FIELD_UT;
+        y = y / norm * FIELD_UT;
+        z = z / norm * FIELD_UT;
+        for (int r = 0; r < 3; r++) {
+            out[r] = (float) (SOFT_IRON[r * 3] * x + SOFT_IRON[r * 3 + 1] * y + SOFT_IRON[r * 3 + 2] * z
+                    + OFFSET[r] + random.nextGaussian() * 0.1);
+        }
+    }
+}
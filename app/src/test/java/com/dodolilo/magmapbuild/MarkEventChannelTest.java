@@ -0,0 +1,51 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.security.InvalidParameterException;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link MarkEventChannel}的打点记录格式与点名检查.
+ */
+public class MarkEventChannelTest {
+    @Test
+    public void markIsSentAsRecord() {
+        final SessionController session = new SessionController();
+        assertTrue(session.start());
+        final MarkEventChannel channel = new MarkEventChannel(session, null);
+        final MarkEventChannel.MarkEvent event = channel.mark("12");
+        assertNotNull(event);
+        assertFalse(event.isResolved());
+        final StreamSpool spool = new StreamSpool();
+        assertEquals(1, session.drainRecords(spool));
+        assertEquals("#MARK," + event.timeMillis + "," + event.elapsedNanos + ",12,,\n",
+                spool.read(0, spool.length()));
+        assertEquals("12," + event.timeMillis + "\n", channel.toPointRecordsCsv());
+    }
+
+    @Test
+    public void resolvedMarkHasCoordinates() {
+        final MarkEventChannel.MarkEvent event = new MarkEventChannel.MarkEvent("A1", 1000, 5, 1.5f, -2f);
+        assertTrue(event.isResolved());
+        assertEquals("#MARK,1000,5,A1,1.5,-2.0\n", event.toRecord());
+    }
+
+    @Test
+    public void rejectsNamesThatBreakTheRecord() {
+        final SessionController session = new SessionController();
+        assertTrue(session.start());
+        final MarkEventChannel channel = new MarkEventChannel(session, null);
+        for (String name : new String[]{null, "", "1,2", "3\n#END", "4\r"}) {
+            try {
+                channel.mark(name);
+                fail("accepted point name " + name);
+            } catch (InvalidParameterException expected) {
+                //被拒绝的打点不发送也不进入历史
+            }
+        }
+        assertEquals(0, session.drainRecords(new StreamSpool()));
+        assertTrue(channel.getHistory().isEmpty());
+    }
+}
@@ -0,0 +1,189 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * 压测：用{@link SyntheticSensorEventSource}驱动采样级 -> 有界队列 -> 编码级，检查吞吐与丢帧计数.
+ * 采样级交出的每一帧要么被编码，要么计入队列的丢帧数，离开机房后不丢失队列中的剩余样本.
+ */
+public class PipelineStressTest {
+    private static final int SAMPLING_RATE_HZ = 500;
+
+    private static final long RUN_MILLIS = 2000;
+
+    private PipelineScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new PipelineScheduler("stress");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.cancelAndJoin(1000);
+    }
+
+    @Test
+    public void keepsUpAtNominalRate() throws InterruptedException {
+        final SyntheticSensorEventSource source = new SyntheticSensorEventSource(1000, 1L);
+        final CountingSink encoded = new CountingSink(0L);
+        final StreamSpool spool = new StreamSpool();
+        final DownsampleFilterBank filterBank = new DownsampleFilterBank(SAMPLING_RATE_HZ);
+        filterBank.addConsumer(SAMPLING_RATE_HZ, new CsvSpoolEncoder(spool));
+        filterBank.addConsumer(SAMPLING_RATE_HZ, encoded);
+        final Result result = run(source, 1024, filterBank);
+
+        assertTrue("source emitted nothing", source.getEmittedEvents() > 0);
+        assertEquals("dropped with a fast consumer", 0, result.dropped);
+        assertEquals(result.produced, encoded.count.get());
+        //调度抖动下采样线程不追赶落后的周期，留出余量
+        assertTrue("sampled " + result.produced + " in " + result.samplingMillis + "ms",
+                result.produced >= SAMPLING_RATE_HZ * result.samplingMillis / 1000 / 2);
+        assertTrue(spool.length() > 0);
+    }
+
+    @Test
+    public void slowConsumerDropsAreCounted() throws InterruptedException {
+        final SyntheticSensorEventSource source = new SyntheticSensorEventSource(1000, 2L);
+        //每帧2ms，编码级最多约500Hz，而队列只有16帧
+        final CountingSink encoded = new CountingSink(TimeUnit.MILLISECONDS.toNanos(2));
+        final long droppedBefore = PipelineMetrics.DROPPED_SAMPLES.sum();
+        final Result result = run(source, 16, encoded);
+
+        assertTrue("no drops with a slow consumer", result.dropped > 0);
+        assertEquals(result.produced, encoded.count.get() + result.dropped);
+        assertEquals(result.dropped, PipelineMetrics.DROPPED_SAMPLES.sum() - droppedBefore);
+    }
+
+    @Test
+    public void faultySensorsDoNotLoseSamples() throws InterruptedException {
+        final SyntheticSensorEventSource source = new SyntheticSensorEventSource(1000, 3L)
+                .setStall(0.001, 50)
+                .setZeroBurst(0.001, 5)
+                .setTimestampJitter(TimeUnit.MICROSECONDS.toNanos(300))
+                .setOutOfOrder(0.01);
+        final CountingSink encoded = new CountingSink(0L);
+        final Result result = run(source, 1024, encoded);
+
+        assertTrue(result.produced > 0);
+        assertEquals(0, result.dropped);
+        assertEquals(result.produced, encoded.count.get());
+    }
+
+    @Test
+    public void failingEncoderStillDrains() throws InterruptedException {
+        final SensorsBee bee = new SensorsBee(new SyntheticSensorEventSource(1000, 4L), SAMPLING_RATE_HZ);
+        final SessionController session = new SessionController();
+        session.addFooter(timeMillis -> "#TEST," + timeMillis + '\n');
+        assertTrue(session.start());
+        final SampleQueue queue = new SampleQueue(1024);
+        final StreamSpool spool = new StreamSpool();
+        final AtomicLong encoded = new AtomicLong();
+        final SampleSink failing = (timeMillis, frame) -> {
+            if (encoded.incrementAndGet() == 100) {
+                throw new IllegalStateException("encoder failed");
+            }
+        };
+        assertTrue(bee.startSensorRecord(queue, session, scheduler));
+        scheduler.start(new SampleEncoderStage(queue, failing, spool, session));
+        try {
+            //不等离开机房：编码级出错后会话立即失败并结束排空，会话尾记录已写入
+            assertTrue(session.awaitDrained(5000));
+            assertTrue(session.isFailed());
+            assertTrue(session.getCompletion().isCompletedExceptionally());
+            assertTrue(spool.read(0, spool.length()).contains("#TEST,"));
+            assertFalse(session.beginDraining());
+        } finally {
+            bee.stopSensorRecord();
+        }
+    }
+
+    /**
+     * 按CollectSendSensorsData的顺序进入机房、采集RUN_MILLIS后离开，等待编码级排空.
+     */
+    private Result run(SyntheticSensorEventSource source, int queueCapacity, SampleSink downstream)
+            throws InterruptedException {
+        final SensorsBee bee = new SensorsBee(source, SAMPLING_RATE_HZ);
+        //始终使用名义采样频率，吞吐不受运动状态判断影响
+        bee.setStillSamplingFrequency(0);
+        final SessionController session = new SessionController();
+        assertTrue(session.start());
+        final SampleQueue queue = new SampleQueue(queueCapacity);
+        final CountingSink produced = new CountingSink(0L, queue);
+        assertTrue(bee.startSensorRecord(produced, session, scheduler));
+        final SampleEncoderStage encoder = new SampleEncoderStage(queue, downstream, new StreamSpool(), session);
+        scheduler.start(encoder);
+
+        final long warmupDeadline = System.currentTimeMillis() + 2000;
+        while (session.getState() == SessionController.State.WARMING && System.currentTimeMillis() < warmupDeadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(SessionController.State.SAMPLING, session.getState());
+        final long startNanos = System.nanoTime();
+        Thread.sleep(RUN_MILLIS);
+
+        assertTrue(session.beginDraining());
+        bee.stopSensorRecord();
+        encoder.cancel();
+        assertTrue("encoder not drained", session.awaitDrained(5000));
+        final long samplingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertTrue(queue.isEmpty());
+        return new Result(produced.count.get(), queue.getDroppedCount(), samplingMillis);
+    }
+
+    private static final class Result {
+        final long produced;
+        final long dropped;
+        final long samplingMillis;
+
+        Result(long produced, long dropped, long samplingMillis) {
+            this.produced = produced;
+            this.dropped = dropped;
+            this.samplingMillis = samplingMillis;
+        }
+    }
+
+    /**
+     * 计数后转给下游（可为null），每帧可以额外耗时以模拟慢的编码器.
+     */
+    private static final class CountingSink implements SampleSink {
+        final AtomicLong count = new AtomicLong();
+        private final long delayNanos;
+        private final SampleSink downstream;
+
+        CountingSink(long delayNanos) {
+            this(delayNanos, null);
+        }
+
+        CountingSink(long delayNanos, SampleSink downstream) {
+            this.delayNanos = delayNanos;
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void onSample(long timeMillis, float[] frame) {
+            count.incrementAndGet();
+            if (delayNanos > 0) {
+                LockSupport.parkNanos(delayNanos);
+            }
+            if (downstream != null) {
+                downstream.onSample(timeMillis, frame);
+            }
+        }
+
+        @Override
+        public void onRateChanged(int rateHz) {
+            if (downstream != null) {
+                downstream.onRateChanged(rateHz);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PointTable#parse(byte[], int, int, String)}的解析结果与出错行号.
+ */
+public class PointTableTest {
+    @Test
+    public void parsesPoints() throws PointTable.FormatException {
+        final PointTable table = parse("A1:1.5,2\r\n\n  \nB2: -3 , 4.25\nA1:7,8");
+        assertEquals(2, table.size());
+        //同名点以后出现的为准
+        final int a = table.indexOf("A1");
+        assertEquals(7f, table.getX(a), 0f);
+        assertEquals(8f, table.getY(a), 0f);
+        final int b = table.indexOf("B2");
+        assertEquals(-3f, table.getX(b), 0f);
+        assertEquals(4.25f, table.getY(b), 0f);
+        assertEquals(-1, table.indexOf("C3"));
+    }
+
+    @Test
+    public void parsesEmptyInput() throws PointTable.FormatException {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse("\n\r\n").isEmpty());
+    }
+
+    @Test
+    public void parsesSubrange() throws PointTable.FormatException {
+        final byte[] data = "xxA:1,2\nyy".getBytes(StandardCharsets.UTF_8);
+        final PointTable table = PointTable.parse(data, 2, data.length - 2, "test");
+        assertEquals(1, table.size());
+        assertEquals(2f, table.getY(table.indexOf("A")), 0f);
+    }
+
+    @Test
+    public void reportsLineOfMissingColon() {
+        assertError("A:1,2\nB 3,4\n", 2, "missing ':'");
+    }
+
+    @Test
+    public void reportsLineOfEmptyName() {
+        assertError("A:1,2\r\n\r\n:3,4", 3, "empty point name");
+    }
+
+    @Test
+    public void reportsLineOfMissingComma() {
+        assertError("A:1 2", 1, "expected \"x,y\"");
+    }
+
+    @Test
+    public void reportsLineOfExtraComma() {
+        assertError("A:1,2\nB:1,2\n\nC:1,2,3\n", 4, "too many ','");
+    }
+
+    @Test
+    public void reportsLineOfInvalidCoordinate() {
+        assertError("A:1,2\nB:abc,2", 2, "invalid x coordinate");
+        assertError("A:1,", 1, "invalid y coordinate");
+    }
+
+    @Test
+    public void reportsLineOfNonFiniteCoordinate() {
+        assertError("A:NaN,2", 1, "x coordinate is not finite");
+        assertError("\nA:1,Infinity", 2, "y coordinate is not finite");
+    }
+
+    private static PointTable parse(String text) throws PointTable.FormatException {
+        final byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return PointTable.parse(data, 0, data.length, "test");
+    }
+
+    private static void assertError(String text, int lineNumber, String message) {
+        try {
+            parse(text);
+            fail("expected FormatException for " + text);
+        } catch (PointTable.FormatException e) {
+            assertEquals(e.getMessage(), lineNumber, e.getLineNumber());
+            assertTrue(e.getMessage(), e.getMessage().startsWith("test:" + lineNumber + ": "));
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
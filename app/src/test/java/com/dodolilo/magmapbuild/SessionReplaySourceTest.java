@@ -0,0 +1,122 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link SessionReplaySource}按记录回放帧、时间戳与采样频率改变.
+ */
+public class SessionReplaySourceTest {
+    private File file;
+
+    private PipelineScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("replay", "_sensors.csv");
+        scheduler = new PipelineScheduler("replay-test");
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.cancelAndJoin(1000);
+        file.delete();
+    }
+
+    @Test
+    public void replaysFramesTimestampsAndRateChanges() throws Exception {
+        final StringBuilder csv = new StringBuilder("13800000000\n");
+        for (int i = 0; i < 100; i++) {
+            csv.append(line(10_000 + i * 5L, i));
+            if (i == 40) {
+                //第30帧（时间10150）后静止，记录由编码级在一批样本之后写入
+                csv.append("#RATE,10150,STILL,10\n");
+            }
+        }
+        csv.append("#RATE,10900,MOVING,200\n");
+        for (int i = 0; i < 10; i++) {
+            csv.append(line(11_000 + i * 100L, 100 + i));
+        }
+        csv.append("END\n");
+        Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.US_ASCII));
+
+        final List<String> events = replay();
+        assertEquals(110 + 2, events.size());
+        int frame = 0;
+        for (int i = 0; i < events.size(); i++) {
+            if (i == 31) {
+                assertEquals("rate 10", events.get(i));
+            } else if (i == 101) {
+                assertEquals("rate 200", events.get(i));
+            } else {
+                final long time = frame < 100 ? 10_000 + frame * 5L : 11_000 + (frame - 100) * 100L;
+                assertEquals(time + " " + (float) frame, events.get(i));
+                frame++;
+            }
+        }
+    }
+
+    @Test
+    public void sessionWithoutRateRecordsKeepsNominalRate() throws Exception {
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            csv.append(line(1000 + i * 5L, i));
+        }
+        Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.US_ASCII));
+        final List<String> events = replay();
+        assertEquals(5, events.size());
+        for (String event : events) {
+            assertFalse(event, event.startsWith("rate"));
+        }
+    }
+
+    /**
+     * 以最快速度回放到捕获样本与频率改变的下游.
+     */
+    private List<String> replay() throws Exception {
+        final SessionReplaySource source = new SessionReplaySource(file, 0, 200);
+        final List<String> events = new ArrayList<>();
+        final SampleSink sink = new SampleSink() {
+            @Override
+            public void onSample(long timeMillis, float[] frame) {
+                for (int i = 1; i < SensorFrame.SIZE; i++) {
+                    assertEquals(frame[0], frame[i], 0f);
+                }
+                events.add(timeMillis + " " + frame[0]);
+            }
+
+            @Override
+            public void onRateChanged(int rateHz) {
+                events.add("rate " + rateHz);
+            }
+        };
+        final SessionController session = new SessionController();
+        assertTrue(session.start());
+        assertTrue(source.startSensorRecord(sink, session, scheduler));
+        final long count = source.getFinished().get(5, TimeUnit.SECONDS);
+        assertTrue(scheduler.joinAll(1000));
+        assertTrue(session.isSamplerStopped());
+        assertEquals(SessionController.State.SAMPLING, session.getState());
+        assertEquals(count, events.stream().filter(e -> !e.startsWith("rate")).count());
+        return events;
+    }
+
+    private static String line(long timeMillis, float value) {
+        final StringBuilder sb = new StringBuilder().append(timeMillis);
+        for (int i = 0; i < SensorFrame.SIZE; i++) {
+            sb.append(',').append(value);
+        }
+        return sb.append('\n').toString();
+    }
+}
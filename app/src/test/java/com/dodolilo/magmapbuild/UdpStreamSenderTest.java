@@ -0,0 +1,92 @@
+package com.dodolilo.magmapbuild;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link UdpStreamSender}按样本数与等待时间发出数据报，由本机的UDP通道接收.
+ */
+public class UdpStreamSenderTest {
+    private static final long SESSION_ID = 42L;
+
+    private static final int SAMPLES_PER_PACKET = 20;
+
+    private DatagramChannel receiver;
+
+    private UdpStreamSender sender;
+
+    @Before
+    public void setUp() throws IOException {
+        receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver.socket().setSoTimeout(2000);
+        final int port = ((InetSocketAddress) receiver.getLocalAddress()).getPort();
+        sender = new UdpStreamSender("127.0.0.1", port, SESSION_ID, SAMPLES_PER_PACKET, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    @Test
+    public void fullPacketIsSentBySize() throws IOException {
+        //样本间隔1ms，攒满前不会超时
+        final float[] frame = new float[SensorFrame.SIZE];
+        for (int i = 0; i < SAMPLES_PER_PACKET; i++) {
+            frame[SensorFrame.MAG] = i;
+            sender.onSample(1000 + i, frame);
+        }
+        final ByteBuffer packet = receive();
+        assertEquals(0, UdpPacketFormat.seqOf(packet));
+        assertEquals(SAMPLES_PER_PACKET, UdpPacketFormat.countOf(packet));
+        assertEquals(SESSION_ID, UdpPacketFormat.sessionIdOf(packet));
+        assertEquals(1000, packet.getLong(UdpPacketFormat.HEADER_SIZE));
+    }
+
+    @Test
+    public void partialPacketIsSentAfterDelay() throws IOException {
+        //10Hz：第一个样本等待达到上限时，数据报随第(MAX_PACKET_DELAY_MILLIS / 10 + 1)个样本发出
+        final float[] frame = new float[SensorFrame.SIZE];
+        final int expected = (int) (UdpStreamSender.MAX_PACKET_DELAY_MILLIS / 10) + 1;
+        for (int i = 0; i < expected; i++) {
+            sender.onSample(1000 + i * 10, frame);
+        }
+        ByteBuffer packet = receive();
+        assertEquals(0, UdpPacketFormat.seqOf(packet));
+        assertEquals(expected, UdpPacketFormat.countOf(packet));
+
+        //改变频率时已攒的样本立即发出
+        sender.onSample(2000, frame);
+        sender.onRateChanged(10);
+        packet = receive();
+        assertEquals(1, UdpPacketFormat.seqOf(packet));
+        assertEquals(1, UdpPacketFormat.countOf(packet));
+        assertEquals(2000, packet.getLong(UdpPacketFormat.HEADER_SIZE));
+    }
+
+    private ByteBuffer receive() throws IOException {
+        final ByteBuffer packet = ByteBuffer.allocate(UdpPacketFormat.MAX_PACKET_SIZE);
+        try {
+            //阻塞通道的receive不受SO_TIMEOUT约束，通过socket接收以免测试挂起
+            final DatagramPacket datagram = new DatagramPacket(packet.array(), packet.capacity());
+            receiver.socket().receive(datagram);
+            packet.limit(datagram.getLength());
+        } catch (SocketTimeoutException e) {
+            fail("no datagram received");
+        }
+        assertTrue(UdpPacketFormat.isValid(packet));
+        return packet;
+    }
+}